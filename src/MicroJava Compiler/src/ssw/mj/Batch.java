@@ -0,0 +1,132 @@
+package ssw.mj;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs one program against many inputs on several threads. All threads share
+ * the code and the pre-decoded forms in the {@link Interpreter.Builder}; every
+ * thread builds one interpreter on first use and {@link Interpreter#reset
+ * resets} it between inputs, so the regions are allocated and the code is
+ * translated once per thread instead of once per input. Interpreters are
+ * kept for later calls of {@link #run}.
+ * <p>
+ * The threads take the next input as soon as they are done with one, so long
+ * and short runs are balanced. Outputs are returned in the order of the
+ * inputs.
+ */
+public final class Batch {
+
+    /**
+     * Output of the program for one input.
+     */
+    public static final class Result {
+        public final String output;
+        /**
+         * Runtime error that ended the program, null if it terminated.
+         */
+        public final IllegalStateException error;
+
+        Result(String output, IllegalStateException error) {
+            this.output = output;
+            this.error = error;
+        }
+    }
+
+    private final byte[] code;
+    private final int startPC;
+    private final int dataSize;
+    private final Interpreter.Builder options;
+    private final Interpreter[] workers; // null until first used
+
+    /**
+     * Batch for the program on the given number of threads. The options must
+     * not be changed while the batch is used; their IO is replaced for every
+     * input.
+     */
+    public Batch(byte[] code, int startPC, int dataSize, Interpreter.Builder options, int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("number of threads must be positive: " + threads);
+        }
+        this.code = code;
+        this.startPC = startPC;
+        this.dataSize = dataSize;
+        this.options = options;
+        workers = new Interpreter[threads];
+    }
+
+    /**
+     * Batch on one thread per processor.
+     */
+    public Batch(byte[] code, int startPC, int dataSize, Interpreter.Builder options) {
+        this(code, startPC, dataSize, options, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Runs the program once for every input and returns the results in the
+     * same order. Errors other than runtime errors of the program are thrown
+     * after all threads have stopped.
+     */
+    public synchronized List<Result> run(List<String> inputs) {
+        Result[] results = new Result[inputs.size()];
+        AtomicInteger next = new AtomicInteger();
+        Throwable[] failures = new Throwable[workers.length];
+        int n = Math.min(workers.length, inputs.size());
+        Thread[] threads = new Thread[n];
+        for (int t = 0; t < n; t++) {
+            int w = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    for (int i = next.getAndIncrement(); i < results.length; i = next.getAndIncrement()) {
+                        results[i] = run(w, inputs.get(i));
+                    }
+                } catch (Throwable e) {
+                    failures[w] = e;
+                    next.set(results.length); // stops the other threads
+                }
+            }, "batch-" + t);
+            threads[t].start();
+        }
+        boolean interrupted = false;
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        for (Throwable e : failures) {
+            if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            } else if (e instanceof Error) {
+                throw (Error) e;
+            }
+        }
+        return new ArrayList<>(Arrays.asList(results));
+    }
+
+    /**
+     * Runs the program for input on the interpreter of worker w.
+     */
+    private Result run(int w, String input) {
+        Interpreter.BufferIO io = new Interpreter.BufferIO(input);
+        Interpreter inter = workers[w];
+        if (inter == null) {
+            inter = workers[w] = options.build(code, startPC, dataSize);
+        }
+        inter.reset(io);
+        try {
+            inter.run();
+        } catch (IllegalStateException e) {
+            return new Result(io.getOutput(), e);
+        }
+        return new Result(io.getOutput(), null);
+    }
+}
@@ -0,0 +1,214 @@
+package ssw.mj;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Compares the throughput of the execution engines on a MicroJava program.
+ * <p>
+ * Execute<br>
+ * <code>java ssw.mj.Benchmark &lt;<i>object file</i>&gt; [-runs n] [-input text] [-io] [-variants]</code><br>
+ * to run the program n times per engine. Output is discarded. With
+ * <code>-io</code> the program is run on the threaded engine with different
+ * kinds of output instead, the console output going to a discarding stream.
+ * With <code>-variants</code> the variants of the interpreter loops are
+ * compared: the switch engine with and without quickening and the threaded
+ * engine plain, with superinstructions and with top-of-stack caching.
+ */
+public class Benchmark {
+
+    private static final int DEFAULT_RUNS = 200;
+    private static final int ROUNDS = 3; // of alternating measurements of the variants
+
+    /**
+     * Console I/O as in earlier versions: one call of the synchronized
+     * <code>System.out</code> per character. Baseline for <code>-io</code>.
+     */
+    private static final class UnbufferedConsoleIO implements Interpreter.IO {
+        @Override
+        public char read() {
+            try {
+                int i = System.in.read();
+                return i == -1 ? 0 : (char) i;
+            } catch (IOException ex) {
+                return 0;
+            }
+        }
+
+        @Override
+        public void write(char c) {
+            System.out.print(c);
+        }
+
+        @Override
+        public void writeInt(int val, int width) {
+            String s = Integer.toString(val);
+            for (int n = width - s.length(); n > 0; n--) {
+                write(' ');
+            }
+            for (int i = 0; i < s.length(); i++) {
+                write(s.charAt(i));
+            }
+        }
+    }
+
+    private enum Output {
+        UNBUFFERED, CONSOLE, BUFFER;
+
+        Interpreter.IO create(String input) {
+            switch (this) {
+                case UNBUFFERED:
+                    return new UnbufferedConsoleIO();
+                case CONSOLE:
+                    return new Interpreter.BufferedConsoleIO();
+                default:
+                    return new Interpreter.BufferIO(input);
+            }
+        }
+    }
+
+    private enum Variant {
+        SWITCH, QUICK, THREADED, FUSED, CACHED;
+
+        Interpreter.Builder options() {
+            Interpreter.Builder options = new Interpreter.Builder();
+            switch (this) {
+                case SWITCH:
+                    return options;
+                case QUICK:
+                    return options.quicken(true);
+                case THREADED:
+                    return options.engine(Interpreter.Engine.THREADED);
+                case FUSED:
+                    return options.engine(Interpreter.Engine.THREADED).superinstructions(true);
+                default:
+                    return options.engine(Interpreter.Engine.THREADED).cacheTop(true);
+            }
+        }
+    }
+
+    /**
+     * Average time of one run in nanoseconds, after an equally long warm-up.
+     */
+    static long measure(String fileName, Interpreter.Engine engine, String input, int runs) throws IOException {
+        return measure(fileName, new Interpreter.Builder().engine(engine), input, runs);
+    }
+
+    /**
+     * Like {@link #measure(String, Interpreter.Engine, String, int)} for
+     * interpreters configured by <code>options</code>.
+     */
+    static long measure(String fileName, Interpreter.Builder options, String input, int runs) throws IOException {
+        long total = 0;
+        for (int i = -runs; i < runs; i++) {
+            Interpreter r = Run.load(fileName, options.io(new Interpreter.BufferIO(input)));
+            long start = System.nanoTime();
+            r.run();
+            if (i >= 0) {
+                total += System.nanoTime() - start;
+            }
+        }
+        return total / runs;
+    }
+
+    /**
+     * Like {@link #measure(String, Interpreter.Engine, String, int)} for the
+     * threaded engine with the given kind of output.
+     */
+    private static long measure(String fileName, Output output, String input, int runs) throws IOException {
+        InputStream in = System.in;
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        long total = 0;
+        try {
+            for (int i = -runs; i < runs; i++) {
+                System.setIn(new ByteArrayInputStream(input.getBytes()));
+                Interpreter r = Run.load(fileName, false, Interpreter.Engine.THREADED, output.create(input));
+                long start = System.nanoTime();
+                r.run();
+                if (i >= 0) {
+                    total += System.nanoTime() - start;
+                }
+            }
+        } finally {
+            System.setIn(in);
+            System.setOut(out);
+        }
+        return total / runs;
+    }
+
+    private static void report(String name, long time, long base) {
+        System.out.printf("%-10s %10.1f us/run %6.2fx%n", name, time / 1000.0, (double) base / time);
+    }
+
+    public static void main(String[] args) {
+        String fileName = null;
+        String input = "";
+        int runs = DEFAULT_RUNS;
+        boolean io = false;
+        boolean variants = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-runs") && i + 1 < args.length) {
+                runs = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-input") && i + 1 < args.length) {
+                input = args[++i];
+            } else if (args[i].equals("-io")) {
+                io = true;
+            } else if (args[i].equals("-variants")) {
+                variants = true;
+            } else {
+                fileName = args[i];
+            }
+        }
+        if (fileName == null || runs <= 0) {
+            System.out.println("Syntax: java ssw.mj.Benchmark filename [-runs n] [-input text] [-io] [-variants]");
+            return;
+        }
+        try {
+            long base = 0;
+            if (io) {
+                for (Output output : Output.values()) {
+                    long time = measure(fileName, output, input, runs);
+                    if (base == 0) {
+                        base = time;
+                    }
+                    report(output.name().toLowerCase(), time, base);
+                }
+                return;
+            }
+            if (variants) {
+                Variant[] all = Variant.values();
+                long[] times = new long[all.length];
+                Arrays.fill(times, Long.MAX_VALUE);
+                for (int round = 0; round < ROUNDS; round++) {
+                    // alternating, because the variants share the compiled code of the engines
+                    for (Variant v : all) {
+                        times[v.ordinal()] = Math.min(times[v.ordinal()], measure(fileName, v.options(), input, runs));
+                    }
+                }
+                for (Variant v : all) {
+                    report(v.name().toLowerCase(), times[v.ordinal()], times[0]);
+                }
+                return;
+            }
+            for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+                long time = measure(fileName, engine, input, runs);
+                if (base == 0) {
+                    base = time;
+                }
+                report(engine.name().toLowerCase(), time, base);
+            }
+        } catch (FileNotFoundException e) {
+            System.out.println("-- file " + fileName + " not found");
+        } catch (FormatException e) {
+            System.out.println("-- corrupted object file " + fileName + ": " + e.getMessage());
+        } catch (IOException e) {
+            System.out.println("-- error reading file " + fileName);
+        }
+    }
+}
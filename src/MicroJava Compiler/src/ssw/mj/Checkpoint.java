@@ -0,0 +1,136 @@
+package ssw.mj;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Complete state of a run suspended by {@link Interpreter#runFor} saved in a
+ * file, so that another interpreter, also in another process, continues the
+ * run where it was suspended instead of repeating its first part.
+ * <p>
+ * Like a {@link HeapFile}, the file is memory-mapped and holds big-endian
+ * words: a header, the global data, the used part of the heap, the method
+ * stack up to its stack pointer and the used part of the expression stack,
+ * which for {@link Interpreter.Engine#REGISTER} includes the registers that
+ * hold values at the position where the run continues.
+ * Restoring copies these parts into the regions in bulk and takes time
+ * proportional to the used heap and stacks, not to their sizes.
+ * <p>
+ * The header holds the marker <code>MJCP</code>, the format version, the
+ * CRC-32 of the code of the program, the engine, the {@link Interpreter#layout
+ * layout} of its code, the size of the global data, the first free heap
+ * address, the first block of the free list of the {@link GarbageCollector}
+ * (-1 if the heap was not collected), the position at which the run
+ * continues, the frame pointer, the stack pointer, the expression stack
+ * pointer and the number of saved expression stack words. The position is
+ * one in the code of the engine, so a checkpoint can only be restored by the
+ * program that saved it, on the same engine with the same options and with or
+ * without collection as when it was saved. Input read and output written
+ * before the checkpoint are not part of it.
+ */
+final class Checkpoint {
+
+    private static final int MARKER = 'M' << 24 | 'J' << 16 | 'C' << 8 | 'P';
+    private static final int VERSION = 1;
+    private static final int HEADER = 13; // words
+
+    private Checkpoint() {
+    }
+
+    private static int checksum(byte[] code) {
+        CRC32 crc = new CRC32();
+        crc.update(code);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Writes the state of the run of vm, which is suspended, to file.
+     */
+    static void save(Interpreter vm, Path file) throws IOException {
+        GarbageCollector gc = vm.getGarbageCollector();
+        int top = gc != null ? gc.top() : vm.free;
+        int stackTop = vm.stackTop();
+        long size = 4L * (HEADER + vm.data.length + top + vm.sp + stackTop);
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            IntBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, size).asIntBuffer();
+            buf.put(MARKER).put(VERSION).put(checksum(vm.code)).put(vm.getEngine().ordinal()).put(vm.layout())
+                    .put(vm.data.length).put(top).put(gc != null ? gc.freeList() : -1);
+            buf.put(vm.resume).put(vm.fp).put(vm.sp).put(vm.esp).put(stackTop);
+            buf.put(vm.data);
+            buf.put(vm.heap, 0, top);
+            buf.put(vm.local, 0, vm.sp);
+            buf.put(vm.stack, 0, stackTop);
+        }
+    }
+
+    /**
+     * Replaces the state of vm by the one saved in file, so that its next run
+     * continues the saved one. The regions grow to hold the saved state if
+     * they are smaller; the state is rejected if they cannot grow so far or
+     * the heap exceeds the quota of vm.
+     */
+    static void load(Interpreter vm, Path file) throws IOException, IllegalStateException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size < 4L * HEADER || size % 4 != 0 || size > Integer.MAX_VALUE * 4L) {
+                throw new FormatException("wrong size of checkpoint");
+            }
+            IntBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size).asIntBuffer();
+            if (buf.get() != MARKER) {
+                throw new FormatException("wrong marker of checkpoint");
+            }
+            if (buf.get() != VERSION) {
+                throw new FormatException("unknown version of checkpoint");
+            }
+            if (buf.get() != checksum(vm.code)) {
+                throw new FormatException("checkpoint of another program");
+            }
+            if (buf.get() != vm.getEngine().ordinal() || buf.get() != vm.layout()) {
+                throw new FormatException("checkpoint of another engine");
+            }
+            if (buf.get() != vm.data.length) {
+                throw new FormatException("checkpoint of another program");
+            }
+            int top = buf.get();
+            int freeList = buf.get();
+            GarbageCollector gc = vm.getGarbageCollector();
+            if ((freeList >= 0) != (gc != null)) {
+                throw new FormatException(gc != null ? "checkpoint of an uncollected heap"
+                        : "checkpoint of a collected heap");
+            }
+            int resume = buf.get();
+            int fp = buf.get();
+            int sp = buf.get();
+            int esp = buf.get();
+            int stackTop = buf.get();
+            if (top < 1 || sp < 0 || stackTop < 0
+                    || buf.remaining() != vm.data.length + (long) top + sp + stackTop) {
+                throw new FormatException("wrong size of checkpoint");
+            }
+            if (resume < 0 || fp < 0 || fp > sp || esp < 0 || esp > stackTop) {
+                throw new FormatException("corrupted state in checkpoint");
+            }
+            vm.reserve(top, sp, stackTop);
+            buf.get(vm.data);
+            buf.get(vm.heap, 0, top);
+            buf.get(vm.local, 0, sp);
+            buf.get(vm.stack, 0, stackTop);
+            if (gc != null) {
+                if (!gc.restore(top, freeList)) {
+                    throw new FormatException("corrupted blocks in checkpoint");
+                }
+            } else {
+                vm.free = top;
+            }
+            vm.fp = fp;
+            vm.sp = sp;
+            vm.esp = esp;
+            vm.resume = resume;
+        }
+    }
+}
@@ -0,0 +1,461 @@
+package ssw.mj;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal writer for JVM class files. Classes are written in version 49 so
+ * that no stack map frames are needed; the JVM verifies them by type
+ * inference. Only the instructions and constant kinds needed for translated
+ * MicroJava code are supported.
+ */
+final class ClassFileWriter {
+
+    // ----- access flags
+    static final int ACC_PUBLIC = 0x0001, ACC_PRIVATE = 0x0002, ACC_STATIC = 0x0008, ACC_FINAL = 0x0010,
+            ACC_SUPER = 0x0020, ACC_ABSTRACT = 0x0400;
+
+    // ----- opcodes
+    static final int NOP = 0, ACONST_NULL = 1, ICONST_0 = 3, BIPUSH = 16, SIPUSH = 17, LDC = 18, LDC_W = 19,
+            ILOAD = 21, LLOAD = 22, ALOAD = 25, IALOAD = 46, AALOAD = 50, BALOAD = 51, CALOAD = 52,
+            ISTORE = 54, LSTORE = 55, ASTORE = 58, IASTORE = 79, AASTORE = 83, BASTORE = 84, CASTORE = 85,
+            POP = 87, POP2 = 88, DUP = 89, DUP_X1 = 90, DUP_X2 = 91, DUP2 = 92, SWAP = 95,
+            IADD = 96, ISUB = 100, LSUB = 101, IMUL = 104, IDIV = 108, IREM = 112, INEG = 116,
+            ISHL = 120, ISHR = 122, IUSHR = 124, IAND = 126, IOR = 128, IXOR = 130, IINC = 132,
+            I2B = 145, I2C = 146,
+            IFEQ = 153, IFNE = 154, IFLT = 155, IFGE = 156, IFGT = 157, IFLE = 158,
+            IF_ICMPEQ = 159, IF_ICMPNE = 160, IF_ICMPLT = 161, IF_ICMPGE = 162, IF_ICMPGT = 163, IF_ICMPLE = 164,
+            IF_ACMPEQ = 165, IF_ACMPNE = 166, GOTO = 167,
+            IRETURN = 172, ARETURN = 176, RETURN = 177,
+            GETSTATIC = 178, PUTSTATIC = 179, GETFIELD = 180, PUTFIELD = 181,
+            INVOKEVIRTUAL = 182, INVOKESPECIAL = 183, INVOKESTATIC = 184, INVOKEINTERFACE = 185,
+            NEW = 187, NEWARRAY = 188, ANEWARRAY = 189, ARRAYLENGTH = 190, ATHROW = 191, CHECKCAST = 192,
+            WIDE = 196, IFNULL = 198, IFNONNULL = 199;
+
+    /**
+     * Array type codes for NEWARRAY.
+     */
+    static final int T_BYTE = 8, T_INT = 10;
+
+    private static final int CLASS = 7, FIELDREF = 9, METHODREF = 10, INTERFACE_METHODREF = 11, STRING = 8,
+            INTEGER = 3, NAME_AND_TYPE = 12, UTF8 = 1;
+
+    private final String name;
+    private final String superName;
+    private final int access;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolSize = 1;
+
+    private final ByteArrayOutputStream members = new ByteArrayOutputStream();
+    private final DataOutputStream membersOut = new DataOutputStream(members);
+    private int nFields, nMethods;
+    private final List<byte[]> methods = new ArrayList<>();
+
+    /**
+     * Creates a writer for a class. Names use the internal form, e.g.
+     * <code>ssw/mj/Interpreter</code>.
+     */
+    ClassFileWriter(int access, String name, String superName) {
+        this.access = access;
+        this.name = name;
+        this.superName = superName;
+    }
+
+    // ----- constant pool
+
+    private int constant(String key, int tag, int a, int b, String utf) {
+        Integer idx = poolIndex.get(key);
+        if (idx != null) {
+            return idx;
+        }
+        try {
+            poolOut.writeByte(tag);
+            switch (tag) {
+                case UTF8:
+                    poolOut.writeUTF(utf);
+                    break;
+                case INTEGER:
+                    poolOut.writeInt(a);
+                    break;
+                case CLASS:
+                case STRING:
+                    poolOut.writeShort(a);
+                    break;
+                default:
+                    poolOut.writeShort(a);
+                    poolOut.writeShort(b);
+                    break;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        if (poolSize > 0xffff) {
+            throw new IllegalStateException("constant pool too large");
+        }
+        poolIndex.put(key, poolSize);
+        return poolSize++;
+    }
+
+    int utf8(String s) {
+        return constant("U" + s, UTF8, 0, 0, s);
+    }
+
+    int classRef(String internalName) {
+        return constant("C" + internalName, CLASS, utf8(internalName), 0, null);
+    }
+
+    int string(String s) {
+        return constant("S" + s, STRING, utf8(s), 0, null);
+    }
+
+    int integer(int val) {
+        return constant("I" + val, INTEGER, val, 0, null);
+    }
+
+    private int nameAndType(String name, String desc) {
+        return constant("N" + name + ' ' + desc, NAME_AND_TYPE, utf8(name), utf8(desc), null);
+    }
+
+    int fieldRef(String owner, String name, String desc) {
+        return constant("F" + owner + '.' + name + ' ' + desc, FIELDREF, classRef(owner), nameAndType(name, desc),
+                null);
+    }
+
+    int methodRef(String owner, String name, String desc) {
+        return constant("M" + owner + '.' + name + desc, METHODREF, classRef(owner), nameAndType(name, desc), null);
+    }
+
+    int interfaceMethodRef(String owner, String name, String desc) {
+        return constant("J" + owner + '.' + name + desc, INTERFACE_METHODREF, classRef(owner),
+                nameAndType(name, desc), null);
+    }
+
+    // ----- members
+
+    void field(int access, String name, String desc) {
+        try {
+            membersOut.writeShort(access);
+            membersOut.writeShort(utf8(name));
+            membersOut.writeShort(utf8(desc));
+            membersOut.writeShort(0); // no attributes
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        nFields++;
+    }
+
+    /**
+     * Starts a method; its code is added with {@link MethodWriter#end()}.
+     */
+    MethodWriter method(int access, String name, String desc) {
+        return new MethodWriter(access, name, desc);
+    }
+
+    /**
+     * Writes a constructor that only calls the constructor of the super
+     * class.
+     */
+    void defaultConstructor() {
+        MethodWriter m = method(ACC_PUBLIC, "<init>", "()V");
+        m.aload(0);
+        m.invoke(INVOKESPECIAL, superName, "<init>", "()V");
+        m.op(RETURN);
+        m.end(1, 1);
+    }
+
+    byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            int thisIdx = classRef(name);
+            int superIdx = classRef(superName);
+            int codeIdx = utf8("Code");
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0); // minor version
+            out.writeShort(49); // major version: Java 5, no stack maps
+            out.writeShort(poolSize);
+            poolOut.flush();
+            pool.writeTo(out);
+            out.writeShort(access);
+            out.writeShort(thisIdx);
+            out.writeShort(superIdx);
+            out.writeShort(0); // no interfaces
+            out.writeShort(nFields);
+            membersOut.flush();
+            members.writeTo(out);
+            out.writeShort(nMethods);
+            for (byte[] m : methods) {
+                out.write(m, 0, 6);
+                out.writeShort(1); // one attribute: Code
+                out.writeShort(codeIdx);
+                out.write(m, 6, m.length - 6);
+            }
+            out.writeShort(0); // no class attributes
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Code of one method. Jump targets are labels created with
+     * {@link #newLabel()} and placed with {@link #place(int)}.
+     */
+    final class MethodWriter {
+        private final int access;
+        private final String name;
+        private final String desc;
+        private byte[] code = new byte[256];
+        private int pc;
+        private int[] labels = new int[16];
+        private int nLabels;
+        // pairs of (position of the branch instruction, label)
+        private int[] fixups = new int[32];
+        private int nFixups;
+        // exception handlers: start label, end label, handler label, class index
+        private int[] handlers = new int[0];
+        private int nHandlers;
+
+        private MethodWriter(int access, String name, String desc) {
+            this.access = access;
+            this.name = name;
+            this.desc = desc;
+        }
+
+        int pc() {
+            return pc;
+        }
+
+        private void put(int b) {
+            if (pc == code.length) {
+                code = Arrays.copyOf(code, code.length * 2);
+            }
+            code[pc++] = (byte) b;
+        }
+
+        private void put2(int x) {
+            put(x >> 8);
+            put(x);
+        }
+
+        void op(int opcode) {
+            put(opcode);
+        }
+
+        void iconst(int val) {
+            if (val >= -1 && val <= 5) {
+                put(ICONST_0 + val);
+            } else if (val >= Byte.MIN_VALUE && val <= Byte.MAX_VALUE) {
+                put(BIPUSH);
+                put(val);
+            } else if (val >= Short.MIN_VALUE && val <= Short.MAX_VALUE) {
+                put(SIPUSH);
+                put2(val);
+            } else {
+                ldc(integer(val));
+            }
+        }
+
+        void ldc(int constant) {
+            if (constant <= 0xff) {
+                put(LDC);
+                put(constant);
+            } else {
+                put(LDC_W);
+                put2(constant);
+            }
+        }
+
+        private void var(int opcode, int var) {
+            if (var <= 0xff) {
+                put(opcode);
+                put(var);
+            } else {
+                put(WIDE);
+                put(opcode);
+                put2(var);
+            }
+        }
+
+        void iload(int var) {
+            var(ILOAD, var);
+        }
+
+        void istore(int var) {
+            var(ISTORE, var);
+        }
+
+        void lload(int var) {
+            var(LLOAD, var);
+        }
+
+        void lstore(int var) {
+            var(LSTORE, var);
+        }
+
+        void aload(int var) {
+            var(ALOAD, var);
+        }
+
+        void astore(int var) {
+            var(ASTORE, var);
+        }
+
+        void iinc(int var, int val) {
+            if (var <= 0xff && val >= Byte.MIN_VALUE && val <= Byte.MAX_VALUE) {
+                put(IINC);
+                put(var);
+                put(val);
+            } else {
+                put(WIDE);
+                put(IINC);
+                put2(var);
+                put2(val);
+            }
+        }
+
+        void field(int opcode, String owner, String name, String desc) {
+            put(opcode);
+            put2(fieldRef(owner, name, desc));
+        }
+
+        void invoke(int opcode, String owner, String name, String desc) {
+            if (opcode == INVOKEINTERFACE) {
+                put(opcode);
+                put2(interfaceMethodRef(owner, name, desc));
+                put(argumentSlots(desc) + 1);
+                put(0);
+            } else {
+                put(opcode);
+                put2(methodRef(owner, name, desc));
+            }
+        }
+
+        void type(int opcode, String internalName) {
+            put(opcode);
+            put2(classRef(internalName));
+        }
+
+        void newarray(int type) {
+            put(NEWARRAY);
+            put(type);
+        }
+
+        int newLabel() {
+            if (nLabels == labels.length) {
+                labels = Arrays.copyOf(labels, nLabels * 2);
+            }
+            labels[nLabels] = -1;
+            return nLabels++;
+        }
+
+        void place(int label) {
+            labels[label] = pc;
+        }
+
+        /**
+         * Emits a branch instruction to label.
+         */
+        void jump(int opcode, int label) {
+            if (nFixups + 2 > fixups.length) {
+                fixups = Arrays.copyOf(fixups, fixups.length * 2);
+            }
+            fixups[nFixups++] = pc;
+            fixups[nFixups++] = label;
+            put(opcode);
+            put2(0);
+        }
+
+        /**
+         * Adds an exception handler for the code between the labels start
+         * (inclusive) and end (exclusive). If type is null, all exceptions are
+         * caught.
+         */
+        void handler(int start, int end, int handler, String type) {
+            if (nHandlers + 4 > handlers.length) {
+                handlers = Arrays.copyOf(handlers, handlers.length * 2 + 4);
+            }
+            handlers[nHandlers++] = start;
+            handlers[nHandlers++] = end;
+            handlers[nHandlers++] = handler;
+            handlers[nHandlers++] = type == null ? 0 : classRef(type);
+        }
+
+        /**
+         * Adds the method to the class.
+         */
+        void end(int maxStack, int maxLocals) {
+            for (int i = 0; i < nFixups; i += 2) {
+                int at = fixups[i];
+                int target = labels[fixups[i + 1]];
+                if (target < 0) {
+                    throw new IllegalStateException("label not placed");
+                }
+                int off = target - at;
+                if (off < Short.MIN_VALUE || off > Short.MAX_VALUE) {
+                    throw new IllegalStateException("branch offset too large");
+                }
+                code[at + 1] = (byte) (off >> 8);
+                code[at + 2] = (byte) off;
+            }
+            if (pc > 0xffff) {
+                throw new IllegalStateException("method too large");
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            try {
+                out.writeShort(access);
+                out.writeShort(utf8(name));
+                out.writeShort(utf8(desc));
+                out.writeInt(2 + 2 + 4 + pc + 2 + nHandlers * 2 + 2); // attribute length
+                out.writeShort(maxStack);
+                out.writeShort(maxLocals);
+                out.writeInt(pc);
+                out.write(code, 0, pc);
+                out.writeShort(nHandlers / 4);
+                for (int i = 0; i < nHandlers; i += 4) {
+                    out.writeShort(labels[handlers[i]]);
+                    out.writeShort(labels[handlers[i + 1]]);
+                    out.writeShort(labels[handlers[i + 2]]);
+                    out.writeShort(handlers[i + 3]);
+                }
+                out.writeShort(0); // no attributes
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            methods.add(bytes.toByteArray());
+            nMethods++;
+        }
+    }
+
+    /**
+     * Number of local variable slots taken by the arguments of a method
+     * descriptor. Only int, reference and array parameters are supported.
+     */
+    private static int argumentSlots(String desc) {
+        int n = 0;
+        int i = 1;
+        while (desc.charAt(i) != ')') {
+            char c = desc.charAt(i);
+            while (c == '[') {
+                c = desc.charAt(++i);
+            }
+            if (c == 'L') {
+                i = desc.indexOf(';', i);
+            }
+            n++;
+            i++;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,604 @@
+package ssw.mj;
+
+import java.util.Arrays;
+
+import static ssw.mj.ThreadedCode.*;
+
+/**
+ * Closure-compiled form of a MicroJava program for
+ * {@link Interpreter.Engine#CLOSURE}. Every instruction is compiled into a
+ * Java closure with its operands bound, every basic block into a
+ * {@link Block} holding the closures of its instructions and a
+ * {@link Transition} to the next block. Execution runs the blocks one after
+ * the other; calls and returns are transitions as well, so MicroJava
+ * recursion does not use the Java stack.
+ * <p>
+ * Blocks are created from the {@link CodeAnalysis} of the program, so stack
+ * underflow cannot occur and is not checked. All other errors are reported as
+ * by the stack machine.
+ */
+final class ClosureCode {
+
+    /**
+     * Registers of the virtual machine during execution. The arrays are
+     * reloaded from the interpreter when they grow.
+     */
+    static final class State {
+        final Interpreter vm;
+        final int[] data;
+        int[] stack, local, heap;
+        int esp, sp, fp;
+        int fuel; // steps left in the slice
+        Block suspended; // where the run continues after it ran out of fuel
+
+        State(Interpreter vm) {
+            this.vm = vm;
+            data = vm.data;
+            stack = vm.stack;
+            local = vm.local;
+            heap = vm.heap;
+            esp = vm.esp;
+            sp = vm.sp;
+            fp = vm.fp;
+            fuel = vm.fuel;
+        }
+
+        void push(int val) {
+            if (esp == stack.length) {
+                stack = vm.growStack(esp + 1);
+            }
+            stack[esp++] = val;
+        }
+    }
+
+    /**
+     * A compiled instruction.
+     */
+    interface Op {
+        void run(State s) throws IllegalStateException;
+    }
+
+    /**
+     * The last instruction of a block, returns the next block, null if main
+     * returned.
+     */
+    interface Transition {
+        Block next(State s) throws IllegalStateException;
+    }
+
+    /**
+     * A sequence of instructions that is entered only at its start and left
+     * only at its end.
+     */
+    static final class Block {
+        /**
+         * Address of the first instruction.
+         */
+        final int pc;
+        private Op[] body;
+        private Transition exit;
+
+        Block(int pc) {
+            this.pc = pc;
+        }
+
+        Block run(State s) throws IllegalStateException {
+            for (Op op : body) {
+                op.run(s);
+            }
+            return exit.next(s);
+        }
+    }
+
+    private final Block start;
+
+    /**
+     * Blocks by the address of their first instruction, for resuming a run.
+     */
+    private final Block[] blocks;
+
+    /**
+     * Maps the return address of each call, a byte code pc, to the block
+     * following the call.
+     */
+    private final Block[] returns;
+
+    private ClosureCode(Block start, Block[] blocks, Block[] returns) {
+        this.start = start;
+        this.blocks = blocks;
+        this.returns = returns;
+    }
+
+    private static IllegalStateException nullReference() {
+        return new IllegalStateException("null reference used");
+    }
+
+    private static IllegalStateException outOfBounds() {
+        return new IllegalStateException("index out of bounds");
+    }
+
+    private static IllegalStateException divisionByZero() {
+        return new IllegalStateException("division by zero");
+    }
+
+    // ----- compilation
+
+    /**
+     * Compiles the analyzed code, null if a method could not be analyzed.
+     */
+    static ClosureCode compile(byte[] code, int startPC, CodeAnalysis analysis) {
+        for (CodeAnalysis.MethodInfo m : analysis.methods) {
+            if (m.error != null) {
+                return null;
+            }
+        }
+        Block[] blocks = new Block[code.length + 1]; // by address of the first instruction
+        Block[] returns = new Block[code.length + 1];
+        for (CodeAnalysis.MethodInfo m : analysis.methods) {
+            blocks[m.entry] = new Block(m.entry);
+        }
+        for (int pc = 0; pc < code.length; pc++) {
+            if (analysis.owner[pc] < 0) {
+                continue;
+            }
+            int op = code[pc];
+            if (op >= JMP && op <= JGE) {
+                addBlock(blocks, analysis.target(pc));
+            }
+            if (op >= JEQ && op <= JGE || op == CALL && analysis.methodAt(analysis.target(pc)).results >= 0) {
+                addBlock(blocks, pc + 3);
+            }
+        }
+        ClosureCode closures = new ClosureCode(blocks[startPC], blocks, returns);
+        for (Block b : blocks) {
+            if (b != null) {
+                closures.compile(b, code, analysis, blocks);
+            }
+        }
+        return closures;
+    }
+
+    private static void addBlock(Block[] blocks, int pc) {
+        if (blocks[pc] == null) {
+            blocks[pc] = new Block(pc);
+        }
+    }
+
+    /**
+     * Compiles the instructions of block b up to the next jump, call or
+     * return or up to the start of the next block.
+     */
+    private void compile(Block b, byte[] code, CodeAnalysis analysis, Block[] blocks) {
+        Op[] body = new Op[8];
+        int n = 0;
+        int pc = b.pc;
+        for (; ; ) {
+            if (pc != b.pc && blocks[pc] != null) {
+                Block next = blocks[pc];
+                b.exit = s -> next;
+                break;
+            }
+            int op = code[pc];
+            int len = analysis.size(pc);
+            if (op >= JMP && op <= JGE || op == CALL || op == RETURN || op == TRAP) {
+                b.exit = transition(code, pc, analysis, blocks);
+                if (op == CALL) {
+                    b.exit = call(b.exit);
+                } else if (op >= JMP && op <= JGE && analysis.target(pc) <= pc) {
+                    b.exit = backward(b.exit, pc);
+                }
+                break;
+            }
+            if (n == body.length) {
+                body = Arrays.copyOf(body, n * 2);
+            }
+            body[n++] = instruction(code, pc, analysis);
+            pc += len;
+        }
+        b.body = Arrays.copyOf(body, n);
+    }
+
+    private Transition transition(byte[] code, int pc, CodeAnalysis analysis, Block[] blocks) {
+        switch (code[pc]) {
+            case JMP: {
+                Block target = blocks[analysis.target(pc)];
+                return s -> target;
+            }
+            case JEQ: {
+                Block target = blocks[analysis.target(pc)], next = blocks[pc + 3];
+                return s -> {
+                    s.esp -= 2;
+                    return s.stack[s.esp] == s.stack[s.esp + 1] ? target : next;
+                };
+            }
+            case JNE: {
+                Block target = blocks[analysis.target(pc)], next = blocks[pc + 3];
+                return s -> {
+                    s.esp -= 2;
+                    return s.stack[s.esp] != s.stack[s.esp + 1] ? target : next;
+                };
+            }
+            case JLT: {
+                Block target = blocks[analysis.target(pc)], next = blocks[pc + 3];
+                return s -> {
+                    s.esp -= 2;
+                    return s.stack[s.esp] < s.stack[s.esp + 1] ? target : next;
+                };
+            }
+            case JLE: {
+                Block target = blocks[analysis.target(pc)], next = blocks[pc + 3];
+                return s -> {
+                    s.esp -= 2;
+                    return s.stack[s.esp] <= s.stack[s.esp + 1] ? target : next;
+                };
+            }
+            case JGT: {
+                Block target = blocks[analysis.target(pc)], next = blocks[pc + 3];
+                return s -> {
+                    s.esp -= 2;
+                    return s.stack[s.esp] > s.stack[s.esp + 1] ? target : next;
+                };
+            }
+            case JGE: {
+                Block target = blocks[analysis.target(pc)], next = blocks[pc + 3];
+                return s -> {
+                    s.esp -= 2;
+                    return s.stack[s.esp] >= s.stack[s.esp + 1] ? target : next;
+                };
+            }
+            case CALL: {
+                Block target = blocks[analysis.target(pc)];
+                int ret = pc + 3;
+                if (analysis.methodAt(analysis.target(pc)).results >= 0) {
+                    returns[ret] = blocks[ret];
+                }
+                return s -> {
+                    if (s.sp == s.local.length) {
+                        s.local = s.vm.growLocal(s.sp + 1);
+                    }
+                    s.local[s.sp++] = ret; // return address as byte code pc
+                    return target;
+                };
+            }
+            case RETURN: {
+                Block[] returns = this.returns;
+                return s -> s.sp == 0 ? null : returns[s.local[--s.sp]];
+            }
+            default: { // TRAP
+                int n = code[pc + 1];
+                return s -> {
+                    throw new IllegalStateException("trap(" + n + ")");
+                };
+            }
+        }
+    }
+
+    /**
+     * Counts a step of the run after the call exit, leaving the run before
+     * the callee if the fuel is used up.
+     */
+    private static Transition call(Transition exit) {
+        return s -> {
+            Block next = exit.next(s);
+            if (--s.fuel < 0) {
+                s.suspended = next;
+                return null;
+            }
+            return next;
+        };
+    }
+
+    /**
+     * Counts a step of the run after the jump exit at pc if it leads back to
+     * pc or before, leaving the run before the next block if the fuel is used
+     * up. Forward jumps are not wrapped.
+     */
+    private static Transition backward(Transition exit, int pc) {
+        return s -> {
+            Block next = exit.next(s);
+            if (next.pc <= pc && --s.fuel < 0) {
+                s.suspended = next;
+                return null;
+            }
+            return next;
+        };
+    }
+
+    /**
+     * Closure for the instruction at pc, which does not transfer control.
+     */
+    private static Op instruction(byte[] code, int pc, CodeAnalysis analysis) {
+        int op = code[pc];
+        switch (op) {
+            // load/store local variables
+            case LOAD:
+            case LOAD_0:
+            case LOAD_1:
+            case LOAD_2:
+            case LOAD_3: {
+                int n = op == LOAD ? code[pc + 1] : op - LOAD_0;
+                return s -> s.push(s.local[s.fp + n]);
+            }
+            case STORE:
+            case STORE_0:
+            case STORE_1:
+            case STORE_2:
+            case STORE_3: {
+                int n = op == STORE ? code[pc + 1] : op - STORE_0;
+                return s -> s.local[s.fp + n] = s.stack[--s.esp];
+            }
+
+            // load/store global variables
+            case GETSTATIC: {
+                int n = analysis.get2(pc + 1);
+                return s -> s.push(s.data[n]);
+            }
+            case PUTSTATIC: {
+                int n = analysis.get2(pc + 1);
+                return s -> s.data[n] = s.stack[--s.esp];
+            }
+
+            // load/store object fields
+            case GETFIELD: {
+                int off = analysis.get2(pc + 1);
+                return s -> {
+                    int adr = s.stack[s.esp - 1];
+                    if (adr == 0) {
+                        throw nullReference();
+                    }
+                    s.stack[s.esp - 1] = s.heap[adr + off];
+                };
+            }
+            case PUTFIELD: {
+                int off = analysis.get2(pc + 1);
+                return s -> {
+                    int val = s.stack[--s.esp];
+                    int adr = s.stack[--s.esp];
+                    if (adr == 0) {
+                        throw nullReference();
+                    }
+                    s.heap[adr + off] = val;
+                };
+            }
+
+            // load constants
+            case CONST_0:
+            case CONST_1:
+            case CONST_2:
+            case CONST_3:
+            case CONST_4:
+            case CONST_5:
+            case CONST_M1:
+            case CONST: {
+                int val = op == CONST ? (analysis.get2(pc + 1) << 16) + (analysis.get2(pc + 3) & 0xffff)
+                        : op == CONST_M1 ? -1 : op - CONST_0;
+                return s -> s.push(val);
+            }
+
+            // arithmetic operations
+            case ADD:
+                return s -> {
+                    s.esp--;
+                    s.stack[s.esp - 1] += s.stack[s.esp];
+                };
+            case SUB:
+                return s -> {
+                    s.esp--;
+                    s.stack[s.esp - 1] -= s.stack[s.esp];
+                };
+            case MUL:
+                return s -> {
+                    s.esp--;
+                    s.stack[s.esp - 1] *= s.stack[s.esp];
+                };
+            case DIV:
+                return s -> {
+                    int val = s.stack[--s.esp];
+                    if (val == 0) {
+                        throw divisionByZero();
+                    }
+                    s.stack[s.esp - 1] /= val;
+                };
+            case REM:
+                return s -> {
+                    int val = s.stack[--s.esp];
+                    if (val == 0) {
+                        throw divisionByZero();
+                    }
+                    s.stack[s.esp - 1] %= val;
+                };
+            case NEG:
+                return s -> s.stack[s.esp - 1] = -s.stack[s.esp - 1];
+            case SHL:
+                return s -> {
+                    s.esp--;
+                    s.stack[s.esp - 1] <<= s.stack[s.esp];
+                };
+            case SHR:
+                return s -> {
+                    s.esp--;
+                    s.stack[s.esp - 1] >>= s.stack[s.esp];
+                };
+            case INC: {
+                int n = code[pc + 1];
+                int d = code[pc + 2];
+                return s -> s.local[s.fp + n] += d;
+            }
+
+            // object creation
+            case NEW: {
+                int size = analysis.get2(pc + 1);
+                return s -> {
+                    s.vm.esp = s.esp; // roots for the garbage collector
+                    s.vm.sp = s.sp;
+                    int adr = s.vm.newObject(size);
+                    s.heap = s.vm.heap;
+                    s.push(adr);
+                };
+            }
+            case NEWARRAY: {
+                int type = code[pc + 1];
+                return s -> {
+                    s.vm.esp = s.esp;
+                    s.vm.sp = s.sp;
+                    s.stack[s.esp - 1] = s.vm.newArray(s.stack[s.esp - 1], type);
+                    s.heap = s.vm.heap;
+                };
+            }
+
+            // array access
+            case ALOAD:
+                return s -> {
+                    int idx = s.stack[--s.esp];
+                    int adr = s.stack[s.esp - 1];
+                    if (adr == 0) {
+                        throw nullReference();
+                    }
+                    if (idx < 0 || idx >= s.heap[adr - 1]) {
+                        throw outOfBounds();
+                    }
+                    s.stack[s.esp - 1] = s.heap[adr + idx];
+                };
+            case ASTORE:
+                return s -> {
+                    int val = s.stack[--s.esp];
+                    int idx = s.stack[--s.esp];
+                    int adr = s.stack[--s.esp];
+                    if (adr == 0) {
+                        throw nullReference();
+                    }
+                    if (idx < 0 || idx >= s.heap[adr - 1]) {
+                        throw outOfBounds();
+                    }
+                    s.heap[adr + idx] = val;
+                };
+            case BALOAD:
+                return s -> {
+                    int idx = s.stack[--s.esp];
+                    int adr = s.stack[s.esp - 1];
+                    if (adr == 0) {
+                        throw nullReference();
+                    }
+                    if (idx < 0 || idx >= s.heap[adr - 1]) {
+                        throw outOfBounds();
+                    }
+                    s.stack[s.esp - 1] = (byte) (s.heap[adr + idx / 4] << (8 * (idx % 4)) >>> 24);
+                };
+            case BASTORE:
+                return s -> {
+                    int val = s.stack[--s.esp];
+                    int idx = s.stack[--s.esp];
+                    int adr = s.stack[--s.esp];
+                    if (adr == 0) {
+                        throw nullReference();
+                    }
+                    if (idx < 0 || idx >= s.heap[adr - 1]) {
+                        throw outOfBounds();
+                    }
+                    int shift = (3 - idx % 4) * 8; // bit offset of the byte
+                    s.heap[adr + idx / 4] = (s.heap[adr + idx / 4] & ~(255 << shift)) ^ ((val & 255) << shift);
+                };
+            case ARRAYLENGTH:
+                return s -> {
+                    int adr = s.stack[s.esp - 1];
+                    if (adr == 0) {
+                        throw nullReference();
+                    }
+                    s.stack[s.esp - 1] = s.heap[adr - 1];
+                };
+
+            // stack manipulation
+            case POP:
+                return s -> s.esp--;
+            case DUP:
+                return s -> s.push(s.stack[s.esp - 1]);
+            case DUP2:
+                return s -> {
+                    if (s.esp + 2 > s.stack.length) {
+                        s.stack = s.vm.growStack(s.esp + 2);
+                    }
+                    s.stack[s.esp] = s.stack[s.esp - 2];
+                    s.stack[s.esp + 1] = s.stack[s.esp - 1];
+                    s.esp += 2;
+                };
+
+            // method frames
+            case ENTER: {
+                int nPars = code[pc + 1];
+                int nLocals = code[pc + 2];
+                return s -> {
+                    if (s.sp + 1 + nLocals > s.local.length) {
+                        s.local = s.vm.growLocal(s.sp + 1 + nLocals);
+                    }
+                    s.local[s.sp++] = s.fp;
+                    s.fp = s.sp;
+                    Arrays.fill(s.local, s.sp, s.sp + nLocals, 0);
+                    s.sp += nLocals;
+                    s.esp -= nPars;
+                    System.arraycopy(s.stack, s.esp, s.local, s.fp, nPars);
+                };
+            }
+            case EXIT:
+                return s -> {
+                    if (s.fp == 0) {
+                        throw new IllegalStateException("method stack underflow");
+                    }
+                    s.sp = s.fp;
+                    s.fp = s.local[--s.sp];
+                };
+
+            // I/O
+            case READ:
+                return s -> {
+                    if (s.esp == s.stack.length) {
+                        s.stack = s.vm.growStack(s.esp + 1);
+                    }
+                    s.stack[s.esp++] = s.vm.readInt();
+                };
+            case BREAD:
+                return s -> {
+                    if (s.esp == s.stack.length) {
+                        s.stack = s.vm.growStack(s.esp + 1);
+                    }
+                    s.stack[s.esp++] = s.vm.io.read();
+                };
+            case PRINT:
+                return s -> {
+                    s.esp -= 2;
+                    s.vm.print(s.stack[s.esp], s.stack[s.esp + 1]);
+                };
+            case BPRINT:
+                return s -> {
+                    s.esp -= 2;
+                    s.vm.bprint(s.stack[s.esp], s.stack[s.esp + 1]);
+                };
+            default: // NOP
+                return s -> {
+                };
+        }
+    }
+
+    // ----- execution
+
+    /**
+     * Executes the program on the state of <code>vm</code> from the block at
+     * byte code address <code>at</code>, or from the start if it is negative,
+     * until main returns or the fuel of the run is used up, which leaves the
+     * address of the next block in {@link Interpreter#resume}. Semantics and
+     * error messages are the same as in {@link Interpreter#run()}.
+     */
+    void execute(Interpreter vm, int at) throws IllegalStateException {
+        State s = new State(vm);
+        Block b = at >= 0 ? blocks[at] : start;
+        while (b != null) {
+            b = b.run(s);
+        }
+        vm.esp = s.esp;
+        vm.sp = s.sp;
+        vm.fp = s.fp;
+        vm.fuel = s.fuel;
+        if (s.suspended != null) {
+            vm.resume = s.suspended.pc;
+        }
+    }
+}
@@ -0,0 +1,497 @@
+package ssw.mj;
+
+import ssw.mj.codegen.Code.OpCode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static ssw.mj.ThreadedCode.*;
+
+/**
+ * Data-flow analysis of a MicroJava program. Methods are found by following
+ * the calls starting at the main method. For every method the expression
+ * stack depth before each instruction is computed, relative to the stack
+ * after the parameters have been removed by <code>enter</code>. The number of
+ * values a method leaves on the stack when it returns is found by a fixpoint
+ * iteration, so calls can be analyzed like any other instruction.
+ */
+final class CodeAnalysis {
+
+    /**
+     * Properties of one method.
+     */
+    static final class MethodInfo {
+        /**
+         * Index in {@link CodeAnalysis#methods}, 0 is the main method.
+         */
+        final int id;
+        /**
+         * Address of the <code>enter</code> instruction.
+         */
+        final int entry;
+        /**
+         * Number of parameters and local variables from <code>enter</code>.
+         */
+        int nPars, nLocals;
+        /**
+         * Maximum expression stack depth.
+         */
+        int maxStack;
+        /**
+         * Number of values left on the stack on return, -1 if the method never
+         * returns.
+         */
+        int results = -1;
+        /**
+         * Reason why the method could not be analyzed, null if it could.
+         */
+        String error;
+
+        MethodInfo(int id, int entry) {
+            this.id = id;
+            this.entry = entry;
+        }
+    }
+
+    final byte[] code;
+
+    /**
+     * All methods reachable from the main method.
+     */
+    final List<MethodInfo> methods = new ArrayList<>();
+
+    /**
+     * Stack depth before the instruction at each pc, -1 if no analyzed
+     * instruction starts there.
+     */
+    final int[] depth;
+
+    /**
+     * Id of the method each analyzed instruction belongs to, -1 if none.
+     */
+    final int[] owner;
+
+    private final Map<Integer, MethodInfo> byEntry = new HashMap<>();
+
+    private CodeAnalysis(byte[] code) {
+        this.code = code;
+        depth = new int[code.length];
+        owner = new int[code.length];
+        Arrays.fill(depth, -1);
+        Arrays.fill(owner, -1);
+    }
+
+    /**
+     * Rebuilds an analysis saved by {@link CodeCache} from the depths and
+     * owners of the instructions and the properties of the methods, five ints
+     * per method in the order of their ids: entry, nPars, nLocals, maxStack
+     * and results.
+     */
+    static CodeAnalysis restore(byte[] code, int[] depth, int[] owner, int[] methods) {
+        CodeAnalysis a = new CodeAnalysis(code);
+        System.arraycopy(depth, 0, a.depth, 0, code.length);
+        System.arraycopy(owner, 0, a.owner, 0, code.length);
+        for (int i = 0; i + 4 < methods.length; i += 5) {
+            MethodInfo m = a.addMethod(methods[i]);
+            m.nPars = methods[i + 1];
+            m.nLocals = methods[i + 2];
+            m.maxStack = methods[i + 3];
+            m.results = methods[i + 4];
+        }
+        return a;
+    }
+
+    static CodeAnalysis analyze(byte[] code, int startPC) {
+        CodeAnalysis a = new CodeAnalysis(code);
+        a.findMethods(startPC);
+        int[] scratch = new int[code.length];
+        Arrays.fill(scratch, -1);
+        boolean changed;
+        do {
+            changed = false;
+            for (MethodInfo m : a.methods) {
+                int results = m.results;
+                a.analyze(m, scratch, false);
+                changed |= m.results != results;
+            }
+        } while (changed);
+        for (MethodInfo m : a.methods) {
+            m.error = null;
+            a.analyze(m, scratch, true);
+        }
+        return a;
+    }
+
+    /**
+     * Returns the method starting at entry, null if there is none.
+     */
+    MethodInfo methodAt(int entry) {
+        return byEntry.get(entry);
+    }
+
+    /**
+     * Number of expression stack words that a run of the main method needs
+     * at most, including the methods it calls, -1 if methods are called
+     * recursively or could not be analyzed. From any state of the run, the
+     * rest of it needs at most this many words above the current stack
+     * depth, since every activation starts at least as deep as the main
+     * method and needs no more than its caller.
+     */
+    int stackBound() {
+        List<List<Integer>> calls = new ArrayList<>(); // call sites per method
+        for (int i = 0; i < methods.size(); i++) {
+            calls.add(new ArrayList<>());
+        }
+        for (int pc = 0; pc < code.length; pc++) {
+            if (owner[pc] >= 0 && depth[pc] >= 0 && code[pc] == CALL) {
+                calls.get(owner[pc]).add(pc);
+            }
+        }
+        int[] bound = new int[methods.size()];
+        Arrays.fill(bound, -1);
+        return stackBound(methods.get(0), calls, bound, new boolean[methods.size()]);
+    }
+
+    private int stackBound(MethodInfo m, List<List<Integer>> calls, int[] bound, boolean[] active) {
+        if (bound[m.id] >= 0) {
+            return bound[m.id];
+        }
+        if (m.error != null || active[m.id]) {
+            return -1;
+        }
+        active[m.id] = true;
+        int max = m.maxStack;
+        for (int pc : calls.get(m.id)) {
+            MethodInfo callee = methodAt(target(pc));
+            int b = callee != null ? stackBound(callee, calls, bound, active) : -1;
+            if (b < 0) {
+                return -1;
+            }
+            max = (int) Math.min(Math.max(max, (long) depth[pc] - callee.nPars + b), Integer.MAX_VALUE);
+        }
+        active[m.id] = false;
+        bound[m.id] = max;
+        return max;
+    }
+
+    /**
+     * Size of the instruction at pc in bytes, -1 if it is undefined or
+     * truncated.
+     */
+    int size(int pc) {
+        OpCode opCode = OpCode.get(code[pc]);
+        if (opCode == null) {
+            return -1;
+        }
+        int len = 1 + opCode.getOpsSize();
+        return pc + len <= code.length ? len : -1;
+    }
+
+    int get2(int pos) {
+        return (short) ((code[pos] << 8) + (code[pos + 1] & 0xff));
+    }
+
+    /**
+     * Target of the jump or call at pc.
+     */
+    int target(int pc) {
+        return pc + get2(pc + 1);
+    }
+
+    private MethodInfo addMethod(int entry) {
+        MethodInfo m = byEntry.get(entry);
+        if (m == null) {
+            m = new MethodInfo(methods.size(), entry);
+            methods.add(m);
+            byEntry.put(entry, m);
+        }
+        return m;
+    }
+
+    /**
+     * Collects the call targets reachable from the main method.
+     */
+    private void findMethods(int startPC) {
+        addMethod(startPC);
+        boolean[] visited = new boolean[code.length];
+        for (int i = 0; i < methods.size(); i++) {
+            int[] work = {methods.get(i).entry};
+            int nWork = 1;
+            while (nWork > 0) {
+                int pc = work[--nWork];
+                while (pc >= 0 && pc < code.length && !visited[pc]) {
+                    visited[pc] = true;
+                    int op = code[pc];
+                    int len = size(pc);
+                    if (len < 0) {
+                        break;
+                    }
+                    if (op == CALL) {
+                        if (target(pc) >= 0 && target(pc) < code.length) {
+                            addMethod(target(pc));
+                        }
+                    } else if (op >= JMP && op <= JGE) {
+                        if (nWork == work.length) {
+                            work = Arrays.copyOf(work, nWork * 2);
+                        }
+                        work[nWork++] = target(pc);
+                    }
+                    if (op == JMP || op == EXIT || op == RETURN || op == TRAP) {
+                        break;
+                    }
+                    pc += len;
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the stack depths of method m. Calls of methods with an unknown
+     * number of results end the path. If record is set, the depths are stored
+     * in {@link #depth} and {@link #owner}, otherwise only the number of
+     * results is updated.
+     */
+    private void analyze(MethodInfo m, int[] d, boolean record) {
+        int[] work = new int[16];
+        int nWork = 0;
+        int[] touched = new int[16];
+        int nTouched = 0;
+        int max = 0;
+
+        if (m.entry < 0 || m.entry >= code.length) {
+            m.error = "method at " + m.entry + " not in code area";
+            return;
+        }
+        if (code[m.entry] != ENTER || size(m.entry) < 0) {
+            m.error = "method at " + m.entry + " does not start with enter";
+            return;
+        }
+        m.nPars = code[m.entry + 1];
+        m.nLocals = code[m.entry + 2];
+        if (m.nPars < 0 || m.nLocals < m.nPars) {
+            m.error = "invalid frame size at " + m.entry;
+            return;
+        }
+        work[nWork++] = m.entry + 3;
+        work[nWork++] = 0;
+
+        loop:
+        while (nWork > 0) {
+            int sd = work[--nWork];
+            int pc = work[--nWork];
+            for (; ; ) {
+                if (pc < 0 || pc >= code.length) {
+                    m.error = "jump out of code area in method at " + m.entry;
+                    break loop;
+                }
+                if (d[pc] >= 0) {
+                    if (d[pc] != sd) {
+                        m.error = "inconsistent stack depth at " + pc;
+                        break loop;
+                    }
+                    break;
+                }
+                d[pc] = sd;
+                if (nTouched == touched.length) {
+                    touched = Arrays.copyOf(touched, nTouched * 2);
+                }
+                touched[nTouched++] = pc;
+                if (record) {
+                    if (owner[pc] >= 0 && owner[pc] != m.id) {
+                        m.error = "code at " + pc + " shared between methods";
+                        break loop;
+                    }
+                    owner[pc] = m.id;
+                    depth[pc] = sd;
+                }
+
+                int op = code[pc];
+                int len = size(pc);
+                if (len < 0) {
+                    m.error = "undefined opcode " + op + " at " + pc;
+                    break loop;
+                }
+                int pop = 0, push = 0;
+                boolean next = true;
+                switch (op) {
+                    case LOAD:
+                    case STORE:
+                    case INC:
+                        if (code[pc + 1] < 0 || code[pc + 1] >= m.nLocals) {
+                            m.error = "local variable index out of range at " + pc;
+                            break loop;
+                        }
+                        if (op == LOAD) {
+                            push = 1;
+                        } else if (op == STORE) {
+                            pop = 1;
+                        }
+                        break;
+                    case LOAD_0:
+                    case LOAD_1:
+                    case LOAD_2:
+                    case LOAD_3:
+                        if (op - LOAD_0 >= m.nLocals) {
+                            m.error = "local variable index out of range at " + pc;
+                            break loop;
+                        }
+                        push = 1;
+                        break;
+                    case STORE_0:
+                    case STORE_1:
+                    case STORE_2:
+                    case STORE_3:
+                        if (op - STORE_0 >= m.nLocals) {
+                            m.error = "local variable index out of range at " + pc;
+                            break loop;
+                        }
+                        pop = 1;
+                        break;
+                    case GETSTATIC:
+                    case CONST_0:
+                    case CONST_1:
+                    case CONST_2:
+                    case CONST_3:
+                    case CONST_4:
+                    case CONST_5:
+                    case CONST_M1:
+                    case CONST:
+                    case NEW:
+                    case READ:
+                    case BREAD:
+                        push = 1;
+                        break;
+                    case PUTSTATIC:
+                    case POP:
+                        pop = 1;
+                        break;
+                    case GETFIELD:
+                    case NEG:
+                    case NEWARRAY:
+                    case ARRAYLENGTH:
+                        pop = 1;
+                        push = 1;
+                        break;
+                    case PUTFIELD:
+                    case PRINT:
+                    case BPRINT:
+                        pop = 2;
+                        break;
+                    case ADD:
+                    case SUB:
+                    case MUL:
+                    case DIV:
+                    case REM:
+                    case SHL:
+                    case SHR:
+                    case ALOAD:
+                    case BALOAD:
+                        pop = 2;
+                        push = 1;
+                        break;
+                    case ASTORE:
+                    case BASTORE:
+                        pop = 3;
+                        break;
+                    case DUP:
+                        pop = 1;
+                        push = 2;
+                        break;
+                    case DUP2:
+                        pop = 2;
+                        push = 4;
+                        break;
+                    case JMP:
+                        next = false;
+                        break;
+                    case JEQ:
+                    case JNE:
+                    case JLT:
+                    case JLE:
+                    case JGT:
+                    case JGE:
+                        pop = 2;
+                        break;
+                    case CALL:
+                        MethodInfo callee = methodAt(target(pc));
+                        if (callee == null) {
+                            m.error = "call target at " + pc + " out of code area";
+                            break loop;
+                        }
+                        if (callee.results < 0) {
+                            // callee not known to return (yet)
+                            next = false;
+                        } else {
+                            pop = callee.nPars;
+                            push = callee.results;
+                        }
+                        break;
+                    case EXIT:
+                        if (pc + 1 >= code.length || code[pc + 1] != RETURN) {
+                            m.error = "exit not followed by return at " + pc;
+                            break loop;
+                        }
+                        if (m.results >= 0 && m.results != sd) {
+                            m.error = "inconsistent number of results at " + pc;
+                            break loop;
+                        }
+                        m.results = sd;
+                        if (record) {
+                            owner[pc + 1] = m.id;
+                            depth[pc + 1] = sd;
+                        }
+                        next = false;
+                        break;
+                    case RETURN:
+                        m.error = "return without exit at " + pc;
+                        break loop;
+                    case ENTER:
+                        m.error = "enter inside method at " + pc;
+                        break loop;
+                    case TRAP:
+                        next = false;
+                        break;
+                    default: // NOP
+                        break;
+                }
+                if (sd < pop) {
+                    m.error = "expression stack underflow at " + pc;
+                    break loop;
+                }
+                max = Math.max(max, sd - pop + push);
+                sd = sd - pop + push;
+                if (op >= JMP && op <= JGE) {
+                    if (nWork + 2 > work.length) {
+                        work = Arrays.copyOf(work, work.length * 2);
+                    }
+                    work[nWork++] = target(pc);
+                    work[nWork++] = sd;
+                }
+                if (!next) {
+                    break;
+                }
+                pc += len;
+            }
+        }
+        if (record && m.error == null) {
+            // no instruction may start inside another one
+            int end = 0;
+            int[] starts = Arrays.copyOf(touched, nTouched);
+            Arrays.sort(starts);
+            for (int pc : starts) {
+                if (pc < end) {
+                    m.error = "jump into instruction at " + pc;
+                    break;
+                }
+                end = pc + size(pc);
+            }
+        }
+        m.maxStack = max;
+        for (int i = 0; i < nTouched; i++) {
+            d[touched[i]] = -1;
+        }
+    }
+}
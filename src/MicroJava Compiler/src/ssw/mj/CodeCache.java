@@ -0,0 +1,264 @@
+package ssw.mj;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Directory of pre-decoded programs, so that later runs of an object file
+ * skip verification and decoding. An entry holds the {@link CodeAnalysis} of
+ * the verified code and its {@link ThreadedCode} in the four forms used by
+ * the engines: plain, unchecked, with superinstructions and with the counters
+ * of {@link Jit}. Entries are named after the SHA-256 of the code, the size of
+ * the global data and the start address, so a changed program gets a new
+ * entry.
+ * <p>
+ * An entry is a memory-mapped file of big-endian words: the marker
+ * <code>MJCC</code>, the format version, the code size, the number of
+ * methods, five words per method (see {@link CodeAnalysis#restore}), the
+ * depths and owners of the instructions, the four instruction streams (start,
+ * length, ops, length, index each) and the CRC-32 of all words before it.
+ * Entries are written to a temporary file and moved into place atomically,
+ * so processes starting at the same time read either a complete entry or
+ * none; an entry that cannot be read is a miss and is written again.
+ * <p>
+ * Reading an entry sets its modification time. When the entries exceed the
+ * size limit of the cache, the least recently used ones are deleted.
+ */
+final class CodeCache {
+
+    static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+    private static final int MARKER = 'M' << 24 | 'J' << 16 | 'C' << 8 | 'C';
+    private static final int VERSION = 4; // of the entries, changes with the instruction streams
+    private static final String SUFFIX = ".mjc";
+
+    /**
+     * Verified and pre-decoded program.
+     */
+    static final class Entry {
+        final CodeAnalysis analysis;
+        final ThreadedCode threaded; // for Engine.THREADED
+        final ThreadedCode unchecked; // for Engine.THREADED while the stack is reserved
+        final ThreadedCode fused; // for Engine.THREADED with superinstructions
+        final ThreadedCode counted; // for Engine.JIT
+
+        Entry(CodeAnalysis analysis, ThreadedCode threaded, ThreadedCode unchecked, ThreadedCode fused,
+              ThreadedCode counted) {
+            this.analysis = analysis;
+            this.threaded = threaded;
+            this.unchecked = unchecked;
+            this.fused = fused;
+            this.counted = counted;
+        }
+
+        /**
+         * Decodes verified code in all forms.
+         */
+        static Entry decode(byte[] code, int startPC, CodeAnalysis analysis) {
+            ThreadedCode threaded = ThreadedCode.decode(code, startPC);
+            return new Entry(analysis, threaded, threaded.unchecked(), ThreadedCode.decodeFused(code, startPC),
+                    ThreadedCode.decode(code, startPC, analysis));
+        }
+    }
+
+    private final Path dir;
+    private final long maxBytes;
+
+    /**
+     * Cache in the given directory, which is created if necessary, holding
+     * entries of at most maxBytes in total.
+     */
+    CodeCache(Path dir, long maxBytes) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * File name of the entry for the program.
+     */
+    static String key(byte[] code, int startPC, int dataSize) {
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JVM has SHA-256
+        }
+        sha.update(ByteBuffer.allocate(8).putInt(startPC).putInt(dataSize).array());
+        StringBuilder sb = new StringBuilder();
+        for (byte b : sha.digest(code)) {
+            sb.append(Character.forDigit(b >> 4 & 15, 16)).append(Character.forDigit(b & 15, 16));
+        }
+        return sb.append(SUFFIX).toString();
+    }
+
+    // ----- reading
+
+    /**
+     * Returns the entry of the program, null if there is none or it cannot
+     * be read.
+     */
+    Entry get(byte[] code, int startPC, int dataSize) {
+        Path file = dir.resolve(key(code, startPC, dataSize));
+        ByteBuffer buf;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size < 4 || size % 4 != 0 || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (IOException e) { // NoSuchFileException for a miss
+            return null;
+        }
+        Entry e;
+        try {
+            e = read(buf, code, startPC);
+        } catch (RuntimeException ex) { // BufferUnderflowException or NegativeArraySizeException
+            return null;
+        }
+        if (e != null) {
+            try {
+                Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            } catch (IOException ex) {
+                // still a hit, only the eviction order is off
+            }
+        }
+        return e;
+    }
+
+    private static Entry read(ByteBuffer bytes, byte[] code, int startPC) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes.duplicate().limit(bytes.limit() - 4));
+        if ((int) crc.getValue() != bytes.getInt(bytes.limit() - 4)) {
+            return null;
+        }
+        IntBuffer buf = bytes.asIntBuffer();
+        if (buf.get() != MARKER || buf.get() != VERSION || buf.get() != code.length) {
+            return null;
+        }
+        int[] methods = new int[5 * buf.get()];
+        buf.get(methods);
+        int[] depth = new int[code.length];
+        int[] owner = new int[code.length];
+        buf.get(depth);
+        buf.get(owner);
+        CodeAnalysis analysis = CodeAnalysis.restore(code, depth, owner, methods);
+        if (analysis.methods.isEmpty() || analysis.methods.get(0).entry != startPC) {
+            return null;
+        }
+        return new Entry(analysis, readCode(buf), readCode(buf), readCode(buf), readCode(buf));
+    }
+
+    private static ThreadedCode readCode(IntBuffer buf) {
+        int start = buf.get();
+        int[] ops = new int[buf.get()];
+        buf.get(ops);
+        int[] index = new int[buf.get()];
+        buf.get(index);
+        return new ThreadedCode(ops, index, start);
+    }
+
+    // ----- writing
+
+    /**
+     * Stores the entry of the program and evicts the least recently used
+     * entries if the cache is too large. Failures only cost the entry.
+     */
+    void put(byte[] code, int startPC, int dataSize, Entry e) {
+        Path file = dir.resolve(key(code, startPC, dataSize));
+        CodeAnalysis a = e.analysis;
+        long words = 5 + 5L * a.methods.size() + 2L * code.length;
+        for (ThreadedCode t : new ThreadedCode[]{e.threaded, e.unchecked, e.fused, e.counted}) {
+            words += 3 + t.ops.length + t.index.length;
+        }
+        if (4 * words > maxBytes) {
+            return;
+        }
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(dir, "entry", ".tmp");
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer bytes = ch.map(FileChannel.MapMode.READ_WRITE, 0, 4 * words);
+                IntBuffer buf = bytes.asIntBuffer();
+                buf.put(MARKER).put(VERSION).put(code.length).put(a.methods.size());
+                for (CodeAnalysis.MethodInfo m : a.methods) {
+                    buf.put(m.entry).put(m.nPars).put(m.nLocals).put(m.maxStack).put(m.results);
+                }
+                buf.put(a.depth).put(a.owner);
+                for (ThreadedCode t : new ThreadedCode[]{e.threaded, e.unchecked, e.fused, e.counted}) {
+                    buf.put(t.start).put(t.ops.length).put(t.ops).put(t.index.length).put(t.index);
+                }
+                CRC32 crc = new CRC32();
+                crc.update(bytes.duplicate().limit(4 * buf.position()));
+                buf.put((int) crc.getValue());
+            }
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            tmp = null;
+            evict();
+        } catch (IOException ex) {
+            // the program runs without caching
+        } finally {
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ex) {
+                    // left for the next eviction
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries until the others fit into the
+     * size limit. Entries deleted by other processes at the same time are
+     * skipped.
+     */
+    private void evict() throws IOException {
+        List<Path> files = new ArrayList<>();
+        List<long[]> attrs = new ArrayList<>(); // modification time, size
+        long total = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path f : entries) {
+                try {
+                    long size = Files.size(f);
+                    files.add(f);
+                    attrs.add(new long[]{Files.getLastModifiedTime(f).toMillis(), size});
+                    total += size;
+                } catch (NoSuchFileException ex) {
+                    // evicted by another process
+                }
+            }
+        }
+        if (total <= maxBytes) {
+            return;
+        }
+        Integer[] order = new Integer[files.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (x, y) -> Long.compare(attrs.get(x)[0], attrs.get(y)[0]));
+        for (int i = 0; i < order.length && total > maxBytes; i++) {
+            Files.deleteIfExists(files.get(order[i]));
+            total -= attrs.get(order[i])[1];
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package ssw.mj;
+
+/**
+ * A MicroJava method translated to JVM byte code by {@link Jit}. The
+ * translated classes are defined as hidden classes in this package.
+ */
+abstract class CompiledMethod {
+
+    /**
+     * Executes the method like a <code>call</code> in the interpreter. The
+     * parameters are on top of the expression stack of <code>vm</code>; they
+     * are removed and the frame is built on the method stack above
+     * <code>vm.sp</code>. On return <code>vm.sp</code>, <code>vm.fp</code> and
+     * <code>vm.esp</code> are restored (without the parameters) and the result
+     * of the method is returned, 0 for void methods.
+     * <p>
+     * If <code>at</code> is not negative, the method continues the activation
+     * that the interpreter is running at the loop header <code>at</code>
+     * instead: it takes over the current frame and the expression stack of
+     * that activation and returns like a call of it.
+     */
+    abstract int invoke(Interpreter vm, int at);
+}
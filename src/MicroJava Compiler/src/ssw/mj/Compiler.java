@@ -9,8 +9,13 @@ import java.io.*;
  * <code>Compiler</code> is the driver for the MicroJava-Compiler.
  * <p>
  * Execute<br>
- * <code>java ssw.mj.Compiler &lt;<i>MJ-Source-Filename</i>&gt;</code><br>
- * to start compilation.
+ * <code>java ssw.mj.Compiler [--target=mj|jvm] [--format=v1|v2] [--compress] &lt;<i>MJ-Source-Filename</i>&gt;</code><br>
+ * to start compilation. The default target <code>mj</code> writes an object
+ * file for {@link Run}, by default in version 2 of the format with method and
+ * line tables (see {@link ObjectFile}), compressed with
+ * <code>--compress</code>. The target <code>jvm</code> writes a class file
+ * named after the program, which can be run with <code>java</code> (see
+ * {@link JvmBackEnd}).
  */
 public class Compiler {
 
@@ -22,13 +27,39 @@ public class Compiler {
         return s.substring(0, i) + ".obj";
     }
 
+    private static String classFileName(String s, String className) {
+        File dir = new File(s).getAbsoluteFile().getParentFile();
+        return new File(dir, className + ".class").getPath();
+    }
+
     public static void main(String[] args) {
         // --- get the filename
-        if (args.length != 1) {
-            System.out.println("usage: java Compiler filename.mj");
+        String inFilename = null;
+        boolean jvm = false;
+        boolean v1 = false;
+        boolean compress = false;
+        for (String arg : args) {
+            if (arg.equals("--target=jvm")) {
+                jvm = true;
+            } else if (arg.equals("--target=mj")) {
+                jvm = false;
+            } else if (arg.equals("--format=v1")) {
+                v1 = true;
+            } else if (arg.equals("--format=v2")) {
+                v1 = false;
+            } else if (arg.equals("--compress")) {
+                compress = true;
+            } else if (inFilename == null) {
+                inFilename = arg;
+            } else {
+                inFilename = null;
+                break;
+            }
+        }
+        if (inFilename == null) {
+            System.out.println("usage: java Compiler [--target=mj|jvm] [--format=v1|v2] [--compress] filename.mj");
             return;
         }
-        String inFilename = args[0];
         String outFilename = objFileName(inFilename);
 
         try {
@@ -39,8 +70,24 @@ public class Compiler {
 
             ParserImpl parser = new ParserImpl(scanner);
             parser.parse();
-            if (scanner.errors.numErrors() == 0) {
+            if (scanner.errors.numErrors() == 0 && jvm) {
+                JvmBackEnd backEnd = new JvmBackEnd(parser);
+                byte[] classFile;
+                try {
+                    classFile = backEnd.generate();
+                } catch (IllegalStateException e) {
+                    System.out.println("Cannot translate to JVM code: " + e.getMessage());
+                    return;
+                }
+                outFilename = classFileName(inFilename, backEnd.className());
+                try (OutputStream out = new FileOutputStream(outFilename)) {
+                    out.write(classFile);
+                }
+                System.out.println("Wrote " + outFilename);
+            } else if (scanner.errors.numErrors() == 0 && v1) {
                 parser.code.write(new BufferedOutputStream(new FileOutputStream(outFilename)));
+            } else if (scanner.errors.numErrors() == 0) {
+                ObjectFile.write(parser, new BufferedOutputStream(new FileOutputStream(outFilename)), compress);
             }
 
             if (scanner.errors.numErrors() > 0) {
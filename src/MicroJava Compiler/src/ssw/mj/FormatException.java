@@ -0,0 +1,15 @@
+package ssw.mj;
+
+import java.io.IOException;
+
+/**
+ * Signals a malformed object file, heap file or checkpoint.
+ */
+class FormatException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    FormatException(String s) {
+        super(s);
+    }
+}
@@ -0,0 +1,365 @@
+package ssw.mj;
+
+import java.util.Arrays;
+
+/**
+ * Mark-sweep garbage collector for the heap of an {@link Interpreter}.
+ * <p>
+ * Every block on the heap starts with a header word holding its size in words
+ * (including the header) and its kind. Objects are referenced by the address
+ * behind the header, arrays by the address of element 0, behind the header
+ * and the length word, so the layout seen by the program is the same as
+ * without collection.
+ * <p>
+ * The byte code does not tell which words hold references: <code>new</code>
+ * only gives the number of fields and <code>newarray</code> does not
+ * distinguish <code>int[]</code> from reference arrays. The collector is
+ * therefore conservative: a word in the roots (global data, method stack and
+ * expression stack), in an object or in a non-char array is taken as a
+ * reference if it is the address of an allocated block. Blocks are never
+ * moved, because such a word might also be an int. Char arrays are not
+ * scanned.
+ * <p>
+ * Memory is allocated at the top of the used heap until it is full. Then the
+ * heap is collected, adjacent free blocks are merged and requests are served
+ * from a first-fit free list. If that fails too, the heap grows if the
+ * interpreter allows it.
+ */
+public final class GarbageCollector {
+
+    // ----- block kinds (the two low bits of the header)
+    private static final int FREE = 0, OBJECT = 1, ARRAY = 2, CHARS = 3;
+
+    private final Interpreter vm;
+    private int[] heap;
+
+    /**
+     * End of the used part of the heap.
+     */
+    private int top = 1; // no block should start at address 0
+
+    /**
+     * Bit set of the header addresses of allocated blocks.
+     */
+    private long[] allocated;
+
+    /**
+     * Bit set of marked blocks, valid during a collection.
+     */
+    private long[] marks;
+
+    /**
+     * First free block of at least two words, 0 if none. The word behind the
+     * header of a free block links to the next one.
+     */
+    private int freeList;
+
+    private int[] markStack = new int[64];
+
+    private int collections;
+    private long pauseNanos;
+    private long allocatedBytes;
+    private long reclaimedBytes;
+
+    GarbageCollector(Interpreter vm) {
+        this.vm = vm;
+        this.heap = vm.heap;
+        allocated = new long[(heap.length >> 6) + 1];
+        marks = new long[allocated.length];
+    }
+
+    // ----- statistics
+
+    /**
+     * Number of collections so far.
+     */
+    public int collections() {
+        return collections;
+    }
+
+    /**
+     * Total time spent in collections, in nanoseconds.
+     */
+    public long pauseNanos() {
+        return pauseNanos;
+    }
+
+    /**
+     * Total size of all allocated blocks including headers, in bytes.
+     */
+    public long allocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Total size of all blocks freed by collections, in bytes.
+     */
+    public long reclaimedBytes() {
+        return reclaimedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "GC: " + collections + " collections, " + pauseNanos / 1000000 + " ms pause, " + allocatedBytes
+                + " bytes allocated, " + reclaimedBytes + " bytes reclaimed";
+    }
+
+    // ----- state saved in heap files
+
+    /**
+     * End of the used part of the heap.
+     */
+    int top() {
+        return top;
+    }
+
+    /**
+     * First block of the free list, 0 if the list is empty.
+     */
+    int freeList() {
+        return freeList;
+    }
+
+    /**
+     * Takes over the blocks below top of the heap of the interpreter, which
+     * was loaded from a heap file, with the given free list. The set of
+     * allocated blocks is rebuilt from the block headers. Returns false if
+     * the headers do not form a sequence of blocks up to top.
+     */
+    boolean restore(int top, int freeList) {
+        heap = vm.heap;
+        allocated = new long[(heap.length >> 6) + 1];
+        marks = new long[allocated.length];
+        int h = 1;
+        while (h < top) {
+            int size = heap[h] >>> 2;
+            if (size == 0 || size > top - h) {
+                return false;
+            }
+            if ((heap[h] & 3) != FREE) {
+                set(allocated, h);
+            }
+            h += size;
+        }
+        if (freeList != 0 && (freeList >= top || get(allocated, freeList) || heap[freeList] >>> 2 < 2)) {
+            return false;
+        }
+        this.top = top;
+        this.freeList = freeList;
+        return true;
+    }
+
+    /**
+     * Frees all blocks for another run of the program, see
+     * {@link Interpreter#reset}. The heap is not cleared; blocks are
+     * cleared when they are allocated.
+     */
+    void reset() {
+        heap = vm.heap;
+        Arrays.fill(allocated, 0, Math.min((top >> 6) + 1, allocated.length), 0);
+        top = 1;
+        freeList = 0;
+    }
+
+    // ----- allocation
+
+    /**
+     * Allocates an object with size fields and returns its address.
+     */
+    int newObject(int size) throws IllegalStateException {
+        return allocate(Math.max(size, 0) + 1, OBJECT) + 1;
+    }
+
+    /**
+     * Allocates an array of len elements and returns the address of element
+     * 0. Chars are packed four per word as without collection.
+     */
+    int newArray(int len, int type) throws IllegalStateException {
+        int words = type == 0 ? (len + 3) >> 2 : len;
+        int h = allocate(Math.max(words, 0) + 2, type == 0 ? CHARS : ARRAY);
+        heap[h + 1] = len;
+        return h + 2;
+    }
+
+    private int allocate(int words, int kind) {
+        if (words < 0) { // size overflowed
+            throw new IllegalStateException("heap overflow");
+        }
+        int h = take(words);
+        if (h == 0) {
+            collect();
+            h = take(words);
+            if (h == 0) { // throws unless the heap can grow
+                heap = vm.growHeap(top + words);
+                allocated = Arrays.copyOf(allocated, (heap.length >> 6) + 1);
+                marks = new long[allocated.length];
+                h = take(words);
+            }
+        }
+        heap[h] = words << 2 | kind;
+        Arrays.fill(heap, h + 1, h + words, 0);
+        set(allocated, h);
+        allocatedBytes += words * 4L;
+        return h;
+    }
+
+    /**
+     * Returns the header address of a free block of the given size, 0 if
+     * there is none.
+     */
+    private int take(int words) {
+        if (words <= heap.length - top) {
+            int h = top;
+            top += words;
+            return h;
+        }
+        int prev = 0;
+        for (int b = freeList; b != 0; b = heap[b + 1]) {
+            int size = heap[b] >>> 2;
+            if (size >= words) {
+                int next = heap[b + 1];
+                int rest = size - words;
+                if (rest > 0) {
+                    int r = b + words;
+                    heap[r] = rest << 2 | FREE;
+                    if (rest >= 2) { // replaces b in the list
+                        heap[r + 1] = next;
+                        next = r;
+                    }
+                }
+                if (prev == 0) {
+                    freeList = next;
+                } else {
+                    heap[prev + 1] = next;
+                }
+                return b;
+            }
+            prev = b;
+        }
+        return 0;
+    }
+
+    // ----- collection
+
+    /**
+     * Frees all blocks that are not reachable from the roots.
+     */
+    void collect() {
+        long start = System.nanoTime();
+        Arrays.fill(marks, 0);
+        scan(vm.data, 0, vm.data.length);
+        scan(vm.local, 0, vm.sp);
+        scan(vm.stack, 0, vm.esp);
+        sweep();
+        collections++;
+        pauseNanos += System.nanoTime() - start;
+    }
+
+    private static boolean get(long[] bits, int i) {
+        return (bits[i >> 6] & 1L << i) != 0;
+    }
+
+    private static void set(long[] bits, int i) {
+        bits[i >> 6] |= 1L << i;
+    }
+
+    private static void clear(long[] bits, int i) {
+        bits[i >> 6] &= ~(1L << i);
+    }
+
+    /**
+     * Returns the header address of the block referenced by val, 0 if val is
+     * not a reference. A block without fields or elements ends at its
+     * address, so val may be top.
+     */
+    private int block(int val) {
+        if (val > 1 && val <= top) {
+            if (get(allocated, val - 1) && (heap[val - 1] & 3) == OBJECT) {
+                return val - 1;
+            }
+            if (val > 2 && get(allocated, val - 2) && (heap[val - 2] & 3) >= ARRAY) {
+                return val - 2;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Marks the blocks referenced from words from..to-1 of a and everything
+     * reachable from them.
+     */
+    private void scan(int[] a, int from, int to) {
+        int n = 0;
+        for (int i = from; i < to; i++) {
+            n = mark(a[i], n);
+            while (n > 0) {
+                int h = markStack[--n];
+                int kind = heap[h] & 3;
+                if (kind == CHARS) {
+                    continue;
+                }
+                int end = h + (heap[h] >>> 2);
+                for (int j = kind == OBJECT ? h + 1 : h + 2; j < end; j++) {
+                    n = mark(heap[j], n);
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks the block referenced by val and pushes it on the mark stack if it
+     * was not marked yet. Returns the new size of the mark stack.
+     */
+    private int mark(int val, int n) {
+        int h = block(val);
+        if (h != 0 && !get(marks, h)) {
+            set(marks, h);
+            if (n == markStack.length) {
+                markStack = Arrays.copyOf(markStack, n * 2);
+            }
+            markStack[n++] = h;
+        }
+        return n;
+    }
+
+    /**
+     * Frees unmarked blocks, merges adjacent free blocks and rebuilds the free
+     * list.
+     */
+    private void sweep() {
+        freeList = 0;
+        int last = 0; // last free block of at least two words
+        int h = 1;
+        while (h < top) {
+            int size = heap[h] >>> 2;
+            if (get(allocated, h) && get(marks, h)) {
+                h += size;
+                continue;
+            }
+            // h starts a run of free or unreachable blocks
+            int start = h;
+            while (h < top && !(get(allocated, h) && get(marks, h))) {
+                if (get(allocated, h)) {
+                    clear(allocated, h);
+                    reclaimedBytes += (heap[h] >>> 2) * 4L;
+                }
+                h += heap[h] >>> 2;
+            }
+            if (h == top) {
+                top = start; // give the end of the heap back to bump allocation
+                break;
+            }
+            int words = h - start;
+            heap[start] = words << 2 | FREE;
+            if (words >= 2) {
+                heap[start + 1] = 0;
+                if (last == 0) {
+                    freeList = start;
+                } else {
+                    heap[last + 1] = start;
+                }
+                last = start;
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package ssw.mj;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Global data and heap of an {@link Interpreter} saved in a file, so that the
+ * data structures built by one run of a program can be used by the next one
+ * without building them again.
+ * <p>
+ * The file is memory-mapped and holds big-endian words: a header, the global
+ * data and the used part of the heap, from address 0 up to the first free
+ * address. Heap addresses stay word indices, so the file is loaded by copying
+ * it into the heap array in bulk; pages of the file are only read when they
+ * are copied, and reading and writing take time proportional to the used
+ * heap, not to its size.
+ * <p>
+ * The heap of a running program stays an int array on the Java heap; the
+ * file only holds a copy. All engines and the compiled code index the heap
+ * array directly, so a heap living in the mapped file would turn every heap
+ * access into a bounds-checked buffer access, and heaps beyond the maximum
+ * array length are out of reach anyway. A loaded heap is subject to the
+ * maximum heap size and the heap quota like a heap grown by allocations.
+ * <p>
+ * The header holds the marker <code>MJHP</code>, the format version, the
+ * CRC-32 of the code of the program, the size of the global data, the first
+ * free heap address and the first block of the free list of the
+ * {@link GarbageCollector}, -1 if the heap was not collected. A heap file can
+ * only be loaded by the program that saved it, with or without collection as
+ * when it was saved.
+ */
+final class HeapFile {
+
+    private static final int MARKER = 'M' << 24 | 'J' << 16 | 'H' << 8 | 'P';
+    private static final int VERSION = 1;
+    private static final int HEADER = 6; // words
+
+    private HeapFile() {
+    }
+
+    private static int checksum(byte[] code) {
+        CRC32 crc = new CRC32();
+        crc.update(code);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Writes the global data and the used part of the heap of vm to file.
+     */
+    static void save(Interpreter vm, Path file) throws IOException {
+        GarbageCollector gc = vm.getGarbageCollector();
+        int top = gc != null ? gc.top() : vm.free;
+        long size = 4L * (HEADER + vm.data.length + top);
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            IntBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, size).asIntBuffer();
+            buf.put(MARKER).put(VERSION).put(checksum(vm.code)).put(vm.data.length).put(top)
+                    .put(gc != null ? gc.freeList() : -1);
+            buf.put(vm.data);
+            buf.put(vm.heap, 0, top);
+        }
+    }
+
+    /**
+     * Replaces the global data and the heap of vm, which has not run yet, by
+     * the ones saved in file. The heap grows to hold the saved blocks if it is
+     * smaller; the file is rejected if the heap cannot grow so far or the
+     * saved blocks exceed the heap quota of vm.
+     */
+    static void load(Interpreter vm, Path file) throws IOException, IllegalStateException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size < 4L * HEADER || size % 4 != 0 || size > Integer.MAX_VALUE * 4L) {
+                throw new FormatException("wrong size of heap file");
+            }
+            IntBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size).asIntBuffer();
+            if (buf.get() != MARKER) {
+                throw new FormatException("wrong marker of heap file");
+            }
+            if (buf.get() != VERSION) {
+                throw new FormatException("unknown version of heap file");
+            }
+            if (buf.get() != checksum(vm.code) || buf.get() != vm.data.length) {
+                throw new FormatException("heap file of another program");
+            }
+            int top = buf.get();
+            int freeList = buf.get();
+            GarbageCollector gc = vm.getGarbageCollector();
+            if ((freeList >= 0) != (gc != null)) {
+                throw new FormatException(gc != null ? "heap file of an uncollected heap"
+                        : "heap file of a collected heap");
+            }
+            if (top < 1 || buf.remaining() != vm.data.length + (long) top) {
+                throw new FormatException("wrong size of heap file");
+            }
+            vm.reserve(top, 0, 0);
+            buf.get(vm.data);
+            buf.get(vm.heap, 0, top);
+            if (gc != null) {
+                if (!gc.restore(top, freeList)) {
+                    throw new FormatException("corrupted blocks in heap file");
+                }
+            } else {
+                vm.free = top;
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package ssw.mj;
+
+import ssw.mj.codegen.Code.OpCode;
+import ssw.mj.codegen.Decoder;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Execution counts of a program run by the switch engine of an
+ * {@link Interpreter}: how often every opcode and every instruction was
+ * executed. The counts can be written as JSON or as a {@link Decoder} listing
+ * of the code annotated with the count of every instruction.
+ */
+public final class InstructionCounter {
+
+    /**
+     * Instructions executed at least this fraction of the count of the most
+     * frequent instruction are marked as hot in the listing.
+     */
+    private static final double HOT = 0.1;
+
+    private static final OpCode[] OPCODES = OpCode.values();
+
+    private final byte[] code;
+    private final long[] opcodes = new long[OPCODES.length]; // indexed by ordinal
+    private final long[] pcs; // indexed by pc
+    private long instructions;
+
+    InstructionCounter(byte[] code) {
+        this.code = code;
+        this.pcs = new long[code.length];
+    }
+
+    /**
+     * Called by the interpreter before it executes the instruction op at pc.
+     */
+    void count(OpCode op, int pc) {
+        opcodes[op.ordinal()]++;
+        pcs[pc]++;
+        instructions++;
+    }
+
+    /**
+     * Total number of executed instructions.
+     */
+    public long instructions() {
+        return instructions;
+    }
+
+    /**
+     * Number of executions of the given opcode.
+     */
+    public long count(OpCode op) {
+        return opcodes[op.ordinal()];
+    }
+
+    /**
+     * Number of executions of the instruction at pc.
+     */
+    public long count(int pc) {
+        return pcs[pc];
+    }
+
+    /**
+     * Writes the counts as a JSON object with the total number of
+     * instructions, the executed opcodes and the executed instructions, most
+     * frequent first:
+     *
+     * <pre>
+     * {"instructions": 21, "opcodes": {"load_0": 12, ...}, "pcs": [{"pc": 7, "op": "load_0", "count": 4}, ...]}
+     * </pre>
+     */
+    public void writeJson(PrintStream out) {
+        out.println("{");
+        out.println("  \"instructions\": " + instructions + ",");
+        out.print("  \"opcodes\": {");
+        String sep = "\n";
+        for (int op : order(opcodes)) {
+            out.print(sep + "    \"" + OPCODES[op].cleanName() + "\": " + opcodes[op]);
+            sep = ",\n";
+        }
+        out.println("\n  },");
+        out.print("  \"pcs\": [");
+        sep = "\n";
+        for (int pc : order(pcs)) {
+            out.print(sep + "    {\"pc\": " + pc + ", \"op\": \"" + OpCode.get(code[pc]).cleanName() + "\", \"count\": "
+                    + pcs[pc] + "}");
+            sep = ",\n";
+        }
+        out.println("\n  ]");
+        out.println("}");
+    }
+
+    /**
+     * Indices of the non-zero counts, largest count first.
+     */
+    private static Integer[] order(long[] counts) {
+        int n = 0;
+        for (long c : counts) {
+            if (c > 0) {
+                n++;
+            }
+        }
+        Integer[] order = new Integer[n];
+        n = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                order[n++] = i;
+            }
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(counts[b], counts[a]));
+        return order;
+    }
+
+    /**
+     * Writes the listing of the code by {@link Decoder} with the count of
+     * every instruction in front. Instructions executed at least a tenth as
+     * often as the most frequent one are marked as hot.
+     */
+    public void writeListing(PrintStream out) {
+        out.print(new Decoder().decode(code, 0, code.length, pcs, hot()));
+    }
+
+    /**
+     * Like {@link #writeListing(PrintStream)}, with the name of every method
+     * and the source line of the instructions from the tables of the object
+     * file in front of their code.
+     */
+    void writeListing(PrintStream out, ObjectFile obj) throws FormatException {
+        Map<Integer, String> names = new HashMap<>();
+        for (ObjectFile.Method m : obj.methods()) {
+            names.put(m.entry, m.name);
+        }
+        long hot = hot();
+        Decoder decoder = new Decoder();
+        int start = 0; // of the code not listed yet
+        int line = -1;
+        for (int pc = 0; pc < code.length; ) {
+            String name = names.get(pc);
+            int l = obj.line(pc);
+            if (name != null || l != line) {
+                out.print(decoder.decode(code, start, pc, pcs, hot));
+                start = pc;
+                if (name != null) {
+                    out.println(name + ":");
+                }
+                if (l != line && l >= 0) {
+                    out.println("; line " + l);
+                }
+                line = l;
+            }
+            OpCode op = OpCode.get(code[pc]);
+            pc += op == null ? 1 : 1 + op.getOpsSize();
+        }
+        out.print(decoder.decode(code, start, code.length, pcs, hot));
+    }
+
+    private long hot() {
+        long max = 0;
+        for (long n : pcs) {
+            max = Math.max(max, n);
+        }
+        return (long) Math.ceil(max * HOT);
+    }
+}
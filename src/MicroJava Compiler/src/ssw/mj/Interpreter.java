@@ -1,6 +1,11 @@
 // MicroJava Virtual Machine
 // -------------------------
-// Syntax: java ssw.mj.Run fileName [-debug]
+// Syntax: java ssw.mj.Run fileName [-debug] [-engine switch|threaded|jit|register|closure] [-gc]
+//             [-heap words] [-mstack words] [-estack words] [-grow] [-noverify]
+//             [-profile] [-count] [-fuse] [-quick] [-tos] [-heapfile file]
+//             [-cache dir] [-cachesize kbytes] [-batch dir] [-threads n]
+//             [-steps n] [-heapquota words] [-checkpoint-at n file] [-restore file]
+//        or: java ssw.mj.Run -serve port|socket [-pool n] [options] fileName...
 // ===========================================================================
 // by Hanspeter Moessenboeck, 2002-10-28
 // edited by Albrecht Woess, 2002-10-30
@@ -10,42 +15,77 @@ import ssw.mj.codegen.Code;
 import ssw.mj.codegen.Code.OpCode;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.CRC32;
 
 public class Interpreter {
 
     private boolean debug; // debug output on or off
-    private byte code[]; // code array
-    private int data[]; // global data
-    private int heap[]; // dynamic heap
-    private int stack[]; // expression stack
-    private int local[]; // method stack
-    private int startPC; // address of main() method
+    byte code[]; // code array
+    int data[]; // global data
+    int heap[]; // dynamic heap
+    int stack[]; // expression stack
+    int local[]; // method stack
+    int startPC; // address of main() method
     private int pc; // program counter
-    private int fp, sp; // frame pointer, stack pointer on method stack
-    private int esp; // expression stack pointer
-    private int free; // next free heap address
-    private static final int heapSize = 100000, // size of the heap in words
-            mStackSize = 4000, // size of the method stack in words
-            eStackSize = 30; // size of the expression stack in words
-
-    private void write(String s, int len) {
-        for (int i = 0; i < len; i++) {
-            io.write(' ');
-        }
-        for (int i = 0; i < s.length(); i++) {
-            io.write(s.charAt(i));
-        }
-    }
+    int fp, sp; // frame pointer, stack pointer on method stack
+    int esp; // expression stack pointer
+    int free; // next free heap address
+    private final Engine engine; // selected execution engine
+    private ThreadedCode threaded; // pre-decoded code for Engine.THREADED and Engine.JIT
+    private boolean cacheTop; // Engine.THREADED keeps the top of the expression stack in locals
+    private ThreadedCode unchecked; // threaded without stack checks for verified code, null if none
+    private int stackBound; // expression stack words the rest of a run of unchecked code needs
+    private RegisterCode registers; // translated code for Engine.REGISTER
+    private ClosureCode closures; // compiled code for Engine.CLOSURE
+    Jit jit; // compiler for Engine.JIT
+    private GarbageCollector gc; // null if the heap is not collected
+    private Profiler profiler; // null if the program is not profiled
+    private InstructionCounter counter; // null if instructions are not counted
+    private byte[] quick; // quick forms of executed instructions by pc, 0 if not quickened; null if off
+    private int[] operand; // decoded operands of the quick forms
+    static final int heapSize = 100000, // default size of the heap in words
+            mStackSize = 4000, // default size of the method stack in words
+            eStackSize = 30; // default size of the expression stack in words
+    static final int MAX_HEAP_SIZE = 1 << 26, // default limits for growing regions
+            MAX_M_STACK_SIZE = 1 << 24,
+            MAX_E_STACK_SIZE = 1 << 20;
+    private final int maxHeapSize, maxMStackSize, maxEStackSize; // sizes up to which the regions grow
+    private final int heapQuota; // heap words a run may use
+
+    // ----- steps
+    // A step is a backward jump or a call. The engines count steps down in a
+    // copy of fuel; when it becomes negative they leave their dispatch loop
+    // as if suspended, and runFor calls refuel and continues the run or
+    // suspends it. So budgets, quotas and cancellation cost one decrement per
+    // step, and the dispatch loops contain no call for them. The copy is
+    // written back whenever compiled code or another activation of the
+    // engine may take steps.
+    static final int SLICE = 1 << 14; // steps between two calls of refuel
+    int fuel; // steps left in the current slice
+    private long budget; // steps left for runFor behind the current slice
+    private long quota; // steps left for the run behind the current slice
+    private final long stepQuota; // steps a run may make
+    private volatile boolean cancelled;
+    /**
+     * Position in the code of the engine at which a suspended run continues,
+     * -1 if there is no suspended run.
+     */
+    int resume = -1;
 
     public static class BufferIO implements IO {
 
-        private StringBuffer output;
+        private final StringBuilder output;
         private String input;
 
         private int inputPos;
 
         public BufferIO(String input) {
-            output = new StringBuffer();
+            output = new StringBuilder();
             this.input = input;
         }
 
@@ -63,60 +103,860 @@ public class Interpreter {
             output.append(c);
         }
 
+        @Override
+        public void write(char[] buf, int off, int len) {
+            output.append(buf, off, len);
+        }
+
+        @Override
+        public void write(CharSequence s) {
+            output.append(s);
+        }
+
+        @Override
+        public void writeInt(int val, int width) {
+            for (int n = width - IO.length(val); n > 0; n--) {
+                output.append(' ');
+            }
+            output.append(val);
+        }
+
         public String getOutput() {
             return output.toString();
         }
     }
 
-    public static final IO ConsoleIO = new IO() {
+    /**
+     * Console output collected in a buffer. The buffer is written to
+     * <code>System.out</code> when it is full, before input is read from
+     * <code>System.in</code> and when the program terminates, see
+     * {@link Interpreter#run()}. Input is read from <code>System.in</code> in
+     * blocks as well. The buffers are not synchronized, so an instance must
+     * not be shared by interpreters running on different threads.
+     */
+    public static class BufferedConsoleIO implements IO {
 
-        @Override
-        public char read() {
+        private static final int SIZE = 8192;
+
+        private final char[] buf = new char[SIZE];
+        private int n; // number of buffered chars
+
+        private ReadableByteChannel in; // System.in, opened on the first read
+        private final byte[] inBuf = new byte[SIZE];
+        private final ByteBuffer input = ByteBuffer.wrap(inBuf);
+        private int inPos, inLen; // next and number of buffered input bytes
+
+        /**
+         * Reads the next bytes of <code>System.in</code> into the input buffer.
+         * Returns false at the end of the input or after an error.
+         */
+        private boolean fill() {
+            flush(); // show prompts before waiting for input
+            if (in == null) {
+                in = Channels.newChannel(System.in);
+            }
+            input.clear();
             try {
-                int i = System.in.read();
-                if (i == -1) {
-                    return 0;
-                }
-                return (char) i;
+                int n;
+                do {
+                    n = in.read(input);
+                } while (n == 0);
+                inPos = 0;
+                inLen = Math.max(n, 0);
             } catch (IOException ex) {
+                inPos = inLen = 0;
+            }
+            return inLen > 0;
+        }
+
+        /**
+         * Next input byte, 0 at the end of the input as for {@link #read()}.
+         */
+        private int next() {
+            if (inPos == inLen && !fill()) {
                 return 0;
             }
+            return inBuf[inPos++] & 0xff;
+        }
+
+        @Override
+        public char read() {
+            return (char) next();
+        }
+
+        @Override
+        public int readInt() {
+            int val = 0;
+            int prev = ' ';
+            int b = next();
+            while (b < '0' || b > '9') {
+                prev = b;
+                b = next();
+            }
+            while (b >= '0' && b <= '9') {
+                val = 10 * val + b - '0';
+                b = next();
+            }
+            if (prev == '-') {
+                val = -val;
+            }
+            return val;
         }
 
         @Override
         public void write(char c) {
-            System.out.print(c);
+            if (n == SIZE) {
+                flush();
+            }
+            buf[n++] = c;
+        }
+
+        @Override
+        public void write(char[] b, int off, int len) {
+            while (len > 0) {
+                if (n == SIZE) {
+                    flush();
+                }
+                int k = Math.min(len, SIZE - n);
+                System.arraycopy(b, off, buf, n, k);
+                n += k;
+                off += k;
+                len -= k;
+            }
+        }
+
+        @Override
+        public void writeInt(int val, int width) {
+            int len = IO.length(val);
+            for (int k = width - len; k > 0; k--) {
+                write(' ');
+            }
+            if (n + len > SIZE) {
+                flush();
+            }
+            // digits from right to left; negative values avoid overflow for MIN_VALUE
+            int pos = n + len;
+            int v = val < 0 ? val : -val;
+            do {
+                buf[--pos] = (char) ('0' - v % 10);
+                v /= 10;
+            } while (v != 0);
+            if (val < 0) {
+                buf[--pos] = '-';
+            }
+            n += len;
+        }
+
+        @Override
+        public void flush() {
+            if (n > 0) {
+                System.out.print(new String(buf, 0, n));
+                n = 0;
+            }
+            System.out.flush();
         }
-    };
+    }
+
+    /**
+     * Console shared by interpreters that run one after the other on the
+     * same thread. Interpreters built without an explicit {@link IO} get a
+     * console of their own, see {@link Builder#io(IO)}.
+     */
+    public static final IO ConsoleIO = new BufferedConsoleIO();
 
     public interface IO {
         char read();
 
         void write(char c);
+
+        /**
+         * Reads a decimal number: skips to the next digit, reads all digits
+         * and the character behind them. The number is negative if the
+         * character before the first digit is a '-'.
+         */
+        default int readInt() {
+            int val = 0;
+            int prev = ' ';
+            int b = read();
+            while (b < '0' || b > '9') {
+                prev = b;
+                b = read();
+            }
+            while (b >= '0' && b <= '9') {
+                val = 10 * val + b - '0';
+                b = read();
+            }
+            if (prev == '-') {
+                val = -val;
+            }
+            return val;
+        }
+
+        /**
+         * Writes len chars of buf starting at off.
+         */
+        default void write(char[] buf, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                write(buf[i]);
+            }
+        }
+
+        default void write(CharSequence s) {
+            for (int i = 0; i < s.length(); i++) {
+                write(s.charAt(i));
+            }
+        }
+
+        /**
+         * Writes val in decimal, right-aligned in a field of width characters.
+         */
+        default void writeInt(int val, int width) {
+            int len = length(val);
+            for (int n = width - len; n > 0; n--) {
+                write(' ');
+            }
+            if (val < 0) {
+                write('-');
+            }
+            // largest power of ten not above |val|, computed on negative values
+            int v = val < 0 ? val : -val;
+            int p = -1;
+            while (p >= -Integer.MAX_VALUE / 10 && p * 10 >= v) {
+                p *= 10;
+            }
+            for (; p != 0; p /= 10) {
+                write((char) ('0' + v / p));
+                v %= p;
+            }
+        }
+
+        /**
+         * Passes buffered output on. Called when the program terminates.
+         */
+        default void flush() {
+        }
+
+        /**
+         * Number of characters of val in decimal.
+         */
+        static int length(int val) {
+            int len = val < 0 ? 2 : 1;
+            for (int v = val / 10; v != 0; v /= 10) {
+                len++;
+            }
+            return len;
+        }
     }
 
-    private IO io;
+    /**
+     * Execution engines. All engines produce the same output and raise the
+     * same errors.
+     */
+    public enum Engine {
+        /**
+         * Dispatches on the byte code as stored in the object file. Needed for
+         * debug output.
+         */
+        SWITCH,
+        /**
+         * Decodes the code once into an int array with inline operands and
+         * resolved jump targets, see {@link ThreadedCode}.
+         */
+        THREADED,
+        /**
+         * Like {@link #THREADED}, but frequently called methods are compiled to
+         * JVM byte code, see {@link Jit}.
+         */
+        JIT,
+        /**
+         * Translates the stack code of every method into instructions on
+         * virtual registers, see {@link RegisterCode}.
+         */
+        REGISTER,
+        /**
+         * Compiles every basic block into a sequence of Java closures, see
+         * {@link ClosureCode}.
+         */
+        CLOSURE
+    }
+
+    IO io;
 
     public Interpreter(byte[] code, int startPC, int dataSize, IO io, boolean debug) {
+        this(code, startPC, dataSize, io, debug, Engine.SWITCH);
+    }
+
+    public Interpreter(byte[] code, int startPC, int dataSize, IO io, boolean debug, Engine engine) {
+        this(code, startPC, dataSize, new Builder().io(io).debug(debug).engine(engine));
+    }
+
+    private Interpreter(byte[] code, int startPC, int dataSize, Builder b) {
+        if (startPC < 0 || startPC >= code.length) {
+            throw new IllegalArgumentException("startPC not in code area: " + startPC);
+        }
         this.code = code;
         this.startPC = startPC;
-        this.io = io;
-        this.debug = debug;
-        heap = new int[heapSize]; // fixed sized heap
+        this.io = b.io != null ? b.io : new BufferedConsoleIO();
+        this.debug = b.debug;
+        Engine engine = debug || b.profile || b.count ? Engine.SWITCH : b.engine;
+        CodeCache.Entry decoded = b.decoded;
+        if (engine == Engine.THREADED) {
+            if (decoded != null) {
+                threaded = b.fuse ? decoded.fused : decoded.threaded;
+            } else {
+                threaded = b.fuse ? ThreadedCode.decodeFused(code, startPC) : ThreadedCode.decode(code, startPC);
+            }
+            cacheTop = b.cacheTop && !b.fuse;
+            stackBound = b.verified != null && !b.fuse && !cacheTop ? b.verified.stackBound() : -1;
+            if (stackBound >= 0) {
+                unchecked = decoded != null ? decoded.unchecked : threaded.unchecked();
+            }
+        } else if (engine == Engine.JIT) {
+            CodeAnalysis analysis = b.verified != null ? b.verified : CodeAnalysis.analyze(code, startPC);
+            threaded = decoded != null ? decoded.counted : ThreadedCode.decode(code, startPC, analysis);
+            jit = new Jit(code, threaded, analysis, b.collect);
+        } else if (engine == Engine.REGISTER) {
+            CodeAnalysis analysis = b.verified != null ? b.verified : CodeAnalysis.analyze(code, startPC);
+            registers = RegisterCode.translate(code, startPC, analysis);
+            if (registers == null) { // not translatable, errors are reported by the threaded engine
+                threaded = ThreadedCode.decode(code, startPC);
+                engine = Engine.THREADED;
+            }
+        } else if (engine == Engine.CLOSURE) {
+            CodeAnalysis analysis = b.verified != null ? b.verified : CodeAnalysis.analyze(code, startPC);
+            closures = ClosureCode.compile(code, startPC, analysis);
+            if (closures == null) {
+                threaded = ThreadedCode.decode(code, startPC);
+                engine = Engine.THREADED;
+            }
+        }
+        this.engine = engine;
+        heapQuota = b.heapQuota;
+        stepQuota = b.stepQuota;
+        heap = new int[Math.min(b.heapSize, heapQuota)];
         data = new int[dataSize]; // global data as specified in
         // classfile
-        stack = new int[eStackSize]; // expression stack
-        local = new int[mStackSize]; // method stack
+        stack = new int[b.eStackSize]; // expression stack
+        local = new int[b.mStackSize]; // method stack
+        if (b.grow) {
+            maxHeapSize = Math.max(b.maxHeapSize, b.heapSize);
+            maxMStackSize = Math.max(b.maxMStackSize, b.mStackSize);
+            maxEStackSize = Math.max(b.maxEStackSize, b.eStackSize);
+        } else {
+            maxHeapSize = b.heapSize;
+            maxMStackSize = b.mStackSize;
+            maxEStackSize = b.eStackSize;
+        }
         fp = 0;
         sp = 0;
         esp = 0;
         free = 1; // no block should start at address 0
+        if (b.collect) {
+            gc = new GarbageCollector(this);
+        }
+        if (b.profile) {
+            profiler = new Profiler(code, startPC);
+        }
+        if (b.count) {
+            counter = new InstructionCounter(code);
+        }
+        if (b.quicken && engine == Engine.SWITCH && !debug && profiler == null && counter == null) {
+            quick = new byte[code.length];
+            operand = new int[code.length];
+        }
+    }
+
+    /**
+     * Configures and creates interpreters. Without further settings the
+     * interpreter has the default sizes, is not collected, does not grow and
+     * runs {@link Engine#SWITCH} on a {@link BufferedConsoleIO} of its own.
+     */
+    public static class Builder {
+        private IO io; // null: a new console for every interpreter
+        private boolean debug;
+        private Engine engine = Engine.SWITCH;
+        private boolean collect;
+        private boolean profile;
+        private boolean count;
+        private boolean fuse;
+        private boolean quicken;
+        private boolean cacheTop;
+        private int heapSize = Interpreter.heapSize;
+        private int mStackSize = Interpreter.mStackSize;
+        private int eStackSize = Interpreter.eStackSize;
+        private boolean grow;
+        private int maxHeapSize = MAX_HEAP_SIZE;
+        private int maxMStackSize = MAX_M_STACK_SIZE;
+        private int maxEStackSize = MAX_E_STACK_SIZE;
+        private int heapQuota = Integer.MAX_VALUE;
+        private long stepQuota = Long.MAX_VALUE;
+        private CodeAnalysis verified; // analysis of verified code, null if not verified
+        private CodeCache.Entry decoded; // pre-decoded forms of verified code, null if not cached
+
+        /**
+         * Input and output of the interpreters. Without this setting every
+         * interpreter gets a {@link BufferedConsoleIO} of its own, so
+         * interpreters on different threads do not share a buffer.
+         */
+        public Builder io(IO io) {
+            this.io = io;
+            return this;
+        }
+
+        public Builder debug(boolean debug) {
+            this.debug = debug;
+            return this;
+        }
+
+        public Builder engine(Engine engine) {
+            this.engine = engine;
+            return this;
+        }
+
+        /**
+         * If set, unreachable heap blocks are reclaimed by a
+         * {@link GarbageCollector} when the heap is full.
+         */
+        public Builder collect(boolean collect) {
+            this.collect = collect;
+            return this;
+        }
+
+        /**
+         * If set, the program is run on {@link Engine#SWITCH} and a
+         * {@link Profiler} records the executed instructions per method.
+         */
+        public Builder profile(boolean profile) {
+            this.profile = profile;
+            return this;
+        }
+
+        /**
+         * If set, the program is run on {@link Engine#SWITCH} and an
+         * {@link InstructionCounter} counts the executions of every opcode
+         * and every instruction.
+         */
+        public Builder count(boolean count) {
+            this.count = count;
+            return this;
+        }
+
+        /**
+         * If set, {@link Engine#THREADED} executes frequent instruction
+         * sequences as {@link Superinstructions}. Has no effect on the other
+         * engines.
+         */
+        public Builder superinstructions(boolean fuse) {
+            this.fuse = fuse;
+            return this;
+        }
+
+        /**
+         * If set, {@link Engine#SWITCH} replaces every instruction by a quick
+         * form with decoded operands after its first execution. Has no effect
+         * on the other engines and with debug output, profiling or counting.
+         */
+        public Builder quicken(boolean quicken) {
+            this.quicken = quicken;
+            return this;
+        }
+
+        /**
+         * If set, {@link Engine#THREADED} keeps the top two values of the
+         * expression stack in local variables. Has no effect on the other
+         * engines and with superinstructions.
+         */
+        public Builder cacheTop(boolean cacheTop) {
+            this.cacheTop = cacheTop;
+            return this;
+        }
+
+        /**
+         * Number of steps, i.e. backward jumps and calls, a run may make.
+         * Further steps raise a runtime error.
+         */
+        public Builder stepQuota(long steps) {
+            if (steps <= 0) {
+                throw new IllegalArgumentException("quota must be positive: " + steps);
+            }
+            stepQuota = steps;
+            return this;
+        }
+
+        /**
+         * Number of heap words a run may use. Allocations beyond raise a
+         * runtime error. The initial heap is not larger than the quota.
+         */
+        public Builder heapQuota(int words) {
+            heapQuota = positive(words);
+            return this;
+        }
+
+        /**
+         * Initial size of the heap in words.
+         */
+        public Builder heapSize(int words) {
+            heapSize = positive(words);
+            return this;
+        }
+
+        /**
+         * Initial size of the method stack in words.
+         */
+        public Builder methodStackSize(int words) {
+            mStackSize = positive(words);
+            return this;
+        }
+
+        /**
+         * Initial size of the expression stack in words.
+         */
+        public Builder expressionStackSize(int words) {
+            eStackSize = positive(words);
+            return this;
+        }
+
+        /**
+         * If set, the heap and the stacks double their size when they are
+         * full, up to their maximum sizes, instead of reporting an overflow.
+         */
+        public Builder grow(boolean grow) {
+            this.grow = grow;
+            return this;
+        }
+
+        /**
+         * Maximum size of the heap in words if it grows.
+         */
+        public Builder maxHeapSize(int words) {
+            maxHeapSize = positive(words);
+            return this;
+        }
+
+        /**
+         * Maximum size of the method stack in words if it grows.
+         */
+        public Builder maxMethodStackSize(int words) {
+            maxMStackSize = positive(words);
+            return this;
+        }
+
+        /**
+         * Maximum size of the expression stack in words if it grows.
+         */
+        public Builder maxExpressionStackSize(int words) {
+            maxEStackSize = positive(words);
+            return this;
+        }
+
+        /**
+         * Largest size the expression stack can reach.
+         */
+        int maxExpressionStackSize() {
+            return grow ? Math.max(maxEStackSize, eStackSize) : eStackSize;
+        }
+
+        /**
+         * Verifies the code by {@link Verifier} for the largest expression
+         * stack of the interpreters and marks it as verified. Throws a
+         * FormatException describing the first problem if the code is not
+         * verifiable.
+         */
+        public Builder verify(byte[] code, int startPC, int dataSize) throws FormatException {
+            return verified(Verifier.verify(code, startPC, dataSize, maxExpressionStackSize()));
+        }
+
+        /**
+         * Marks the code as verified by {@link Verifier}, with the given
+         * analysis.
+         */
+        Builder verified(CodeAnalysis analysis) {
+            verified = analysis;
+            decoded = null;
+            return this;
+        }
+
+        /**
+         * Marks the code as verified, with the analysis and the decoded code
+         * of a {@link CodeCache} entry.
+         */
+        Builder decoded(CodeCache.Entry entry) {
+            verified = entry.analysis;
+            decoded = entry;
+            return this;
+        }
+
+        private static int positive(int words) {
+            if (words <= 0) {
+                throw new IllegalArgumentException("size must be positive: " + words);
+            }
+            return words;
+        }
+
+        public Interpreter build(byte[] code, int startPC, int dataSize) {
+            return new Interpreter(code, startPC, dataSize, this);
+        }
+    }
+
+    /**
+     * Returns the garbage collector with its statistics, null if the heap is
+     * not collected.
+     */
+    public GarbageCollector getGarbageCollector() {
+        return gc;
+    }
+
+    /**
+     * Returns the profile of the program, null if it is not profiled.
+     */
+    public Profiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * Returns the execution counts of the program, null if instructions are
+     * not counted.
+     */
+    public InstructionCounter getInstructionCounter() {
+        return counter;
+    }
+
+    /**
+     * Returns the engine that runs the program, {@link Engine#SWITCH} if
+     * debug output, profiles or counts were requested. Code that
+     * {@link Engine#REGISTER} or {@link Engine#CLOSURE} cannot translate, e.g.
+     * because it does not pass the {@link CodeAnalysis}, is run by
+     * {@link Engine#THREADED}.
+     */
+    public Engine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Returns the number of methods compiled by {@link Engine#JIT} so far, 0
+     * for the other engines.
+     */
+    public int getCompiledMethods() {
+        return jit != null ? jit.compiledMethods() : 0;
+    }
+
+    // ----- reuse
+
+    /**
+     * Prepares the interpreter for another run of the program on io: the
+     * global data, the heap and the stacks are emptied, while the decoded or
+     * compiled code, quickened instructions and grown regions are kept. Only
+     * the used part of the heap is cleared, and a suspended run is dropped.
+     * Profiles, execution counts and collector statistics accumulate over all
+     * runs.
+     */
+    public void reset(IO io) {
+        this.io = io;
+        Arrays.fill(data, 0);
+        if (gc != null) {
+            gc.reset(); // clears the blocks it allocates
+        } else {
+            Arrays.fill(heap, 0, Math.min(free, heap.length), 0);
+        }
+        fp = 0;
+        sp = 0;
+        esp = 0;
+        free = 1;
+        resume = -1;
+        cancelled = false;
+    }
+
+    // ----- heap files
+
+    /**
+     * Replaces the global data and the heap by the ones saved by
+     * {@link #saveHeap} in a run of the same program. Must be called before
+     * {@link #run}.
+     *
+     * @throws IOException           if the file cannot be read or was not
+     *                               saved by this program with the same
+     *                               garbage collection setting
+     * @throws IllegalStateException if the saved heap exceeds the heap quota
+     *                               or the heap cannot grow to hold it
+     */
+    public void loadHeap(Path file) throws IOException, IllegalStateException {
+        HeapFile.load(this, file);
+    }
+
+    /**
+     * Saves the global data and the heap in a memory-mapped {@link HeapFile}.
+     */
+    public void saveHeap(Path file) throws IOException {
+        HeapFile.save(this, file);
+    }
+
+    // ----- checkpoints
+
+    /**
+     * Saves the complete state of the suspended run in a memory-mapped
+     * {@link Checkpoint}, from which another interpreter continues it.
+     *
+     * @throws IllegalStateException if no run is suspended
+     */
+    public void saveCheckpoint(Path file) throws IOException, IllegalStateException {
+        if (resume < 0) {
+            throw new IllegalStateException("no suspended run");
+        }
+        Checkpoint.save(this, file);
+    }
+
+    /**
+     * Replaces the state of the interpreter by the run saved by
+     * {@link #saveCheckpoint}, so that {@link #run} or {@link #runFor}
+     * continue it with the full step quota. Must be called before the
+     * interpreter runs, or after {@link #reset}.
+     *
+     * @throws IOException           if the file cannot be read or was not
+     *                               saved by this program on the same engine
+     *                               and with the same garbage collection
+     *                               setting
+     * @throws IllegalStateException if the saved heap exceeds the heap quota
+     *                               or a region cannot grow to hold the
+     *                               saved state
+     */
+    public void loadCheckpoint(Path file) throws IOException, IllegalStateException {
+        Checkpoint.load(this, file);
+        quota = stepQuota;
+        cancelled = false;
+    }
+
+    /**
+     * Checksum of the decoded or translated code in which {@link #resume} is
+     * a position, 0 if it is a byte code address.
+     */
+    int layout() {
+        int[] ops = registers != null ? registers.ops : closures == null && threaded != null ? threaded.ops : null;
+        if (ops == null) {
+            return 0;
+        }
+        CRC32 crc = new CRC32();
+        ByteBuffer buf = ByteBuffer.allocate(4 * ops.length);
+        buf.asIntBuffer().put(ops);
+        crc.update(buf);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * End of the used part of the expression stack. A suspended run of
+     * {@link Engine#REGISTER} keeps the registers of its current activation
+     * above {@link #esp}; only those that hold values at the resume position
+     * are used.
+     */
+    int stackTop() {
+        return registers != null && resume >= 0 ? esp + registers.live(resume) : esp;
+    }
+
+    /**
+     * Grows the regions to hold the given number of words, within the
+     * maximum sizes and the heap quota. The regions are unchanged if one of
+     * them cannot grow.
+     */
+    void reserve(int heapWords, int localWords, int stackWords) throws IllegalStateException {
+        if (heapWords > heapQuota) {
+            throw new IllegalStateException("heap quota exceeded");
+        }
+        if (grownLength(heap.length, heapWords, Math.min(maxHeapSize, heapQuota)) < 0) {
+            throw new IllegalStateException("heap overflow");
+        }
+        if (grownLength(local.length, localWords, maxMStackSize) < 0) {
+            throw new IllegalStateException("method stack overflow");
+        }
+        if (grownLength(stack.length, stackWords, maxEStackSize) < 0) {
+            throw new IllegalStateException("expression stack overflow");
+        }
+        if (heapWords > heap.length) {
+            growHeap(heapWords);
+        }
+        if (localWords > local.length) {
+            growLocal(localWords);
+        }
+        if (stackWords > stack.length) {
+            growStack(stackWords);
+        }
+    }
+
+    // ----- growing regions
+
+    /**
+     * Returns the length to which a region of the given length and maximum
+     * length grows by doubling so that it holds size words, -1 if it cannot.
+     */
+    private static int grownLength(int length, int size, int max) {
+        if (size > max || size < 0) {
+            return -1;
+        }
+        int n = length;
+        while (n < size) {
+            n = (int) Math.min(2L * n, max);
+        }
+        return n;
+    }
+
+    /**
+     * Grows the expression stack to hold size words. Returns the new stack.
+     */
+    int[] growStack(int size) throws IllegalStateException {
+        int n = grownLength(stack.length, size, maxEStackSize);
+        if (n < 0) {
+            throw new IllegalStateException("expression stack overflow");
+        }
+        stack = Arrays.copyOf(stack, n);
+        return stack;
+    }
+
+    /**
+     * Grows the expression stack so that the rest of the run can execute the
+     * unchecked code. Returns false if the stack cannot grow so far; the run
+     * then executes the checked code, which reports an overflow where it
+     * happens.
+     */
+    private boolean reserveStack() {
+        long size = (long) esp + stackBound;
+        if (size > stack.length) {
+            if (size > maxEStackSize) {
+                return false;
+            }
+            growStack((int) size);
+        }
+        return true;
+    }
+
+    /**
+     * Grows the method stack to hold size words. Returns the new stack.
+     */
+    int[] growLocal(int size) throws IllegalStateException {
+        int n = grownLength(local.length, size, maxMStackSize);
+        if (n < 0) {
+            throw new IllegalStateException("method stack overflow");
+        }
+        local = Arrays.copyOf(local, n);
+        return local;
+    }
+
+    /**
+     * Grows the heap to hold size words. Returns the new heap.
+     */
+    int[] growHeap(int size) throws IllegalStateException {
+        if (size > heapQuota) {
+            throw new IllegalStateException("heap quota exceeded");
+        }
+        int n = grownLength(heap.length, size, Math.min(maxHeapSize, heapQuota));
+        if (n < 0) {
+            throw new IllegalStateException("heap overflow");
+        }
+        heap = Arrays.copyOf(heap, n);
+        return heap;
     }
 
     // ----- expression stack
     private void push(int val) throws IllegalStateException {
-        if (esp == eStackSize) {
-            throw new IllegalStateException("expression stack overflow");
+        if (esp == stack.length) {
+            growStack(esp + 1);
         }
         stack[esp++] = val;
     }
@@ -128,19 +968,36 @@ public class Interpreter {
         return stack[--esp];
     }
 
-    // ----- method stack
-    private void PUSH(int val) throws IllegalStateException {
-        if (sp == mStackSize) {
-            throw new IllegalStateException("method stack overflow");
-        }
-        local[sp++] = val;
-    }
+    // ----- method frames
 
-    private int POP() throws IllegalStateException {
-        if (sp == 0) {
-            throw new IllegalStateException("method stack underflow");
+    /**
+     * Allocates a frame with nLocals zeroed local variables behind the saved
+     * frame pointer and moves the nPars arguments from the expression stack
+     * into its first variables. The method stack grows once per frame. The
+     * frame is checked before it is built, so an error leaves the stacks
+     * unchanged.
+     */
+    private void enter(int nPars, int nLocals) throws IllegalStateException {
+        if (nPars > Math.max(nLocals, 0)) {
+            throw new IllegalStateException("invalid frame size");
+        }
+        if (esp < nPars) {
+            throw new IllegalStateException("expression stack underflow");
+        }
+        int size = sp + 1 + Math.max(nLocals, 0);
+        if (size > local.length) {
+            growLocal(size);
+        }
+        local[sp++] = fp;
+        fp = sp;
+        if (nLocals > 0) {
+            Arrays.fill(local, sp, sp + nLocals, 0);
+            sp += nLocals;
+        }
+        if (nPars > 0) {
+            esp -= nPars;
+            System.arraycopy(stack, esp, local, fp, nPars);
         }
-        return local[--sp];
     }
 
     // ----- instruction fetch
@@ -176,16 +1033,44 @@ public class Interpreter {
     /**
      * Allocate heap block of size bytes
      */
-    private int alloc(int size) throws IllegalStateException {
+    int alloc(int size) throws IllegalStateException {
         int adr = free;
         free += ((size + 3) >> 2); // skip to next free adr
         // (>> 2 to convert byte to word)
-        if (free > heapSize) {
-            throw new IllegalStateException("heap overflow");
+        if (free > heap.length) {
+            growHeap(free);
         }
         return adr;
     }
 
+    /**
+     * Allocate object with size fields. Returns its address.
+     */
+    int newObject(int size) throws IllegalStateException {
+        if (gc != null) {
+            return gc.newObject(size);
+        }
+        return alloc(size * 4);
+    }
+
+    /**
+     * Allocate array of len elements, elements are chars if type is 0, ints
+     * otherwise. Returns the address of element 0.
+     */
+    int newArray(int len, int type) throws IllegalStateException {
+        if (gc != null) {
+            return gc.newArray(len, type);
+        }
+        int adr;
+        if (type == 0) {
+            adr = alloc(len + 4);
+        } else {
+            adr = alloc(len * 4 + 4);
+        }
+        heap[adr] = len;
+        return adr + 1; // skip length field of array
+    }
+
     /**
      * Retrieve byte n from val. Byte 0 is MSB
      */
@@ -206,22 +1091,31 @@ public class Interpreter {
     /**
      * Read int from standard input stream
      */
-    private int readInt() {
-        int val = 0;
-        int prev = ' ';
-        int b = io.read();
-        while (b < '0' || b > '9') {
-            prev = b;
-            b = io.read();
+    int readInt() {
+        return io.readInt();
+    }
+
+    /**
+     * Print val right-aligned in a field of width characters
+     */
+    void print(int val, int width) {
+        io.writeInt(val, width);
+        if (debug) { // keep program output and trace in order
+            io.flush();
         }
-        while (b >= '0' && b <= '9') {
-            val = 10 * val + b - '0';
-            b = io.read();
+    }
+
+    /**
+     * Print character val right-aligned in a field of width characters
+     */
+    void bprint(int val, int width) {
+        for (int n = width - 1; n > 0; n--) {
+            io.write(' ');
         }
-        if (prev == '-') {
-            val = -val;
+        io.write((char) val);
+        if (debug) {
+            io.flush();
         }
-        return val;
     }
 
     private void printInstr() {
@@ -239,12 +1133,295 @@ public class Interpreter {
     }
 
     // ----- actual interpretation
+
+    /**
+     * Runs the program until main returns, or continues a run suspended by
+     * {@link #runFor}.
+     */
     public void run() throws IllegalStateException {
+        runFor(Long.MAX_VALUE);
+    }
+
+    /**
+     * Runs the program, or continues a suspended run, for about the given
+     * number of steps. A step is a backward jump or a call; between two steps
+     * a program executes at most a few instructions per byte of its code.
+     * Returns true if main returned, false if the run was suspended; the next
+     * call continues it. Code compiled by {@link Engine#JIT} is suspended
+     * only when it returns to the interpreter, so runs may exceed the budget
+     * while compiled methods loop.
+     *
+     * @throws IllegalStateException for runtime errors, if the run exceeds
+     *                               its step or heap quota, or if it is
+     *                               {@link #cancel() cancelled}
+     */
+    public boolean runFor(long steps) throws IllegalStateException {
+        if (steps <= 0) {
+            throw new IllegalArgumentException("steps must be positive: " + steps);
+        }
+        int at = resume;
+        resume = -1; // also after runtime errors
+        if (at < 0) {
+            quota = stepQuota;
+        }
+        budget = steps;
+        try {
+            if (cancelled) {
+                throw cancelledRun();
+            }
+            fuel = grant(SLICE);
+            for (; ; ) {
+                if (registers != null) {
+                    registers.execute(this, at);
+                } else if (closures != null) {
+                    closures.execute(this, at);
+                } else if (cacheTop) {
+                    threaded.executeCached(this, at >= 0 ? at : threaded.start);
+                } else if (unchecked != null && reserveStack()) {
+                    unchecked.execute(this, at >= 0 ? at : unchecked.start);
+                } else if (engine != Engine.SWITCH) {
+                    threaded.execute(this, at >= 0 ? at : threaded.start);
+                } else {
+                    interpret(at);
+                }
+                if (resume < 0) {
+                    break; // main returned
+                }
+                at = resume;
+                resume = -1;
+                fuel = refuel(true);
+                if (fuel < 0) {
+                    resume = at;
+                    break;
+                }
+            }
+        } finally {
+            io.flush();
+            if (profiler != null && resume < 0) {
+                profiler.finish();
+            }
+        }
+        return resume < 0;
+    }
+
+    /**
+     * Stops the current or next run at its next slice of steps with a runtime
+     * error. Can be called from any thread.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * True if a run was suspended by {@link #runFor} and not finished yet.
+     */
+    public boolean isSuspended() {
+        return resume >= 0;
+    }
+
+    private IllegalStateException cancelledRun() {
+        cancelled = false;
+        return new IllegalStateException("run cancelled");
+    }
+
+    /**
+     * Takes up to n steps from the budget and the quota and returns them.
+     * The budget is overdrawn if it is used up.
+     */
+    private int grant(int n) {
+        if (budget > 0) {
+            n = (int) Math.min(n, budget);
+            budget -= n;
+        }
+        n = (int) Math.min(n, quota);
+        quota -= n;
+        return n;
+    }
+
+    /**
+     * Called at a step when the fuel has become negative. Returns -1 if the
+     * run must be suspended behind the step, which is only done if
+     * suspendable is set. Otherwise grants the next slice of steps and
+     * returns the fuel left after this step. Once the budget is used up, steps
+     * that cannot be suspended are granted one at a time, so that the run is
+     * suspended at the first step that can be.
+     *
+     * @throws IllegalStateException if the run is cancelled or exceeds its
+     *                               quota
+     */
+    int refuel(boolean suspendable) throws IllegalStateException {
+        if (cancelled) {
+            throw cancelledRun();
+        }
+        if (quota == 0) {
+            throw new IllegalStateException("step quota exceeded");
+        }
+        if (budget == 0) {
+            return suspendable ? -1 : grant(1) - 1;
+        }
+        return grant(SLICE) - 1;
+    }
+
+    /**
+     * A step of compiled code, which cannot be suspended.
+     */
+    void step() throws IllegalStateException {
+        if (--fuel < 0) {
+            fuel = refuel(false);
+        }
+    }
+
+    // ----- quickening
+    // Quick forms of instructions, stored in quick[pc] after the instruction at
+    // pc has been executed once. Operands are decoded into operand[pc], both
+    // operands of inc and enter packed into one; jump and call targets are
+    // absolute.
+    private static final byte Q_LOAD = 1, Q_LOAD_N = 2, // local variable
+            Q_STORE = 3, Q_STORE_N = 4, // local variable
+            Q_CONST = 5, Q_CONST_N = 6, // value
+            Q_GETSTATIC = 7, Q_PUTSTATIC = 8, // global variable
+            Q_GETFIELD = 9, Q_PUTFIELD = 10, // field offset
+            Q_ADD = 11, Q_SUB = 12, Q_MUL = 13,
+            Q_INC = 14, // local variable << 8 | increment
+            Q_ALOAD = 15, Q_ASTORE = 16, Q_BALOAD = 17, Q_BASTORE = 18,
+            Q_JMP = 19, Q_JEQ = 20, Q_JNE = 21, Q_JLT = 22, Q_JLE = 23, Q_JGT = 24, Q_JGE = 25, // target
+            Q_CALL = 26, // target
+            Q_ENTER = 27, // parameters << 8 | locals
+            Q_EXIT = 28, Q_RETURN = 29,
+            Q_JMP_BACK = 30, Q_JEQ_BACK = 31, Q_JNE_BACK = 32, Q_JLT_BACK = 33, // target, backward jumps, the only
+            Q_JLE_BACK = 34, Q_JGT_BACK = 35, Q_JGE_BACK = 36; // quick jumps that count a step
+
+    /**
+     * Replaces the instruction op at pc, which has just been executed, by its
+     * quick form. Instructions without a quick form stay generic.
+     */
+    private void quicken(int pc, OpCode op) {
+        byte q;
+        switch (op) {
+            case load:
+                operand[pc] = code[pc + 1];
+                q = Q_LOAD;
+                break;
+            case load_0:
+            case load_1:
+            case load_2:
+            case load_3:
+                operand[pc] = op.code() - OpCode.load_0.code();
+                q = Q_LOAD_N;
+                break;
+            case store:
+                operand[pc] = code[pc + 1];
+                q = Q_STORE;
+                break;
+            case store_0:
+            case store_1:
+            case store_2:
+            case store_3:
+                operand[pc] = op.code() - OpCode.store_0.code();
+                q = Q_STORE_N;
+                break;
+            case const_:
+                operand[pc] = ThreadedCode.get4(code, pc + 1);
+                q = Q_CONST;
+                break;
+            case const_0:
+            case const_1:
+            case const_2:
+            case const_3:
+            case const_4:
+            case const_5:
+                operand[pc] = op.code() - OpCode.const_0.code();
+                q = Q_CONST_N;
+                break;
+            case const_m1:
+                operand[pc] = -1;
+                q = Q_CONST_N;
+                break;
+            case getstatic:
+                operand[pc] = ThreadedCode.get2(code, pc + 1);
+                q = Q_GETSTATIC;
+                break;
+            case putstatic:
+                operand[pc] = ThreadedCode.get2(code, pc + 1);
+                q = Q_PUTSTATIC;
+                break;
+            case getfield:
+                operand[pc] = ThreadedCode.get2(code, pc + 1);
+                q = Q_GETFIELD;
+                break;
+            case putfield:
+                operand[pc] = ThreadedCode.get2(code, pc + 1);
+                q = Q_PUTFIELD;
+                break;
+            case add:
+                q = Q_ADD;
+                break;
+            case sub:
+                q = Q_SUB;
+                break;
+            case mul:
+                q = Q_MUL;
+                break;
+            case inc:
+                operand[pc] = (code[pc + 1] << 8) | (code[pc + 2] & 0xff);
+                q = Q_INC;
+                break;
+            case aload:
+                q = Q_ALOAD;
+                break;
+            case astore:
+                q = Q_ASTORE;
+                break;
+            case baload:
+                q = Q_BALOAD;
+                break;
+            case bastore:
+                q = Q_BASTORE;
+                break;
+            case jmp:
+            case jeq:
+            case jne:
+            case jlt:
+            case jle:
+            case jgt:
+            case jge:
+                operand[pc] = pc + ThreadedCode.get2(code, pc + 1);
+                q = (byte) ((operand[pc] <= pc ? Q_JMP_BACK : Q_JMP) + op.ordinal() - OpCode.jmp.ordinal());
+                break;
+            case call:
+                operand[pc] = pc + ThreadedCode.get2(code, pc + 1);
+                q = Q_CALL;
+                break;
+            case enter:
+                operand[pc] = (code[pc + 1] << 8) | (code[pc + 2] & 0xff);
+                q = Q_ENTER;
+                break;
+            case exit:
+                q = Q_EXIT;
+                break;
+            case return_:
+                q = Q_RETURN;
+                break;
+            default:
+                return;
+        }
+        quick[pc] = q;
+    }
+
+    /**
+     * Executes the byte code from pc at, from the start of main if at is
+     * negative.
+     */
+    private void interpret(int at) throws IllegalStateException {
         Code.OpCode op;
-        int adr, val, val2, off, idx, len, i;
-        pc = startPC;
+        int adr, val, val2, off, idx, len;
+        final boolean trace = debug || profiler != null || counter != null; // single test per instruction if all are off
+        final byte[] quick = this.quick;
+        final int[] operand = this.operand;
+        int start; // pc of the current instruction
+        pc = at >= 0 ? at : startPC;
 
-        if (debug) { // header for debug output
+        if (debug && at < 0) { // header for debug output
             System.out.println();
             System.out.println("  pos: instruction operands");
             System.out.println("     | expressionstack");
@@ -252,9 +1429,202 @@ public class Interpreter {
         }
 
         for (; ; ) { // terminated by return instruction
+            start = pc;
+            if (quick != null && quick[pc] != 0) {
+                switch (quick[pc]) {
+                    case Q_LOAD:
+                        push(local[fp + operand[pc]]);
+                        pc += 2;
+                        break;
+                    case Q_LOAD_N:
+                        push(local[fp + operand[pc]]);
+                        pc++;
+                        break;
+                    case Q_STORE:
+                        local[fp + operand[pc]] = pop();
+                        pc += 2;
+                        break;
+                    case Q_STORE_N:
+                        local[fp + operand[pc]] = pop();
+                        pc++;
+                        break;
+                    case Q_CONST:
+                        push(operand[pc]);
+                        pc += 5;
+                        break;
+                    case Q_CONST_N:
+                        push(operand[pc]);
+                        pc++;
+                        break;
+                    case Q_GETSTATIC:
+                        push(data[operand[pc]]);
+                        pc += 3;
+                        break;
+                    case Q_PUTSTATIC:
+                        data[operand[pc]] = pop();
+                        pc += 3;
+                        break;
+                    case Q_GETFIELD:
+                        adr = pop();
+                        if (adr == 0) {
+                            throw new IllegalStateException("null reference used");
+                        }
+                        push(heap[adr + operand[pc]]);
+                        pc += 3;
+                        break;
+                    case Q_PUTFIELD:
+                        val = pop();
+                        adr = pop();
+                        if (adr == 0) {
+                            throw new IllegalStateException("null reference used");
+                        }
+                        heap[adr + operand[pc]] = val;
+                        pc += 3;
+                        break;
+                    case Q_ADD:
+                        push(pop() + pop());
+                        pc++;
+                        break;
+                    case Q_SUB:
+                        push(-pop() + pop());
+                        pc++;
+                        break;
+                    case Q_MUL:
+                        push(pop() * pop());
+                        pc++;
+                        break;
+                    case Q_INC:
+                        local[fp + (operand[pc] >> 8)] += (byte) operand[pc];
+                        pc += 3;
+                        break;
+                    case Q_ALOAD:
+                    case Q_BALOAD:
+                        idx = pop();
+                        adr = pop();
+                        if (adr == 0) {
+                            throw new IllegalStateException("null reference used");
+                        }
+                        if (idx < 0 || idx >= heap[adr - 1]) {
+                            throw new IllegalStateException("index out of bounds");
+                        }
+                        push(quick[pc] == Q_ALOAD ? heap[adr + idx] : getByte(heap[adr + idx / 4], idx % 4));
+                        pc++;
+                        break;
+                    case Q_ASTORE:
+                    case Q_BASTORE:
+                        val = pop();
+                        idx = pop();
+                        adr = pop();
+                        if (adr == 0) {
+                            throw new IllegalStateException("null reference used");
+                        }
+                        if (idx < 0 || idx >= heap[adr - 1]) {
+                            throw new IllegalStateException("index out of bounds");
+                        }
+                        if (quick[pc] == Q_ASTORE) {
+                            heap[adr + idx] = val;
+                        } else {
+                            heap[adr + idx / 4] = setByte(heap[adr + idx / 4], idx % 4, (byte) val);
+                        }
+                        pc++;
+                        break;
+                    case Q_JMP:
+                        pc = operand[pc];
+                        break;
+                    case Q_JEQ:
+                        val2 = pop();
+                        pc = pop() == val2 ? operand[pc] : pc + 3;
+                        break;
+                    case Q_JNE:
+                        val2 = pop();
+                        pc = pop() != val2 ? operand[pc] : pc + 3;
+                        break;
+                    case Q_JLT:
+                        val2 = pop();
+                        pc = pop() < val2 ? operand[pc] : pc + 3;
+                        break;
+                    case Q_JLE:
+                        val2 = pop();
+                        pc = pop() <= val2 ? operand[pc] : pc + 3;
+                        break;
+                    case Q_JGT:
+                        val2 = pop();
+                        pc = pop() > val2 ? operand[pc] : pc + 3;
+                        break;
+                    case Q_JGE:
+                        val2 = pop();
+                        pc = pop() >= val2 ? operand[pc] : pc + 3;
+                        break;
+                    case Q_JMP_BACK:
+                        pc = operand[pc];
+                        if (--fuel < 0) {
+                            resume = pc;
+                            return;
+                        }
+                        break;
+                    case Q_JEQ_BACK:
+                    case Q_JNE_BACK:
+                    case Q_JLT_BACK:
+                    case Q_JLE_BACK:
+                    case Q_JGT_BACK:
+                    case Q_JGE_BACK:
+                        val2 = pop();
+                        if (!ThreadedCode.compare(ThreadedCode.JEQ + quick[pc] - Q_JEQ_BACK, pop(), val2)) {
+                            pc += 3;
+                            break;
+                        }
+                        pc = operand[pc];
+                        if (--fuel < 0) {
+                            resume = pc;
+                            return;
+                        }
+                        break;
+                    case Q_CALL:
+                        if (sp == local.length) {
+                            growLocal(sp + 1);
+                        }
+                        local[sp++] = pc + 3;
+                        pc = operand[pc];
+                        if (--fuel < 0) {
+                            resume = pc;
+                            return;
+                        }
+                        break;
+                    case Q_ENTER:
+                        enter(operand[pc] >> 8, (byte) operand[pc]);
+                        pc += 3;
+                        break;
+                    case Q_EXIT:
+                        sp = fp;
+                        if (sp == 0) {
+                            throw new IllegalStateException("method stack underflow");
+                        }
+                        fp = local[--sp];
+                        pc++;
+                        break;
+                    default: // Q_RETURN
+                        if (sp == 0) {
+                            return;
+                        }
+                        pc = local[--sp];
+                        break;
+                }
+                continue;
+            }
             op = Code.OpCode.get(next(false));
-            if (debug) {
-                printInstr();
+            if (op == null) {
+                throw new IllegalStateException("wrong opcode " + code[pc - 1]);
+            }
+            if (trace) {
+                if (debug) {
+                    printInstr();
+                }
+                if (profiler != null) {
+                    profiler.step(op, pc - 1);
+                }
+                if (counter != null) {
+                    counter.count(op, pc - 1);
+                }
             }
 
             switch (op) {
@@ -369,18 +1739,12 @@ public class Interpreter {
 
                 // object creation
                 case new_:
-                    push(alloc(next2(true) * 4));
+                    push(newObject(next2(true)));
                     break;
                 case newarray:
                     val = next(true);
                     len = pop();
-                    if (val == 0) {
-                        adr = alloc(len + 4);
-                    } else {
-                        adr = alloc(len * 4 + 4);
-                    }
-                    heap[adr] = len;
-                    push(adr + 1); // skip length field of array
+                    push(newArray(len, val));
                     break;
 
                 // array access
@@ -471,6 +1835,10 @@ public class Interpreter {
                 case jmp:
                     off = next2(true);
                     pc += off - 3;
+                    if (off <= 0 && --fuel < 0) {
+                        resume = pc;
+                        return;
+                    }
                     break;
 
                 case jeq:
@@ -507,38 +1875,44 @@ public class Interpreter {
                     }
                     if (cond) {
                         pc += off - 3;
+                        if (off <= 0 && --fuel < 0) {
+                            resume = pc;
+                            return;
+                        }
                     }
                     break;
 
                 // method calls
                 case call:
                     off = next2(true);
-                    PUSH(pc);
+                    if (sp == local.length) {
+                        growLocal(sp + 1);
+                    }
+                    local[sp++] = pc;
                     pc += off - 3;
+                    if (--fuel < 0) {
+                        resume = pc;
+                        return;
+                    }
                     break;
 
                 case return_:
                     if (sp == 0) {
                         return;
                     }
-                    pc = POP();
+                    pc = local[--sp];
                     break;
                 case enter:
                     int psize = next(true);
                     int lsize = next(true);
-                    PUSH(fp);
-                    fp = sp;
-                    for (i = 0; i < lsize; i++) {
-                        PUSH(0);
-                    }
-                    assert sp == (fp + lsize);
-                    for (i = psize - 1; i >= 0; i--) {
-                        local[fp + i] = pop();
-                    }
+                    enter(psize, lsize);
                     break;
                 case exit:
                     sp = fp;
-                    fp = POP();
+                    if (sp == 0) {
+                        throw new IllegalStateException("method stack underflow");
+                    }
+                    fp = local[--sp];
                     break;
 
                 // I/O
@@ -549,17 +1923,15 @@ public class Interpreter {
                 case print:
                     len = pop();
                     val = pop();
-                    String s = new Integer(val).toString();
-                    len = len - s.length();
-                    write(s, len);
+                    print(val, len);
                     break;
                 case bread:
                     push(io.read());
                     break;
                 case bprint:
-                    len = pop() - 1;
+                    len = pop();
                     val = pop();
-                    write(Character.toString((char) val), len);
+                    bprint(val, len);
                     break;
                 case nop:
                     // nothing to do
@@ -569,6 +1941,9 @@ public class Interpreter {
                 default:
                     throw new IllegalStateException("wrong opcode " + op);
             }
+            if (quick != null) {
+                quicken(start, op);
+            }
             if (debug) {
                 System.out.println();
                 System.out.print("     | ");
@@ -0,0 +1,999 @@
+package ssw.mj;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+
+import static ssw.mj.ClassFileWriter.*;
+
+/**
+ * Second tier of {@link Interpreter.Engine#JIT}. Calls and backward jumps are
+ * counted per method by the pre-decoded code. When a method has been counted
+ * <code>threshold</code> times, its byte code is translated into a JVM class,
+ * loaded as a hidden class and used for all further calls of the method. An
+ * activation that is still running in the interpreter continues in the
+ * compiled code at its next backward jump, which enters it at the loop header
+ * (on-stack replacement), so a method that is called once but loops long is
+ * compiled as well.
+ * <p>
+ * Compiled methods keep their local variables and expression stack in JVM
+ * locals, but build the same frames on the method stack as the interpreter.
+ * Where the interpreter would raise a runtime error (null reference, index out
+ * of bounds, division by zero, trap) the compiled code writes its state back
+ * and continues in the interpreter at the same instruction, so errors are
+ * reported exactly as without compilation. The main method is never compiled.
+ */
+final class Jit {
+
+    /**
+     * Default number of calls and backward jumps before a method is compiled.
+     * Can be set with the system property <code>microjava.jitThreshold</code>.
+     */
+    static final int DEFAULT_THRESHOLD = 1000;
+
+    /**
+     * Maximum nesting of compiled methods and interpreter activations on the
+     * JVM stack. Deeper calls are interpreted.
+     */
+    private static final int MAX_DEPTH = 400;
+
+    private static final String VM = "ssw/mj/Interpreter";
+    private static final String JIT = "ssw/mj/Jit";
+    private static final String IO = "ssw/mj/Interpreter$IO";
+
+    // ----- JVM locals of a compiled method
+    private static final int THIS = 0, ARG_VM = 1, ARG_AT = 2, LOCAL = 3, STACK = 4, HEAP = 5, DATA = 6, FP = 7,
+            BASE = 8, FRAME = 9, OLD_FP = 10, DEOPT_PC = 11, DEOPT_DEPTH = 12, T1 = 13, T2 = 14, VARS = 15;
+
+    /**
+     * JVM compare-and-branch instructions for jeq ... jge.
+     */
+    static final int[] COMPARE = {IF_ICMPEQ, IF_ICMPNE, IF_ICMPLT, IF_ICMPLE, IF_ICMPGT, IF_ICMPGE};
+
+    private final byte[] code;
+    private final ThreadedCode threaded;
+    private final CodeAnalysis analysis;
+    private final int threshold;
+
+    /**
+     * Per method: number of calls and backward jumps so far.
+     */
+    final int[] counts;
+
+    /**
+     * Per method: number of results, see
+     * {@link CodeAnalysis.MethodInfo#results}.
+     */
+    final int[] results;
+
+    private final CompiledMethod[] compiled;
+    private final boolean[] failed;
+    private int depth;
+
+    /**
+     * If set, compiled code writes its locals and expression stack back to
+     * the interpreter before allocations and calls, so that the garbage
+     * collector sees them as roots.
+     */
+    private final boolean spill;
+
+    Jit(byte[] code, ThreadedCode threaded, CodeAnalysis analysis, boolean spill) {
+        this.code = code;
+        this.threaded = threaded;
+        this.analysis = analysis;
+        this.spill = spill;
+        this.threshold = Integer.getInteger("microjava.jitThreshold", DEFAULT_THRESHOLD);
+        int n = analysis.methods.size();
+        counts = new int[n];
+        results = new int[n];
+        compiled = new CompiledMethod[n];
+        failed = new boolean[n];
+        for (CodeAnalysis.MethodInfo m : analysis.methods) {
+            results[m.id] = Math.max(m.results, 0);
+        }
+        failed[0] = true; // main
+    }
+
+    /**
+     * Return address of frames built for compiled code and for interpreter
+     * activations started from compiled code. The pre-decoded code maps it to
+     * an instruction that leaves {@link ThreadedCode#execute}.
+     */
+    int sentinel() {
+        return code.length;
+    }
+
+    // ----- dispatch
+
+    /**
+     * Counts a call of method m and returns its compiled code if it can be
+     * run with the given stack pointers, otherwise null. Compiled code never
+     * overflows the stacks; if the interpreter could, the call is
+     * interpreted, so that it reports the error.
+     */
+    CompiledMethod ready(int m, int esp, int sp, Interpreter vm) {
+        CompiledMethod cm = count(m);
+        if (cm == null) {
+            return null;
+        }
+        CodeAnalysis.MethodInfo info = analysis.methods.get(m);
+        if (depth >= MAX_DEPTH || sp + 2 + info.nLocals > vm.local.length || esp < info.nPars
+                || esp - info.nPars + info.maxStack > vm.stack.length) {
+            return null;
+        }
+        return cm;
+    }
+
+    /**
+     * Counts a backward jump to pc in the activation of method m that the
+     * interpreter is running and returns the compiled code of m if the
+     * activation can continue in it at pc, otherwise null.
+     */
+    CompiledMethod loop(int m, int pc, int esp, Interpreter vm) {
+        CompiledMethod cm = count(m);
+        if (cm == null) {
+            return null;
+        }
+        CodeAnalysis.MethodInfo info = analysis.methods.get(m);
+        if (depth >= MAX_DEPTH || esp - analysis.depth[pc] + info.maxStack > vm.stack.length) {
+            return null;
+        }
+        return cm;
+    }
+
+    /**
+     * Counts a call or backward jump of method m and returns its compiled
+     * code, null if it is not compiled (yet).
+     */
+    private CompiledMethod count(int m) {
+        CompiledMethod cm = compiled[m];
+        if (cm == null) {
+            if (failed[m] || ++counts[m] < threshold) {
+                return null;
+            }
+            cm = compile(analysis.methods.get(m));
+            if (cm == null) {
+                failed[m] = true;
+                return null;
+            }
+            compiled[m] = cm;
+        }
+        return cm;
+    }
+
+    /**
+     * Number of methods compiled so far.
+     */
+    int compiledMethods() {
+        int n = 0;
+        for (CompiledMethod cm : compiled) {
+            if (cm != null) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Runs compiled method m from the interpreter and pushes its result. If
+     * <code>at</code> is a pc, the activation of m that the interpreter is
+     * running continues in the compiled code there; it returns to the
+     * interpreter instead of to its caller.
+     */
+    void invoke(Interpreter vm, CompiledMethod cm, int m, int at) {
+        depth++;
+        try {
+            int val = cm.invoke(vm, at);
+            if (results[m] > 0) {
+                vm.stack[vm.esp++] = val;
+            }
+        } finally {
+            depth--;
+        }
+    }
+
+    /**
+     * Calls method m from compiled code and returns its result.
+     */
+    int call(Interpreter vm, int m) {
+        vm.step();
+        CompiledMethod cm = ready(m, vm.esp, vm.sp, vm);
+        if (cm != null) {
+            depth++;
+            try {
+                return cm.invoke(vm, -1);
+            } finally {
+                depth--;
+            }
+        }
+        if (vm.sp == vm.local.length) {
+            vm.growLocal(vm.sp + 1);
+        }
+        vm.local[vm.sp++] = sentinel();
+        return interpret(vm, analysis.methods.get(m).entry, m);
+    }
+
+    /**
+     * Continues compiled method m in the interpreter at pc. The frame and the
+     * expression stack have been written back by the compiled code.
+     */
+    int resume(Interpreter vm, int pc, int m) {
+        return interpret(vm, pc, m);
+    }
+
+    /**
+     * Runs the interpreter from pc until it returns to the sentinel. Runs
+     * cannot be suspended while compiled code is on the JVM stack, so when
+     * the interpreter leaves for a new slice of steps, it is granted here.
+     */
+    private int interpret(Interpreter vm, int pc, int m) {
+        depth++;
+        try {
+            threaded.execute(vm, threaded.index[pc]);
+            while (vm.resume >= 0) {
+                int at = vm.resume;
+                vm.resume = -1;
+                vm.fuel = vm.refuel(false);
+                threaded.execute(vm, at);
+            }
+        } finally {
+            depth--;
+        }
+        return results[m] > 0 ? vm.stack[--vm.esp] : 0;
+    }
+
+    // ----- translation
+
+    /**
+     * Translates method m, null if it cannot be translated.
+     */
+    private CompiledMethod compile(CodeAnalysis.MethodInfo m) {
+        if (m.error != null || m.results < 0 || m.results > 1) {
+            return null;
+        }
+        try {
+            byte[] bytes = translate(m);
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            return (CompiledMethod) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class))
+                    .invoke();
+        } catch (RuntimeException | LinkageError e) {
+            return null;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private byte[] translate(CodeAnalysis.MethodInfo m) {
+        ClassFileWriter cw = new ClassFileWriter(ACC_FINAL | ACC_SUPER, "ssw/mj/CompiledMethod_" + m.id,
+                "ssw/mj/CompiledMethod");
+        cw.defaultConstructor();
+        ClassFileWriter.MethodWriter w = cw.method(0, "invoke", "(Lssw/mj/Interpreter;I)I");
+        new Translator(m, w).run();
+        w.end(10, VARS + m.nLocals + m.maxStack);
+        return cw.toByteArray();
+    }
+
+    /**
+     * Translation of one method. MicroJava local i is held in JVM local
+     * <code>VARS + i</code>, expression stack slot i in
+     * <code>VARS + nLocals + i</code>.
+     */
+    private final class Translator {
+        private final CodeAnalysis.MethodInfo m;
+        private final ClassFileWriter.MethodWriter w;
+        private final int slots;
+        private final int[] labels;
+        private final int deopt;
+        // pending deoptimization stubs: label, pc, depth
+        private int[] stubs = new int[24];
+        private int nStubs;
+
+        Translator(CodeAnalysis.MethodInfo m, ClassFileWriter.MethodWriter w) {
+            this.m = m;
+            this.w = w;
+            slots = VARS + m.nLocals;
+            labels = new int[code.length];
+            Arrays.fill(labels, -1);
+            deopt = w.newLabel();
+        }
+
+        private int var(int i) {
+            return VARS + i;
+        }
+
+        private int slot(int i) {
+            return slots + i;
+        }
+
+        private int label(int pc) {
+            if (labels[pc] < 0) {
+                labels[pc] = w.newLabel();
+            }
+            return labels[pc];
+        }
+
+        /**
+         * Branches to a stub that continues in the interpreter at pc with the
+         * given stack depth if the top of the JVM stack satisfies opcode.
+         */
+        private void deoptIf(int opcode, int pc, int depth) {
+            for (int i = 0; i < nStubs; i += 3) {
+                if (stubs[i + 1] == pc && stubs[i + 2] == depth) {
+                    w.jump(opcode, stubs[i]);
+                    return;
+                }
+            }
+            if (nStubs + 3 > stubs.length) {
+                stubs = Arrays.copyOf(stubs, stubs.length * 2);
+            }
+            int label = w.newLabel();
+            stubs[nStubs++] = label;
+            stubs[nStubs++] = pc;
+            stubs[nStubs++] = depth;
+            w.jump(opcode, label);
+        }
+
+        private void vmField(int opcode, String name, String desc) {
+            w.field(opcode, VM, name, desc);
+        }
+
+        /**
+         * Writes the MicroJava locals and, if d >= 0, the d stack slots back
+         * to the interpreter if the garbage collector needs them.
+         */
+        private void spill(int d) {
+            if (!spill) {
+                return;
+            }
+            for (int i = 0; i < m.nLocals; i++) {
+                w.aload(LOCAL);
+                w.iload(FP);
+                w.iconst(i);
+                w.op(IADD);
+                w.iload(var(i));
+                w.op(IASTORE);
+            }
+            for (int i = 0; i < d; i++) {
+                w.aload(STACK);
+                w.iload(BASE);
+                w.iconst(i);
+                w.op(IADD);
+                w.iload(slot(i));
+                w.op(IASTORE);
+            }
+            if (d >= 0) {
+                w.aload(ARG_VM);
+                w.iload(BASE);
+                w.iconst(d);
+                w.op(IADD);
+                vmField(PUTFIELD, "esp", "I");
+            }
+        }
+
+        private void reloadHeap() {
+            w.aload(ARG_VM);
+            vmField(GETFIELD, "heap", "[I");
+            w.astore(HEAP);
+        }
+
+        /**
+         * Deoptimizes unless the reference in slot i is not null.
+         */
+        private void nullCheck(int i, int pc, int d) {
+            w.iload(slot(i));
+            deoptIf(IFEQ, pc, d);
+        }
+
+        /**
+         * Deoptimizes unless index slot i + 1 is within the array in slot i.
+         */
+        private void boundsCheck(int i, int pc, int d) {
+            nullCheck(i, pc, d);
+            w.iload(slot(i + 1));
+            deoptIf(IFLT, pc, d);
+            w.iload(slot(i + 1));
+            w.aload(HEAP);
+            w.iload(slot(i));
+            w.iconst(1);
+            w.op(ISUB);
+            w.op(IALOAD);
+            deoptIf(IF_ICMPGE, pc, d);
+        }
+
+        private void binary(int opcode, int d) {
+            w.iload(slot(d - 2));
+            w.iload(slot(d - 1));
+            w.op(opcode);
+            w.istore(slot(d - 2));
+        }
+
+        void run() {
+            prologue();
+            int last = m.entry + 3; // pc behind the previous instruction if it falls through
+            for (int pc = 0; pc < code.length; pc++) {
+                if (analysis.owner[pc] != m.id) {
+                    continue;
+                }
+                if (last >= 0 && last != pc) {
+                    w.jump(GOTO, label(last));
+                }
+                w.place(label(pc));
+                last = instruction(pc, analysis.depth[pc]);
+            }
+            if (last >= 0) {
+                w.jump(GOTO, label(last));
+            }
+            for (int i = 0; i < nStubs; i += 3) {
+                w.place(stubs[i]);
+                w.iconst(stubs[i + 1]);
+                w.istore(DEOPT_PC);
+                w.iconst(stubs[i + 2]);
+                w.istore(DEOPT_DEPTH);
+                w.jump(GOTO, deopt);
+            }
+            deoptimize();
+        }
+
+        private void prologue() {
+            w.aload(ARG_VM);
+            vmField(GETFIELD, "local", "[I");
+            w.astore(LOCAL);
+            w.aload(ARG_VM);
+            vmField(GETFIELD, "stack", "[I");
+            w.astore(STACK);
+            w.aload(ARG_VM);
+            vmField(GETFIELD, "data", "[I");
+            w.astore(DATA);
+            reloadHeap();
+            for (int i = 0; i < m.maxStack; i++) {
+                w.iconst(0);
+                w.istore(slot(i));
+            }
+            w.iconst(0);
+            w.istore(T1);
+            w.iconst(0);
+            w.istore(T2);
+            int[] headers = headers();
+            int osr = w.newLabel();
+            if (headers.length > 0) {
+                w.iload(ARG_AT);
+                w.jump(IFGE, osr);
+            }
+            // frame = vm.sp; local[frame] = sentinel; local[frame + 1] = oldFp = vm.fp
+            w.aload(ARG_VM);
+            vmField(GETFIELD, "sp", "I");
+            w.istore(FRAME);
+            w.aload(ARG_VM);
+            vmField(GETFIELD, "fp", "I");
+            w.istore(OLD_FP);
+            w.aload(LOCAL);
+            w.iload(FRAME);
+            w.iconst(sentinel());
+            w.op(IASTORE);
+            w.aload(LOCAL);
+            w.iload(FRAME);
+            w.iconst(1);
+            w.op(IADD);
+            w.iload(OLD_FP);
+            w.op(IASTORE);
+            // fp = vm.fp = frame + 2; vm.sp = fp + nLocals
+            w.iload(FRAME);
+            w.iconst(2);
+            w.op(IADD);
+            w.istore(FP);
+            w.aload(ARG_VM);
+            w.iload(FP);
+            vmField(PUTFIELD, "fp", "I");
+            w.aload(ARG_VM);
+            w.iload(FP);
+            w.iconst(m.nLocals);
+            w.op(IADD);
+            vmField(PUTFIELD, "sp", "I");
+            // base = vm.esp = vm.esp - nPars
+            w.aload(ARG_VM);
+            vmField(GETFIELD, "esp", "I");
+            w.iconst(m.nPars);
+            w.op(ISUB);
+            w.istore(BASE);
+            w.aload(ARG_VM);
+            w.iload(BASE);
+            vmField(PUTFIELD, "esp", "I");
+            for (int i = 0; i < m.nLocals; i++) {
+                if (i < m.nPars) {
+                    w.aload(STACK);
+                    w.iload(BASE);
+                    w.iconst(i);
+                    w.op(IADD);
+                    w.op(IALOAD);
+                } else {
+                    w.iconst(0);
+                }
+                w.istore(var(i));
+            }
+            if (headers.length > 0) {
+                w.jump(GOTO, label(m.entry + 3));
+                w.place(osr);
+                replace(headers);
+            }
+        }
+
+        /**
+         * Loop headers of the method, the targets of its backward jumps.
+         */
+        private int[] headers() {
+            int[] headers = new int[8];
+            int n = 0;
+            for (int pc = 0; pc < code.length; pc++) {
+                if (analysis.owner[pc] == m.id && code[pc] >= ThreadedCode.JMP && code[pc] <= ThreadedCode.JGE
+                        && analysis.target(pc) <= pc) {
+                    int h = analysis.target(pc);
+                    if (Arrays.stream(headers, 0, n).noneMatch(x -> x == h)) {
+                        if (n == headers.length) {
+                            headers = Arrays.copyOf(headers, n * 2);
+                        }
+                        headers[n++] = h;
+                    }
+                }
+            }
+            return Arrays.copyOf(headers, n);
+        }
+
+        /**
+         * Takes over the frame of the activation that the interpreter is
+         * running and continues at the loop header in ARG_AT. The frame
+         * returns to {@link #sentinel()} then, like a frame of compiled code.
+         */
+        private void replace(int[] headers) {
+            // fp = vm.fp; frame = fp - 2; oldFp = local[frame + 1]; local[frame] = sentinel
+            w.aload(ARG_VM);
+            vmField(GETFIELD, "fp", "I");
+            w.istore(FP);
+            w.iload(FP);
+            w.iconst(2);
+            w.op(ISUB);
+            w.istore(FRAME);
+            w.aload(LOCAL);
+            w.iload(FRAME);
+            w.iconst(1);
+            w.op(IADD);
+            w.op(IALOAD);
+            w.istore(OLD_FP);
+            w.aload(LOCAL);
+            w.iload(FRAME);
+            w.iconst(sentinel());
+            w.op(IASTORE);
+            for (int i = 0; i < m.nLocals; i++) {
+                w.aload(LOCAL);
+                w.iload(FP);
+                w.iconst(i);
+                w.op(IADD);
+                w.op(IALOAD);
+                w.istore(var(i));
+            }
+            for (int k = 0; k < headers.length; k++) {
+                int h = headers[k];
+                int next = w.newLabel();
+                if (k < headers.length - 1) {
+                    w.iload(ARG_AT);
+                    w.iconst(h);
+                    w.jump(IF_ICMPNE, next);
+                }
+                // base = vm.esp = vm.esp - depth; the stack slots are loaded from there
+                w.aload(ARG_VM);
+                vmField(GETFIELD, "esp", "I");
+                w.iconst(analysis.depth[h]);
+                w.op(ISUB);
+                w.istore(BASE);
+                w.aload(ARG_VM);
+                w.iload(BASE);
+                vmField(PUTFIELD, "esp", "I");
+                for (int i = 0; i < analysis.depth[h]; i++) {
+                    w.aload(STACK);
+                    w.iload(BASE);
+                    w.iconst(i);
+                    w.op(IADD);
+                    w.op(IALOAD);
+                    w.istore(slot(i));
+                }
+                w.jump(GOTO, label(h));
+                w.place(next);
+            }
+        }
+
+        /**
+         * Writes the frame and all stack slots back and continues in the
+         * interpreter.
+         */
+        private void deoptimize() {
+            w.place(deopt);
+            for (int i = 0; i < m.nLocals; i++) {
+                w.aload(LOCAL);
+                w.iload(FP);
+                w.iconst(i);
+                w.op(IADD);
+                w.iload(var(i));
+                w.op(IASTORE);
+            }
+            for (int i = 0; i < m.maxStack; i++) {
+                w.aload(STACK);
+                w.iload(BASE);
+                w.iconst(i);
+                w.op(IADD);
+                w.iload(slot(i));
+                w.op(IASTORE);
+            }
+            w.aload(ARG_VM);
+            w.iload(BASE);
+            w.iload(DEOPT_DEPTH);
+            w.op(IADD);
+            vmField(PUTFIELD, "esp", "I");
+            w.aload(ARG_VM);
+            vmField(GETFIELD, "jit", "Lssw/mj/Jit;");
+            w.aload(ARG_VM);
+            w.iload(DEOPT_PC);
+            w.iconst(m.id);
+            w.invoke(INVOKEVIRTUAL, JIT, "resume", "(Lssw/mj/Interpreter;II)I");
+            w.op(IRETURN);
+        }
+
+        /**
+         * Emits the instruction at pc with stack depth d. Returns the pc of the
+         * successor if control falls through, otherwise -1.
+         */
+        private int instruction(int pc, int d) {
+            int op = code[pc];
+            int next = pc + analysis.size(pc);
+            switch (op) {
+                case ThreadedCode.LOAD:
+                    w.iload(var(code[pc + 1]));
+                    w.istore(slot(d));
+                    break;
+                case ThreadedCode.LOAD_0:
+                case ThreadedCode.LOAD_1:
+                case ThreadedCode.LOAD_2:
+                case ThreadedCode.LOAD_3:
+                    w.iload(var(op - ThreadedCode.LOAD_0));
+                    w.istore(slot(d));
+                    break;
+                case ThreadedCode.STORE:
+                    w.iload(slot(d - 1));
+                    w.istore(var(code[pc + 1]));
+                    break;
+                case ThreadedCode.STORE_0:
+                case ThreadedCode.STORE_1:
+                case ThreadedCode.STORE_2:
+                case ThreadedCode.STORE_3:
+                    w.iload(slot(d - 1));
+                    w.istore(var(op - ThreadedCode.STORE_0));
+                    break;
+                case ThreadedCode.GETSTATIC:
+                    w.aload(DATA);
+                    w.iconst(analysis.get2(pc + 1));
+                    w.op(IALOAD);
+                    w.istore(slot(d));
+                    break;
+                case ThreadedCode.PUTSTATIC:
+                    w.aload(DATA);
+                    w.iconst(analysis.get2(pc + 1));
+                    w.iload(slot(d - 1));
+                    w.op(IASTORE);
+                    break;
+                case ThreadedCode.GETFIELD:
+                    nullCheck(d - 1, pc, d);
+                    w.aload(HEAP);
+                    w.iload(slot(d - 1));
+                    w.iconst(analysis.get2(pc + 1));
+                    w.op(IADD);
+                    w.op(IALOAD);
+                    w.istore(slot(d - 1));
+                    break;
+                case ThreadedCode.PUTFIELD:
+                    nullCheck(d - 2, pc, d);
+                    w.aload(HEAP);
+                    w.iload(slot(d - 2));
+                    w.iconst(analysis.get2(pc + 1));
+                    w.op(IADD);
+                    w.iload(slot(d - 1));
+                    w.op(IASTORE);
+                    break;
+                case ThreadedCode.CONST_0:
+                case ThreadedCode.CONST_1:
+                case ThreadedCode.CONST_2:
+                case ThreadedCode.CONST_3:
+                case ThreadedCode.CONST_4:
+                case ThreadedCode.CONST_5:
+                    w.iconst(op - ThreadedCode.CONST_0);
+                    w.istore(slot(d));
+                    break;
+                case ThreadedCode.CONST_M1:
+                    w.iconst(-1);
+                    w.istore(slot(d));
+                    break;
+                case ThreadedCode.CONST:
+                    w.iconst((analysis.get2(pc + 1) << 16) + (analysis.get2(pc + 3) & 0xffff));
+                    w.istore(slot(d));
+                    break;
+                case ThreadedCode.ADD:
+                    binary(IADD, d);
+                    break;
+                case ThreadedCode.SUB:
+                    binary(ISUB, d);
+                    break;
+                case ThreadedCode.MUL:
+                    binary(IMUL, d);
+                    break;
+                case ThreadedCode.DIV:
+                case ThreadedCode.REM:
+                    w.iload(slot(d - 1));
+                    deoptIf(IFEQ, pc, d);
+                    binary(op == ThreadedCode.DIV ? IDIV : IREM, d);
+                    break;
+                case ThreadedCode.NEG:
+                    w.iload(slot(d - 1));
+                    w.op(INEG);
+                    w.istore(slot(d - 1));
+                    break;
+                case ThreadedCode.SHL:
+                    binary(ISHL, d);
+                    break;
+                case ThreadedCode.SHR:
+                    binary(ISHR, d);
+                    break;
+                case ThreadedCode.INC:
+                    w.iinc(var(code[pc + 1]), code[pc + 2]);
+                    break;
+                case ThreadedCode.NEW:
+                    spill(d);
+                    w.aload(ARG_VM);
+                    w.iconst(analysis.get2(pc + 1));
+                    w.invoke(INVOKEVIRTUAL, VM, "newObject", "(I)I");
+                    w.istore(slot(d));
+                    reloadHeap();
+                    break;
+                case ThreadedCode.NEWARRAY:
+                    spill(d);
+                    w.aload(ARG_VM);
+                    w.iload(slot(d - 1));
+                    w.iconst(code[pc + 1]);
+                    w.invoke(INVOKEVIRTUAL, VM, "newArray", "(II)I");
+                    w.istore(slot(d - 1));
+                    reloadHeap();
+                    break;
+                case ThreadedCode.ALOAD:
+                    boundsCheck(d - 2, pc, d);
+                    w.aload(HEAP);
+                    w.iload(slot(d - 2));
+                    w.iload(slot(d - 1));
+                    w.op(IADD);
+                    w.op(IALOAD);
+                    w.istore(slot(d - 2));
+                    break;
+                case ThreadedCode.ASTORE:
+                    boundsCheck(d - 3, pc, d);
+                    w.aload(HEAP);
+                    w.iload(slot(d - 3));
+                    w.iload(slot(d - 2));
+                    w.op(IADD);
+                    w.iload(slot(d - 1));
+                    w.op(IASTORE);
+                    break;
+                case ThreadedCode.BALOAD:
+                    // (byte) (heap[adr + idx / 4] << (8 * (idx % 4)) >>> 24)
+                    boundsCheck(d - 2, pc, d);
+                    w.aload(HEAP);
+                    w.iload(slot(d - 2));
+                    w.iload(slot(d - 1));
+                    w.iconst(2);
+                    w.op(ISHR);
+                    w.op(IADD);
+                    w.op(IALOAD);
+                    w.iload(slot(d - 1));
+                    w.iconst(3);
+                    w.op(IAND);
+                    w.iconst(3);
+                    w.op(ISHL);
+                    w.op(ISHL);
+                    w.iconst(24);
+                    w.op(IUSHR);
+                    w.op(I2B);
+                    w.istore(slot(d - 2));
+                    break;
+                case ThreadedCode.BASTORE:
+                    // shift = (3 - idx % 4) * 8; a = adr + idx / 4
+                    // heap[a] = (heap[a] & ~(255 << shift)) ^ ((val & 255) << shift)
+                    boundsCheck(d - 3, pc, d);
+                    w.iconst(3);
+                    w.iload(slot(d - 2));
+                    w.iconst(3);
+                    w.op(IAND);
+                    w.op(ISUB);
+                    w.iconst(3);
+                    w.op(ISHL);
+                    w.istore(T1);
+                    w.iload(slot(d - 3));
+                    w.iload(slot(d - 2));
+                    w.iconst(2);
+                    w.op(ISHR);
+                    w.op(IADD);
+                    w.istore(T2);
+                    w.aload(HEAP);
+                    w.iload(T2);
+                    w.aload(HEAP);
+                    w.iload(T2);
+                    w.op(IALOAD);
+                    w.iconst(255);
+                    w.iload(T1);
+                    w.op(ISHL);
+                    w.iconst(-1);
+                    w.op(IXOR);
+                    w.op(IAND);
+                    w.iload(slot(d - 1));
+                    w.iconst(255);
+                    w.op(IAND);
+                    w.iload(T1);
+                    w.op(ISHL);
+                    w.op(IXOR);
+                    w.op(IASTORE);
+                    break;
+                case ThreadedCode.ARRAYLENGTH:
+                    nullCheck(d - 1, pc, d);
+                    w.aload(HEAP);
+                    w.iload(slot(d - 1));
+                    w.iconst(1);
+                    w.op(ISUB);
+                    w.op(IALOAD);
+                    w.istore(slot(d - 1));
+                    break;
+                case ThreadedCode.POP:
+                    break;
+                case ThreadedCode.DUP:
+                    w.iload(slot(d - 1));
+                    w.istore(slot(d));
+                    break;
+                case ThreadedCode.DUP2:
+                    w.iload(slot(d - 2));
+                    w.istore(slot(d));
+                    w.iload(slot(d - 1));
+                    w.istore(slot(d + 1));
+                    break;
+                case ThreadedCode.JMP:
+                    step(pc);
+                    w.jump(GOTO, label(analysis.target(pc)));
+                    return -1;
+                case ThreadedCode.JEQ:
+                case ThreadedCode.JNE:
+                case ThreadedCode.JLT:
+                case ThreadedCode.JLE:
+                case ThreadedCode.JGT:
+                case ThreadedCode.JGE:
+                    step(pc);
+                    w.iload(slot(d - 2));
+                    w.iload(slot(d - 1));
+                    w.jump(COMPARE[op - ThreadedCode.JEQ], label(analysis.target(pc)));
+                    break;
+                case ThreadedCode.CALL:
+                    return call(pc, d, next);
+                case ThreadedCode.EXIT:
+                    w.aload(ARG_VM);
+                    w.iload(FRAME);
+                    vmField(PUTFIELD, "sp", "I");
+                    w.aload(ARG_VM);
+                    w.iload(OLD_FP);
+                    vmField(PUTFIELD, "fp", "I");
+                    w.aload(ARG_VM);
+                    w.iload(BASE);
+                    vmField(PUTFIELD, "esp", "I");
+                    if (m.results > 0) {
+                        w.iload(slot(0));
+                    } else {
+                        w.iconst(0);
+                    }
+                    w.op(IRETURN);
+                    return -1;
+                case ThreadedCode.RETURN: // after exit, never reached
+                    return -1;
+                case ThreadedCode.READ:
+                    w.aload(ARG_VM);
+                    w.invoke(INVOKEVIRTUAL, VM, "readInt", "()I");
+                    w.istore(slot(d));
+                    break;
+                case ThreadedCode.BREAD:
+                    w.aload(ARG_VM);
+                    vmField(GETFIELD, "io", "L" + IO + ";");
+                    w.invoke(INVOKEINTERFACE, IO, "read", "()C");
+                    w.istore(slot(d));
+                    break;
+                case ThreadedCode.PRINT:
+                case ThreadedCode.BPRINT:
+                    w.aload(ARG_VM);
+                    w.iload(slot(d - 2));
+                    w.iload(slot(d - 1));
+                    w.invoke(INVOKEVIRTUAL, VM, op == ThreadedCode.PRINT ? "print" : "bprint", "(II)V");
+                    break;
+                case ThreadedCode.TRAP:
+                    w.jump(GOTO, stub(pc, d));
+                    return -1;
+                case ThreadedCode.NOP:
+                    break;
+                default:
+                    throw new IllegalStateException("cannot translate opcode " + op);
+            }
+            return next;
+        }
+
+        /**
+         * Counts a step of the run before the jump at pc if it goes backward.
+         * Compiled code does not suspend, see {@link Interpreter#step}.
+         */
+        private void step(int pc) {
+            if (analysis.target(pc) <= pc) {
+                w.aload(ARG_VM);
+                w.invoke(INVOKEVIRTUAL, VM, "step", "()V");
+            }
+        }
+
+        /**
+         * Returns the label of a stub that continues in the interpreter at pc.
+         */
+        private int stub(int pc, int d) {
+            int label = w.newLabel();
+            if (nStubs + 3 > stubs.length) {
+                stubs = Arrays.copyOf(stubs, stubs.length * 2);
+            }
+            stubs[nStubs++] = label;
+            stubs[nStubs++] = pc;
+            stubs[nStubs++] = d;
+            return label;
+        }
+
+        /**
+         * Spills the expression stack, calls the method through
+         * {@link Jit#call} and stores its result.
+         */
+        private int call(int pc, int d, int next) {
+            CodeAnalysis.MethodInfo callee = analysis.methodAt(analysis.target(pc));
+            if (callee.results > 1) {
+                throw new IllegalStateException("cannot translate call at " + pc);
+            }
+            for (int i = 0; i < d; i++) {
+                w.aload(STACK);
+                w.iload(BASE);
+                w.iconst(i);
+                w.op(IADD);
+                w.iload(slot(i));
+                w.op(IASTORE);
+            }
+            w.aload(ARG_VM);
+            w.iload(BASE);
+            w.iconst(d);
+            w.op(IADD);
+            vmField(PUTFIELD, "esp", "I");
+            spill(-1);
+            w.aload(ARG_VM);
+            vmField(GETFIELD, "jit", "Lssw/mj/Jit;");
+            w.aload(ARG_VM);
+            w.iconst(callee.id);
+            w.invoke(INVOKEVIRTUAL, JIT, "call", "(Lssw/mj/Interpreter;I)I");
+            if (callee.results < 0) { // does not return
+                w.op(POP);
+                w.op(ACONST_NULL);
+                w.op(ATHROW);
+                return -1;
+            }
+            if (callee.results > 0) {
+                w.istore(slot(d - callee.nPars));
+            } else {
+                w.op(POP);
+            }
+            // the callee may have grown the stacks and the heap
+            w.aload(ARG_VM);
+            vmField(GETFIELD, "local", "[I");
+            w.astore(LOCAL);
+            w.aload(ARG_VM);
+            vmField(GETFIELD, "stack", "[I");
+            w.astore(STACK);
+            reloadHeap();
+            return next;
+        }
+    }
+}
@@ -0,0 +1,838 @@
+package ssw.mj;
+
+import ssw.mj.symtab.Obj;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static ssw.mj.ClassFileWriter.*;
+
+/**
+ * Translates a compiled MicroJava program into a stand-alone JVM class.
+ * <p>
+ * Global variables become static int fields and methods become static
+ * methods with the names from the source program; the JVM method
+ * <code>main(String[])</code> runs the MicroJava main method. Objects and
+ * arrays stay in an int array heap with the same layout as in the
+ * {@link Interpreter}, and the method and expression stack sizes of the
+ * interpreter are checked, so output and runtime errors are the same as
+ * with {@link Run}. The generated class only depends on the Java platform.
+ * <p>
+ * The class is translated from the MicroJava byte code after parsing rather
+ * than generated by the semantic actions of the parser: the parser keeps a
+ * single code generator, object files can be translated as well, and the
+ * {@link CodeAnalysis} provides the stack depths the JVM needs. Objects are
+ * not mapped to JVM classes, since MicroJava code addresses fields by offset
+ * and the heap limits and null checks must report the same errors.
+ */
+public final class JvmBackEnd {
+
+    private static final String OUT = "$out", HEAP = "$heap", FREE = "$free", SP = "$sp", ESP = "$esp";
+    private static final String PRINT_STREAM = "java/io/PrintStream";
+    private static final String ISE = "java/lang/IllegalStateException";
+
+    private final byte[] code;
+    private final int mainPC;
+    private final String className;
+    private final Map<Integer, String> methodNames = new HashMap<>();
+    private final String[] globalNames;
+    private CodeAnalysis analysis;
+    private ClassFileWriter cw;
+
+    /**
+     * Creates a back end for a program that has been parsed without errors.
+     */
+    public JvmBackEnd(Parser parser) {
+        this(findProgram(parser), Arrays.copyOf(parser.code.buf, parser.code.pc), parser.code.mainpc,
+                parser.code.dataSize);
+    }
+
+    /**
+     * Creates a back end for the code of an object file. Methods and global
+     * variables are named after their addresses unless prog is given.
+     */
+    JvmBackEnd(Obj prog, byte[] code, int mainPC, int dataSize) {
+        this.code = code;
+        this.mainPC = mainPC;
+        className = prog != null ? prog.name : "Program";
+        globalNames = new String[dataSize];
+        if (prog != null) {
+            for (Obj o : prog.locals) {
+                if (o.kind == Obj.Kind.Meth) {
+                    methodNames.put(o.adr, o.name);
+                } else if (o.kind == Obj.Kind.Var && o.adr >= 0 && o.adr < globalNames.length) {
+                    globalNames[o.adr] = o.name;
+                }
+            }
+        }
+        for (int i = 0; i < globalNames.length; i++) {
+            if (globalNames[i] == null) {
+                globalNames[i] = "$g" + i;
+            }
+        }
+    }
+
+    private static Obj findProgram(Parser parser) {
+        for (Obj o : parser.tab.curScope.locals()) {
+            if (o.kind == Obj.Kind.Prog) {
+                return o;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Name of the generated class, i.e. the name of the program.
+     */
+    public String className() {
+        return className;
+    }
+
+    /**
+     * Returns the class file. Throws an IllegalStateException if the code
+     * cannot be translated, e.g. because a method leaves the expression stack
+     * in an inconsistent state.
+     */
+    public byte[] generate() {
+        analysis = CodeAnalysis.analyze(code, mainPC);
+        for (CodeAnalysis.MethodInfo m : analysis.methods) {
+            if (m.error != null) {
+                throw new IllegalStateException(m.error);
+            }
+            if (m.results > 1) {
+                throw new IllegalStateException("method at " + m.entry + " returns " + m.results + " values");
+            }
+        }
+        cw = new ClassFileWriter(ACC_PUBLIC | ACC_FINAL | ACC_SUPER, className, "java/lang/Object");
+        cw.field(ACC_STATIC | ACC_FINAL, OUT, "Ljava/io/PrintStream;");
+        cw.field(ACC_STATIC | ACC_FINAL, HEAP, "[I");
+        cw.field(ACC_STATIC, FREE, "I");
+        cw.field(ACC_STATIC, SP, "I");
+        cw.field(ACC_STATIC, ESP, "I");
+        for (String name : globalNames) {
+            cw.field(ACC_STATIC, name, "I");
+        }
+        classInitializer();
+        main();
+        alloc();
+        read();
+        readInt();
+        spaces();
+        print();
+        bprint();
+        for (CodeAnalysis.MethodInfo m : analysis.methods) {
+            new Translator(m).run();
+        }
+        return cw.toByteArray();
+    }
+
+    private String name(CodeAnalysis.MethodInfo m) {
+        String name = methodNames.get(m.entry);
+        return name != null ? name : "$m" + m.entry;
+    }
+
+    private static String descriptor(CodeAnalysis.MethodInfo m) {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < m.nPars; i++) {
+            sb.append('I');
+        }
+        return sb.append(m.results > 0 ? ")I" : ")V").toString();
+    }
+
+    /**
+     * Throws an IllegalStateException like the interpreter.
+     */
+    private void error(ClassFileWriter.MethodWriter w, String msg) {
+        w.type(NEW, ISE);
+        w.op(DUP);
+        w.ldc(cw.string(msg));
+        w.invoke(INVOKESPECIAL, ISE, "<init>", "(Ljava/lang/String;)V");
+        w.op(ATHROW);
+    }
+
+    // ----- runtime support
+
+    private void classInitializer() {
+        ClassFileWriter.MethodWriter w = cw.method(ACC_STATIC, "<clinit>", "()V");
+        w.type(NEW, PRINT_STREAM);
+        w.op(DUP);
+        w.type(NEW, "java/io/BufferedOutputStream");
+        w.op(DUP);
+        w.field(GETSTATIC, "java/lang/System", "out", "Ljava/io/PrintStream;");
+        w.invoke(INVOKESPECIAL, "java/io/BufferedOutputStream", "<init>", "(Ljava/io/OutputStream;)V");
+        w.iconst(0);
+        w.invoke(INVOKESPECIAL, PRINT_STREAM, "<init>", "(Ljava/io/OutputStream;Z)V");
+        w.field(PUTSTATIC, className, OUT, "Ljava/io/PrintStream;");
+        w.iconst(Interpreter.heapSize);
+        w.newarray(T_INT);
+        w.field(PUTSTATIC, className, HEAP, "[I");
+        w.iconst(1); // no block should start at address 0
+        w.field(PUTSTATIC, className, FREE, "I");
+        w.iconst(-1); // main does not push a return address
+        w.field(PUTSTATIC, className, SP, "I");
+        w.op(RETURN);
+        w.end(6, 0);
+    }
+
+    /**
+     * Runs the MicroJava main method and reports the time like {@link Run}.
+     */
+    private void main() {
+        ClassFileWriter.MethodWriter w = cw.method(ACC_PUBLIC | ACC_STATIC, "main", "([Ljava/lang/String;)V");
+        int start = w.newLabel(), end = w.newLabel(), handler = w.newLabel();
+        w.invoke(INVOKESTATIC, "java/lang/System", "currentTimeMillis", "()J");
+        w.lstore(1);
+        w.place(start);
+        w.invoke(INVOKESTATIC, className, name(analysis.methods.get(0)), descriptor(analysis.methods.get(0)));
+        w.place(end);
+        w.field(GETSTATIC, className, OUT, "Ljava/io/PrintStream;");
+        w.type(NEW, "java/lang/StringBuilder");
+        w.op(DUP);
+        w.invoke(INVOKESPECIAL, "java/lang/StringBuilder", "<init>", "()V");
+        w.ldc(cw.string("\nCompletion took "));
+        w.invoke(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;");
+        w.invoke(INVOKESTATIC, "java/lang/System", "currentTimeMillis", "()J");
+        w.lload(1);
+        w.op(LSUB);
+        w.invoke(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(J)Ljava/lang/StringBuilder;");
+        w.ldc(cw.string(" ms"));
+        w.invoke(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;");
+        w.invoke(INVOKEVIRTUAL, "java/lang/StringBuilder", "toString", "()Ljava/lang/String;");
+        w.invoke(INVOKEVIRTUAL, PRINT_STREAM, "print", "(Ljava/lang/String;)V");
+        w.field(GETSTATIC, className, OUT, "Ljava/io/PrintStream;");
+        w.invoke(INVOKEVIRTUAL, PRINT_STREAM, "flush", "()V");
+        w.op(RETURN);
+        // flush the output before a runtime error is reported
+        w.place(handler);
+        w.astore(3);
+        w.field(GETSTATIC, className, OUT, "Ljava/io/PrintStream;");
+        w.invoke(INVOKEVIRTUAL, PRINT_STREAM, "flush", "()V");
+        w.aload(3);
+        w.op(ATHROW);
+        w.handler(start, end, handler, null);
+        w.end(8, 4);
+    }
+
+    /**
+     * <code>int $alloc(int size)</code>, see {@link Interpreter#alloc(int)}.
+     */
+    private void alloc() {
+        ClassFileWriter.MethodWriter w = cw.method(ACC_STATIC, "$alloc", "(I)I");
+        int ok = w.newLabel();
+        w.field(GETSTATIC, className, FREE, "I");
+        w.istore(1);
+        w.iload(1);
+        w.iload(0);
+        w.iconst(3);
+        w.op(IADD);
+        w.iconst(2);
+        w.op(ISHR);
+        w.op(IADD);
+        w.op(DUP);
+        w.field(PUTSTATIC, className, FREE, "I");
+        w.iconst(Interpreter.heapSize);
+        w.jump(IF_ICMPLE, ok);
+        error(w, "heap overflow");
+        w.place(ok);
+        w.iload(1);
+        w.op(IRETURN);
+        w.end(4, 2);
+    }
+
+    /**
+     * <code>char $read()</code>, see {@link Interpreter#ConsoleIO}.
+     */
+    private void read() {
+        ClassFileWriter.MethodWriter w = cw.method(ACC_STATIC, "$read", "()C");
+        int start = w.newLabel(), end = w.newLabel(), handler = w.newLabel(), eof = w.newLabel();
+        w.place(start);
+        w.field(GETSTATIC, "java/lang/System", "in", "Ljava/io/InputStream;");
+        w.invoke(INVOKEVIRTUAL, "java/io/InputStream", "read", "()I");
+        w.place(end);
+        w.istore(0);
+        w.iload(0);
+        w.jump(IFLT, eof);
+        w.iload(0);
+        w.op(I2C);
+        w.op(IRETURN);
+        w.place(eof);
+        w.iconst(0);
+        w.op(IRETURN);
+        w.place(handler);
+        w.op(POP);
+        w.iconst(0);
+        w.op(IRETURN);
+        w.handler(start, end, handler, "java/io/IOException");
+        w.end(2, 1);
+    }
+
+    /**
+     * <code>int $readInt()</code>, see {@link Interpreter#readInt()}.
+     */
+    private void readInt() {
+        ClassFileWriter.MethodWriter w = cw.method(ACC_STATIC, "$readInt", "()I");
+        final int val = 0, prev = 1, b = 2;
+        int skip = w.newLabel(), digits = w.newLabel(), other = w.newLabel(), done = w.newLabel(),
+                positive = w.newLabel();
+        w.iconst(0);
+        w.istore(val);
+        w.iconst(' ');
+        w.istore(prev);
+        w.invoke(INVOKESTATIC, className, "$read", "()C");
+        w.istore(b);
+        // skip everything up to the first digit
+        w.place(skip);
+        w.iload(b);
+        w.iconst('0');
+        w.jump(IF_ICMPLT, other);
+        w.iload(b);
+        w.iconst('9');
+        w.jump(IF_ICMPLE, digits);
+        w.place(other);
+        w.iload(b);
+        w.istore(prev);
+        w.invoke(INVOKESTATIC, className, "$read", "()C");
+        w.istore(b);
+        w.jump(GOTO, skip);
+        w.place(digits);
+        w.iload(b);
+        w.iconst('0');
+        w.jump(IF_ICMPLT, done);
+        w.iload(b);
+        w.iconst('9');
+        w.jump(IF_ICMPGT, done);
+        w.iload(val);
+        w.iconst(10);
+        w.op(IMUL);
+        w.iload(b);
+        w.op(IADD);
+        w.iconst('0');
+        w.op(ISUB);
+        w.istore(val);
+        w.invoke(INVOKESTATIC, className, "$read", "()C");
+        w.istore(b);
+        w.jump(GOTO, digits);
+        w.place(done);
+        w.iload(prev);
+        w.iconst('-');
+        w.jump(IF_ICMPNE, positive);
+        w.iload(val);
+        w.op(INEG);
+        w.op(IRETURN);
+        w.place(positive);
+        w.iload(val);
+        w.op(IRETURN);
+        w.end(2, 3);
+    }
+
+    /**
+     * <code>void $spaces(int n)</code> writes n blanks.
+     */
+    private void spaces() {
+        ClassFileWriter.MethodWriter w = cw.method(ACC_STATIC, "$spaces", "(I)V");
+        int loop = w.newLabel(), done = w.newLabel();
+        w.place(loop);
+        w.iload(0);
+        w.jump(IFLE, done);
+        w.field(GETSTATIC, className, OUT, "Ljava/io/PrintStream;");
+        w.iconst(' ');
+        w.invoke(INVOKEVIRTUAL, PRINT_STREAM, "print", "(C)V");
+        w.iinc(0, -1);
+        w.jump(GOTO, loop);
+        w.place(done);
+        w.op(RETURN);
+        w.end(2, 1);
+    }
+
+    /**
+     * <code>void $print(int val, int width)</code>, see
+     * {@link Interpreter#print(int, int)}.
+     */
+    private void print() {
+        ClassFileWriter.MethodWriter w = cw.method(ACC_STATIC, "$print", "(II)V");
+        w.iload(0);
+        w.invoke(INVOKESTATIC, "java/lang/Integer", "toString", "(I)Ljava/lang/String;");
+        w.astore(2);
+        w.iload(1);
+        w.aload(2);
+        w.invoke(INVOKEVIRTUAL, "java/lang/String", "length", "()I");
+        w.op(ISUB);
+        w.invoke(INVOKESTATIC, className, "$spaces", "(I)V");
+        w.field(GETSTATIC, className, OUT, "Ljava/io/PrintStream;");
+        w.aload(2);
+        w.invoke(INVOKEVIRTUAL, PRINT_STREAM, "print", "(Ljava/lang/String;)V");
+        w.op(RETURN);
+        w.end(2, 3);
+    }
+
+    /**
+     * <code>void $bprint(int val, int width)</code>, see
+     * {@link Interpreter#bprint(int, int)}.
+     */
+    private void bprint() {
+        ClassFileWriter.MethodWriter w = cw.method(ACC_STATIC, "$bprint", "(II)V");
+        w.iload(1);
+        w.iconst(1);
+        w.op(ISUB);
+        w.invoke(INVOKESTATIC, className, "$spaces", "(I)V");
+        w.field(GETSTATIC, className, OUT, "Ljava/io/PrintStream;");
+        w.iload(0);
+        w.op(I2C);
+        w.invoke(INVOKEVIRTUAL, PRINT_STREAM, "print", "(C)V");
+        w.op(RETURN);
+        w.end(2, 2);
+    }
+
+    // ----- translation of methods
+
+    /**
+     * Translation of one method. MicroJava local i is JVM local i, expression
+     * stack slot i is JVM local <code>nLocals + 3 + i</code>.
+     */
+    private final class Translator {
+        private final CodeAnalysis.MethodInfo m;
+        private final ClassFileWriter.MethodWriter w;
+        private final byte[] code;
+        private final int base, t1, t2, slots;
+        private final int[] labels;
+        private final int overflow, nullReference, outOfBounds, divisionByZero;
+        private boolean usesOverflow, usesNull, usesBounds, usesDivision;
+
+        Translator(CodeAnalysis.MethodInfo m) {
+            this.m = m;
+            code = analysis.code;
+            w = cw.method(ACC_STATIC, name(m), descriptor(m));
+            base = m.nLocals;
+            t1 = base + 1;
+            t2 = base + 2;
+            slots = base + 3;
+            labels = new int[code.length];
+            Arrays.fill(labels, -1);
+            overflow = w.newLabel();
+            nullReference = w.newLabel();
+            outOfBounds = w.newLabel();
+            divisionByZero = w.newLabel();
+        }
+
+        private int slot(int i) {
+            return slots + i;
+        }
+
+        private int label(int pc) {
+            if (labels[pc] < 0) {
+                labels[pc] = w.newLabel();
+            }
+            return labels[pc];
+        }
+
+        /**
+         * Frame size on the method stack: return address, old frame pointer
+         * and locals.
+         */
+        private int frameSize() {
+            return 2 + m.nLocals;
+        }
+
+        void run() {
+            // enter: reserve the frame on the method stack
+            int ok = w.newLabel();
+            w.field(GETSTATIC, className, SP, "I");
+            w.iconst(frameSize());
+            w.op(IADD);
+            w.op(DUP);
+            w.field(PUTSTATIC, className, SP, "I");
+            w.iconst(Interpreter.mStackSize);
+            w.jump(IF_ICMPLE, ok);
+            error(w, "method stack overflow");
+            w.place(ok);
+            w.field(GETSTATIC, className, ESP, "I");
+            w.istore(base);
+            for (int i = m.nPars; i < m.nLocals; i++) {
+                w.iconst(0);
+                w.istore(i);
+            }
+
+            int last = m.entry + 3; // pc behind the previous instruction if it falls through
+            for (int pc = 0; pc < code.length; pc++) {
+                if (analysis.owner[pc] != m.id) {
+                    continue;
+                }
+                if (last >= 0 && last != pc) {
+                    w.jump(GOTO, label(last));
+                }
+                w.place(label(pc));
+                last = instruction(pc, analysis.depth[pc]);
+            }
+            if (last >= 0) {
+                w.jump(GOTO, label(last));
+            }
+            if (usesOverflow) {
+                w.place(overflow);
+                error(w, "expression stack overflow");
+            }
+            if (usesNull) {
+                w.place(nullReference);
+                error(w, "null reference used");
+            }
+            if (usesBounds) {
+                w.place(outOfBounds);
+                error(w, "index out of bounds");
+            }
+            if (usesDivision) {
+                w.place(divisionByZero);
+                error(w, "division by zero");
+            }
+            w.end(10, slots + m.maxStack);
+        }
+
+        /**
+         * Checks that the expression stack of the interpreter would hold
+         * depth values.
+         */
+        private void push(int depth) {
+            w.iload(base);
+            w.iconst(Interpreter.eStackSize - depth);
+            w.jump(IF_ICMPGT, overflow);
+            usesOverflow = true;
+        }
+
+        private void nullCheck(int i) {
+            w.iload(slot(i));
+            w.jump(IFEQ, nullReference);
+            usesNull = true;
+        }
+
+        private void boundsCheck(int i) {
+            nullCheck(i);
+            w.iload(slot(i + 1));
+            w.jump(IFLT, outOfBounds);
+            w.iload(slot(i + 1));
+            heap();
+            w.iload(slot(i));
+            w.iconst(1);
+            w.op(ISUB);
+            w.op(IALOAD);
+            w.jump(IF_ICMPGE, outOfBounds);
+            usesBounds = true;
+        }
+
+        private void heap() {
+            w.field(GETSTATIC, className, HEAP, "[I");
+        }
+
+        private void binary(int opcode, int d) {
+            w.iload(slot(d - 2));
+            w.iload(slot(d - 1));
+            w.op(opcode);
+            w.istore(slot(d - 2));
+        }
+
+        private void constant(int val, int d) {
+            push(d + 1);
+            w.iconst(val);
+            w.istore(slot(d));
+        }
+
+        /**
+         * Emits the instruction at pc with stack depth d. Returns the pc of the
+         * successor if control falls through, otherwise -1.
+         */
+        private int instruction(int pc, int d) {
+            int op = code[pc];
+            int next = pc + analysis.size(pc);
+            switch (op) {
+                case ThreadedCode.LOAD:
+                case ThreadedCode.LOAD_0:
+                case ThreadedCode.LOAD_1:
+                case ThreadedCode.LOAD_2:
+                case ThreadedCode.LOAD_3:
+                    push(d + 1);
+                    w.iload(op == ThreadedCode.LOAD ? code[pc + 1] : op - ThreadedCode.LOAD_0);
+                    w.istore(slot(d));
+                    break;
+                case ThreadedCode.STORE:
+                case ThreadedCode.STORE_0:
+                case ThreadedCode.STORE_1:
+                case ThreadedCode.STORE_2:
+                case ThreadedCode.STORE_3:
+                    w.iload(slot(d - 1));
+                    w.istore(op == ThreadedCode.STORE ? code[pc + 1] : op - ThreadedCode.STORE_0);
+                    break;
+                case ThreadedCode.GETSTATIC:
+                    push(d + 1);
+                    w.field(GETSTATIC, className, globalNames[analysis.get2(pc + 1)], "I");
+                    w.istore(slot(d));
+                    break;
+                case ThreadedCode.PUTSTATIC:
+                    w.iload(slot(d - 1));
+                    w.field(PUTSTATIC, className, globalNames[analysis.get2(pc + 1)], "I");
+                    break;
+                case ThreadedCode.GETFIELD:
+                    nullCheck(d - 1);
+                    heap();
+                    w.iload(slot(d - 1));
+                    w.iconst(analysis.get2(pc + 1));
+                    w.op(IADD);
+                    w.op(IALOAD);
+                    w.istore(slot(d - 1));
+                    break;
+                case ThreadedCode.PUTFIELD:
+                    nullCheck(d - 2);
+                    heap();
+                    w.iload(slot(d - 2));
+                    w.iconst(analysis.get2(pc + 1));
+                    w.op(IADD);
+                    w.iload(slot(d - 1));
+                    w.op(IASTORE);
+                    break;
+                case ThreadedCode.CONST_0:
+                case ThreadedCode.CONST_1:
+                case ThreadedCode.CONST_2:
+                case ThreadedCode.CONST_3:
+                case ThreadedCode.CONST_4:
+                case ThreadedCode.CONST_5:
+                    constant(op - ThreadedCode.CONST_0, d);
+                    break;
+                case ThreadedCode.CONST_M1:
+                    constant(-1, d);
+                    break;
+                case ThreadedCode.CONST:
+                    constant((analysis.get2(pc + 1) << 16) + (analysis.get2(pc + 3) & 0xffff), d);
+                    break;
+                case ThreadedCode.ADD:
+                    binary(IADD, d);
+                    break;
+                case ThreadedCode.SUB:
+                    binary(ISUB, d);
+                    break;
+                case ThreadedCode.MUL:
+                    binary(IMUL, d);
+                    break;
+                case ThreadedCode.DIV:
+                case ThreadedCode.REM:
+                    w.iload(slot(d - 1));
+                    w.jump(IFEQ, divisionByZero);
+                    usesDivision = true;
+                    binary(op == ThreadedCode.DIV ? IDIV : IREM, d);
+                    break;
+                case ThreadedCode.NEG:
+                    w.iload(slot(d - 1));
+                    w.op(INEG);
+                    w.istore(slot(d - 1));
+                    break;
+                case ThreadedCode.SHL:
+                    binary(ISHL, d);
+                    break;
+                case ThreadedCode.SHR:
+                    binary(ISHR, d);
+                    break;
+                case ThreadedCode.INC:
+                    w.iinc(code[pc + 1], code[pc + 2]);
+                    break;
+                case ThreadedCode.NEW:
+                    w.iconst(analysis.get2(pc + 1) * 4);
+                    w.invoke(INVOKESTATIC, className, "$alloc", "(I)I");
+                    w.istore(slot(d));
+                    push(d + 1); // after the allocation, as in the interpreter
+                    break;
+                case ThreadedCode.NEWARRAY:
+                    // heap[adr] = len; adr + 1
+                    w.iload(slot(d - 1));
+                    if (code[pc + 1] == 0) {
+                        w.iconst(4);
+                        w.op(IADD);
+                    } else {
+                        w.iconst(2);
+                        w.op(ISHL);
+                        w.iconst(4);
+                        w.op(IADD);
+                    }
+                    w.invoke(INVOKESTATIC, className, "$alloc", "(I)I");
+                    w.istore(t1);
+                    heap();
+                    w.iload(t1);
+                    w.iload(slot(d - 1));
+                    w.op(IASTORE);
+                    w.iinc(t1, 1);
+                    w.iload(t1);
+                    w.istore(slot(d - 1));
+                    break;
+                case ThreadedCode.ALOAD:
+                    boundsCheck(d - 2);
+                    heap();
+                    w.iload(slot(d - 2));
+                    w.iload(slot(d - 1));
+                    w.op(IADD);
+                    w.op(IALOAD);
+                    w.istore(slot(d - 2));
+                    break;
+                case ThreadedCode.ASTORE:
+                    boundsCheck(d - 3);
+                    heap();
+                    w.iload(slot(d - 3));
+                    w.iload(slot(d - 2));
+                    w.op(IADD);
+                    w.iload(slot(d - 1));
+                    w.op(IASTORE);
+                    break;
+                case ThreadedCode.BALOAD:
+                    // (byte) (heap[adr + idx / 4] << (8 * (idx % 4)) >>> 24)
+                    boundsCheck(d - 2);
+                    heap();
+                    w.iload(slot(d - 2));
+                    w.iload(slot(d - 1));
+                    w.iconst(2);
+                    w.op(ISHR);
+                    w.op(IADD);
+                    w.op(IALOAD);
+                    w.iload(slot(d - 1));
+                    w.iconst(3);
+                    w.op(IAND);
+                    w.iconst(3);
+                    w.op(ISHL);
+                    w.op(ISHL);
+                    w.iconst(24);
+                    w.op(IUSHR);
+                    w.op(I2B);
+                    w.istore(slot(d - 2));
+                    break;
+                case ThreadedCode.BASTORE:
+                    // shift = (3 - idx % 4) * 8; a = adr + idx / 4
+                    // heap[a] = (heap[a] & ~(255 << shift)) ^ ((val & 255) << shift)
+                    boundsCheck(d - 3);
+                    w.iconst(3);
+                    w.iload(slot(d - 2));
+                    w.iconst(3);
+                    w.op(IAND);
+                    w.op(ISUB);
+                    w.iconst(3);
+                    w.op(ISHL);
+                    w.istore(t1);
+                    w.iload(slot(d - 3));
+                    w.iload(slot(d - 2));
+                    w.iconst(2);
+                    w.op(ISHR);
+                    w.op(IADD);
+                    w.istore(t2);
+                    heap();
+                    w.iload(t2);
+                    heap();
+                    w.iload(t2);
+                    w.op(IALOAD);
+                    w.iconst(255);
+                    w.iload(t1);
+                    w.op(ISHL);
+                    w.iconst(-1);
+                    w.op(IXOR);
+                    w.op(IAND);
+                    w.iload(slot(d - 1));
+                    w.iconst(255);
+                    w.op(IAND);
+                    w.iload(t1);
+                    w.op(ISHL);
+                    w.op(IXOR);
+                    w.op(IASTORE);
+                    break;
+                case ThreadedCode.ARRAYLENGTH:
+                    nullCheck(d - 1);
+                    heap();
+                    w.iload(slot(d - 1));
+                    w.iconst(1);
+                    w.op(ISUB);
+                    w.op(IALOAD);
+                    w.istore(slot(d - 1));
+                    break;
+                case ThreadedCode.POP:
+                    break;
+                case ThreadedCode.DUP:
+                    push(d + 1);
+                    w.iload(slot(d - 1));
+                    w.istore(slot(d));
+                    break;
+                case ThreadedCode.DUP2:
+                    push(d + 2);
+                    w.iload(slot(d - 2));
+                    w.istore(slot(d));
+                    w.iload(slot(d - 1));
+                    w.istore(slot(d + 1));
+                    break;
+                case ThreadedCode.JMP:
+                    w.jump(GOTO, label(analysis.target(pc)));
+                    return -1;
+                case ThreadedCode.JEQ:
+                case ThreadedCode.JNE:
+                case ThreadedCode.JLT:
+                case ThreadedCode.JLE:
+                case ThreadedCode.JGT:
+                case ThreadedCode.JGE:
+                    w.iload(slot(d - 2));
+                    w.iload(slot(d - 1));
+                    w.jump(Jit.COMPARE[op - ThreadedCode.JEQ], label(analysis.target(pc)));
+                    break;
+                case ThreadedCode.CALL:
+                    return call(pc, d, next);
+                case ThreadedCode.EXIT:
+                    w.field(GETSTATIC, className, SP, "I");
+                    w.iconst(frameSize());
+                    w.op(ISUB);
+                    w.field(PUTSTATIC, className, SP, "I");
+                    if (m.results > 0) {
+                        w.iload(slot(0));
+                        w.op(IRETURN);
+                    } else {
+                        w.op(RETURN);
+                    }
+                    return -1;
+                case ThreadedCode.RETURN: // after exit, never reached
+                    return -1;
+                case ThreadedCode.READ:
+                    w.invoke(INVOKESTATIC, className, "$readInt", "()I");
+                    w.istore(slot(d));
+                    push(d + 1);
+                    break;
+                case ThreadedCode.BREAD:
+                    w.invoke(INVOKESTATIC, className, "$read", "()C");
+                    w.istore(slot(d));
+                    push(d + 1);
+                    break;
+                case ThreadedCode.PRINT:
+                case ThreadedCode.BPRINT:
+                    w.iload(slot(d - 2));
+                    w.iload(slot(d - 1));
+                    w.invoke(INVOKESTATIC, className, op == ThreadedCode.PRINT ? "$print" : "$bprint", "(II)V");
+                    break;
+                case ThreadedCode.TRAP:
+                    error(w, "trap(" + code[pc + 1] + ")");
+                    return -1;
+                case ThreadedCode.NOP:
+                    break;
+                default:
+                    throw new IllegalStateException("cannot translate opcode " + op + " at " + pc);
+            }
+            return next;
+        }
+
+        private int call(int pc, int d, int next) {
+            CodeAnalysis.MethodInfo callee = analysis.methodAt(analysis.target(pc));
+            // expression stack base of the callee
+            w.iload(base);
+            w.iconst(d - callee.nPars);
+            w.op(IADD);
+            w.field(PUTSTATIC, className, ESP, "I");
+            for (int i = d - callee.nPars; i < d; i++) {
+                w.iload(slot(i));
+            }
+            w.invoke(INVOKESTATIC, className, name(callee), descriptor(callee));
+            if (callee.results < 0) { // does not return
+                w.op(ACONST_NULL);
+                w.op(ATHROW);
+                return -1;
+            }
+            if (callee.results > 0) {
+                w.istore(slot(d - callee.nPars));
+            }
+            return next;
+        }
+    }
+}
@@ -0,0 +1,401 @@
+package ssw.mj;
+
+import ssw.mj.codegen.Code;
+import ssw.mj.symtab.Obj;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Contents of an object file. Two versions of the format are read:
+ * <ul>
+ * <li>Version 1, written by {@link Code#write}: the marker <code>MJ</code>,
+ * the code size, the size of the global data and the start address, followed
+ * by the code.</li>
+ * <li>Version 2, written by {@link #write}: the marker <code>MJ</code>, 0 in
+ * place of the code size, the version, the size of the global data, the start
+ * address and the number of sections, followed by a directory with kind,
+ * flags, offset, stored length, decoded length and CRC-32 of the stored bytes
+ * of every section, and the sections. The sections are the code, the method
+ * table (name, entry address, parameters, locals and maximum expression stack
+ * depth of every method) and the line table (pairs of start address and
+ * source line). Sections can be compressed with {@link Deflater}; sections of
+ * unknown kinds are skipped.</li>
+ * </ul>
+ * The file is memory-mapped and the header is checked in the mapped buffer
+ * before anything is copied. Only the code is decoded when the file is read,
+ * with a single bulk transfer into an array, because all engines index a
+ * <code>byte[]</code>. The method and line tables are decoded and checked
+ * when they are first used.
+ */
+final class ObjectFile {
+
+    static final int HEADER = 14; // bytes of version 1: marker, code size, data size, start pc
+    static final int VERSION = 2;
+
+    // ----- sections of version 2
+    private static final int CODE = 1, METHODS = 2, LINES = 3;
+    private static final int DEFLATED = 1; // flag
+    private static final int HEADER_2 = 22; // bytes: marker, 0, version, data size, start pc, sections
+    private static final int DIRECTORY_ENTRY = 24; // bytes
+
+    /**
+     * Entry of the method table.
+     */
+    static final class Method {
+        final String name;
+        final int entry; // address of the enter instruction
+        final int nPars, nLocals;
+        final int maxStack; // maximum expression stack depth, -1 if unknown
+
+        Method(String name, int entry, int nPars, int nLocals, int maxStack) {
+            this.name = name;
+            this.entry = entry;
+            this.nPars = nPars;
+            this.nLocals = nLocals;
+            this.maxStack = maxStack;
+        }
+    }
+
+    final int version;
+    final byte[] code;
+    final int dataSize;
+    final int startPC;
+
+    private final ByteBuffer file; // version 2, for the sections decoded later
+    private final int methodsAt, linesAt; // directory entries of the tables, -1 if absent
+    private List<Method> methods; // null if not decoded yet
+    private int[] linePC, lineNr; // null if not decoded yet
+
+    private ObjectFile(int version, byte[] code, int dataSize, int startPC, ByteBuffer file, int methodsAt,
+                       int linesAt) {
+        this.version = version;
+        this.code = code;
+        this.dataSize = dataSize;
+        this.startPC = startPC;
+        this.file = file;
+        this.methodsAt = methodsAt;
+        this.linesAt = linesAt;
+    }
+
+    // ----- reading
+
+    /**
+     * Reads and checks the object file.
+     *
+     * @throws FileNotFoundException if the file does not exist
+     * @throws FormatException       if the header or the code is wrong
+     */
+    static ObjectFile read(Path file) throws IOException {
+        ByteBuffer buf;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (ch.size() > Integer.MAX_VALUE) {
+                throw new FormatException("file too large");
+            }
+            buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(file.toString());
+        }
+        return read(buf);
+    }
+
+    /**
+     * Checks the object file in buf, from its position, and decodes the code.
+     */
+    static ObjectFile read(ByteBuffer buf) throws FormatException {
+        buf = buf.slice();
+        if (buf.remaining() < HEADER || buf.get() != 'M' || buf.get() != 'J') {
+            throw new FormatException("wrong marker");
+        }
+        int codeSize = buf.getInt();
+        if (codeSize == 0) {
+            return readSections(buf);
+        }
+        if (codeSize < 0) {
+            throw new FormatException("codeSize <= 0");
+        }
+        int dataSize = buf.getInt();
+        if (dataSize < 0) {
+            throw new FormatException("dataSize < 0");
+        }
+        int startPC = buf.getInt();
+        if (startPC < 0 || startPC >= codeSize) {
+            throw new FormatException("startPC not in code area");
+        }
+        if (buf.remaining() < codeSize) {
+            throw new FormatException("code ends after " + buf.remaining() + " of " + codeSize + " bytes");
+        }
+        byte[] code = new byte[codeSize];
+        buf.get(code);
+        return new ObjectFile(1, code, dataSize, startPC, null, -1, -1);
+    }
+
+    private static ObjectFile readSections(ByteBuffer buf) throws FormatException {
+        if (buf.limit() < HEADER_2) {
+            throw new FormatException("header ends after " + buf.limit() + " bytes");
+        }
+        int version = buf.getInt();
+        if (version != VERSION) {
+            throw new FormatException("unknown version " + version);
+        }
+        int dataSize = buf.getInt();
+        if (dataSize < 0) {
+            throw new FormatException("dataSize < 0");
+        }
+        int startPC = buf.getInt();
+        int nSections = buf.getInt();
+        if (nSections < 0 || (long) nSections * DIRECTORY_ENTRY > buf.remaining()) {
+            throw new FormatException("wrong number of sections");
+        }
+        int codeAt = -1;
+        int methodsAt = -1;
+        int linesAt = -1;
+        for (int i = 0; i < nSections; i++) {
+            int at = buf.position() + i * DIRECTORY_ENTRY;
+            int offset = buf.getInt(at + 8);
+            int length = buf.getInt(at + 12);
+            if (offset < 0 || length < 0 || offset > buf.limit() - length || buf.getInt(at + 16) < 0) {
+                throw new FormatException("section " + i + " not in file");
+            }
+            switch (buf.getInt(at)) {
+                case CODE:
+                    codeAt = at;
+                    break;
+                case METHODS:
+                    methodsAt = at;
+                    break;
+                case LINES:
+                    linesAt = at;
+                    break;
+                default: // written by a later compiler
+            }
+        }
+        if (codeAt < 0) {
+            throw new FormatException("no code section");
+        }
+        byte[] code = section(buf, codeAt);
+        if (code.length == 0) {
+            throw new FormatException("codeSize <= 0");
+        }
+        if (startPC < 0 || startPC >= code.length) {
+            throw new FormatException("startPC not in code area");
+        }
+        return new ObjectFile(VERSION, code, dataSize, startPC, buf, methodsAt, linesAt);
+    }
+
+    /**
+     * Checks and decodes the section with the directory entry at the given
+     * position.
+     */
+    private static byte[] section(ByteBuffer buf, int at) throws FormatException {
+        int flags = buf.getInt(at + 4);
+        byte[] stored = new byte[buf.getInt(at + 12)];
+        buf.get(buf.getInt(at + 8), stored);
+        CRC32 crc = new CRC32();
+        crc.update(stored);
+        if ((int) crc.getValue() != buf.getInt(at + 20)) {
+            throw new FormatException("wrong checksum of section " + (at - HEADER_2) / DIRECTORY_ENTRY);
+        }
+        int size = buf.getInt(at + 16);
+        if ((flags & DEFLATED) == 0) {
+            if (size != stored.length) {
+                throw new FormatException("wrong size of section " + (at - HEADER_2) / DIRECTORY_ENTRY);
+            }
+            return stored;
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored);
+            byte[] data = new byte[size];
+            int n = inflater.inflate(data);
+            if (n != size || !inflater.finished()) {
+                throw new FormatException("wrong size of section " + (at - HEADER_2) / DIRECTORY_ENTRY);
+            }
+            return data;
+        } catch (DataFormatException e) {
+            throw new FormatException("corrupted section " + (at - HEADER_2) / DIRECTORY_ENTRY);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Method table, ordered by entry address. Empty if the file has none.
+     */
+    synchronized List<Method> methods() throws FormatException {
+        if (methods == null) {
+            List<Method> list = new ArrayList<>();
+            if (methodsAt >= 0) {
+                ByteBuffer buf = ByteBuffer.wrap(section(file, methodsAt));
+                try {
+                    int n = buf.getInt();
+                    for (int i = 0; i < n; i++) {
+                        byte[] name = new byte[buf.getShort() & 0xFFFF];
+                        buf.get(name);
+                        list.add(new Method(new String(name, StandardCharsets.UTF_8), buf.getInt(), buf.get(),
+                                buf.get(), buf.getInt()));
+                    }
+                } catch (RuntimeException e) { // BufferUnderflowException or NegativeArraySizeException
+                    throw new FormatException("corrupted method table");
+                }
+            }
+            methods = Collections.unmodifiableList(list);
+        }
+        return methods;
+    }
+
+    /**
+     * Source line of the instruction at pc, -1 if the file has no line table
+     * or pc is before its first entry.
+     */
+    synchronized int line(int pc) throws FormatException {
+        if (linePC == null) {
+            int n = 0;
+            if (linesAt >= 0) {
+                ByteBuffer buf = ByteBuffer.wrap(section(file, linesAt));
+                n = buf.remaining() / 8;
+                linePC = new int[n];
+                lineNr = new int[n];
+                for (int i = 0; i < n; i++) {
+                    linePC[i] = buf.getInt();
+                    lineNr[i] = buf.getInt();
+                }
+            } else {
+                linePC = new int[0];
+                lineNr = new int[0];
+            }
+        }
+        int lo = 0;
+        int hi = linePC.length - 1;
+        int line = -1;
+        while (lo <= hi) { // last entry with linePC <= pc
+            int mid = (lo + hi) >>> 1;
+            if (linePC[mid] <= pc) {
+                line = lineNr[mid];
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return line;
+    }
+
+    // ----- writing
+
+    /**
+     * Writes the code generated by the parser in version 2 of the format, with
+     * the method table from the symbol table and the line table of the code.
+     * If compress is set, the sections are compressed.
+     */
+    static void write(Parser parser, OutputStream os, boolean compress) throws IOException {
+        Code c = parser.code;
+        byte[] code = Arrays.copyOf(c.buf, c.pc);
+        CodeAnalysis analysis = CodeAnalysis.analyze(code, c.mainpc);
+
+        ByteArrayOutputStream methods = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(methods);
+        List<Obj> meths = new ArrayList<>();
+        for (Obj o : parser.tab.curScope.locals()) {
+            if (o.kind == Obj.Kind.Prog) {
+                for (Obj m : o.locals) {
+                    if (m.kind == Obj.Kind.Meth) {
+                        meths.add(m);
+                    }
+                }
+            }
+        }
+        meths.sort((a, b) -> Integer.compare(a.adr, b.adr));
+        out.writeInt(meths.size());
+        for (Obj m : meths) {
+            CodeAnalysis.MethodInfo info = analysis.methodAt(m.adr);
+            byte[] name = m.name.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(name.length);
+            out.write(name);
+            out.writeInt(m.adr);
+            out.writeByte(code[m.adr + 1]); // operands of enter
+            out.writeByte(code[m.adr + 2]);
+            out.writeInt(info != null && info.error == null ? info.maxStack : -1);
+        }
+        out.close();
+
+        ByteArrayOutputStream lines = new ByteArrayOutputStream();
+        out = new DataOutputStream(lines);
+        for (int i = 0; i < c.nLines; i++) {
+            if (c.linePC[i] < c.pc) {
+                out.writeInt(c.linePC[i]);
+                out.writeInt(c.lineNr[i]);
+            }
+        }
+        out.close();
+
+        write(os, c.dataSize, c.mainpc, new int[]{CODE, METHODS, LINES},
+                new byte[][]{code, methods.toByteArray(), lines.toByteArray()}, compress);
+    }
+
+    private static void write(OutputStream os, int dataSize, int startPC, int[] kinds, byte[][] sections,
+                              boolean compress) throws IOException {
+        int n = sections.length;
+        byte[][] stored = new byte[n][];
+        int[] flags = new int[n];
+        for (int i = 0; i < n; i++) {
+            stored[i] = sections[i];
+            if (compress) {
+                Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+                deflater.setInput(sections[i]);
+                deflater.finish();
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte[] chunk = new byte[4096];
+                while (!deflater.finished()) {
+                    bytes.write(chunk, 0, deflater.deflate(chunk));
+                }
+                deflater.end();
+                if (bytes.size() < sections[i].length) { // not for tiny sections
+                    stored[i] = bytes.toByteArray();
+                    flags[i] = DEFLATED;
+                }
+            }
+        }
+        DataOutputStream out = new DataOutputStream(os);
+        out.writeByte('M');
+        out.writeByte('J');
+        out.writeInt(0);
+        out.writeInt(VERSION);
+        out.writeInt(dataSize);
+        out.writeInt(startPC);
+        out.writeInt(n);
+        int offset = HEADER_2 + n * DIRECTORY_ENTRY;
+        for (int i = 0; i < n; i++) {
+            CRC32 crc = new CRC32();
+            crc.update(stored[i]);
+            out.writeInt(kinds[i]);
+            out.writeInt(flags[i]);
+            out.writeInt(offset);
+            out.writeInt(stored[i].length);
+            out.writeInt(sections[i].length);
+            out.writeInt((int) crc.getValue());
+            offset += stored[i].length;
+        }
+        for (byte[] s : stored) {
+            out.write(s);
+        }
+        out.flush();
+        out.close();
+    }
+}
@@ -0,0 +1,243 @@
+package ssw.mj;
+
+import ssw.mj.codegen.Code.OpCode;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Method-level profile of a program run by the switch engine of an
+ * {@link Interpreter}. The interpreter reports every instruction before it is
+ * executed; <code>call</code> and <code>return</code> maintain a shadow of the
+ * method stack. Methods are identified by the address of their
+ * <code>enter</code> instruction.
+ * <p>
+ * For every method the profile holds the number of calls, the instructions
+ * and the time spent in the method itself (self) and including its callees
+ * (total). Recursive activations are counted once in the totals. In
+ * addition, the self instructions are collected per call stack, which can be
+ * written in the collapsed format read by flame graph tools.
+ */
+public final class Profiler {
+
+    private final byte[] code;
+    private final int startPC;
+
+    // ----- per method, indexed by method number
+    private final Map<Integer, Integer> methodAt = new HashMap<>(); // entry -> method number
+    private int[] entry = new int[8];
+    private long[] calls = new long[8];
+    private long[] selfInstr = new long[8];
+    private long[] totalInstr = new long[8];
+    private long[] selfNanos = new long[8];
+    private long[] totalNanos = new long[8];
+    private int[] active = new int[8]; // activations on the stack
+    private int nMethods;
+    private final Map<Integer, String> names = new HashMap<>(); // entry -> name of the method
+
+    // ----- call stacks as a tree of nodes, node 0 is the root
+    private final Map<Long, Integer> child = new HashMap<>(); // parent node, method -> node
+    private int[] nodeParent = new int[16];
+    private int[] nodeMethod = new int[16];
+    private long[] nodeInstr = new long[16];
+    private int nNodes = 1;
+
+    // ----- shadow of the method stack
+    private int[] frameMethod = new int[16];
+    private int[] frameNode = new int[16];
+    private long[] frameInstr = new long[16];
+    private long[] frameNanos = new long[16];
+    private int depth;
+
+    private long instructions;
+    private long last; // time of the last call or return
+    private boolean finished;
+
+    Profiler(byte[] code, int startPC) {
+        this.code = code;
+        this.startPC = startPC;
+    }
+
+    // ----- recording
+
+    private int method(int adr) {
+        Integer m = methodAt.get(adr);
+        if (m != null) {
+            return m;
+        }
+        if (nMethods == entry.length) {
+            int n = nMethods * 2;
+            entry = Arrays.copyOf(entry, n);
+            calls = Arrays.copyOf(calls, n);
+            selfInstr = Arrays.copyOf(selfInstr, n);
+            totalInstr = Arrays.copyOf(totalInstr, n);
+            selfNanos = Arrays.copyOf(selfNanos, n);
+            totalNanos = Arrays.copyOf(totalNanos, n);
+            active = Arrays.copyOf(active, n);
+        }
+        entry[nMethods] = adr;
+        methodAt.put(adr, nMethods);
+        return nMethods++;
+    }
+
+    private int node(int parent, int m) {
+        Long key = (long) parent << 32 | m;
+        Integer n = child.get(key);
+        if (n != null) {
+            return n;
+        }
+        if (nNodes == nodeParent.length) {
+            nodeParent = Arrays.copyOf(nodeParent, nNodes * 2);
+            nodeMethod = Arrays.copyOf(nodeMethod, nNodes * 2);
+            nodeInstr = Arrays.copyOf(nodeInstr, nNodes * 2);
+        }
+        nodeParent[nNodes] = parent;
+        nodeMethod[nNodes] = m;
+        child.put(key, nNodes);
+        return nNodes++;
+    }
+
+    private void enter(int adr, long now) {
+        int m = method(adr);
+        if (depth == frameMethod.length) {
+            frameMethod = Arrays.copyOf(frameMethod, depth * 2);
+            frameNode = Arrays.copyOf(frameNode, depth * 2);
+            frameInstr = Arrays.copyOf(frameInstr, depth * 2);
+            frameNanos = Arrays.copyOf(frameNanos, depth * 2);
+        }
+        frameMethod[depth] = m;
+        frameNode[depth] = node(depth == 0 ? 0 : frameNode[depth - 1], m);
+        frameInstr[depth] = instructions;
+        frameNanos[depth] = now;
+        depth++;
+        calls[m]++;
+        active[m]++;
+    }
+
+    private void leave(long now) {
+        depth--;
+        int m = frameMethod[depth];
+        if (--active[m] == 0) {
+            totalInstr[m] += instructions - frameInstr[depth];
+            totalNanos[m] += now - frameNanos[depth];
+        }
+    }
+
+    /**
+     * Charges the time since the last call or return to the current method.
+     */
+    private long tick() {
+        long now = System.nanoTime();
+        if (depth > 0) {
+            selfNanos[frameMethod[depth - 1]] += now - last;
+        }
+        last = now;
+        return now;
+    }
+
+    /**
+     * Called by the interpreter before it executes the instruction op at pc.
+     */
+    void step(OpCode op, int pc) {
+        if (depth == 0) {
+            if (finished) {
+                return;
+            }
+            last = System.nanoTime();
+            enter(startPC, last);
+        }
+        instructions++;
+        selfInstr[frameMethod[depth - 1]]++;
+        nodeInstr[frameNode[depth - 1]]++;
+        if (op == OpCode.call) {
+            int target = pc + (short) ((code[pc + 1] << 8) + (code[pc + 2] & 0xff));
+            enter(target, tick());
+        } else if (op == OpCode.return_) {
+            leave(tick());
+            if (depth == 0) {
+                finished = true;
+            }
+        }
+    }
+
+    /**
+     * Ends all open activations, e.g. after a runtime error. Called when the
+     * interpreter stops.
+     */
+    void finish() {
+        if (depth > 0) {
+            long now = tick();
+            while (depth > 0) {
+                leave(now);
+            }
+        }
+        finished = true;
+    }
+
+    // ----- results
+
+    /**
+     * Total number of executed instructions.
+     */
+    public long instructions() {
+        return instructions;
+    }
+
+    /**
+     * Reports the method starting at entry under the given name instead of
+     * its address.
+     */
+    void nameMethod(int entry, String name) {
+        names.put(entry, name);
+    }
+
+    private String name(int m) {
+        String name = names.get(entry[m]);
+        if (name != null) {
+            return name;
+        }
+        return entry[m] == startPC ? "main" : "method@" + entry[m];
+    }
+
+    /**
+     * Writes one line per method with calls, self and total instructions and
+     * time, most expensive methods (by self instructions) first.
+     */
+    public void writeFlatProfile(PrintStream out) {
+        Integer[] order = new Integer[nMethods];
+        for (int m = 0; m < nMethods; m++) {
+            order[m] = m;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(selfInstr[b], selfInstr[a]));
+        double all = Math.max(instructions, 1);
+        out.printf("%-16s %10s %14s %7s %14s %7s %10s %10s%n", "method", "calls", "self instr", "self%",
+                "total instr", "total%", "self ms", "total ms");
+        for (int m : order) {
+            out.printf("%-16s %10d %14d %6.2f%% %14d %6.2f%% %10.3f %10.3f%n", name(m), calls[m], selfInstr[m],
+                    100 * selfInstr[m] / all, totalInstr[m], 100 * totalInstr[m] / all, selfNanos[m] / 1e6,
+                    totalNanos[m] / 1e6);
+        }
+    }
+
+    /**
+     * Writes the self instructions per call stack, one line
+     * <code>main;caller;callee count</code> per stack.
+     */
+    public void writeCollapsedStacks(PrintStream out) {
+        StringBuilder sb = new StringBuilder();
+        for (int n = 1; n < nNodes; n++) {
+            if (nodeInstr[n] == 0) {
+                continue;
+            }
+            sb.setLength(0);
+            for (int p = n; p != 0; p = nodeParent[p]) {
+                sb.insert(0, name(nodeMethod[p])).insert(0, ';');
+            }
+            out.print(sb.substring(1));
+            out.print(' ');
+            out.println(nodeInstr[n]);
+        }
+    }
+}
@@ -0,0 +1,982 @@
+package ssw.mj;
+
+import ssw.mj.codegen.Code.OpCode;
+
+import java.util.Arrays;
+
+/**
+ * Register form of a MicroJava program for {@link Interpreter.Engine#REGISTER}.
+ * Every method is translated at load time into three-address instructions
+ * whose operands are virtual registers. Register d of a method activation is
+ * the expression stack slot at depth d, i.e. <code>stack[base + d]</code>,
+ * where base is the expression stack pointer behind the parameters when the
+ * method was entered. The depth of every instruction is known from
+ * {@link CodeAnalysis}, so the expression stack pointer is not maintained.
+ * <p>
+ * Loads of local variables and constants are not executed as instructions of
+ * their own but become operands of the instructions that use their values.
+ * A source operand is either a register or a local variable, some
+ * instructions take a constant instead. Results can go to a register or
+ * directly to a local variable if they are stored there.
+ * <p>
+ * The method stack, the heap and the values on the expression stack at calls
+ * and allocations are the same as in the stack machine, so output, garbage
+ * collection and runtime errors are the same as well. If the expression stack
+ * of an activation might overflow, every instruction checks the stack depth
+ * the stack machine would have reached before it.
+ */
+final class RegisterCode {
+
+    // ----- instruction codes
+    // s, a, b: source operand, register (>= 0) or local variable (~index)
+    // d: destination operand, like a source operand
+    // r: register, l: local variable index, c: constant, t: jump target
+    static final int MOV = 1, // d, s
+            MOVK = 2, // d, c
+            GETSTATIC = 3, // d, global
+            PUTSTATIC = 4, // global, s
+            GETFIELD = 5, // d, s, offset
+            PUTFIELD = 6, // s (object), offset, s (value)
+            ADD = 7, SUB = 8, MUL = 9, DIV = 10, REM = 11, SHL = 12, SHR = 13, // d, a, b
+            ADDK = 14, SUBK = 15, MULK = 16, DIVK = 17, REMK = 18, SHLK = 19, SHRK = 20, // d, a, c
+            NEG = 21, // d, s
+            INC = 22, // l, c
+            NEW = 23, // d, size, depth
+            NEWARRAY = 24, // d, r (length), type, depth
+            ALOAD = 25, BALOAD = 26, // d, s (array), s (index)
+            ASTORE = 27, BASTORE = 28, // s (array), s (index), s (value)
+            ARRAYLENGTH = 29, // d, s
+            JMP = 30, // t
+            JEQ = 31, JNE = 32, JLT = 33, JLE = 34, JGT = 35, JGE = 36, // a, b, t
+            JEQK = 37, JNEK = 38, JLTK = 39, JLEK = 40, JGTK = 41, JGEK = 42, // a, c, t
+            CALL = 43, // t, return pc, depth of the arguments
+            POSTCALL = 44, // depth of the arguments, max. stack of the caller
+            ENTER = 45, // parameters, locals, max. stack
+            RETURN = 46, // results (exit and return)
+            READ = 47, BREAD = 48, // d
+            PRINT = 49, BPRINT = 50, // s (value), s (width)
+            PRINTK = 51, BPRINTK = 52, // s (value), c (width)
+            TRAP = 53, // c
+            CHECK = 54, // no operation, only the stack depth is checked
+            JMP_BACK = 55; // t, a backward jump; the only jump that counts a step
+
+    /**
+     * Instruction stream.
+     */
+    final int[] ops;
+
+    /**
+     * Expression stack depth reached by the stack machine up to each
+     * instruction, relative to the base of the activation; 0 if the
+     * instruction needs no check.
+     */
+    private final int[] peaks;
+
+    /**
+     * Number of registers of the activation that hold values at each jump
+     * target and method entry, where a run can be suspended; 0 elsewhere.
+     */
+    private final int[] live;
+
+    /**
+     * Maps the return address of each call, a byte code pc, to the position
+     * of the {@link #POSTCALL} behind the call.
+     */
+    private final int[] returns;
+
+    private final int start;
+
+    private RegisterCode(int[] ops, int[] peaks, int[] live, int[] returns, int start) {
+        this.ops = ops;
+        this.peaks = peaks;
+        this.live = live;
+        this.returns = returns;
+        this.start = start;
+    }
+
+    // ----- translation
+
+    /**
+     * Translates the analyzed code, null if it cannot be translated because
+     * a method could not be analyzed or main has parameters.
+     */
+    static RegisterCode translate(byte[] code, int startPC, CodeAnalysis analysis) {
+        for (CodeAnalysis.MethodInfo m : analysis.methods) {
+            if (m.error != null) {
+                return null;
+            }
+        }
+        if (analysis.methods.get(0).nPars != 0) {
+            return null;
+        }
+        return new Translator(code, analysis).translate(startPC);
+    }
+
+    /**
+     * Translation of the stack code. The values the stack machine would have
+     * on the expression stack are kept as a symbolic stack: a value is in its
+     * register, in a local variable or a constant. Values are moved to their
+     * registers where the stack machine's expression stack becomes visible: at
+     * jumps and jump targets, calls, returns and allocations.
+     */
+    private static final class Translator {
+        private static final int REG = 0, LOCAL = 1, CONST = 2; // kinds of symbolic values
+
+        private final byte[] code;
+        private final CodeAnalysis analysis;
+        private final boolean[] label; // jump targets
+
+        private int[] ops = new int[64];
+        private int[] peaks = new int[64];
+        private int n;
+        private final int[] index; // pc -> position
+        private final int[] returns;
+        private int[] fixups = new int[16]; // positions holding a pc to be resolved
+        private int nFixups;
+        // positions holding the target pc of a backward conditional jump, which goes through a stub
+        private int[] backward = new int[16];
+        private int nBackward;
+
+        private int[] kind = new int[16]; // symbolic stack
+        private int[] value = new int[16];
+        private int sd; // its depth
+        private int peak; // stack depth reached since the last emitted instruction
+
+        Translator(byte[] code, CodeAnalysis analysis) {
+            this.code = code;
+            this.analysis = analysis;
+            label = new boolean[code.length];
+            index = new int[code.length];
+            returns = new int[code.length + 1];
+            Arrays.fill(index, -1);
+            Arrays.fill(returns, -1);
+            for (int pc = 0; pc < code.length; pc++) {
+                if (analysis.owner[pc] >= 0 && code[pc] >= ThreadedCode.JMP && code[pc] <= ThreadedCode.JGE) {
+                    label[analysis.target(pc)] = true;
+                }
+            }
+        }
+
+        // ----- emitting
+
+        private void emit(int... instr) {
+            if (n + instr.length > ops.length) {
+                ops = Arrays.copyOf(ops, Math.max(ops.length * 2, n + instr.length));
+                peaks = Arrays.copyOf(peaks, ops.length);
+            }
+            peaks[n] = peak;
+            peak = 0;
+            System.arraycopy(instr, 0, ops, n, instr.length);
+            n += instr.length;
+        }
+
+        /**
+         * Emits a jump target as the operand at position pos of the last
+         * instruction.
+         */
+        private void fixup(int pos) {
+            if (nFixups == fixups.length) {
+                fixups = Arrays.copyOf(fixups, nFixups * 2);
+            }
+            fixups[nFixups++] = pos;
+        }
+
+        /**
+         * Emits the target of a backward conditional jump as the operand at
+         * position pos of the last instruction. The jump goes to a stub
+         * <code>JMP_BACK</code> behind the code, so that only that stub counts
+         * the step.
+         */
+        private void backward(int pos) {
+            if (nBackward == backward.length) {
+                backward = Arrays.copyOf(backward, nBackward * 2);
+            }
+            backward[nBackward++] = pos;
+        }
+
+        // ----- symbolic stack
+
+        private void push(int k, int v) {
+            if (sd == kind.length) {
+                kind = Arrays.copyOf(kind, sd * 2);
+                value = Arrays.copyOf(value, sd * 2);
+            }
+            kind[sd] = k;
+            value[sd] = v;
+            sd++;
+            peak = Math.max(peak, sd);
+        }
+
+        private void reset(int depth) {
+            sd = 0;
+            for (int i = 0; i < depth; i++) {
+                push(REG, i);
+            }
+            peak = 0;
+        }
+
+        /**
+         * Moves the value at depth i to its register.
+         */
+        private void materialize(int i) {
+            if (kind[i] == CONST) {
+                emit(MOVK, i, value[i]);
+            } else if (kind[i] != REG || value[i] != i) {
+                emit(MOV, i, operand(i));
+            }
+            kind[i] = REG;
+            value[i] = i;
+        }
+
+        private void materializeAll() {
+            for (int i = 0; i < sd; i++) {
+                materialize(i);
+            }
+        }
+
+        /**
+         * Moves the values that are still in local variable l to their
+         * registers before l is changed.
+         */
+        private void materializeLocal(int l) {
+            for (int i = 0; i < sd; i++) {
+                if (kind[i] == LOCAL && value[i] == l) {
+                    materialize(i);
+                }
+            }
+        }
+
+        /**
+         * Operand for the value at depth i, which must not be a constant.
+         */
+        private int operand(int i) {
+            return kind[i] == LOCAL ? ~value[i] : value[i];
+        }
+
+        /**
+         * Source operand for the value at depth i; constants are moved to
+         * their register.
+         */
+        private int source(int i) {
+            if (kind[i] == CONST) {
+                materialize(i);
+            }
+            return operand(i);
+        }
+
+        /**
+         * Destination for a result at depth r. If the next instruction stores
+         * the result in a local variable, the result goes there directly and
+         * the store is skipped.
+         */
+        private int result(int pc, int r) {
+            int next = pc + analysis.size(pc);
+            if (next < code.length && analysis.owner[next] == analysis.owner[pc] && !label[next]) {
+                int op = code[next];
+                int l = -1;
+                if (op == ThreadedCode.STORE) {
+                    l = code[next + 1];
+                } else if (op >= ThreadedCode.STORE_0 && op <= ThreadedCode.STORE_3) {
+                    l = op - ThreadedCode.STORE_0;
+                }
+                if (l >= 0) {
+                    materializeLocal(l);
+                    skip = next;
+                    peak = Math.max(peak, r + 1);
+                    return ~l;
+                }
+            }
+            push(REG, r);
+            return r;
+        }
+
+        private int skip = -1; // pc of a store merged into the previous instruction
+
+        // ----- translation
+
+        RegisterCode translate(int startPC) {
+            boolean dead = true; // the previous instruction does not fall through
+            for (int pc = 0; pc < code.length; pc++) {
+                if (analysis.owner[pc] < 0 && analysis.methodAt(pc) == null || pc == skip) {
+                    continue; // not reachable, or the entry of a method, which has no owner
+                }
+                int depth = analysis.depth[pc];
+                if (dead || code[pc] == ThreadedCode.ENTER) {
+                    reset(depth);
+                } else if (label[pc]) {
+                    materializeAll();
+                    if (peak > 0) {
+                        emit(CHECK);
+                    }
+                    reset(depth);
+                }
+                index[pc] = n;
+                dead = translateInstruction(pc);
+            }
+            peak = 0;
+            for (int i = 0; i < nBackward; i++) {
+                int stub = n;
+                emit(JMP_BACK, ops[backward[i]]);
+                fixup(n - 1);
+                ops[backward[i]] = stub;
+            }
+            for (int i = 0; i < nFixups; i++) {
+                ops[fixups[i]] = index[ops[fixups[i]]];
+            }
+            int[] live = new int[n];
+            for (int pc = 0; pc < code.length; pc++) {
+                if (label[pc] && index[pc] >= 0) {
+                    live[index[pc]] = analysis.depth[pc];
+                }
+            }
+            for (CodeAnalysis.MethodInfo m : analysis.methods) {
+                live[index[m.entry]] = m.nPars; // the arguments until enter moves them
+            }
+            return new RegisterCode(Arrays.copyOf(ops, n), Arrays.copyOf(peaks, n), live, returns, index[startPC]);
+        }
+
+        /**
+         * Local variable of a load or store, first is the general form.
+         */
+        private int local(OpCode op, int pc, OpCode first) {
+            return op == first ? code[pc + 1] : op.ordinal() - first.ordinal() - 1;
+        }
+
+        /**
+         * Translates the instruction at pc, returns true if it does not fall
+         * through.
+         */
+        private boolean translateInstruction(int pc) {
+            OpCode op = OpCode.get(code[pc]);
+            int a, b, d;
+            switch (op) {
+                case load:
+                case load_0:
+                case load_1:
+                case load_2:
+                case load_3:
+                    push(LOCAL, local(op, pc, OpCode.load));
+                    break;
+                case store:
+                case store_0:
+                case store_1:
+                case store_2:
+                case store_3:
+                    a = local(op, pc, OpCode.store);
+                    sd--;
+                    materializeLocal(a);
+                    if (kind[sd] == CONST) {
+                        emit(MOVK, ~a, value[sd]);
+                    } else {
+                        emit(MOV, ~a, operand(sd));
+                    }
+                    break;
+                case getstatic:
+                    d = result(pc, sd);
+                    emit(GETSTATIC, d, analysis.get2(pc + 1));
+                    break;
+                case putstatic:
+                    sd--;
+                    emit(PUTSTATIC, analysis.get2(pc + 1), source(sd));
+                    break;
+                case getfield:
+                    sd--;
+                    a = source(sd);
+                    d = result(pc, sd);
+                    emit(GETFIELD, d, a, analysis.get2(pc + 1));
+                    break;
+                case putfield:
+                    sd -= 2;
+                    emit(PUTFIELD, source(sd), analysis.get2(pc + 1), source(sd + 1));
+                    break;
+                case const_0:
+                case const_1:
+                case const_2:
+                case const_3:
+                case const_4:
+                case const_5:
+                    push(CONST, op.ordinal() - OpCode.const_0.ordinal());
+                    break;
+                case const_m1:
+                    push(CONST, -1);
+                    break;
+                case const_:
+                    push(CONST, (analysis.get2(pc + 1) << 16) + (analysis.get2(pc + 3) & 0xffff));
+                    break;
+                case add:
+                case sub:
+                case mul:
+                case div:
+                case rem:
+                case shl:
+                case shr:
+                    translateArithmetic(pc, op);
+                    break;
+                case neg:
+                    sd--;
+                    a = source(sd);
+                    d = result(pc, sd);
+                    emit(NEG, d, a);
+                    break;
+                case inc:
+                    a = code[pc + 1];
+                    materializeLocal(a);
+                    emit(INC, a, code[pc + 2]);
+                    break;
+                case new_:
+                    materializeAll(); // the expression stack is a root for the garbage collector
+                    a = peak; // the stack is checked after the allocation, as in the stack machine
+                    d = result(pc, sd);
+                    peak = a;
+                    emit(NEW, d, analysis.get2(pc + 1), sd - (d >= 0 ? 1 : 0));
+                    break;
+                case newarray:
+                    materializeAll();
+                    sd--;
+                    d = result(pc, sd);
+                    emit(NEWARRAY, d, sd - (d >= 0 ? 1 : 0), code[pc + 1], sd + (d >= 0 ? 0 : 1));
+                    break;
+                case aload:
+                case baload:
+                    sd -= 2;
+                    a = source(sd);
+                    b = source(sd + 1);
+                    d = result(pc, sd);
+                    emit(op == OpCode.aload ? ALOAD : BALOAD, d, a, b);
+                    break;
+                case astore:
+                case bastore:
+                    sd -= 3;
+                    emit(op == OpCode.astore ? ASTORE : BASTORE, source(sd), source(sd + 1), source(sd + 2));
+                    break;
+                case arraylength:
+                    sd--;
+                    a = source(sd);
+                    d = result(pc, sd);
+                    emit(ARRAYLENGTH, d, a);
+                    break;
+                case pop:
+                    sd--;
+                    break;
+                case dup:
+                    push(kind[sd - 1], value[sd - 1]);
+                    break;
+                case dup2:
+                    push(kind[sd - 2], value[sd - 2]);
+                    push(kind[sd - 2], value[sd - 2]);
+                    break;
+                case jmp:
+                    materializeAll();
+                    emit(analysis.target(pc) <= pc ? JMP_BACK : JMP, analysis.target(pc));
+                    fixup(n - 1);
+                    return true;
+                case jeq:
+                case jne:
+                case jlt:
+                case jle:
+                case jgt:
+                case jge:
+                    translateBranch(pc, op);
+                    break;
+                case call:
+                    translateCall(pc);
+                    return analysis.methodAt(analysis.target(pc)).results < 0;
+                case enter:
+                    CodeAnalysis.MethodInfo m = analysis.methodAt(pc);
+                    emit(ENTER, m.nPars, m.nLocals, m.maxStack);
+                    break;
+                case exit:
+                    materializeAll();
+                    emit(RETURN, sd);
+                    skip = pc + 1;
+                    return true;
+                case read:
+                case bread:
+                    d = result(pc, sd);
+                    emit(op == OpCode.read ? READ : BREAD, d);
+                    break;
+                case print:
+                case bprint:
+                    sd -= 2;
+                    a = source(sd);
+                    if (kind[sd + 1] == CONST) {
+                        emit(op == OpCode.print ? PRINTK : BPRINTK, a, value[sd + 1]);
+                    } else {
+                        emit(op == OpCode.print ? PRINT : BPRINT, a, operand(sd + 1));
+                    }
+                    break;
+                case trap:
+                    emit(TRAP, code[pc + 1]);
+                    return true;
+                default: // nop
+                    break;
+            }
+            return false;
+        }
+
+        private void translateArithmetic(int pc, OpCode op) {
+            int instr;
+            switch (op) {
+                case add:
+                    instr = ADD;
+                    break;
+                case sub:
+                    instr = SUB;
+                    break;
+                case mul:
+                    instr = MUL;
+                    break;
+                case div:
+                    instr = DIV;
+                    break;
+                case rem:
+                    instr = REM;
+                    break;
+                case shl:
+                    instr = SHL;
+                    break;
+                default:
+                    instr = SHR;
+                    break;
+            }
+            sd -= 2;
+            int a, b;
+            if (kind[sd + 1] == CONST || kind[sd] == CONST && (op == OpCode.add || op == OpCode.mul)) {
+                // constant operand, the first one only if the operation is commutative
+                int k = kind[sd + 1] == CONST ? sd + 1 : sd;
+                a = source(k == sd ? sd + 1 : sd);
+                b = value[k];
+                instr += ADDK - ADD;
+            } else {
+                a = source(sd);
+                b = operand(sd + 1);
+            }
+            int d = result(pc, sd);
+            emit(instr, d, a, b);
+        }
+
+        private void translateBranch(int pc, OpCode op) {
+            int cond = op.ordinal() - OpCode.jeq.ordinal();
+            sd -= 2;
+            materializeAll();
+            if (kind[sd + 1] == CONST) {
+                emit(JEQK + cond, source(sd), value[sd + 1], analysis.target(pc));
+            } else if (kind[sd] == CONST) {
+                // c op b is b op' c
+                int[] swapped = {0, 1, 4, 5, 2, 3}; // eq, ne, gt, ge, lt, le
+                emit(JEQK + swapped[cond], operand(sd + 1), value[sd], analysis.target(pc));
+            } else {
+                emit(JEQ + cond, operand(sd), operand(sd + 1), analysis.target(pc));
+            }
+            if (analysis.target(pc) <= pc) {
+                backward(n - 1);
+            } else {
+                fixup(n - 1);
+            }
+        }
+
+        private void translateCall(int pc) {
+            CodeAnalysis.MethodInfo callee = analysis.methodAt(analysis.target(pc));
+            CodeAnalysis.MethodInfo caller = analysis.methods.get(analysis.owner[pc]);
+            materializeAll();
+            int args = sd - callee.nPars;
+            emit(CALL, callee.entry, pc + 3, args);
+            fixup(n - 3);
+            if (callee.results >= 0) {
+                returns[pc + 3] = n;
+                emit(POSTCALL, args, caller.maxStack);
+                reset(args + callee.results);
+            }
+        }
+    }
+
+    // ----- execution
+
+    private static IllegalStateException nullReference() {
+        return new IllegalStateException("null reference used");
+    }
+
+    private static IllegalStateException outOfBounds() {
+        return new IllegalStateException("index out of bounds");
+    }
+
+    private static IllegalStateException divisionByZero() {
+        return new IllegalStateException("division by zero");
+    }
+
+    private static int get(int[] stack, int base, int[] local, int fp, int x) {
+        return x >= 0 ? stack[base + x] : local[fp + ~x];
+    }
+
+    private static void set(int[] stack, int base, int[] local, int fp, int x, int val) {
+        if (x >= 0) {
+            stack[base + x] = val;
+        } else {
+            local[fp + ~x] = val;
+        }
+    }
+
+    /**
+     * Number of registers of the current activation that hold values when a
+     * run suspended at position ip continues.
+     */
+    int live(int ip) {
+        return live[ip];
+    }
+
+    /**
+     * Executes the program on the state of <code>vm</code> from position
+     * <code>at</code> in <code>ops</code>, or from the start if it is
+     * negative, until main returns or the fuel of the run is used up, which
+     * leaves the position behind the step in {@link Interpreter#resume}.
+     * Semantics and error messages are the same as in
+     * {@link Interpreter#run()}. A suspended run keeps the registers of its
+     * activations on the expression stack above {@link Interpreter#esp},
+     * which is the base of the current activation then.
+     */
+    void execute(Interpreter vm, int at) throws IllegalStateException {
+        final int[] ops = this.ops;
+        final int[] peaks = this.peaks;
+        final int[] data = vm.data;
+        int[] stack = vm.stack; // reloaded when the regions grow
+        int[] local = vm.local;
+        int[] heap = vm.heap;
+        int sp = vm.sp;
+        int fp = vm.fp;
+        int base = vm.esp; // of the current activation
+        boolean checked = true; // the expression stack might overflow
+        int fuel = vm.fuel; // steps left in the slice
+        int ip = at >= 0 ? at : start;
+        int op, x, adr, val, idx, len;
+
+        loop:
+        for (; ; ) {
+            if (checked && base + peaks[ip] > stack.length) {
+                stack = vm.growStack(base + peaks[ip]);
+            }
+            op = ops[ip];
+            switch (op) {
+                case MOV:
+                    set(stack, base, local, fp, ops[ip + 1], get(stack, base, local, fp, ops[ip + 2]));
+                    ip += 3;
+                    break;
+                case MOVK:
+                    set(stack, base, local, fp, ops[ip + 1], ops[ip + 2]);
+                    ip += 3;
+                    break;
+                case GETSTATIC:
+                    set(stack, base, local, fp, ops[ip + 1], data[ops[ip + 2]]);
+                    ip += 3;
+                    break;
+                case PUTSTATIC:
+                    data[ops[ip + 1]] = get(stack, base, local, fp, ops[ip + 2]);
+                    ip += 3;
+                    break;
+                case GETFIELD:
+                    adr = get(stack, base, local, fp, ops[ip + 2]);
+                    if (adr == 0) {
+                        throw nullReference();
+                    }
+                    set(stack, base, local, fp, ops[ip + 1], heap[adr + ops[ip + 3]]);
+                    ip += 4;
+                    break;
+                case PUTFIELD:
+                    val = get(stack, base, local, fp, ops[ip + 3]);
+                    adr = get(stack, base, local, fp, ops[ip + 1]);
+                    if (adr == 0) {
+                        throw nullReference();
+                    }
+                    heap[adr + ops[ip + 2]] = val;
+                    ip += 4;
+                    break;
+
+                // arithmetic
+                case ADD:
+                    set(stack, base, local, fp, ops[ip + 1],
+                            get(stack, base, local, fp, ops[ip + 2]) + get(stack, base, local, fp, ops[ip + 3]));
+                    ip += 4;
+                    break;
+                case SUB:
+                    set(stack, base, local, fp, ops[ip + 1],
+                            get(stack, base, local, fp, ops[ip + 2]) - get(stack, base, local, fp, ops[ip + 3]));
+                    ip += 4;
+                    break;
+                case MUL:
+                    set(stack, base, local, fp, ops[ip + 1],
+                            get(stack, base, local, fp, ops[ip + 2]) * get(stack, base, local, fp, ops[ip + 3]));
+                    ip += 4;
+                    break;
+                case DIV:
+                    val = get(stack, base, local, fp, ops[ip + 3]);
+                    if (val == 0) {
+                        throw divisionByZero();
+                    }
+                    set(stack, base, local, fp, ops[ip + 1], get(stack, base, local, fp, ops[ip + 2]) / val);
+                    ip += 4;
+                    break;
+                case REM:
+                    val = get(stack, base, local, fp, ops[ip + 3]);
+                    if (val == 0) {
+                        throw divisionByZero();
+                    }
+                    set(stack, base, local, fp, ops[ip + 1], get(stack, base, local, fp, ops[ip + 2]) % val);
+                    ip += 4;
+                    break;
+                case SHL:
+                    set(stack, base, local, fp, ops[ip + 1],
+                            get(stack, base, local, fp, ops[ip + 2]) << get(stack, base, local, fp, ops[ip + 3]));
+                    ip += 4;
+                    break;
+                case SHR:
+                    set(stack, base, local, fp, ops[ip + 1],
+                            get(stack, base, local, fp, ops[ip + 2]) >> get(stack, base, local, fp, ops[ip + 3]));
+                    ip += 4;
+                    break;
+                case ADDK:
+                    set(stack, base, local, fp, ops[ip + 1], get(stack, base, local, fp, ops[ip + 2]) + ops[ip + 3]);
+                    ip += 4;
+                    break;
+                case SUBK:
+                    set(stack, base, local, fp, ops[ip + 1], get(stack, base, local, fp, ops[ip + 2]) - ops[ip + 3]);
+                    ip += 4;
+                    break;
+                case MULK:
+                    set(stack, base, local, fp, ops[ip + 1], get(stack, base, local, fp, ops[ip + 2]) * ops[ip + 3]);
+                    ip += 4;
+                    break;
+                case DIVK:
+                    if (ops[ip + 3] == 0) {
+                        throw divisionByZero();
+                    }
+                    set(stack, base, local, fp, ops[ip + 1], get(stack, base, local, fp, ops[ip + 2]) / ops[ip + 3]);
+                    ip += 4;
+                    break;
+                case REMK:
+                    if (ops[ip + 3] == 0) {
+                        throw divisionByZero();
+                    }
+                    set(stack, base, local, fp, ops[ip + 1], get(stack, base, local, fp, ops[ip + 2]) % ops[ip + 3]);
+                    ip += 4;
+                    break;
+                case SHLK:
+                    set(stack, base, local, fp, ops[ip + 1], get(stack, base, local, fp, ops[ip + 2]) << ops[ip + 3]);
+                    ip += 4;
+                    break;
+                case SHRK:
+                    set(stack, base, local, fp, ops[ip + 1], get(stack, base, local, fp, ops[ip + 2]) >> ops[ip + 3]);
+                    ip += 4;
+                    break;
+                case NEG:
+                    set(stack, base, local, fp, ops[ip + 1], -get(stack, base, local, fp, ops[ip + 2]));
+                    ip += 3;
+                    break;
+                case INC:
+                    local[fp + ops[ip + 1]] += ops[ip + 2];
+                    ip += 3;
+                    break;
+
+                // object creation
+                case NEW:
+                    vm.esp = base + ops[ip + 3]; // roots for the garbage collector
+                    vm.sp = sp;
+                    adr = vm.newObject(ops[ip + 2]);
+                    heap = vm.heap;
+                    if (checked && vm.esp == stack.length) {
+                        stack = vm.growStack(vm.esp + 1);
+                    }
+                    set(stack, base, local, fp, ops[ip + 1], adr);
+                    ip += 4;
+                    break;
+                case NEWARRAY:
+                    vm.esp = base + ops[ip + 4];
+                    vm.sp = sp;
+                    adr = vm.newArray(stack[base + ops[ip + 2]], ops[ip + 3]);
+                    heap = vm.heap;
+                    set(stack, base, local, fp, ops[ip + 1], adr);
+                    ip += 5;
+                    break;
+
+                // array access
+                case ALOAD:
+                case BALOAD:
+                    adr = get(stack, base, local, fp, ops[ip + 2]);
+                    idx = get(stack, base, local, fp, ops[ip + 3]);
+                    if (adr == 0) {
+                        throw nullReference();
+                    }
+                    if (idx < 0 || idx >= heap[adr - 1]) {
+                        throw outOfBounds();
+                    }
+                    val = op == ALOAD ? heap[adr + idx] : (byte) (heap[adr + idx / 4] << (8 * (idx % 4)) >>> 24);
+                    set(stack, base, local, fp, ops[ip + 1], val);
+                    ip += 4;
+                    break;
+                case ASTORE:
+                case BASTORE:
+                    adr = get(stack, base, local, fp, ops[ip + 1]);
+                    idx = get(stack, base, local, fp, ops[ip + 2]);
+                    val = get(stack, base, local, fp, ops[ip + 3]);
+                    if (adr == 0) {
+                        throw nullReference();
+                    }
+                    if (idx < 0 || idx >= heap[adr - 1]) {
+                        throw outOfBounds();
+                    }
+                    if (op == ASTORE) {
+                        heap[adr + idx] = val;
+                    } else {
+                        len = (3 - idx % 4) * 8; // bit offset of the byte
+                        heap[adr + idx / 4] = (heap[adr + idx / 4] & ~(255 << len)) ^ ((val & 255) << len);
+                    }
+                    ip += 4;
+                    break;
+                case ARRAYLENGTH:
+                    adr = get(stack, base, local, fp, ops[ip + 2]);
+                    if (adr == 0) {
+                        throw nullReference();
+                    }
+                    set(stack, base, local, fp, ops[ip + 1], heap[adr - 1]);
+                    ip += 3;
+                    break;
+
+                // jumps
+                case JMP:
+                    ip = ops[ip + 1];
+                    break;
+                case JMP_BACK:
+                    ip = ops[ip + 1];
+                    if (--fuel < 0) {
+                        break loop;
+                    }
+                    break;
+                case JEQ:
+                    ip = get(stack, base, local, fp, ops[ip + 1]) == get(stack, base, local, fp, ops[ip + 2])
+                            ? ops[ip + 3] : ip + 4;
+                    break;
+                case JNE:
+                    ip = get(stack, base, local, fp, ops[ip + 1]) != get(stack, base, local, fp, ops[ip + 2])
+                            ? ops[ip + 3] : ip + 4;
+                    break;
+                case JLT:
+                    ip = get(stack, base, local, fp, ops[ip + 1]) < get(stack, base, local, fp, ops[ip + 2])
+                            ? ops[ip + 3] : ip + 4;
+                    break;
+                case JLE:
+                    ip = get(stack, base, local, fp, ops[ip + 1]) <= get(stack, base, local, fp, ops[ip + 2])
+                            ? ops[ip + 3] : ip + 4;
+                    break;
+                case JGT:
+                    ip = get(stack, base, local, fp, ops[ip + 1]) > get(stack, base, local, fp, ops[ip + 2])
+                            ? ops[ip + 3] : ip + 4;
+                    break;
+                case JGE:
+                    ip = get(stack, base, local, fp, ops[ip + 1]) >= get(stack, base, local, fp, ops[ip + 2])
+                            ? ops[ip + 3] : ip + 4;
+                    break;
+                case JEQK:
+                    ip = get(stack, base, local, fp, ops[ip + 1]) == ops[ip + 2] ? ops[ip + 3] : ip + 4;
+                    break;
+                case JNEK:
+                    ip = get(stack, base, local, fp, ops[ip + 1]) != ops[ip + 2] ? ops[ip + 3] : ip + 4;
+                    break;
+                case JLTK:
+                    ip = get(stack, base, local, fp, ops[ip + 1]) < ops[ip + 2] ? ops[ip + 3] : ip + 4;
+                    break;
+                case JLEK:
+                    ip = get(stack, base, local, fp, ops[ip + 1]) <= ops[ip + 2] ? ops[ip + 3] : ip + 4;
+                    break;
+                case JGTK:
+                    ip = get(stack, base, local, fp, ops[ip + 1]) > ops[ip + 2] ? ops[ip + 3] : ip + 4;
+                    break;
+                case JGEK:
+                    ip = get(stack, base, local, fp, ops[ip + 1]) >= ops[ip + 2] ? ops[ip + 3] : ip + 4;
+                    break;
+
+                // method calls
+                case CALL:
+                    if (sp == local.length) {
+                        local = vm.growLocal(sp + 1);
+                    }
+                    local[sp++] = ops[ip + 2]; // return address as byte code pc
+                    base += ops[ip + 3]; // the arguments become the callee's first registers
+                    ip = ops[ip + 1];
+                    if (--fuel < 0) {
+                        break loop;
+                    }
+                    break;
+                case POSTCALL:
+                    base -= ops[ip + 1];
+                    checked = base + ops[ip + 2] > stack.length;
+                    ip += 3;
+                    break;
+                case ENTER:
+                    val = ops[ip + 1]; // number of parameters
+                    len = ops[ip + 2]; // number of locals
+                    if (sp + 1 + len > local.length) {
+                        local = vm.growLocal(sp + 1 + len);
+                    }
+                    local[sp++] = fp;
+                    fp = sp;
+                    if (len > 0) {
+                        Arrays.fill(local, sp, sp + len, 0);
+                        sp += len;
+                    }
+                    System.arraycopy(stack, base, local, fp, val);
+                    checked = base + ops[ip + 3] > stack.length;
+                    ip += 4;
+                    break;
+                case RETURN:
+                    if (fp == 0) {
+                        throw new IllegalStateException("method stack underflow");
+                    }
+                    sp = fp;
+                    fp = local[--sp];
+                    if (sp == 0) {
+                        vm.esp = base + ops[ip + 1];
+                        vm.sp = sp;
+                        vm.fp = fp;
+                        vm.fuel = fuel;
+                        return;
+                    }
+                    ip = returns[local[--sp]];
+                    break;
+
+                // I/O
+                case READ:
+                    set(stack, base, local, fp, ops[ip + 1], vm.readInt());
+                    ip += 2;
+                    break;
+                case BREAD:
+                    set(stack, base, local, fp, ops[ip + 1], vm.io.read());
+                    ip += 2;
+                    break;
+                case PRINT:
+                    vm.print(get(stack, base, local, fp, ops[ip + 1]), get(stack, base, local, fp, ops[ip + 2]));
+                    ip += 3;
+                    break;
+                case BPRINT:
+                    vm.bprint(get(stack, base, local, fp, ops[ip + 1]), get(stack, base, local, fp, ops[ip + 2]));
+                    ip += 3;
+                    break;
+                case PRINTK:
+                    vm.print(get(stack, base, local, fp, ops[ip + 1]), ops[ip + 2]);
+                    ip += 3;
+                    break;
+                case BPRINTK:
+                    vm.bprint(get(stack, base, local, fp, ops[ip + 1]), ops[ip + 2]);
+                    ip += 3;
+                    break;
+                case TRAP:
+                    throw new IllegalStateException("trap(" + ops[ip + 1] + ")");
+                default: // CHECK
+                    ip++;
+                    break;
+            }
+        }
+        vm.esp = base;
+        vm.sp = sp;
+        vm.fp = fp;
+        vm.fuel = fuel;
+        vm.resume = ip;
+    }
+}
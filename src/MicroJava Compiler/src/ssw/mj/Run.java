@@ -1,71 +1,462 @@
 // MicroJava Virtual Machine
 // -------------------------
-// Syntax: java ssw.mj.Run fileName [-debug]
+// Syntax: java ssw.mj.Run fileName [-debug] [-engine switch|threaded|jit|register|closure] [-gc]
+//             [-heap words] [-mstack words] [-estack words] [-grow] [-noverify]
+//             [-profile] [-count] [-fuse] [-quick] [-tos] [-heapfile file]
+//             [-cache dir] [-cachesize kbytes] [-batch dir] [-threads n]
+//             [-steps n] [-heapquota words] [-checkpoint-at n file] [-restore file]
+//        or: java ssw.mj.Run -serve port|socket [-pool n] [-maxinput bytes] [options] fileName...
 // ===========================================================================
 // by Hanspeter Moessenboeck, 2002-10-28
 // edited by Albrecht Woess, 2002-10-30
 package ssw.mj;
 
-import java.io.DataInputStream;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
 
 public class Run {
 
     // ----- VM internals
-    static Interpreter load(String name, boolean debug) throws IOException {
-        int codeSize;
-        byte[] sig = new byte[2];
-        DataInputStream in = new DataInputStream(new FileInputStream(name));
-        in.read(sig, 0, 2);
-        if (sig[0] != 'M' || sig[1] != 'J') {
-            in.close();
-            throw new FormatException("wrong marker");
+    static Interpreter load(String name, boolean debug, Interpreter.Engine engine) throws IOException {
+        return load(name, debug, engine, Interpreter.ConsoleIO);
+    }
+
+    static Interpreter load(String name, boolean debug, Interpreter.Engine engine, Interpreter.IO io)
+            throws IOException {
+        return load(name, new Interpreter.Builder().debug(debug).engine(engine).io(io));
+    }
+
+    static Interpreter load(String name, Interpreter.Builder options) throws IOException {
+        return load(name, options, true);
+    }
+
+    /**
+     * Reads an {@link ObjectFile} and creates an interpreter for it. If
+     * verify is set, the code is checked by {@link Verifier} first.
+     */
+    static Interpreter load(String name, Interpreter.Builder options, boolean verify) throws IOException {
+        return load(ObjectFile.read(Paths.get(name)), options, verify);
+    }
+
+    static Interpreter load(ObjectFile obj, Interpreter.Builder options, boolean verify) throws FormatException {
+        if (verify) {
+            options.verify(obj.code, obj.startPC, obj.dataSize);
+        }
+        return options.build(obj.code, obj.startPC, obj.dataSize);
+    }
+
+    /**
+     * Like {@link #load(ObjectFile, Interpreter.Builder, boolean)} with
+     * verification, but takes the verified and decoded code from the cache if
+     * it has an entry for the program and stores it there otherwise.
+     */
+    static Interpreter load(ObjectFile obj, Interpreter.Builder options, CodeCache cache) throws FormatException {
+        return decode(obj, options, cache).build(obj.code, obj.startPC, obj.dataSize);
+    }
+
+    /**
+     * Verifies and decodes the code of obj for the interpreters built by
+     * options, or takes it from the cache if it is not null and has an entry
+     * for the program.
+     */
+    static Interpreter.Builder decode(ObjectFile obj, Interpreter.Builder options, CodeCache cache)
+            throws FormatException {
+        CodeCache.Entry e = cache != null ? cache.get(obj.code, obj.startPC, obj.dataSize) : null;
+        if (e != null) {
+            Verifier.checkStack(e.analysis, options.maxExpressionStackSize());
+        } else {
+            CodeAnalysis analysis = Verifier.verify(obj.code, obj.startPC, obj.dataSize,
+                    options.maxExpressionStackSize());
+            e = CodeCache.Entry.decode(obj.code, obj.startPC, analysis);
+            if (cache != null) {
+                cache.put(obj.code, obj.startPC, obj.dataSize, e);
+            }
+        }
+        return options.decoded(e);
+    }
+
+    /**
+     * Runs the program once for every file in dir, with the contents of the
+     * file as input, by a {@link Batch} on the given number of threads. The
+     * outputs are printed in the order of the file names, each behind a line
+     * with the file name.
+     */
+    private static void runBatch(ObjectFile obj, Interpreter.Builder options, Path dir, int threads)
+            throws IOException {
+        List<Path> files = new ArrayList<>();
+        List<String> inputs = new ArrayList<>();
+        try (Stream<Path> list = Files.list(dir)) {
+            list.filter(Files::isRegularFile).sorted().forEach(files::add);
+            for (Path f : files) { // bytes as chars, like the console input
+                inputs.add(new String(Files.readAllBytes(f), StandardCharsets.ISO_8859_1));
+            }
+        } catch (IOException e) {
+            System.out.println("-- cannot read input directory " + dir);
+            return;
         }
-        codeSize = in.readInt();
-        if (codeSize <= 0) {
-            in.close();
-            throw new FormatException("codeSize <= 0");
+        long startTime = System.currentTimeMillis();
+        List<Batch.Result> results = new Batch(obj.code, obj.startPC, obj.dataSize, options, threads).run(inputs);
+        long time = System.currentTimeMillis() - startTime;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < results.size(); i++) {
+            Batch.Result r = results.get(i);
+            sb.append(files.get(i).getFileName()).append(":\n").append(r.output);
+            if (r.error != null) {
+                sb.append("\n-- ").append(r.error.getMessage());
+            }
+            sb.append('\n');
         }
-        int dataSize = in.readInt();
-        if (dataSize < 0) {
-            in.close();
-            throw new FormatException("dataSize < 0");
+        System.out.print(sb);
+        System.out.print("\nCompletion took " + time + " ms for " + results.size() + " inputs on "
+                + Math.min(threads, results.size()) + " threads");
+    }
+
+    /**
+     * Loads the object files and serves them by a {@link Server} on the given
+     * loopback port or Unix-domain socket until the process is terminated.
+     * The programs are named after the files without extension. The
+     * statistics are printed at termination.
+     */
+    private static void serve(String address, int poolSize, int maxInput, List<String> fileNames,
+            Interpreter.Builder options, boolean verify, Path cacheDir, long cacheSize) {
+        Server server = new Server(poolSize, maxInput);
+        CodeCache cache = verify ? cache(cacheDir, cacheSize) : null;
+        for (String fileName : fileNames) {
+            String name = Paths.get(outputName(fileName, "")).getFileName().toString();
+            try {
+                server.load(name, ObjectFile.read(Paths.get(fileName)), options, verify, cache);
+            } catch (FileNotFoundException e) {
+                System.out.println("-- file " + fileName + " not found");
+                return;
+            } catch (FormatException e) {
+                System.out.println("-- corrupted object file " + fileName + ": " + e.getMessage());
+                return;
+            } catch (IOException e) {
+                System.out.println("-- error reading file " + fileName);
+                return;
+            }
+        }
+        try {
+            System.out.println("Serving " + fileNames.size() + " programs on " + (address.matches("\\d{1,5}")
+                    ? server.bind(Integer.parseInt(address)) : server.bind(Paths.get(address))));
+        } catch (IOException e) {
+            System.out.println("-- cannot listen on " + address + ": " + e.getMessage());
+            return;
         }
-        int startPC = in.readInt();
-        if (startPC < 0 || startPC >= codeSize) {
-            in.close();
-            throw new FormatException("startPC not in code area");
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.print(server.stats());
+            try {
+                server.close();
+            } catch (IOException e) {
+                // terminating anyway
+            }
+        }));
+        try {
+            server.serve();
+        } catch (IOException e) {
+            System.out.println("-- server stopped: " + e.getMessage());
         }
-        byte[] code = new byte[codeSize];
-        in.read(code, 0, codeSize);
-        in.close();
+    }
 
-        return new Interpreter(code, startPC, dataSize, Interpreter.ConsoleIO, debug);
+    /**
+     * Returns the code cache in dir, null if dir is null or cannot be used.
+     */
+    private static CodeCache cache(Path dir, long maxBytes) {
+        if (dir == null) {
+            return null;
+        }
+        try {
+            return new CodeCache(dir, maxBytes);
+        } catch (IOException e) {
+            System.out.println("-- cannot use cache directory " + dir);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the positive number in s, 0 if there is none.
+     */
+    private static int size(String s) {
+        try {
+            return Math.max(Integer.parseInt(s), 0);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the object file name with its extension replaced by ext.
+     */
+    private static String outputName(String fileName, String ext) {
+        int dot = fileName.lastIndexOf('.');
+        return (dot > Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\'))
+                ? fileName.substring(0, dot) : fileName) + ext;
+    }
+
+    /**
+     * Prints the flat profile and writes the collapsed call stacks to the
+     * object file name with the extension <code>.collapsed</code>.
+     */
+    private static void writeProfile(Profiler profiler, String fileName) {
+        System.out.println("\n" + profiler.instructions() + " instructions executed");
+        profiler.writeFlatProfile(System.out);
+        String stacks = outputName(fileName, ".collapsed");
+        try (PrintStream out = new PrintStream(stacks)) {
+            profiler.writeCollapsedStacks(out);
+            System.out.print("Call stacks written to " + stacks);
+        } catch (FileNotFoundException e) {
+            System.out.print("-- cannot write file " + stacks);
+        }
+    }
+
+    /**
+     * Writes the execution counts as JSON to the object file name with the
+     * extension <code>.counts.json</code> and the annotated listing to the
+     * one with <code>.lst</code>. The listing shows the methods and source
+     * lines if the object file has tables of them.
+     */
+    private static void writeCounts(InstructionCounter counter, ObjectFile obj, String fileName)
+            throws FormatException {
+        String json = outputName(fileName, ".counts.json");
+        String listing = outputName(fileName, ".lst");
+        try (PrintStream out = new PrintStream(json); PrintStream lst = new PrintStream(listing)) {
+            counter.writeJson(out);
+            if (obj.version >= 2) {
+                counter.writeListing(lst, obj);
+            } else {
+                counter.writeListing(lst);
+            }
+            System.out.print("\nExecution counts written to " + json + " and " + listing);
+        } catch (FileNotFoundException e) {
+            System.out.print("\n-- cannot write file " + json + " or " + listing);
+        }
+    }
+
+    private static Interpreter.Engine engine(String name) {
+        for (Interpreter.Engine e : Interpreter.Engine.values()) {
+            if (e.name().equalsIgnoreCase(name)) {
+                return e;
+            }
+        }
+        return null;
     }
 
     public static void main(String[] arg) {
         String fileName = null;
-        boolean debug = false;
+        Path heapFile = null;
+        Path checkpoint = null; // written after checkpointSteps steps
+        long checkpointSteps = 0;
+        Path restore = null;
+        Path cacheDir = null;
+        Path batchDir = null;
+        String serve = null; // port or socket file
+        int poolSize = Runtime.getRuntime().availableProcessors();
+        int maxInput = Server.DEFAULT_MAX_INPUT;
+        List<String> fileNames = new ArrayList<>();
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean traced = false; // debug output, profile or counts, which a batch cannot produce
+        long cacheSize = CodeCache.DEFAULT_MAX_BYTES;
+        Interpreter.Builder options = new Interpreter.Builder();
+        boolean verify = true;
         for (int i = 0; i < arg.length; i++) {
             if (arg[i].equals("-debug")) {
-                debug = true;
+                options.debug(true);
+                traced = true;
+            } else if (arg[i].equals("-gc")) {
+                options.collect(true);
+            } else if (arg[i].equals("-noverify")) {
+                verify = false;
+            } else if (arg[i].equals("-profile")) {
+                options.profile(true);
+                traced = true;
+            } else if (arg[i].equals("-count")) {
+                options.count(true);
+                traced = true;
+            } else if (arg[i].equals("-fuse")) {
+                options.superinstructions(true);
+            } else if (arg[i].equals("-quick")) {
+                options.quicken(true);
+            } else if (arg[i].equals("-tos")) {
+                options.cacheTop(true);
+            } else if (arg[i].equals("-grow")) {
+                options.grow(true);
+            } else if (arg[i].equals("-cache") && i + 1 < arg.length) {
+                cacheDir = Paths.get(arg[++i]);
+            } else if (arg[i].equals("-cachesize") && i + 1 < arg.length) {
+                cacheSize = 1024L * size(arg[++i]);
+                if (cacheSize == 0) {
+                    fileName = null;
+                    break;
+                }
+            } else if (arg[i].equals("-batch") && i + 1 < arg.length) {
+                batchDir = Paths.get(arg[++i]);
+            } else if (arg[i].equals("-threads") && i + 1 < arg.length) {
+                threads = size(arg[++i]);
+                if (threads == 0) {
+                    fileName = null;
+                    break;
+                }
+            } else if (arg[i].equals("-serve") && i + 1 < arg.length) {
+                serve = arg[++i];
+            } else if (arg[i].equals("-pool") && i + 1 < arg.length) {
+                poolSize = size(arg[++i]);
+                if (poolSize == 0) {
+                    fileName = null;
+                    break;
+                }
+            } else if (arg[i].equals("-maxinput") && i + 1 < arg.length) {
+                maxInput = size(arg[++i]);
+                if (maxInput == 0) {
+                    fileName = null;
+                    break;
+                }
+            } else if (arg[i].equals("-steps") && i + 1 < arg.length) {
+                long steps;
+                try {
+                    steps = Long.parseLong(arg[++i]);
+                } catch (NumberFormatException e) {
+                    steps = 0;
+                }
+                if (steps <= 0) {
+                    fileName = null;
+                    break;
+                }
+                options.stepQuota(steps);
+            } else if (arg[i].equals("-checkpoint-at") && i + 2 < arg.length) {
+                try {
+                    checkpointSteps = Long.parseLong(arg[++i]);
+                } catch (NumberFormatException e) {
+                    checkpointSteps = 0;
+                }
+                if (checkpointSteps <= 0) {
+                    fileName = null;
+                    break;
+                }
+                checkpoint = Paths.get(arg[++i]);
+            } else if (arg[i].equals("-restore") && i + 1 < arg.length) {
+                restore = Paths.get(arg[++i]);
+            } else if (arg[i].equals("-heapfile") && i + 1 < arg.length) {
+                heapFile = Paths.get(arg[++i]);
+            } else if (arg[i].equals("-engine") && i + 1 < arg.length) {
+                Interpreter.Engine engine = engine(arg[++i]);
+                if (engine == null) {
+                    fileName = null;
+                    break;
+                }
+                options.engine(engine);
+            } else if ((arg[i].equals("-heap") || arg[i].equals("-mstack") || arg[i].equals("-estack")
+                    || arg[i].equals("-heapquota")) && i + 1 < arg.length) {
+                int words = size(arg[i + 1]);
+                if (words == 0) {
+                    fileName = null;
+                    break;
+                }
+                if (arg[i].equals("-heap")) {
+                    options.heapSize(words);
+                } else if (arg[i].equals("-mstack")) {
+                    options.methodStackSize(words);
+                } else if (arg[i].equals("-heapquota")) {
+                    options.heapQuota(words);
+                } else {
+                    options.expressionStackSize(words);
+                }
+                i++;
             } else {
                 fileName = arg[i];
+                fileNames.add(fileName);
             }
         }
+        boolean resumable = checkpoint != null || restore != null;
+        if ((batchDir != null || serve != null) && (traced || heapFile != null || resumable)
+                || serve != null && batchDir != null || heapFile != null && resumable) {
+            fileName = null;
+        }
         if (fileName == null) {
-            System.out.println("Syntax: java ssw.mj.Run filename [-debug]");
+            System.out.println("Syntax: java ssw.mj.Run filename [-debug] [-engine switch|threaded|jit|register|closure] [-gc]"
+                    + " [-heap words] [-mstack words] [-estack words] [-grow] [-noverify] [-profile] [-count] [-fuse] [-quick] [-tos]"
+                    + " [-heapfile file] [-cache dir] [-cachesize kbytes] [-batch dir] [-threads n] [-steps n] [-heapquota words]"
+                    + " [-checkpoint-at n file] [-restore file]");
+            System.out.println("    or: java ssw.mj.Run -serve port|socket [-pool n] [-maxinput bytes] [options] filename...");
+            return;
+        }
+        if (serve != null) {
+            serve(serve, poolSize, maxInput, fileNames, options, verify, cacheDir, cacheSize);
             return;
         }
         try {
-            Interpreter r = load(fileName, debug);
+            ObjectFile obj = ObjectFile.read(Paths.get(fileName));
+            CodeCache cache = verify ? cache(cacheDir, cacheSize) : null;
+            if (batchDir != null) {
+                runBatch(obj, verify ? decode(obj, options, cache) : options, batchDir, threads);
+                return;
+            }
+            Interpreter r = cache != null ? load(obj, options, cache) : load(obj, options, verify);
+            if (r.getProfiler() != null) {
+                for (ObjectFile.Method m : obj.methods()) {
+                    r.getProfiler().nameMethod(m.entry, m.name);
+                }
+            }
+            if (restore != null) {
+                try {
+                    r.loadCheckpoint(restore);
+                } catch (IOException | IllegalStateException e) {
+                    System.out.println("-- cannot restore checkpoint " + restore + ": " + e.getMessage());
+                    return;
+                }
+            }
+            if (heapFile != null && Files.exists(heapFile)) {
+                try {
+                    r.loadHeap(heapFile);
+                } catch (IOException | IllegalStateException e) {
+                    System.out.println("-- cannot load heap file " + heapFile + ": " + e.getMessage());
+                    return;
+                }
+            }
 
             long startTime = System.currentTimeMillis();
-            r.run();
+            long time;
+            boolean finished;
+            try {
+                finished = r.runFor(checkpoint != null ? checkpointSteps : Long.MAX_VALUE);
+            } finally {
+                time = System.currentTimeMillis() - startTime; // without writing the profile
+                if (r.getProfiler() != null) { // also after runtime errors
+                    writeProfile(r.getProfiler(), fileName);
+                }
+                if (r.getInstructionCounter() != null) {
+                    writeCounts(r.getInstructionCounter(), obj, fileName);
+                }
+            }
 
-            System.out.print("\nCompletion took " + (System.currentTimeMillis() - startTime) + " ms");
+            if (!finished) {
+                try {
+                    r.saveCheckpoint(checkpoint);
+                    System.out.print("\nCheckpoint after " + checkpointSteps + " steps written to " + checkpoint
+                            + " in " + time + " ms");
+                } catch (IOException e) {
+                    System.out.print("\n-- cannot write checkpoint " + checkpoint);
+                }
+                return;
+            }
+            System.out.print("\nCompletion took " + time + " ms");
+            if (heapFile != null) {
+                try {
+                    r.saveHeap(heapFile);
+                } catch (IOException e) {
+                    System.out.print("\n-- cannot write heap file " + heapFile);
+                }
+            }
+            if (r.getGarbageCollector() != null) {
+                System.out.print("\n" + r.getGarbageCollector());
+            }
         } catch (FileNotFoundException e) {
             System.out.println("-- file " + fileName + " not found");
         } catch (FormatException e) {
@@ -75,12 +466,3 @@ public class Run {
         }
     }
 }
-
-class FormatException extends IOException {
-
-    private static final long serialVersionUID = 1L;
-
-    FormatException(String s) {
-        super(s);
-    }
-}
\ No newline at end of file
@@ -0,0 +1,184 @@
+package ssw.mj;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Runs many interpreters on a few carrier threads by time slicing. A
+ * submitted interpreter waits in a queue; a carrier takes it, runs it for one
+ * slice of steps with {@link Interpreter#runFor} and puts it back at the end
+ * of the queue if it was suspended. So every run gets its turn, however long
+ * the others are, and thousands of runs need no more than the carrier
+ * threads.
+ * <p>
+ * Each run keeps its own step and heap quotas; a run that exceeds them, is
+ * {@link Task#cancel cancelled} or raises a runtime error ends with that
+ * error. Code compiled by {@link Interpreter.Engine#JIT} is suspended only
+ * when it returns to the interpreter, see {@link Interpreter#runFor}.
+ */
+public final class Scheduler implements Closeable {
+
+    /**
+     * Run of an interpreter submitted to the scheduler.
+     */
+    public static final class Task {
+        private final Interpreter vm;
+        private boolean done; // guarded by this
+        private RuntimeException error; // that ended the run, null if main returned
+        private long slices; // run so far, only used by the carriers
+
+        Task(Interpreter vm) {
+            this.vm = vm;
+        }
+
+        /**
+         * Stops the run at its next slice with a runtime error.
+         */
+        public void cancel() {
+            vm.cancel();
+        }
+
+        public synchronized boolean isDone() {
+            return done;
+        }
+
+        /**
+         * Number of slices the run took so far.
+         */
+        public synchronized long slices() {
+            return slices;
+        }
+
+        /**
+         * Waits until the run is done.
+         *
+         * @throws IllegalStateException for the runtime error that ended the
+         *                               run
+         */
+        public synchronized void await() throws InterruptedException, IllegalStateException {
+            while (!done) {
+                wait();
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+
+        private synchronized void finish(RuntimeException e) {
+            error = e;
+            done = true;
+            notifyAll();
+        }
+    }
+
+    private final long slice;
+    private final LinkedBlockingQueue<Task> ready = new LinkedBlockingQueue<>();
+    private final Thread[] carriers;
+    private boolean closed; // guarded by ready
+
+    /**
+     * Scheduler with the given number of carrier threads, running every
+     * interpreter for the given number of steps at a time.
+     */
+    public Scheduler(int carriers, long slice) {
+        if (carriers <= 0) {
+            throw new IllegalArgumentException("number of carriers must be positive: " + carriers);
+        }
+        if (slice <= 0) {
+            throw new IllegalArgumentException("slice must be positive: " + slice);
+        }
+        this.slice = slice;
+        this.carriers = new Thread[carriers];
+        for (int i = 0; i < carriers; i++) {
+            this.carriers[i] = new Thread(this::carry, "mj-carrier-" + i);
+            this.carriers[i].setDaemon(true);
+            this.carriers[i].start();
+        }
+    }
+
+    /**
+     * Scheduler with one carrier thread per processor.
+     */
+    public Scheduler(long slice) {
+        this(Runtime.getRuntime().availableProcessors(), slice);
+    }
+
+    /**
+     * Queues a run of vm, which must not be used otherwise until the task
+     * is done. A suspended run of vm is continued. After {@link #close} the
+     * task is done at once with a runtime error and vm does not run.
+     */
+    public Task submit(Interpreter vm) {
+        Task t = new Task(vm);
+        synchronized (ready) {
+            if (!closed) {
+                ready.add(t);
+                return t;
+            }
+        }
+        t.finish(new IllegalStateException("scheduler closed"));
+        return t;
+    }
+
+    private void carry() {
+        try {
+            for (; ; ) {
+                Task t = ready.take();
+                boolean finished;
+                try {
+                    finished = t.vm.runFor(slice);
+                } catch (RuntimeException e) {
+                    t.finish(e);
+                    continue;
+                } catch (Error e) {
+                    t.finish(new IllegalStateException(e.toString(), e));
+                    continue;
+                }
+                synchronized (t) {
+                    t.slices++;
+                }
+                if (finished) {
+                    t.finish(null);
+                } else {
+                    ready.add(t);
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Stops the carriers after their current slice. Runs that are not done,
+     * and runs submitted later, end with a runtime error.
+     */
+    @Override
+    public void close() {
+        synchronized (ready) {
+            closed = true;
+        }
+        for (Thread c : carriers) {
+            c.interrupt();
+        }
+        boolean interrupted = false;
+        for (Thread c : carriers) {
+            while (c.isAlive()) {
+                try {
+                    c.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        List<Task> left = new ArrayList<>();
+        ready.drainTo(left);
+        for (Task t : left) {
+            t.finish(new IllegalStateException("scheduler closed"));
+        }
+    }
+}
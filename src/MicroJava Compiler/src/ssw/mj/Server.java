@@ -0,0 +1,424 @@
+package ssw.mj;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs loaded programs on request over a local socket, so that a run costs no
+ * JVM startup, loading and decoding. Every program has a pool of interpreters
+ * built when it is loaded; a request takes one from the pool,
+ * {@link Interpreter#reset resets} it and returns it afterwards, so quickened
+ * instructions and JIT-compiled methods carry over from one request to the
+ * next. Requests wait when all interpreters of their program are busy.
+ * <p>
+ * The server listens on a loopback port or a Unix-domain socket. A
+ * connection carries any number of requests, one after the other:
+ * <ul>
+ * <li><code>RUN name n</code> and a line feed, followed by n bytes of input,
+ * runs the program. The output is sent while the program runs, in chunks of
+ * <code>D k</code> and a line feed followed by k bytes. The response ends with
+ * <code>OK</code> and a line feed, or <code>ERROR message</code> and a line
+ * feed after a runtime error.</li>
+ * <li><code>STATS</code> sends the {@link #stats statistics} as one chunk,
+ * followed by <code>OK</code>.</li>
+ * </ul>
+ * Malformed requests are answered by <code>ERROR message</code>. Requests
+ * with more input than the {@link #Server(int, int) maximum} are answered by
+ * <code>ERROR input too long</code>; their input is skipped.
+ */
+public final class Server implements Closeable {
+
+    private static final int SAMPLES = 8192; // latencies kept per program for the percentiles
+    private static final int MAX_LINE = 1024; // longest request line
+
+    /**
+     * Default maximum input of a request in bytes.
+     */
+    public static final int DEFAULT_MAX_INPUT = 1 << 20;
+
+    /**
+     * Loaded program with its pool of interpreters and statistics.
+     */
+    private static final class Program {
+        final String name;
+        final int size; // of the pool
+        final BlockingQueue<Interpreter> idle;
+        final long loaded = System.nanoTime();
+
+        // statistics, guarded by this
+        long requests;
+        long errors;
+        final long[] latencies = new long[SAMPLES]; // last requests in nanoseconds, circular
+        long busyNanos; // total time interpreters were taken
+        int busy, peak; // interpreters taken now and at most
+
+        Program(String name, List<Interpreter> pool) {
+            this.name = name;
+            size = pool.size();
+            idle = new ArrayBlockingQueue<>(size, false, pool);
+        }
+
+        Interpreter take() throws InterruptedException {
+            Interpreter inter = idle.take();
+            synchronized (this) {
+                busy++;
+                peak = Math.max(peak, busy);
+            }
+            return inter;
+        }
+
+        void release(Interpreter inter, long busyTime, long latency, boolean error) {
+            synchronized (this) {
+                busy--;
+                busyNanos += busyTime;
+                latencies[(int) (requests % SAMPLES)] = latency;
+                requests++;
+                if (error) {
+                    errors++;
+                }
+            }
+            idle.add(inter);
+        }
+
+        synchronized String stats() {
+            StringBuilder sb = new StringBuilder(name).append(": ").append(requests).append(" requests, ")
+                    .append(errors).append(" errors");
+            if (requests > 0) {
+                long[] sorted = Arrays.copyOf(latencies, (int) Math.min(requests, SAMPLES));
+                Arrays.sort(sorted);
+                sb.append(", latency p50 ").append(millis(percentile(sorted, 50))) //
+                        .append(" p90 ").append(millis(percentile(sorted, 90))) //
+                        .append(" p99 ").append(millis(percentile(sorted, 99))) //
+                        .append(" max ").append(millis(sorted[sorted.length - 1])).append(" ms");
+            }
+            long up = Math.max(System.nanoTime() - loaded, 1);
+            sb.append("; pool of ").append(size).append(", ").append(busy).append(" busy, peak ").append(peak)
+                    .append(String.format(", %.1f%% used", 100.0 * busyNanos / up / size));
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Smallest sample that is not below p percent of the samples.
+     */
+    private static long percentile(long[] sorted, int p) {
+        int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+        return sorted[Math.max(rank - 1, 0)];
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3f", nanos / 1e6);
+    }
+
+    private final int poolSize;
+    private final int maxInput;
+    private final Map<String, Program> programs = new LinkedHashMap<>();
+    private final ExecutorService connections = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "mj-connection");
+        t.setDaemon(true);
+        return t;
+    });
+    private ServerSocketChannel channel;
+    private Path socketFile; // deleted on close, null for a port
+
+    /**
+     * Server with poolSize interpreters per program, accepting requests with
+     * up to {@link #DEFAULT_MAX_INPUT} bytes of input.
+     */
+    public Server(int poolSize) {
+        this(poolSize, DEFAULT_MAX_INPUT);
+    }
+
+    /**
+     * Server with poolSize interpreters per program, accepting requests with
+     * up to maxInput bytes of input.
+     */
+    public Server(int poolSize, int maxInput) {
+        if (poolSize <= 0) {
+            throw new IllegalArgumentException("pool size must be positive: " + poolSize);
+        }
+        if (maxInput < 0) {
+            throw new IllegalArgumentException("maximum input must not be negative: " + maxInput);
+        }
+        this.poolSize = poolSize;
+        this.maxInput = maxInput;
+    }
+
+    /**
+     * Loads the verified object file as program name, with interpreters built
+     * by options.
+     */
+    public void load(String name, Path file, Interpreter.Builder options) throws IOException {
+        load(name, ObjectFile.read(file), options, true, null);
+    }
+
+    /**
+     * Loads obj as program name. The code is verified if verify is set, using
+     * the cache if it is not null. Must be called before {@link #serve}.
+     */
+    synchronized void load(String name, ObjectFile obj, Interpreter.Builder options, boolean verify,
+            CodeCache cache) throws FormatException {
+        if (verify) {
+            options = Run.decode(obj, options, cache);
+        }
+        List<Interpreter> pool = new ArrayList<>();
+        for (int i = 0; i < poolSize; i++) {
+            pool.add(options.build(obj.code, obj.startPC, obj.dataSize));
+        }
+        programs.put(name, new Program(name, pool));
+    }
+
+    /**
+     * Listens on the given loopback port, 0 for any free port. Returns the
+     * address.
+     */
+    public SocketAddress bind(int port) throws IOException {
+        channel = ServerSocketChannel.open();
+        channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        return channel.getLocalAddress();
+    }
+
+    /**
+     * Listens on a Unix-domain socket at file, which must not exist.
+     */
+    public SocketAddress bind(Path file) throws IOException {
+        channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        channel.bind(UnixDomainSocketAddress.of(file));
+        socketFile = file;
+        return channel.getLocalAddress();
+    }
+
+    /**
+     * Accepts connections until the server is closed. Every connection is
+     * handled by its own thread.
+     */
+    public void serve() throws IOException {
+        try {
+            for (; ; ) {
+                SocketChannel ch = channel.accept();
+                connections.execute(() -> handle(ch));
+            }
+        } catch (ClosedChannelException e) {
+            // closed by close()
+        }
+    }
+
+    /**
+     * Statistics of every program: number of requests and runtime errors,
+     * percentiles of the latencies of the last requests, including the wait
+     * for an interpreter, and the size of the pool with the number of busy
+     * interpreters, the largest number so far and the share of time the
+     * interpreters were busy since the program was loaded.
+     */
+    public synchronized String stats() {
+        StringBuilder sb = new StringBuilder();
+        for (Program p : programs.values()) {
+            sb.append(p.stats()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        connections.shutdownNow();
+        if (channel != null) {
+            channel.close();
+        }
+        if (socketFile != null) {
+            Files.deleteIfExists(socketFile);
+        }
+    }
+
+    // ----- connections
+
+    private void handle(SocketChannel ch) {
+        try (ch) {
+            InputStream in = new BufferedInputStream(Channels.newInputStream(ch));
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(ch));
+            for (String request = readLine(in); request != null; request = readLine(in)) {
+                String[] words = request.split(" ");
+                if (words[0].equals("RUN") && words.length == 3) {
+                    run(words[1], words[2], in, out);
+                } else if (request.equals("STATS")) {
+                    byte[] stats = stats().getBytes(StandardCharsets.ISO_8859_1);
+                    chunk(out, stats, stats.length);
+                    out.write("OK\n".getBytes(StandardCharsets.US_ASCII));
+                } else {
+                    out.write("ERROR unknown request\n".getBytes(StandardCharsets.US_ASCII));
+                }
+                out.flush();
+            }
+        } catch (IOException | UncheckedIOException e) {
+            // the client is gone
+        } catch (InterruptedException e) {
+            // the server is closed
+        }
+    }
+
+    private void run(String name, String length, InputStream in, OutputStream out)
+            throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        long len;
+        try {
+            len = Long.parseLong(length);
+        } catch (NumberFormatException e) {
+            len = -1;
+        }
+        if (len < 0) {
+            out.write("ERROR wrong input length\n".getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+        if (len > maxInput) {
+            in.skipNBytes(len); // keeps the connection in step with the requests
+            out.write("ERROR input too long\n".getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+        byte[] input = new byte[(int) len];
+        int n = in.readNBytes(input, 0, input.length);
+        if (n < input.length) {
+            throw new EOFException();
+        }
+        Program p;
+        synchronized (this) {
+            p = programs.get(name);
+        }
+        if (p == null) {
+            out.write(("ERROR unknown program " + name + "\n").getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+        Interpreter inter = p.take();
+        long taken = System.nanoTime();
+        String error = null;
+        try {
+            inter.reset(new StreamIO(input, out));
+            inter.run(); // flushes the output
+        } catch (IllegalStateException e) {
+            error = message(e);
+        } finally {
+            long end = System.nanoTime();
+            p.release(inter, end - taken, end - start, error != null);
+        }
+        out.write((error == null ? "OK\n" : "ERROR " + error + "\n").getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Message of a runtime error as one line of the response.
+     */
+    private static String message(IllegalStateException e) {
+        String msg = e.getMessage();
+        if (msg == null || msg.isBlank()) {
+            return "runtime error";
+        }
+        return msg.replace('\r', ' ').replace('\n', ' ');
+    }
+
+    /**
+     * Next line of in without the line feed, null at the end of the input.
+     * Lines longer than {@link #MAX_LINE} end the connection.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int b = in.read();
+        if (b < 0) {
+            return null;
+        }
+        while (b != '\n') {
+            if (b < 0) {
+                throw new EOFException();
+            }
+            if (sb.length() == MAX_LINE) {
+                throw new IOException("request line too long");
+            }
+            sb.append((char) b);
+            b = in.read();
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes the first n bytes of buf as a chunk of output.
+     */
+    private static void chunk(OutputStream out, byte[] buf, int n) throws IOException {
+        out.write(("D " + n + "\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(buf, 0, n);
+    }
+
+    /**
+     * Input from the request and output sent in chunks.
+     */
+    private static final class StreamIO implements Interpreter.IO {
+        private static final int SIZE = 8192;
+
+        private final byte[] input;
+        private int inPos;
+        private final OutputStream out;
+        private final byte[] buf = new byte[SIZE];
+        private int n; // number of buffered bytes
+
+        StreamIO(byte[] input, OutputStream out) {
+            this.input = input;
+            this.out = out;
+        }
+
+        @Override
+        public char read() {
+            return inPos < input.length ? (char) (input[inPos++] & 0xff) : 0;
+        }
+
+        @Override
+        public void write(char c) {
+            if (n == SIZE) {
+                send();
+            }
+            buf[n++] = (byte) c;
+        }
+
+        @Override
+        public void flush() {
+            send();
+            try {
+                out.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void send() {
+            if (n > 0) {
+                try {
+                    chunk(out, buf, n);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                n = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package ssw.mj;
+
+import ssw.mj.codegen.Code.OpCode;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Superinstructions of {@link ThreadedCode}: frequent instruction sequences
+ * executed with a single dispatch. The set was chosen from the pairs and
+ * triples of instructions executed by Prims, StudentList, TestProgram and the
+ * test programs:
+ * <ul>
+ * <li><code>load load</code> and <code>load const</code>, the operands of
+ * most operations and comparisons,</li>
+ * <li><code>load load jcc</code> and <code>load const jcc</code>, the
+ * conditions of loops and ifs,</li>
+ * <li><code>load load add store</code>, an assignment of a sum,</li>
+ * <li><code>const add</code>, adding a constant,</li>
+ * <li><code>dup2 aload const add astore</code>, the compound assignment
+ * <code>a[i] += c</code>,</li>
+ * <li><code>inc jmp</code>, the end of a counting loop.</li>
+ * </ul>
+ * Execute<br>
+ * <code>java ssw.mj.Superinstructions &lt;<i>object file</i>&gt;... [-runs n] [-input text]</code><br>
+ * to print the most frequent pairs and triples of the programs and, per
+ * program, how many dispatches the superinstructions save and how much
+ * faster the threaded engine gets.
+ */
+public class Superinstructions {
+
+    private static final int DEFAULT_RUNS = 100;
+    private static final int TOP = 12; // number of sequences reported
+    private static final int ROUNDS = 5; // of alternating measurements
+
+    private Superinstructions() {
+    }
+
+    /**
+     * Adds the execution counts of the instruction sequences of the given
+     * length to <code>sequences</code>. Only sequences in which no
+     * instruction but the last one jumps are counted; they are executed as
+     * often as their first instruction.
+     */
+    private static void countSequences(byte[] code, InstructionCounter counter, int length,
+                                       Map<String, Long> sequences) {
+        for (int pc = 0; pc < code.length; pc++) {
+            long n = counter.count(pc);
+            if (n == 0) {
+                continue;
+            }
+            StringBuilder seq = new StringBuilder();
+            int p = pc;
+            int k = 0;
+            while (k < length && p < code.length) {
+                OpCode op = OpCode.get(code[p]);
+                if (op == null) {
+                    break;
+                }
+                seq.append(k == 0 ? "" : " ").append(op.cleanName());
+                k++;
+                if (k < length && (op.code() >= ThreadedCode.JMP && op.code() <= ThreadedCode.EXIT
+                        || op == OpCode.trap)) {
+                    break;
+                }
+                p += 1 + op.getOpsSize();
+            }
+            if (k == length) {
+                sequences.merge(seq.toString(), n, Long::sum);
+            }
+        }
+    }
+
+    private static void printTop(String title, Map<String, Long> sequences, long instructions) {
+        System.out.println(title);
+        sequences.entrySet().stream().sorted((a, b) -> Long.compare(b.getValue(), a.getValue())).limit(TOP)
+                .forEach(e -> System.out.printf("  %10d %6.2f%%  %s%n", e.getValue(),
+                        100.0 * e.getValue() / instructions, e.getKey()));
+    }
+
+    /**
+     * Number of dispatches saved by the superinstructions, assuming that they
+     * never fall back to single instructions.
+     */
+    private static long savedDispatches(byte[] code, int startPC, InstructionCounter counter) {
+        ThreadedCode fused = ThreadedCode.decodeFused(code, startPC);
+        long saved = 0;
+        for (int pc = 0; pc < code.length; pc++) {
+            if (fused.index[pc] >= 0) {
+                saved += counter.count(pc) * (ThreadedCode.components(fused.ops[fused.index[pc]]) - 1);
+            }
+        }
+        return saved;
+    }
+
+    private static long measure(String fileName, boolean fuse, String input, int runs) throws IOException {
+        return Benchmark.measure(fileName,
+                new Interpreter.Builder().engine(Interpreter.Engine.THREADED).superinstructions(fuse), input, runs);
+    }
+
+    public static void main(String[] args) {
+        String input = "";
+        int runs = DEFAULT_RUNS;
+        int nFiles = 0;
+        String[] files = new String[args.length];
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-runs") && i + 1 < args.length) {
+                runs = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-input") && i + 1 < args.length) {
+                input = args[++i];
+            } else {
+                files[nFiles++] = args[i];
+            }
+        }
+        if (nFiles == 0 || runs <= 0) {
+            System.out.println("Syntax: java ssw.mj.Superinstructions filename... [-runs n] [-input text]");
+            return;
+        }
+        Map<String, Long> pairs = new HashMap<>();
+        Map<String, Long> triples = new HashMap<>();
+        long instructions = 0;
+        StringBuilder report = new StringBuilder(String.format("%-24s %12s %12s %7s %12s %12s %7s%n", "program",
+                "instructions", "dispatches", "saved", "plain us", "fused us", "speedup"));
+        for (int f = 0; f < nFiles; f++) {
+            String fileName = files[f];
+            try {
+                Interpreter r = Run.load(fileName,
+                        new Interpreter.Builder().count(true).io(new Interpreter.BufferIO(input)));
+                try {
+                    r.run();
+                } catch (IllegalStateException e) {
+                    // counted up to the error
+                }
+                InstructionCounter counter = r.getInstructionCounter();
+                countSequences(r.code, counter, 2, pairs);
+                countSequences(r.code, counter, 3, triples);
+                instructions += counter.instructions();
+
+                long saved = savedDispatches(r.code, r.startPC, counter);
+                long plain = Long.MAX_VALUE;
+                long fused = Long.MAX_VALUE;
+                for (int round = 0; round < ROUNDS; round++) {
+                    // alternating, because both share the compiled code of the engine
+                    plain = Math.min(plain, measure(fileName, false, input, runs));
+                    fused = Math.min(fused, measure(fileName, true, input, runs));
+                }
+                report.append(String.format("%-24s %12d %12d %6.1f%% %12.1f %12.1f %6.2fx%n", fileName,
+                        counter.instructions(), counter.instructions() - saved,
+                        100.0 * saved / Math.max(counter.instructions(), 1), plain / 1000.0, fused / 1000.0,
+                        (double) plain / fused));
+            } catch (FileNotFoundException e) {
+                System.out.println("-- file " + fileName + " not found");
+            } catch (FormatException e) {
+                System.out.println("-- corrupted object file " + fileName + ": " + e.getMessage());
+            } catch (IOException e) {
+                System.out.println("-- error reading file " + fileName);
+            }
+        }
+        printTop("Most frequent pairs of " + instructions + " instructions:", pairs, instructions);
+        printTop("Most frequent triples:", triples, instructions);
+        System.out.println();
+        System.out.print(report);
+    }
+}
@@ -0,0 +1,2240 @@
+package ssw.mj;
+
+import ssw.mj.codegen.Code.OpCode;
+
+import java.util.Arrays;
+
+/**
+ * Pre-decoded form of a MicroJava program. The byte code is decoded once into
+ * an int array holding every instruction followed by its operands. Operands are
+ * sign-extended and stored inline, jump and call targets are resolved to
+ * positions in the instruction stream. Only code reachable from the main
+ * method is decoded. Instances are immutable and can be shared between
+ * interpreters running the same program.
+ */
+final class ThreadedCode {
+
+    // ----- instruction codes (same numbering as Code.OpCode)
+    static final int LOAD = 1, LOAD_0 = 2, LOAD_1 = 3, LOAD_2 = 4, LOAD_3 = 5,
+            STORE = 6, STORE_0 = 7, STORE_1 = 8, STORE_2 = 9, STORE_3 = 10,
+            GETSTATIC = 11, PUTSTATIC = 12, GETFIELD = 13, PUTFIELD = 14,
+            CONST_0 = 15, CONST_1 = 16, CONST_2 = 17, CONST_3 = 18, CONST_4 = 19, CONST_5 = 20,
+            CONST_M1 = 21, CONST = 22,
+            ADD = 23, SUB = 24, MUL = 25, DIV = 26, REM = 27, NEG = 28, SHL = 29, SHR = 30, INC = 31,
+            NEW = 32, NEWARRAY = 33,
+            ALOAD = 34, ASTORE = 35, BALOAD = 36, BASTORE = 37, ARRAYLENGTH = 38,
+            POP = 39, DUP = 40, DUP2 = 41,
+            JMP = 42, JEQ = 43, JNE = 44, JLT = 45, JLE = 46, JGT = 47, JGE = 48,
+            CALL = 49, RETURN = 50, ENTER = 51, EXIT = 52,
+            READ = 53, PRINT = 54, BREAD = 55, BPRINT = 56, TRAP = 57, NOP = 58;
+
+    /**
+     * Pseudo instruction for undefined opcodes, truncated instructions and
+     * control flow leaving the code area. Operand: the offending byte code pc.
+     */
+    static final int BAD = 0;
+
+    /**
+     * Pseudo instructions of the code decoded for {@link Jit}. A call of a
+     * method that may be compiled (operands: target, return pc, method id), a
+     * backward jump that is counted for its method and may continue the
+     * activation in its compiled code (operands: target, method id, target
+     * pc), and the instruction reached by returning to {@link Jit#sentinel()},
+     * which leaves {@link #execute(Interpreter, int)}.
+     */
+    static final int CALL_COUNTED = 59, JMP_COUNTED = 60, LEAVE = 61;
+
+    /**
+     * Superinstructions, see {@link Superinstructions}. A superinstruction is
+     * placed in front of the instructions it fuses, which stay in the stream
+     * unchanged. Its first operand is the position behind the fused
+     * instructions, the others are the operands it needs. If the fused
+     * instructions cannot be executed at once, e.g. because the expression
+     * stack would have to grow, the superinstruction just skips its operands
+     * and the instructions are executed one by one. Jumps into the middle of a
+     * fused sequence reach the single instructions as well.
+     */
+    static final int LOAD_LOAD = 62, // load a, load b: operands a, b
+            LOAD_CONST = 63, // load a, const c: operands a, c
+            LOAD_CONST_JCC = 64, // load a, const c, jcc: operands a, c, jcc
+            LOAD_LOAD_JCC = 65, // load a, load b, jcc: operands a, b, jcc
+            LOAD_LOAD_ADD_STORE = 66, // load a, load b, add, store k: operands a, b, k
+            CONST_ADD = 67, // const c, add: operand c
+            ARRAY_INC = 68, // dup2, aload, const c, add, astore: operand c
+            INC_JMP = 69; // inc a d, backward jmp: operands a, d
+
+    /**
+     * Backward jump, the only jump that counts a step of the run (operand:
+     * target). The decoder emits it for every backward jmp and, behind the
+     * code, as a stub through which every backward conditional jump goes, so
+     * forward jumps need not look at their direction.
+     */
+    static final int JMP_BACK = 70;
+
+    /**
+     * Unchecked forms of instructions, see {@link #unchecked()}. The unchecked
+     * form of an instruction has the code of the instruction plus
+     * <code>UNCHECKED</code> and the same operands. It executes like the
+     * instruction but neither checks nor grows the expression stack, which
+     * is only correct for verified code whose stack has been reserved.
+     */
+    static final int UNCHECKED = 71;
+    static final int U_LOAD = UNCHECKED + LOAD, U_LOAD_0 = UNCHECKED + LOAD_0, U_LOAD_1 = UNCHECKED + LOAD_1,
+            U_LOAD_2 = UNCHECKED + LOAD_2, U_LOAD_3 = UNCHECKED + LOAD_3,
+            U_STORE = UNCHECKED + STORE, U_STORE_0 = UNCHECKED + STORE_0, U_STORE_1 = UNCHECKED + STORE_1,
+            U_STORE_2 = UNCHECKED + STORE_2, U_STORE_3 = UNCHECKED + STORE_3,
+            U_GETSTATIC = UNCHECKED + GETSTATIC, U_PUTSTATIC = UNCHECKED + PUTSTATIC,
+            U_GETFIELD = UNCHECKED + GETFIELD, U_PUTFIELD = UNCHECKED + PUTFIELD,
+            U_CONST_0 = UNCHECKED + CONST_0, U_CONST_1 = UNCHECKED + CONST_1, U_CONST_2 = UNCHECKED + CONST_2,
+            U_CONST_3 = UNCHECKED + CONST_3, U_CONST_4 = UNCHECKED + CONST_4, U_CONST_5 = UNCHECKED + CONST_5,
+            U_CONST_M1 = UNCHECKED + CONST_M1, U_CONST = UNCHECKED + CONST,
+            U_ADD = UNCHECKED + ADD, U_SUB = UNCHECKED + SUB, U_MUL = UNCHECKED + MUL, U_DIV = UNCHECKED + DIV,
+            U_REM = UNCHECKED + REM, U_NEG = UNCHECKED + NEG, U_SHL = UNCHECKED + SHL, U_SHR = UNCHECKED + SHR,
+            U_ALOAD = UNCHECKED + ALOAD, U_ASTORE = UNCHECKED + ASTORE, U_BALOAD = UNCHECKED + BALOAD,
+            U_BASTORE = UNCHECKED + BASTORE, U_ARRAYLENGTH = UNCHECKED + ARRAYLENGTH,
+            U_POP = UNCHECKED + POP, U_DUP = UNCHECKED + DUP, U_DUP2 = UNCHECKED + DUP2,
+            U_JEQ = UNCHECKED + JEQ, U_JNE = UNCHECKED + JNE, U_JLT = UNCHECKED + JLT, U_JLE = UNCHECKED + JLE,
+            U_JGT = UNCHECKED + JGT, U_JGE = UNCHECKED + JGE,
+            U_ENTER = UNCHECKED + ENTER;
+
+    /**
+     * Instruction stream.
+     */
+    final int[] ops;
+
+    /**
+     * Maps byte code pcs to positions in <code>ops</code>, -1 if no
+     * instruction starts at that pc. Code decoded for {@link Jit} has one more
+     * entry, which maps the sentinel return address to {@link #LEAVE}.
+     */
+    final int[] index;
+
+    /**
+     * Position of the main method in <code>ops</code>.
+     */
+    final int start;
+
+    ThreadedCode(int[] ops, int[] index, int start) {
+        this.ops = ops;
+        this.index = index;
+        this.start = start;
+    }
+
+    // ----- decoding
+
+    /**
+     * Decodes all instructions reachable from <code>startPC</code>.
+     */
+    static ThreadedCode decode(byte[] code, int startPC) {
+        return decode(code, startPC, null, false);
+    }
+
+    /**
+     * Decodes all instructions reachable from <code>startPC</code> and puts
+     * superinstructions in front of frequent instruction sequences.
+     */
+    static ThreadedCode decodeFused(byte[] code, int startPC) {
+        return decode(code, startPC, null, true);
+    }
+
+    /**
+     * Decodes all instructions reachable from <code>startPC</code>. If
+     * <code>analysis</code> is not null, calls and backward jumps are counted
+     * for {@link Jit}.
+     */
+    static ThreadedCode decode(byte[] code, int startPC, CodeAnalysis analysis) {
+        return decode(code, startPC, analysis, false);
+    }
+
+    private static ThreadedCode decode(byte[] code, int startPC, CodeAnalysis analysis, boolean fuse) {
+        boolean[] reachable = findInstructions(code, startPC);
+
+        int[] index = new int[analysis != null ? code.length + 1 : code.length];
+        Arrays.fill(index, -1);
+        int[] ops = new int[16];
+        int n = 0;
+        // positions in ops holding a byte code pc that must be resolved
+        int[] fixups = new int[16];
+        int nFixups = 0;
+        // positions of the targets of backward conditional jumps, each followed by its pc
+        int[] backward = new int[16];
+        int nBackward = 0;
+        int[] operands = new int[3]; // of a superinstruction
+        int covered = 0; // end of the last fused sequence
+
+        for (int pc = 0; pc < code.length; pc++) {
+            if (!reachable[pc]) {
+                continue;
+            }
+            index[pc] = n;
+            if (ops.length - n < 16) {
+                ops = Arrays.copyOf(ops, ops.length * 2);
+            }
+            if (fuse && pc >= covered) {
+                int sup = fuse(code, reachable, pc, operands);
+                if (sup != 0) {
+                    // position behind the fused instructions
+                    int next = n + 2 + operands(sup);
+                    covered = pc;
+                    for (int i = 0; i < components(sup); i++) {
+                        next += 1 + operands(code[covered]);
+                        covered += length(code, covered);
+                    }
+                    ops[n++] = sup;
+                    ops[n++] = next;
+                    for (int i = 0; i < operands(sup); i++) {
+                        ops[n++] = operands[i];
+                    }
+                }
+            }
+            int op = code[pc];
+            int len = length(code, pc);
+            if (len < 0) { // undefined or truncated
+                ops[n++] = BAD;
+                ops[n++] = pc;
+                continue;
+            }
+            int next = pc + len;
+            ops[n++] = op;
+            switch (op) {
+                case LOAD:
+                case STORE:
+                case NEWARRAY:
+                case TRAP:
+                    ops[n++] = code[pc + 1];
+                    break;
+                case GETSTATIC:
+                case PUTSTATIC:
+                case GETFIELD:
+                case PUTFIELD:
+                case NEW:
+                    ops[n++] = get2(code, pc + 1);
+                    break;
+                case CONST:
+                    ops[n++] = get4(code, pc + 1);
+                    break;
+                case INC:
+                case ENTER:
+                    ops[n++] = code[pc + 1];
+                    ops[n++] = code[pc + 2];
+                    break;
+                case JMP:
+                    if (nFixups == fixups.length) {
+                        fixups = Arrays.copyOf(fixups, nFixups * 2);
+                    }
+                    fixups[nFixups++] = n;
+                    ops[n++] = pc + get2(code, pc + 1);
+                    if (get2(code, pc + 1) <= 0) {
+                        if (analysis != null && analysis.owner[pc] > 0) {
+                            ops[n - 2] = JMP_COUNTED;
+                            ops[n++] = analysis.owner[pc];
+                            ops[n++] = pc + get2(code, pc + 1);
+                        } else {
+                            ops[n - 2] = JMP_BACK;
+                        }
+                    }
+                    break;
+                case JEQ:
+                case JNE:
+                case JLT:
+                case JLE:
+                case JGT:
+                case JGE:
+                    if (get2(code, pc + 1) <= 0) { // goes through a stub
+                        if (nBackward + 2 > backward.length) {
+                            backward = Arrays.copyOf(backward, backward.length * 2);
+                        }
+                        backward[nBackward++] = n;
+                        backward[nBackward++] = pc;
+                    } else {
+                        if (nFixups == fixups.length) {
+                            fixups = Arrays.copyOf(fixups, nFixups * 2);
+                        }
+                        fixups[nFixups++] = n;
+                    }
+                    ops[n++] = pc + get2(code, pc + 1);
+                    break;
+                case CALL:
+                    if (nFixups == fixups.length) {
+                        fixups = Arrays.copyOf(fixups, nFixups * 2);
+                    }
+                    fixups[nFixups++] = n;
+                    ops[n++] = pc + get2(code, pc + 1);
+                    ops[n++] = next; // return address
+                    if (analysis != null) {
+                        CodeAnalysis.MethodInfo callee = analysis.methodAt(pc + get2(code, pc + 1));
+                        if (callee != null && callee.id > 0) {
+                            ops[n - 3] = CALL_COUNTED;
+                            ops[n++] = callee.id;
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+            if (fallsThrough(op) && (next >= code.length || !reachable[next] || !nextStartIs(reachable, pc, next))) {
+                // the successor was not decoded directly behind this instruction
+                if (nFixups == fixups.length) {
+                    fixups = Arrays.copyOf(fixups, nFixups * 2);
+                }
+                ops[n++] = JMP;
+                fixups[nFixups++] = n;
+                ops[n++] = next;
+            }
+        }
+
+        ops = Arrays.copyOf(ops, n + 2 * nBackward + 3);
+        fixups = Arrays.copyOf(fixups, nFixups + nBackward / 2);
+        for (int i = 0; i < nBackward; i += 2) {
+            int pc = backward[i + 1];
+            fixups[nFixups++] = n + 1;
+            ops[n + 1] = ops[backward[i]];
+            ops[backward[i]] = n;
+            if (analysis != null && analysis.owner[pc] > 0) {
+                ops[n] = JMP_COUNTED;
+                ops[n + 2] = analysis.owner[pc];
+                ops[n + 3] = ops[n + 1];
+                n += 4;
+            } else {
+                ops[n] = JMP_BACK;
+                n += 2;
+            }
+        }
+
+        // shared target for jumps leaving the code area
+        int outside = n;
+        ops[n++] = BAD;
+        ops[n++] = -1;
+        if (analysis != null) {
+            index[code.length] = n;
+            ops[n++] = LEAVE;
+        }
+        for (int i = 0; i < nFixups; i++) {
+            int target = ops[fixups[i]];
+            if (target < 0 || target >= code.length) {
+                ops[fixups[i]] = outside;
+            } else {
+                ops[fixups[i]] = index[target];
+            }
+        }
+        return new ThreadedCode(ops, index, index[startPC]);
+    }
+
+    /**
+     * Returns this code with the instructions replaced by their unchecked
+     * forms where there are some, for verified code decoded by
+     * {@link #decode(byte[], int)}. Positions stay the same, so a run can
+     * switch between both forms at every step. The unchecked code may only be
+     * executed while the expression stack can hold the words that the rest of
+     * the run needs, see {@link CodeAnalysis#stackBound()}; verified code
+     * never takes more values from the stack than it pushed.
+     */
+    ThreadedCode unchecked() {
+        int[] ops = this.ops.clone();
+        for (int i = 0; i < ops.length; i += 1 + operands(this.ops[i])) {
+            switch (ops[i]) {
+                case LOAD:
+                case LOAD_0:
+                case LOAD_1:
+                case LOAD_2:
+                case LOAD_3:
+                case STORE:
+                case STORE_0:
+                case STORE_1:
+                case STORE_2:
+                case STORE_3:
+                case GETSTATIC:
+                case PUTSTATIC:
+                case GETFIELD:
+                case PUTFIELD:
+                case CONST_0:
+                case CONST_1:
+                case CONST_2:
+                case CONST_3:
+                case CONST_4:
+                case CONST_5:
+                case CONST_M1:
+                case CONST:
+                case ADD:
+                case SUB:
+                case MUL:
+                case DIV:
+                case REM:
+                case NEG:
+                case SHL:
+                case SHR:
+                case ALOAD:
+                case ASTORE:
+                case BALOAD:
+                case BASTORE:
+                case ARRAYLENGTH:
+                case POP:
+                case DUP:
+                case DUP2:
+                case JEQ:
+                case JNE:
+                case JLT:
+                case JLE:
+                case JGT:
+                case JGE:
+                case ENTER:
+                    ops[i] += UNCHECKED;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return new ThreadedCode(ops, index, start);
+    }
+
+    /**
+     * Marks the start of every instruction reachable from the main method or
+     * from one of the methods it calls.
+     */
+    private static boolean[] findInstructions(byte[] code, int startPC) {
+        boolean[] reachable = new boolean[code.length];
+        int[] work = new int[16];
+        int nWork = 0;
+        work[nWork++] = startPC;
+        while (nWork > 0) {
+            int pc = work[--nWork];
+            while (pc >= 0 && pc < code.length && !reachable[pc]) {
+                reachable[pc] = true;
+                int op = code[pc];
+                int len = length(code, pc);
+                if (len < 0) {
+                    break;
+                }
+                if (op >= JMP && op <= CALL) {
+                    if (nWork == work.length) {
+                        work = Arrays.copyOf(work, nWork * 2);
+                    }
+                    work[nWork++] = pc + get2(code, pc + 1);
+                }
+                if (!fallsThrough(op)) {
+                    break;
+                }
+                pc += len;
+            }
+        }
+        return reachable;
+    }
+
+    /**
+     * Returns true if <code>next</code> is the first instruction start behind
+     * <code>pc</code>, i.e. no other decoded instruction overlaps.
+     */
+    private static boolean nextStartIs(boolean[] reachable, int pc, int next) {
+        for (int i = pc + 1; i < next; i++) {
+            if (reachable[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // ----- superinstructions
+
+    /**
+     * Number of instructions fused by the superinstruction sup.
+     */
+    static int components(int sup) {
+        switch (sup) {
+            case LOAD_LOAD:
+            case LOAD_CONST:
+            case CONST_ADD:
+            case INC_JMP:
+                return 2;
+            case LOAD_CONST_JCC:
+            case LOAD_LOAD_JCC:
+                return 3;
+            case LOAD_LOAD_ADD_STORE:
+                return 4;
+            case ARRAY_INC:
+                return 5;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * Number of operands of the instruction op in the instruction stream,
+     * without the position behind the fused instructions of a
+     * superinstruction.
+     */
+    private static int operands(int op) {
+        switch (op) {
+            case LOAD:
+            case STORE:
+            case NEWARRAY:
+            case TRAP:
+            case BAD:
+            case JMP_BACK:
+            case GETSTATIC:
+            case PUTSTATIC:
+            case GETFIELD:
+            case PUTFIELD:
+            case NEW:
+            case CONST:
+            case JMP:
+            case JEQ:
+            case JNE:
+            case JLT:
+            case JLE:
+            case JGT:
+            case JGE:
+            case CONST_ADD:
+            case ARRAY_INC:
+                return 1;
+            case INC:
+            case ENTER:
+            case CALL:
+            case LOAD_LOAD:
+            case LOAD_CONST:
+            case INC_JMP:
+                return 2;
+            case LOAD_CONST_JCC:
+            case LOAD_LOAD_JCC:
+            case LOAD_LOAD_ADD_STORE:
+                return 3;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Returns the superinstruction for the instructions at pc and stores its
+     * operands, 0 if there is none. The instructions must directly follow
+     * each other and only the last one may jump.
+     */
+    private static int fuse(byte[] code, boolean[] reachable, int pc, int[] operands) {
+        int[] at = new int[5]; // pcs of the candidate instructions
+        int k = 0;
+        int p = pc;
+        while (k < at.length && p < code.length && reachable[p] && (k == 0 || nextStartIs(reachable, at[k - 1], p))) {
+            int len = length(code, p);
+            if (len < 0) {
+                break;
+            }
+            at[k++] = p;
+            int op = code[p];
+            if (op >= JMP && op <= EXIT || op == TRAP) {
+                break;
+            }
+            p += len;
+        }
+        if (k >= 5 && code[at[0]] == DUP2 && code[at[1]] == ALOAD && isConst(code[at[2]]) && code[at[3]] == ADD
+                && code[at[4]] == ASTORE) {
+            operands[0] = constant(code, at[2]);
+            return ARRAY_INC;
+        }
+        if (k >= 4 && isLoad(code[at[0]]) && isLoad(code[at[1]]) && code[at[2]] == ADD && isStore(code[at[3]])) {
+            operands[0] = local(code, at[0]);
+            operands[1] = local(code, at[1]);
+            operands[2] = local(code, at[3]);
+            return LOAD_LOAD_ADD_STORE;
+        }
+        if (k >= 3 && isLoad(code[at[0]]) && code[at[2]] >= JEQ && code[at[2]] <= JGE) {
+            operands[0] = local(code, at[0]);
+            operands[2] = code[at[2]];
+            if (isLoad(code[at[1]])) {
+                operands[1] = local(code, at[1]);
+                return LOAD_LOAD_JCC;
+            }
+            if (isConst(code[at[1]])) {
+                operands[1] = constant(code, at[1]);
+                return LOAD_CONST_JCC;
+            }
+        }
+        if (k >= 2 && code[at[0]] == INC && code[at[1]] == JMP && get2(code, at[1] + 1) <= 0) {
+            operands[0] = code[at[0] + 1];
+            operands[1] = code[at[0] + 2];
+            return INC_JMP;
+        }
+        if (k >= 2 && isLoad(code[at[0]]) && isLoad(code[at[1]])) {
+            operands[0] = local(code, at[0]);
+            operands[1] = local(code, at[1]);
+            return LOAD_LOAD;
+        }
+        if (k >= 2 && isLoad(code[at[0]]) && isConst(code[at[1]])) {
+            operands[0] = local(code, at[0]);
+            operands[1] = constant(code, at[1]);
+            return LOAD_CONST;
+        }
+        if (k >= 2 && isConst(code[at[0]]) && code[at[1]] == ADD) {
+            operands[0] = constant(code, at[0]);
+            return CONST_ADD;
+        }
+        return 0;
+    }
+
+    private static boolean isLoad(int op) {
+        return op >= LOAD && op <= LOAD_3;
+    }
+
+    private static boolean isStore(int op) {
+        return op >= STORE && op <= STORE_3;
+    }
+
+    private static boolean isConst(int op) {
+        return op >= CONST_0 && op <= CONST;
+    }
+
+    /**
+     * Local variable index of the load or store at pc.
+     */
+    private static int local(byte[] code, int pc) {
+        int op = code[pc];
+        if (op == LOAD || op == STORE) {
+            return code[pc + 1];
+        }
+        return op <= LOAD_3 ? op - LOAD_0 : op - STORE_0;
+    }
+
+    /**
+     * Value of the constant instruction at pc.
+     */
+    private static int constant(byte[] code, int pc) {
+        int op = code[pc];
+        if (op == CONST) {
+            return get4(code, pc + 1);
+        }
+        return op == CONST_M1 ? -1 : op - CONST_0;
+    }
+
+    static boolean compare(int jcc, int x, int y) {
+        switch (jcc) {
+            case JEQ:
+                return x == y;
+            case JNE:
+                return x != y;
+            case JLT:
+                return x < y;
+            case JLE:
+                return x <= y;
+            case JGT:
+                return x > y;
+            default:
+                return x >= y;
+        }
+    }
+
+    private static boolean fallsThrough(int op) {
+        return op != JMP && op != RETURN && op != TRAP;
+    }
+
+    /**
+     * Length of the instruction at pc in bytes, -1 if undefined or truncated.
+     */
+    private static int length(byte[] code, int pc) {
+        OpCode opCode = OpCode.get(code[pc]);
+        if (opCode == null) {
+            return -1;
+        }
+        int len = 1 + opCode.getOpsSize();
+        return pc + len <= code.length ? len : -1;
+    }
+
+    static int get2(byte[] code, int pos) {
+        return (short) ((code[pos] << 8) + (code[pos + 1] & 0xff));
+    }
+
+    static int get4(byte[] code, int pos) {
+        return (get2(code, pos) << 16) + (get2(code, pos + 2) & 0xffff);
+    }
+
+    // ----- execution
+
+    private static IllegalStateException underflow() {
+        return new IllegalStateException("expression stack underflow");
+    }
+
+    private static IllegalStateException nullReference() {
+        return new IllegalStateException("null reference used");
+    }
+
+    private static IllegalStateException outOfBounds() {
+        return new IllegalStateException("index out of bounds");
+    }
+
+    private static IllegalStateException divisionByZero() {
+        return new IllegalStateException("division by zero");
+    }
+
+    /**
+     * Executes from position <code>ip</code> in <code>ops</code> on the state
+     * of <code>vm</code> until main returns or, for code decoded for
+     * {@link Jit}, until a return to {@link Jit#sentinel()}. Semantics and
+     * error messages are the same as in {@link Interpreter#run()}. When the
+     * fuel of the run is used up, the position behind the step is left in
+     * {@link Interpreter#resume}.
+     */
+    void execute(Interpreter vm, int ip) throws IllegalStateException {
+        final int[] ops = this.ops;
+        final Jit jit = vm.jit;
+        final int[] data = vm.data;
+        int[] stack = vm.stack; // reloaded when the regions grow
+        int[] local = vm.local;
+        int[] heap = vm.heap;
+        int esp = vm.esp;
+        int sp = vm.sp;
+        int fp = vm.fp;
+        int fuel = vm.fuel; // steps left in the slice
+        CompiledMethod compiled;
+        int adr, val, val2, idx, len;
+
+        loop:
+        for (; ; ) {
+            switch (ops[ip++]) {
+
+                // load/store local variables
+                case LOAD:
+                    if (esp == stack.length) {
+                        stack = vm.growStack(esp + 1);
+                    }
+                    stack[esp++] = local[fp + ops[ip++]];
+                    break;
+                case LOAD_0:
+                    if (esp == stack.length) {
+                        stack = vm.growStack(esp + 1);
+                    }
+                    stack[esp++] = local[fp];
+                    break;
+                case LOAD_1:
+                    if (esp == stack.length) {
+                        stack = vm.growStack(esp + 1);
+                    }
+                    stack[esp++] = local[fp + 1];
+                    break;
+                case LOAD_2:
+                    if (esp == stack.length) {
+                        stack = vm.growStack(esp + 1);
+                    }
+                    stack[esp++] = local[fp + 2];
+                    break;
+                case LOAD_3:
+                    if (esp == stack.length) {
+                        stack = vm.growStack(esp + 1);
+                    }
+                    stack[esp++] = local[fp + 3];
+                    break;
+                case STORE:
+                    if (esp == 0) {
+                        throw underflow();
+                    }
+                    local[fp + ops[ip++]] = stack[--esp];
+                    break;
+                case STORE_0:
+                    if (esp == 0) {
+                        throw underflow();
+                    }
+                    local[fp] = stack[--esp];
+                    break;
+                case STORE_1:
+                    if (esp == 0) {
+                        throw underflow();
+                    }
+                    local[fp + 1] = stack[--esp];
+                    break;
+                case STORE_2:
+                    if (esp == 0) {
+                        throw underflow();
+                    }
+                    local[fp + 2] = stack[--esp];
+                    break;
+                case STORE_3:
+                    if (esp == 0) {
+                        throw underflow();
+                    }
+                    local[fp + 3] = stack[--esp];
+                    break;
+
+                // load/store global variables
+                case GETSTATIC:
+                    if (esp == stack.length) {
+                        stack = vm.growStack(esp + 1);
+                    }
+                    stack[esp++] = data[ops[ip++]];
+                    break;
+                case PUTSTATIC:
+                    if (esp == 0) {
+                        throw underflow();
+                    }
+                    data[ops[ip++]] = stack[--esp];
+                    break;
+
+                // load/store object fields
+                case GETFIELD:
+                    if (esp == 0) {
+                        throw underflow();
+                    }
+                    adr = stack[esp - 1];
+                    if (adr == 0) {
+                        throw nullReference();
+                    }
+                    stack[esp - 1] = heap[adr + ops[ip++]];
+                    break;
+                case PUTFIELD:
+                    if (esp < 2) {
+                        throw underflow();
+                    }
+                    val = stack[--esp];
+                    adr = stack[--esp];
+                    if (adr == 0) {
+                        throw nullReference();
+                    }
+                    heap[adr + ops[ip++]] = val;
+                    break;
+
+                // load constants
+                case CONST_0:
+                case CONST_1:
+                case CONST_2:
+                case CONST_3:
+                case CONST_4:
+                case CONST_5:
+                    if (esp == stack.length) {
+                        stack = vm.growStack(esp + 1);
+                    }
+                    stack[esp++] = ops[ip - 1] - CONST_0;
+                    break;
+                case CONST_M1:
+                    if (esp == stack.length) {
+                        stack = vm.growStack(esp + 1);
+                    }
+                    stack[esp++] = -1;
+                    break;
+                case CONST:
+                    if (esp == stack.length) {
+                        stack = vm.growStack(esp + 1);
+                    }
+                    stack[esp++] = ops[ip++];
+                    break;
+
+                // arithmetic operations
+                case ADD:
+                    if (esp < 2) {
+                        throw underflow();
+                    }
+                    esp--;
+                    stack[esp - 1] += stack[esp];
+                    break;
+                case SUB:
+                    if (esp < 2) {
+                        throw underflow();
+                    }
+                    esp--;
+                    stack[esp - 1] -= stack[esp];
+                    break;
+                case MUL:
+                    if (esp < 2) {
+                        throw underflow();
+                    }
+                    esp--;
+                    stack[esp - 1] *= stack[esp];
+                    break;
+                case DIV:
+                    if (esp == 0) {
+                        throw underflow();
+                    }
+                    val = stack[--esp];
+                    if (val == 0) {
+                        throw divisionByZero();
+                    }
+                    if (esp == 0) {
+                        throw underflow();
+                    }
+                    stack[esp - 1] /= val;
+                    break;
+                case REM:
+                    if (esp == 0) {
+                        throw underflow();
+                    }
+                    val = stack[--esp];
+                    if (val == 0) {
+                        throw divisionByZero();
+                    }
+                    if (esp == 0) {
+                        throw underflow();
+                    }
+                    stack[esp - 1] %= val;
+                    break;
+                case NEG:
+                    if (esp == 0) {
+                        throw underflow();
+                    }
+                    stack[esp - 1] = -stack[esp - 1];
+                    break;
+                case SHL:
+                    if (esp < 2) {
+                        throw underflow();
+                    }
+                    esp--;
+                    stack[esp - 1] <<= stack[esp];
+                    break;
+                case SHR:
+                    if (esp < 2) {
+                        throw underflow();
+                    }
+                    esp--;
+                    stack[esp - 1] >>= stack[esp];
+                    break;
+                case INC:
+                    local[fp + ops[ip]] += ops[ip + 1];
+                    ip += 2;
+                    break;
+
+                // object creation
+                case NEW:
+                    vm.esp = esp; // roots for the garbage collector
+                    vm.sp = sp;
+                    adr = vm.newObject(ops[ip++]);
+                    heap = vm.heap;
+                    if (esp == stack.length) {
+                        stack = vm.growStack(esp + 1);
+                    }
+                    stack[esp++] = adr;
+                    break;
+                case NEWARRAY:
+                    if (esp == 0) {
+                        throw underflow();
+                    }
+                    vm.esp = esp;
+                    vm.sp = sp;
+                    stack[esp - 1] = vm.newArray(stack[esp - 1], ops[ip++]);
+                    heap = vm.heap;
+                    break;
+
+                // array access
+                case ALOAD:
+                    if (esp < 2) {
+                        throw underflow();
+                    }
+                    idx = stack[--esp];
+                    adr = stack[esp - 1];
+                    if (adr == 0) {
+                        throw nullReference();
+                    }
+                    if (idx < 0 || idx >= heap[adr - 1]) {
+                        throw outOfBounds();
+                    }
+                    stack[esp - 1] = heap[adr + idx];
+                    break;
+                case ASTORE:
+                    if (esp < 3) {
+                        throw underflow();
+                    }
+                    val = stack[--esp];
+                    idx = stack[--esp];
+                    adr = stack[--esp];
+                    if (adr == 0) {
+                        throw nullReference();
+                    }
+                    if (idx < 0 || idx >= heap[adr - 1]) {
+                        throw outOfBounds();
+                    }
+                    heap[adr + idx] = val;
+                    break;
+                case BALOAD:
+                    if (esp < 2) {
+                        throw underflow();
+                    }
+                    idx = stack[--esp];
+                    adr = stack[esp - 1];
+                    if (adr == 0) {
+                        throw nullReference();
+                    }
+                    if (idx < 0 || idx >= heap[adr - 1]) {
+                        throw outOfBounds();
+                    }
+                    stack[esp - 1] = (byte) (heap[adr + idx / 4] << (8 * (idx % 4)) >>> 24);
+                    break;
+                case BASTORE:
+                    if (esp < 3) {
+                        throw underflow();
+                    }
+                    val = stack[--esp];
+                    idx = stack[--esp];
+                    adr = stack[--esp];
+                    if (adr == 0) {
+                        throw nullReference();
+                    }
+                    if (idx < 0 || idx >= heap[adr - 1]) {
+                        throw outOfBounds();
+                    }
+                    len = (3 - idx % 4) * 8; // bit offset of the byte
+                    heap[adr + idx / 4] = (heap[adr + idx / 4] & ~(255 << len)) ^ ((val & 255) << len);
+                    break;
+                case ARRAYLENGTH:
+                    if (esp == 0) {
+                        throw underflow();
+                    }
+                    adr = stack[esp - 1];
+                    if (adr == 0) {
+                        throw nullReference();
+                    }
+                    stack[esp - 1] = heap[adr - 1];
+                    break;
+
+                // stack manipulation
+                case POP:
+                    if (esp == 0) {
+                        throw underflow();
+                    }
+                    esp--;
+                    break;
+                case DUP:
+                    if (esp == 0) {
+                        throw underflow();
+                    }
+                    if (esp == stack.length) {
+                        stack = vm.growStack(esp + 1);
+                    }
+                    stack[esp] = stack[esp - 1];
+                    esp++;
+                    break;
+                case DUP2:
+                    if (esp < 2) {
+                        throw underflow();
+                    }
+                    if (esp + 2 > stack.length) {
+                        stack = vm.growStack(esp + 2);
+                    }
+                    stack[esp] = stack[esp - 2];
+                    stack[esp + 1] = stack[esp - 1];
+                    esp += 2;
+                    break;
+
+                // jumps
+                case JMP:
+                    ip = ops[ip];
+                    break;
+                case JMP_BACK:
+                    ip = ops[ip];
+                    if (--fuel < 0) {
+                        break loop;
+                    }
+                    break;
+                case JMP_COUNTED:
+                    if (--fuel < 0) {
+                        ip = ops[ip];
+                        break loop;
+                    }
+                    compiled = jit.loop(ops[ip + 1], ops[ip + 2], esp, vm);
+                    if (compiled == null) {
+                        ip = ops[ip];
+                        break;
+                    }
+                    val = local[fp - 2]; // return address of the activation
+                    vm.fuel = fuel;
+                    vm.esp = esp;
+                    vm.sp = sp;
+                    vm.fp = fp;
+                    jit.invoke(vm, compiled, ops[ip + 1], ops[ip + 2]);
+                    fuel = vm.fuel;
+                    esp = vm.esp;
+                    sp = vm.sp;
+                    fp = vm.fp;
+                    stack = vm.stack;
+                    local = vm.local;
+                    heap = vm.heap;
+                    ip = index[val];
+                    break;
+                case JEQ:
+                    if (esp < 2) {
+                        throw underflow();
+                    }
+                    esp -= 2;
+                    ip = stack[esp] == stack[esp + 1] ? ops[ip] : ip + 1;
+                    break;
+                case JNE:
+                    if (esp < 2) {
+                        throw underflow();
+                    }
+                    esp -= 2;
+                    ip = stack[esp] != stack[esp + 1] ? ops[ip] : ip + 1;
+                    break;
+                case JLT:
+                    if (esp < 2) {
+                        throw underflow();
+                    }
+                    esp -= 2;
+                    ip = stack[esp] < stack[esp + 1] ? ops[ip] : ip + 1;
+                    break;
+                case JLE:
+                    if (esp < 2) {
+                        throw underflow();
+                    }
+                    esp -= 2;
+                    ip = stack[esp] <= stack[esp + 1] ? ops[ip] : ip + 1;
+                    break;
+                case JGT:
+                    if (esp < 2) {
+                        throw underflow();
+                    }
+                    esp -= 2;
+                    ip = stack[esp] > stack[esp + 1] ? ops[ip] : ip + 1;
+                    break;
+                case JGE:
+                    if (esp < 2) {
+                        throw underflow();
+                    }
+                    esp -= 2;
+                    ip = stack[esp] >= stack[esp + 1] ? ops[ip] : ip + 1;
+                    break;
+
+                // method calls
+                case CALL:
+                    if (sp == local.length) {
+                        local = vm.growLocal(sp + 1);
+                    }
+                    local[sp++] = ops[ip + 1]; // return address as byte code pc
+                    ip = ops[ip];
+                    if (--fuel < 0) {
+                        break loop;
+                    }
+                    break;
+                case CALL_COUNTED:
+                    compiled = jit.ready(ops[ip + 2], esp, sp, vm);
+                    if (compiled == null) {
+                        if (sp == local.length) {
+                            local = vm.growLocal(sp + 1);
+                        }
+                        local[sp++] = ops[ip + 1];
+                        ip = ops[ip];
+                    } else {
+                        vm.fuel = fuel;
+                        vm.esp = esp;
+                        vm.sp = sp;
+                        vm.fp = fp;
+                        jit.invoke(vm, compiled, ops[ip + 2], -1);
+                        fuel = vm.fuel;
+                        esp = vm.esp;
+                        stack = vm.stack;
+                        local = vm.local;
+                        heap = vm.heap;
+                        ip += 3;
+                    }
+                    if (--fuel < 0) {
+                        break loop;
+                    }
+                    break;
+                case LEAVE:
+                    vm.esp = esp;
+                    vm.sp = sp;
+                    vm.fp = fp;
+                    vm.fuel = fuel;
+                    return;
+                case RETURN:
+                    if (sp == 0) {
+                        vm.esp = esp;
+                        vm.sp = sp;
+                        vm.fp = fp;
+                        vm.fuel = fuel;
+                        return;
+                    }
+                    ip = index[local[--sp]];
+                    break;
+                case ENTER:
+                    val = ops[ip++]; // number of parameters
+                    len = ops[ip++]; // number of locals
+                    if (val > Math.max(len, 0)) {
+                        throw new IllegalStateException("invalid frame size");
+                    }
+                    if (esp < val) {
+                        throw underflow();
+                    }
+                    if (sp + 1 + len > local.length) {
+                        local = vm.growLocal(sp + 1 + len);
+                    }
+                    local[sp++] = fp;
+                    fp = sp;
+                    if (len > 0) {
+                        Arrays.fill(local, sp, sp + len, 0);
+                        sp += len;
+                    }
+                    if (val > 0) {
+                        esp -= val;
+                        System.arraycopy(stack, esp, local, fp, val);
+                    }
+                    break;
+                case EXIT:
+                    if (fp == 0) {
+                        throw new IllegalStateException("method stack underflow");
+                    }
+                    sp = fp;
+                    fp = local[--sp];
+                    break;
+
+                // I/O
+                case READ:
+                    if (esp == stack.length) {
+                        stack = vm.growStack(esp + 1);
+                    }
+                    stack[esp++] = vm.readInt();
+                    break;
+                case PRINT:
+                    if (esp < 2) {
+                        throw underflow();
+                    }
+                    esp -= 2;
+                    vm.print(stack[esp], stack[esp + 1]);
+                    break;
+                case BREAD:
+                    if (esp == stack.length) {
+                        stack = vm.growStack(esp + 1);
+                    }
+                    stack[esp++] = vm.io.read();
+                    break;
+                case BPRINT:
+                    if (esp < 2) {
+                        throw underflow();
+                    }
+                    esp -= 2;
+                    vm.bprint(stack[esp], stack[esp + 1]);
+                    break;
+                case NOP:
+                    break;
+                case TRAP:
+                    throw new IllegalStateException("trap(" + ops[ip] + ")");
+
+                // superinstructions, falling back to the fused instructions
+                // behind their operands where these would grow the stack or
+                // report an error
+                case LOAD_LOAD:
+                    if (esp + 2 > stack.length) {
+                        ip += 3;
+                        break;
+                    }
+                    stack[esp] = local[fp + ops[ip + 1]];
+                    stack[esp + 1] = local[fp + ops[ip + 2]];
+                    esp += 2;
+                    ip = ops[ip];
+                    break;
+                case LOAD_CONST:
+                    if (esp + 2 > stack.length) {
+                        ip += 3;
+                        break;
+                    }
+                    stack[esp] = local[fp + ops[ip + 1]];
+                    stack[esp + 1] = ops[ip + 2];
+                    esp += 2;
+                    ip = ops[ip];
+                    break;
+                case LOAD_CONST_JCC:
+                    if (esp + 2 > stack.length) {
+                        ip += 4;
+                        break;
+                    }
+                    val = ops[ip];
+                    ip = compare(ops[ip + 3], local[fp + ops[ip + 1]], ops[ip + 2]) ? ops[val - 1] : val;
+                    break;
+                case LOAD_LOAD_JCC:
+                    if (esp + 2 > stack.length) {
+                        ip += 4;
+                        break;
+                    }
+                    val = ops[ip];
+                    ip = compare(ops[ip + 3], local[fp + ops[ip + 1]], local[fp + ops[ip + 2]]) ? ops[val - 1] : val;
+                    break;
+                case LOAD_LOAD_ADD_STORE:
+                    if (esp + 2 > stack.length) {
+                        ip += 4;
+                        break;
+                    }
+                    val = local[fp + ops[ip + 1]] + local[fp + ops[ip + 2]];
+                    local[fp + ops[ip + 3]] = val;
+                    ip = ops[ip];
+                    break;
+                case CONST_ADD:
+                    if (esp == 0 || esp == stack.length) {
+                        ip += 2;
+                        break;
+                    }
+                    stack[esp - 1] += ops[ip + 1];
+                    ip = ops[ip];
+                    break;
+                case ARRAY_INC:
+                    if (esp < 2 || esp + 3 > stack.length) {
+                        ip += 2;
+                        break;
+                    }
+                    adr = stack[esp - 2];
+                    idx = stack[esp - 1];
+                    if (adr == 0) {
+                        throw nullReference();
+                    }
+                    if (idx < 0 || idx >= heap[adr - 1]) {
+                        throw outOfBounds();
+                    }
+                    heap[adr + idx] += ops[ip + 1];
+                    esp -= 2;
+                    ip = ops[ip];
+                    break;
+                case INC_JMP:
+                    local[fp + ops[ip + 1]] += ops[ip + 2];
+                    ip = ops[ops[ip] - 1];
+                    if (--fuel < 0) {
+                        break loop;
+                    }
+                    break;
+
+                // unchecked forms of verified code, see unchecked()
+                case U_LOAD:
+                    stack[esp++] = local[fp + ops[ip++]];
+                    break;
+                case U_LOAD_0:
+                    stack[esp++] = local[fp];
+                    break;
+                case U_LOAD_1:
+                    stack[esp++] = local[fp + 1];
+                    break;
+                case U_LOAD_2:
+                    stack[esp++] = local[fp + 2];
+                    break;
+                case U_LOAD_3:
+                    stack[esp++] = local[fp + 3];
+                    break;
+                case U_STORE:
+                    local[fp + ops[ip++]] = stack[--esp];
+                    break;
+                case U_STORE_0:
+                    local[fp] = stack[--esp];
+                    break;
+                case U_STORE_1:
+                    local[fp + 1] = stack[--esp];
+                    break;
+                case U_STORE_2:
+                    local[fp + 2] = stack[--esp];
+                    break;
+                case U_STORE_3:
+                    local[fp + 3] = stack[--esp];
+                    break;
+                case U_GETSTATIC:
+                    stack[esp++] = data[ops[ip++]];
+                    break;
+                case U_PUTSTATIC:
+                    data[ops[ip++]] = stack[--esp];
+                    break;
+                case U_GETFIELD:
+                    adr = stack[esp - 1];
+                    if (adr == 0) {
+                        throw nullReference();
+                    }
+                    stack[esp - 1] = heap[adr + ops[ip++]];
+                    break;
+                case U_PUTFIELD:
+                    val = stack[--esp];
+                    adr = stack[--esp];
+                    if (adr == 0) {
+                        throw nullReference();
+                    }
+                    heap[adr + ops[ip++]] = val;
+                    break;
+                case U_CONST_0:
+                case U_CONST_1:
+                case U_CONST_2:
+                case U_CONST_3:
+                case U_CONST_4:
+                case U_CONST_5:
+                    stack[esp++] = ops[ip - 1] - U_CONST_0;
+                    break;
+                case U_CONST_M1:
+                    stack[esp++] = -1;
+                    break;
+                case U_CONST:
+                    stack[esp++] = ops[ip++];
+                    break;
+                case U_ADD:
+                    esp--;
+                    stack[esp - 1] += stack[esp];
+                    break;
+                case U_SUB:
+                    esp--;
+                    stack[esp - 1] -= stack[esp];
+                    break;
+                case U_MUL:
+                    esp--;
+                    stack[esp - 1] *= stack[esp];
+                    break;
+                case U_DIV:
+                    val = stack[--esp];
+                    if (val == 0) {
+                        throw divisionByZero();
+                    }
+                    stack[esp - 1] /= val;
+                    break;
+                case U_REM:
+                    val = stack[--esp];
+                    if (val == 0) {
+                        throw divisionByZero();
+                    }
+                    stack[esp - 1] %= val;
+                    break;
+                case U_NEG:
+                    stack[esp - 1] = -stack[esp - 1];
+                    break;
+                case U_SHL:
+                    esp--;
+                    stack[esp - 1] <<= stack[esp];
+                    break;
+                case U_SHR:
+                    esp--;
+                    stack[esp - 1] >>= stack[esp];
+                    break;
+                case U_ALOAD:
+                    idx = stack[--esp];
+                    adr = stack[esp - 1];
+                    if (adr == 0) {
+                        throw nullReference();
+                    }
+                    if (idx < 0 || idx >= heap[adr - 1]) {
+                        throw outOfBounds();
+                    }
+                    stack[esp - 1] = heap[adr + idx];
+                    break;
+                case U_ASTORE:
+                    val = stack[--esp];
+                    idx = stack[--esp];
+                    adr = stack[--esp];
+                    if (adr == 0) {
+                        throw nullReference();
+                    }
+                    if (idx < 0 || idx >= heap[adr - 1]) {
+                        throw outOfBounds();
+                    }
+                    heap[adr + idx] = val;
+                    break;
+                case U_BALOAD:
+                    idx = stack[--esp];
+                    adr = stack[esp - 1];
+                    if (adr == 0) {
+                        throw nullReference();
+                    }
+                    if (idx < 0 || idx >= heap[adr - 1]) {
+                        throw outOfBounds();
+                    }
+                    stack[esp - 1] = (byte) (heap[adr + idx / 4] << (8 * (idx % 4)) >>> 24);
+                    break;
+                case U_BASTORE:
+                    val = stack[--esp];
+                    idx = stack[--esp];
+                    adr = stack[--esp];
+                    if (adr == 0) {
+                        throw nullReference();
+                    }
+                    if (idx < 0 || idx >= heap[adr - 1]) {
+                        throw outOfBounds();
+                    }
+                    len = (3 - idx % 4) * 8; // bit offset of the byte
+                    heap[adr + idx / 4] = (heap[adr + idx / 4] & ~(255 << len)) ^ ((val & 255) << len);
+                    break;
+                case U_ARRAYLENGTH:
+                    adr = stack[esp - 1];
+                    if (adr == 0) {
+                        throw nullReference();
+                    }
+                    stack[esp - 1] = heap[adr - 1];
+                    break;
+                case U_POP:
+                    esp--;
+                    break;
+                case U_DUP:
+                    stack[esp] = stack[esp - 1];
+                    esp++;
+                    break;
+                case U_DUP2:
+                    stack[esp] = stack[esp - 2];
+                    stack[esp + 1] = stack[esp - 1];
+                    esp += 2;
+                    break;
+                case U_JEQ:
+                    esp -= 2;
+                    ip = stack[esp] == stack[esp + 1] ? ops[ip] : ip + 1;
+                    break;
+                case U_JNE:
+                    esp -= 2;
+                    ip = stack[esp] != stack[esp + 1] ? ops[ip] : ip + 1;
+                    break;
+                case U_JLT:
+                    esp -= 2;
+                    ip = stack[esp] < stack[esp + 1] ? ops[ip] : ip + 1;
+                    break;
+                case U_JLE:
+                    esp -= 2;
+                    ip = stack[esp] <= stack[esp + 1] ? ops[ip] : ip + 1;
+                    break;
+                case U_JGT:
+                    esp -= 2;
+                    ip = stack[esp] > stack[esp + 1] ? ops[ip] : ip + 1;
+                    break;
+                case U_JGE:
+                    esp -= 2;
+                    ip = stack[esp] >= stack[esp + 1] ? ops[ip] : ip + 1;
+                    break;
+                case U_ENTER:
+                    val = ops[ip++]; // number of parameters
+                    len = ops[ip++]; // number of locals
+                    if (sp + 1 + len > local.length) {
+                        local = vm.growLocal(sp + 1 + len);
+                    }
+                    local[sp++] = fp;
+                    fp = sp;
+                    if (len > 0) {
+                        Arrays.fill(local, sp, sp + len, 0);
+                        sp += len;
+                    }
+                    if (val > 0) {
+                        esp -= val;
+                        System.arraycopy(stack, esp, local, fp, val);
+                    }
+                    break;
+
+                default: // BAD
+                    val = ops[ip];
+                    if (val < 0) {
+                        throw new IllegalStateException("jump out of code area");
+                    }
+                    throw new IllegalStateException("wrong opcode " + vm.code[val]);
+            }
+        }
+        vm.esp = esp;
+        vm.sp = sp;
+        vm.fp = fp;
+        vm.fuel = fuel;
+        vm.resume = ip;
+    }
+
+    /**
+     * Executes the program like {@link #execute(Interpreter, int)}, keeping
+     * the top two values of the expression stack in local variables. Values
+     * below them are spilled to the stack when a value is pushed and reloaded
+     * when one is popped; the whole stack is written back only where it is
+     * visible outside of this method, at allocations and at the end. Code
+     * with superinstructions or for {@link Jit} is not supported.
+     */
+    void executeCached(Interpreter vm, int ip) throws IllegalStateException {
+        final int[] ops = this.ops;
+        final int[] data = vm.data;
+        int[] stack = vm.stack; // reloaded when the regions grow
+        int[] local = vm.local;
+        int[] heap = vm.heap;
+        int esp = vm.esp; // number of values, the top two of which are in tos and nos
+        int sp = vm.sp;
+        int fp = vm.fp;
+        int tos = esp > 0 ? stack[esp - 1] : 0; // top of stack
+        int nos = esp > 1 ? stack[esp - 2] : 0; // next on stack
+        int fuel = vm.fuel; // steps left in the slice
+        int adr, val, idx, len;
+
+        loop:
+        for (; ; ) {
+            switch (ops[ip++]) {
+
+                // load/store local variables
+                case LOAD:
+                    if (esp == stack.length) {
+                        stack = vm.growStack(esp + 1);
+                    }
+                    if (esp > 1) {
+                        stack[esp - 2] = nos;
+                    }
+                    nos = tos;
+                    tos = local[fp + ops[ip++]];
+                    esp++;
+                    break;
+                case LOAD_0:
+                    if (esp == stack.length) {
+                        stack = vm.growStack(esp + 1);
+                    }
+                    if (esp > 1) {
+                        stack[esp - 2] = nos;
+                    }
+                    nos = tos;
+                    tos = local[fp];
+                    esp++;
+                    break;
+                case LOAD_1:
+                    if (esp == stack.length) {
+                        stack = vm.growStack(esp + 1);
+                    }
+                    if (esp > 1) {
+                        stack[esp - 2] = nos;
+                    }
+                    nos = tos;
+                    tos = local[fp + 1];
+                    esp++;
+                    break;
+                case LOAD_2:
+                    if (esp == stack.length) {
+                        stack = vm.growStack(esp + 1);
+                    }
+                    if (esp > 1) {
+                        stack[esp - 2] = nos;
+                    }
+                    nos = tos;
+                    tos = local[fp + 2];
+                    esp++;
+                    break;
+                case LOAD_3:
+                    if (esp == stack.length) {
+                        stack = vm.growStack(esp + 1);
+                    }
+                    if (esp > 1) {
+                        stack[esp - 2] = nos;
+                    }
+                    nos = tos;
+                    tos = local[fp + 3];
+                    esp++;
+                    break;
+                case STORE:
+                    if (esp == 0) {
+                        throw underflow();
+                    }
+                    local[fp + ops[ip++]] = tos;
+                    tos = nos;
+                    esp--;
+                    if (esp > 1) {
+                        nos = stack[esp - 2];
+                    }
+                    break;
+                case STORE_0:
+                    if (esp == 0) {
+                        throw underflow();
+                    }
+                    local[fp] = tos;
+                    tos = nos;
+                    esp--;
+                    if (esp > 1) {
+                        nos = stack[esp - 2];
+                    }
+                    break;
+                case STORE_1:
+                    if (esp == 0) {
+                        throw underflow();
+                    }
+                    local[fp + 1] = tos;
+                    tos = nos;
+                    esp--;
+                    if (esp > 1) {
+                        nos = stack[esp - 2];
+                    }
+                    break;
+                case STORE_2:
+                    if (esp == 0) {
+                        throw underflow();
+                    }
+                    local[fp + 2] = tos;
+                    tos = nos;
+                    esp--;
+                    if (esp > 1) {
+                        nos = stack[esp - 2];
+                    }
+                    break;
+                case STORE_3:
+                    if (esp == 0) {
+                        throw underflow();
+                    }
+                    local[fp + 3] = tos;
+                    tos = nos;
+                    esp--;
+                    if (esp > 1) {
+                        nos = stack[esp - 2];
+                    }
+                    break;
+
+                // load/store global variables
+                case GETSTATIC:
+                    if (esp == stack.length) {
+                        stack = vm.growStack(esp + 1);
+                    }
+                    if (esp > 1) {
+                        stack[esp - 2] = nos;
+                    }
+                    nos = tos;
+                    tos = data[ops[ip++]];
+                    esp++;
+                    break;
+                case PUTSTATIC:
+                    if (esp == 0) {
+                        throw underflow();
+                    }
+                    data[ops[ip++]] = tos;
+                    tos = nos;
+                    esp--;
+                    if (esp > 1) {
+                        nos = stack[esp - 2];
+                    }
+                    break;
+
+                // load/store object fields
+                case GETFIELD:
+                    if (esp == 0) {
+                        throw underflow();
+                    }
+                    if (tos == 0) {
+                        throw nullReference();
+                    }
+                    tos = heap[tos + ops[ip++]];
+                    break;
+                case PUTFIELD:
+                    if (esp < 2) {
+                        throw underflow();
+                    }
+                    val = tos;
+                    adr = nos;
+                    esp -= 2;
+                    if (esp > 0) {
+                        tos = stack[esp - 1];
+                        if (esp > 1) {
+                            nos = stack[esp - 2];
+                        }
+                    }
+                    if (adr == 0) {
+                        throw nullReference();
+                    }
+                    heap[adr + ops[ip++]] = val;
+                    break;
+
+                // load constants
+                case CONST_0:
+                case CONST_1:
+                case CONST_2:
+                case CONST_3:
+                case CONST_4:
+                case CONST_5:
+                    if (esp == stack.length) {
+                        stack = vm.growStack(esp + 1);
+                    }
+                    if (esp > 1) {
+                        stack[esp - 2] = nos;
+                    }
+                    nos = tos;
+                    tos = ops[ip - 1] - CONST_0;
+                    esp++;
+                    break;
+                case CONST_M1:
+                    if (esp == stack.length) {
+                        stack = vm.growStack(esp + 1);
+                    }
+                    if (esp > 1) {
+                        stack[esp - 2] = nos;
+                    }
+                    nos = tos;
+                    tos = -1;
+                    esp++;
+                    break;
+                case CONST:
+                    if (esp == stack.length) {
+                        stack = vm.growStack(esp + 1);
+                    }
+                    if (esp > 1) {
+                        stack[esp - 2] = nos;
+                    }
+                    nos = tos;
+                    tos = ops[ip++];
+                    esp++;
+                    break;
+
+                // arithmetic operations
+                case ADD:
+                    if (esp < 2) {
+                        throw underflow();
+                    }
+                    tos = nos + tos;
+                    esp--;
+                    if (esp > 1) {
+                        nos = stack[esp - 2];
+                    }
+                    break;
+                case SUB:
+                    if (esp < 2) {
+                        throw underflow();
+                    }
+                    tos = nos - tos;
+                    esp--;
+                    if (esp > 1) {
+                        nos = stack[esp - 2];
+                    }
+                    break;
+                case MUL:
+                    if (esp < 2) {
+                        throw underflow();
+                    }
+                    tos = nos * tos;
+                    esp--;
+                    if (esp > 1) {
+                        nos = stack[esp - 2];
+                    }
+                    break;
+                case DIV:
+                    if (esp == 0) {
+                        throw underflow();
+                    }
+                    if (tos == 0) {
+                        throw divisionByZero();
+                    }
+                    if (esp == 1) {
+                        throw underflow();
+                    }
+                    tos = nos / tos;
+                    esp--;
+                    if (esp > 1) {
+                        nos = stack[esp - 2];
+                    }
+                    break;
+                case REM:
+                    if (esp == 0) {
+                        throw underflow();
+                    }
+                    if (tos == 0) {
+                        throw divisionByZero();
+                    }
+                    if (esp == 1) {
+                        throw underflow();
+                    }
+                    tos = nos % tos;
+                    esp--;
+                    if (esp > 1) {
+                        nos = stack[esp - 2];
+                    }
+                    break;
+                case NEG:
+                    if (esp == 0) {
+                        throw underflow();
+                    }
+                    tos = -tos;
+                    break;
+                case SHL:
+                    if (esp < 2) {
+                        throw underflow();
+                    }
+                    tos = nos << tos;
+                    esp--;
+                    if (esp > 1) {
+                        nos = stack[esp - 2];
+                    }
+                    break;
+                case SHR:
+                    if (esp < 2) {
+                        throw underflow();
+                    }
+                    tos = nos >> tos;
+                    esp--;
+                    if (esp > 1) {
+                        nos = stack[esp - 2];
+                    }
+                    break;
+                case INC:
+                    local[fp + ops[ip]] += ops[ip + 1];
+                    ip += 2;
+                    break;
+
+                // object creation
+                case NEW:
+                    if (esp > 0) {
+                        stack[esp - 1] = tos;
+                        if (esp > 1) {
+                            stack[esp - 2] = nos;
+                        }
+                    }
+                    vm.esp = esp; // roots for the garbage collector
+                    vm.sp = sp;
+                    adr = vm.newObject(ops[ip++]);
+                    heap = vm.heap;
+                    if (esp == stack.length) {
+                        stack = vm.growStack(esp + 1);
+                    }
+                    if (esp > 1) {
+                        stack[esp - 2] = nos;
+                    }
+                    nos = tos;
+                    tos = adr;
+                    esp++;
+                    break;
+                case NEWARRAY:
+                    if (esp == 0) {
+                        throw underflow();
+                    }
+                    if (esp > 0) {
+                        stack[esp - 1] = tos;
+                        if (esp > 1) {
+                            stack[esp - 2] = nos;
+                        }
+                    }
+                    vm.esp = esp;
+                    vm.sp = sp;
+                    tos = vm.newArray(tos, ops[ip++]);
+                    heap = vm.heap;
+                    break;
+
+                // array access
+                case ALOAD:
+                    if (esp < 2) {
+                        throw underflow();
+                    }
+                    idx = tos;
+                    adr = nos;
+                    if (adr == 0) {
+                        throw nullReference();
+                    }
+                    if (idx < 0 || idx >= heap[adr - 1]) {
+                        throw outOfBounds();
+                    }
+                    tos = heap[adr + idx];
+                    esp--;
+                    if (esp > 1) {
+                        nos = stack[esp - 2];
+                    }
+                    break;
+                case BALOAD:
+                    if (esp < 2) {
+                        throw underflow();
+                    }
+                    idx = tos;
+                    adr = nos;
+                    if (adr == 0) {
+                        throw nullReference();
+                    }
+                    if (idx < 0 || idx >= heap[adr - 1]) {
+                        throw outOfBounds();
+                    }
+                    tos = (byte) (heap[adr + idx / 4] << (8 * (idx % 4)) >>> 24);
+                    esp--;
+                    if (esp > 1) {
+                        nos = stack[esp - 2];
+                    }
+                    break;
+                case ASTORE:
+                    if (esp < 3) {
+                        throw underflow();
+                    }
+                    val = tos;
+                    idx = nos;
+                    adr = stack[esp - 3];
+                    esp -= 3;
+                    if (esp > 0) {
+                        tos = stack[esp - 1];
+                        if (esp > 1) {
+                            nos = stack[esp - 2];
+                        }
+                    }
+                    if (adr == 0) {
+                        throw nullReference();
+                    }
+                    if (idx < 0 || idx >= heap[adr - 1]) {
+                        throw outOfBounds();
+                    }
+                    heap[adr + idx] = val;
+                    break;
+                case BASTORE:
+                    if (esp < 3) {
+                        throw underflow();
+                    }
+                    val = tos;
+                    idx = nos;
+                    adr = stack[esp - 3];
+                    esp -= 3;
+                    if (esp > 0) {
+                        tos = stack[esp - 1];
+                        if (esp > 1) {
+                            nos = stack[esp - 2];
+                        }
+                    }
+                    if (adr == 0) {
+                        throw nullReference();
+                    }
+                    if (idx < 0 || idx >= heap[adr - 1]) {
+                        throw outOfBounds();
+                    }
+                    len = (3 - idx % 4) * 8; // bit offset of the byte
+                    heap[adr + idx / 4] = (heap[adr + idx / 4] & ~(255 << len)) ^ ((val & 255) << len);
+                    break;
+                case ARRAYLENGTH:
+                    if (esp == 0) {
+                        throw underflow();
+                    }
+                    if (tos == 0) {
+                        throw nullReference();
+                    }
+                    tos = heap[tos - 1];
+                    break;
+
+                // stack manipulation
+                case POP:
+                    if (esp == 0) {
+                        throw underflow();
+                    }
+                    tos = nos;
+                    esp--;
+                    if (esp > 1) {
+                        nos = stack[esp - 2];
+                    }
+                    break;
+                case DUP:
+                    if (esp == 0) {
+                        throw underflow();
+                    }
+                    if (esp == stack.length) {
+                        stack = vm.growStack(esp + 1);
+                    }
+                    if (esp > 1) {
+                        stack[esp - 2] = nos;
+                    }
+                    nos = tos;
+                    esp++;
+                    break;
+                case DUP2:
+                    if (esp < 2) {
+                        throw underflow();
+                    }
+                    if (esp + 2 > stack.length) {
+                        stack = vm.growStack(esp + 2);
+                    }
+                    stack[esp - 2] = nos;
+                    stack[esp - 1] = tos;
+                    esp += 2;
+                    break;
+
+                // jumps
+                case JMP:
+                    ip = ops[ip];
+                    break;
+                case JMP_BACK:
+                    ip = ops[ip];
+                    if (--fuel < 0) {
+                        break loop;
+                    }
+                    break;
+                case JEQ:
+                    if (esp < 2) {
+                        throw underflow();
+                    }
+                    val = nos == tos ? ops[ip] : ip + 1;
+                    esp -= 2;
+                    if (esp > 0) {
+                        tos = stack[esp - 1];
+                        if (esp > 1) {
+                            nos = stack[esp - 2];
+                        }
+                    }
+                    ip = val;
+                    break;
+                case JNE:
+                    if (esp < 2) {
+                        throw underflow();
+                    }
+                    val = nos != tos ? ops[ip] : ip + 1;
+                    esp -= 2;
+                    if (esp > 0) {
+                        tos = stack[esp - 1];
+                        if (esp > 1) {
+                            nos = stack[esp - 2];
+                        }
+                    }
+                    ip = val;
+                    break;
+                case JLT:
+                    if (esp < 2) {
+                        throw underflow();
+                    }
+                    val = nos < tos ? ops[ip] : ip + 1;
+                    esp -= 2;
+                    if (esp > 0) {
+                        tos = stack[esp - 1];
+                        if (esp > 1) {
+                            nos = stack[esp - 2];
+                        }
+                    }
+                    ip = val;
+                    break;
+                case JLE:
+                    if (esp < 2) {
+                        throw underflow();
+                    }
+                    val = nos <= tos ? ops[ip] : ip + 1;
+                    esp -= 2;
+                    if (esp > 0) {
+                        tos = stack[esp - 1];
+                        if (esp > 1) {
+                            nos = stack[esp - 2];
+                        }
+                    }
+                    ip = val;
+                    break;
+                case JGT:
+                    if (esp < 2) {
+                        throw underflow();
+                    }
+                    val = nos > tos ? ops[ip] : ip + 1;
+                    esp -= 2;
+                    if (esp > 0) {
+                        tos = stack[esp - 1];
+                        if (esp > 1) {
+                            nos = stack[esp - 2];
+                        }
+                    }
+                    ip = val;
+                    break;
+                case JGE:
+                    if (esp < 2) {
+                        throw underflow();
+                    }
+                    val = nos >= tos ? ops[ip] : ip + 1;
+                    esp -= 2;
+                    if (esp > 0) {
+                        tos = stack[esp - 1];
+                        if (esp > 1) {
+                            nos = stack[esp - 2];
+                        }
+                    }
+                    ip = val;
+                    break;
+
+                // method calls
+                case CALL:
+                    if (sp == local.length) {
+                        local = vm.growLocal(sp + 1);
+                    }
+                    local[sp++] = ops[ip + 1]; // return address as byte code pc
+                    ip = ops[ip];
+                    if (--fuel < 0) {
+                        break loop;
+                    }
+                    break;
+                case RETURN:
+                    if (sp == 0) {
+                        if (esp > 0) {
+                            stack[esp - 1] = tos;
+                            if (esp > 1) {
+                                stack[esp - 2] = nos;
+                            }
+                        }
+                        vm.esp = esp;
+                        vm.sp = sp;
+                        vm.fp = fp;
+                        vm.fuel = fuel;
+                        return;
+                    }
+                    ip = index[local[--sp]];
+                    break;
+                case ENTER:
+                    val = ops[ip++]; // number of parameters
+                    len = ops[ip++]; // number of locals
+                    if (val > Math.max(len, 0)) {
+                        throw new IllegalStateException("invalid frame size");
+                    }
+                    if (esp < val) {
+                        throw underflow();
+                    }
+                    if (sp + 1 + len > local.length) {
+                        local = vm.growLocal(sp + 1 + len);
+                    }
+                    local[sp++] = fp;
+                    fp = sp;
+                    if (len > 0) {
+                        Arrays.fill(local, sp, sp + len, 0);
+                        sp += len;
+                    }
+                    if (val > 0) {
+                        stack[esp - 1] = tos;
+                        if (esp > 1) {
+                            stack[esp - 2] = nos;
+                        }
+                        esp -= val;
+                        System.arraycopy(stack, esp, local, fp, val);
+                        if (esp > 0) {
+                            tos = stack[esp - 1];
+                            if (esp > 1) {
+                                nos = stack[esp - 2];
+                            }
+                        }
+                    }
+                    break;
+                case EXIT:
+                    if (fp == 0) {
+                        throw new IllegalStateException("method stack underflow");
+                    }
+                    sp = fp;
+                    fp = local[--sp];
+                    break;
+
+                // I/O
+                case READ:
+                    if (esp == stack.length) {
+                        stack = vm.growStack(esp + 1);
+                    }
+                    if (esp > 1) {
+                        stack[esp - 2] = nos;
+                    }
+                    nos = tos;
+                    tos = vm.readInt();
+                    esp++;
+                    break;
+                case PRINT:
+                    if (esp < 2) {
+                        throw underflow();
+                    }
+                    val = nos;
+                    len = tos;
+                    esp -= 2;
+                    if (esp > 0) {
+                        tos = stack[esp - 1];
+                        if (esp > 1) {
+                            nos = stack[esp - 2];
+                        }
+                    }
+                    vm.print(val, len);
+                    break;
+                case BREAD:
+                    if (esp == stack.length) {
+                        stack = vm.growStack(esp + 1);
+                    }
+                    if (esp > 1) {
+                        stack[esp - 2] = nos;
+                    }
+                    nos = tos;
+                    tos = vm.io.read();
+                    esp++;
+                    break;
+                case BPRINT:
+                    if (esp < 2) {
+                        throw underflow();
+                    }
+                    val = nos;
+                    len = tos;
+                    esp -= 2;
+                    if (esp > 0) {
+                        tos = stack[esp - 1];
+                        if (esp > 1) {
+                            nos = stack[esp - 2];
+                        }
+                    }
+                    vm.bprint(val, len);
+                    break;
+                case NOP:
+                    break;
+                case TRAP:
+                    throw new IllegalStateException("trap(" + ops[ip] + ")");
+
+                default: // BAD
+                    val = ops[ip];
+                    if (val < 0) {
+                        throw new IllegalStateException("jump out of code area");
+                    }
+                    throw new IllegalStateException("wrong opcode " + vm.code[val]);
+            }
+        }
+        if (esp > 0) {
+            stack[esp - 1] = tos;
+            if (esp > 1) {
+                stack[esp - 2] = nos;
+            }
+        }
+        vm.esp = esp;
+        vm.sp = sp;
+        vm.fp = fp;
+        vm.fuel = fuel;
+        vm.resume = ip;
+    }
+}
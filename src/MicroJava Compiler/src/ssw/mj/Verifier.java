@@ -0,0 +1,71 @@
+package ssw.mj;
+
+import static ssw.mj.ThreadedCode.GETSTATIC;
+import static ssw.mj.ThreadedCode.PUTSTATIC;
+
+/**
+ * Load-time verification of the code of an object file. Verified code
+ * <ul>
+ * <li>consists of methods, reachable from main by calls, that start with
+ * <code>enter</code> and end every path with <code>exit return</code>, a
+ * jump back or <code>trap</code>,</li>
+ * <li>only jumps to the beginning of instructions of the same method,</li>
+ * <li>has the same expression stack depth on all paths to an instruction,
+ * never takes more values from the stack than the method pushed and never
+ * needs more than a given number of stack slots per method,</li>
+ * <li>only uses local variables of the current frame and global variables
+ * within the data area.</li>
+ * </ul>
+ * Malformed code is rejected when it is loaded instead of failing somewhere
+ * in a run, and the engines reuse the analysis instead of repeating it.
+ * {@link Interpreter.Engine#THREADED} runs verified code without stack
+ * checks when the expression stack can hold what the rest of the run needs,
+ * see {@link ThreadedCode#unchecked()}; otherwise, and in the other engines,
+ * stack overflow and underflow are detected as for unverified code.
+ */
+final class Verifier {
+
+    private Verifier() {
+    }
+
+    /**
+     * Verifies the code and returns its analysis. Throws a FormatException
+     * describing the first problem if the code is not verifiable.
+     *
+     * @param maxStack maximum size of the expression stack in words
+     */
+    static CodeAnalysis verify(byte[] code, int startPC, int dataSize, int maxStack) throws FormatException {
+        CodeAnalysis a = CodeAnalysis.analyze(code, startPC);
+        for (CodeAnalysis.MethodInfo m : a.methods) {
+            if (m.error != null) {
+                throw new FormatException(m.error);
+            }
+        }
+        checkStack(a, maxStack);
+        if (a.methods.get(0).nPars != 0) {
+            throw new FormatException("main method at " + startPC + " has parameters");
+        }
+        for (int pc = 0; pc < code.length; pc++) {
+            if (a.owner[pc] >= 0 && (code[pc] == GETSTATIC || code[pc] == PUTSTATIC)) {
+                int adr = a.get2(pc + 1);
+                if (adr < 0 || adr >= dataSize) {
+                    throw new FormatException("global variable " + adr + " out of data area at " + pc);
+                }
+            }
+        }
+        return a;
+    }
+
+    /**
+     * Checks that no method of verified code needs more than maxStack words
+     * of expression stack, e.g. for code verified for a different stack size.
+     */
+    static void checkStack(CodeAnalysis a, int maxStack) throws FormatException {
+        for (CodeAnalysis.MethodInfo m : a.methods) {
+            if (m.maxStack > maxStack) {
+                throw new FormatException("method at " + m.entry + " needs " + m.maxStack
+                        + " words of expression stack, only " + maxStack + " available");
+            }
+        }
+    }
+}
@@ -178,6 +178,17 @@ public abstract class Code {
      */
     public int dataSize;
 
+    /**
+     * Line table, filled by the parser: the code from linePC[i] up to
+     * linePC[i + 1] (or pc) was generated for source line lineNr[i].
+     */
+    public int[] linePC, lineNr;
+
+    /**
+     * Number of entries in the line table.
+     */
+    public int nLines;
+
     /**
      * According parser.
      */
@@ -191,6 +202,9 @@ public abstract class Code {
         pc = 0;
         mainpc = -1;
         dataSize = 0;
+        linePC = new int[16];
+        lineNr = new int[16];
+        nLines = 0;
     }
 
     // ----- code storage management
@@ -232,7 +246,28 @@ public abstract class Code {
     }
 
     /**
-     * Write the code buffer to the output stream.
+     * Marks the code generated from now on as belonging to the given source
+     * line.
+     */
+    public void markLine(int line) {
+        if (nLines > 0 && linePC[nLines - 1] == pc) {
+            nLines--; // no code for the previous line
+        }
+        if (nLines > 0 && lineNr[nLines - 1] == line) {
+            return;
+        }
+        if (nLines == linePC.length) {
+            linePC = Arrays.copyOf(linePC, nLines * 2);
+            lineNr = Arrays.copyOf(lineNr, nLines * 2);
+        }
+        linePC[nLines] = pc;
+        lineNr[nLines] = line;
+        nLines++;
+    }
+
+    /**
+     * Write the code buffer to the output stream in the original object file
+     * format, without method and line tables.
      */
     public void write(OutputStream os) throws IOException {
         int codeSize = pc;
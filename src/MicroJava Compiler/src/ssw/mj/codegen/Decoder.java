@@ -35,11 +35,30 @@ public class Decoder {
     }
 
     public String decode(byte[] buf, int off, int len) {
+        return decode(buf, off, len, null, 0);
+    }
+
+    /**
+     * Like {@link #decode(byte[], int, int)}, but every line starts with the
+     * execution count of the instruction, counts[pc]. Instructions executed
+     * at least hot times are marked with <code>*</code>, unexecuted ones show
+     * <code>.</code> as their count.
+     */
+    public String decode(byte[] buf, int off, int len, long[] counts, long hot) {
         StringBuilder sb = new StringBuilder();
         codeBuf = buf;
         cur = off;
         adr = cur;
         while (cur < len) {
+            if (counts != null) {
+                long n = counts[adr];
+                String count = n == 0 ? "." : Long.toString(n);
+                sb.append(n > 0 && n >= hot ? '*' : ' ');
+                for (int i = count.length(); i < 13; i++) {
+                    sb.append(' ');
+                }
+                sb.append(count).append("  ");
+            }
             sb.append(adr);
             sb.append(": ");
             sb.append(decode(OpCode.get(get())));
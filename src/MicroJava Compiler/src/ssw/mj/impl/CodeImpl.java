@@ -39,7 +39,7 @@ public final class CodeImpl extends Code {
                         break;
                     default:
                         put(OpCode.load);
-                        put4(x.adr);
+                        put(x.adr);
                         break;
                 }
                 break;
@@ -113,7 +113,7 @@ public final class CodeImpl extends Code {
                         break;
                     default:
                         put(OpCode.store);
-                        put4(x.adr);
+                        put(x.adr);
                         break;
                 }
                 break;
@@ -183,6 +183,7 @@ public final class ParserImpl extends Parser {
         }
 
         check(Kind.ident);
+        int line = t.line;
 
         curMethod = tab.insert(Obj.Kind.Meth, t.str, type);
 
@@ -215,12 +216,14 @@ public final class ParserImpl extends Parser {
             error(Message.TOO_MANY_LOCALS);
         } else {
             curMethod.adr = code.pc;
+            code.markLine(line);
             code.put(OpCode.enter);
             code.put(curMethod.nPars);
             code.put(tab.curScope.nVars());
         }
 
         Block(null);
+        code.markLine(t.line); // of the closing brace
 
         curMethod.locals = tab.curScope.locals();
 
@@ -285,6 +288,7 @@ public final class ParserImpl extends Parser {
         if (!firstStatement.contains(sym)) {
             recoverStat();
         }
+        code.markLine(la.line);
 
         Operand x = null;
 
@@ -301,18 +305,16 @@ public final class ParserImpl extends Parser {
                             error(Message.NO_VAR);
                         }
 
-                        if (x.kind == Operand.Kind.Elem) {
+                        // load the old value; only the object or array
+                        // reference is duplicated, since store consumes it
+                        Operand.Kind opKind = x.kind;
+                        if (opKind == Operand.Kind.Elem) {
                             code.put(OpCode.dup2);
-                            code.put(OpCode.aload);
-                        } else {
-                            // don't load fields twice
-                            if (x.kind != Operand.Kind.Fld) {
-                                Operand.Kind opKind = x.kind;
-                                code.load(x);
-                                x.kind = opKind;
-                            }
+                        } else if (opKind == Operand.Kind.Fld) {
                             code.put(OpCode.dup);
                         }
+                        code.load(x);
+                        x.kind = opKind;
                     }
 
                     Operand y = Expr();
@@ -446,7 +448,6 @@ public final class ParserImpl extends Parser {
                 check(Kind.rpar);
                 check(Kind.semicolon);
 
-                code.load(x);
                 if (x.type.kind == StructImpl.Kind.Char) {
                     code.put(OpCode.bread);
                 } else if (x.type.kind == StructImpl.Kind.Int) {
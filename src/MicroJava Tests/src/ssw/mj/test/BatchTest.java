@@ -0,0 +1,161 @@
+package ssw.mj.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ssw.mj.Batch;
+import ssw.mj.Interpreter;
+import ssw.mj.Run;
+
+/**
+ * Test cases for running a program against many inputs by {@link Batch}. The
+ * program builds a list on the heap and counts its runs in a global variable,
+ * so state left over from the previous input shows in the output.
+ */
+public class BatchTest extends CompilerTestCaseSupport {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static String expected(int n) {
+		int s = n * (n + 1) / 2;
+		return String.format("1 %d %d ok %d", s, n, 100 / s);
+	}
+
+	private Batch batch(Interpreter.Builder options, int threads) {
+		return new Batch(parser.code.buf, parser.code.mainpc, parser.code.dataSize, options, threads);
+	}
+
+	private static List<String> inputs(int count) {
+		List<String> inputs = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			inputs.add(Integer.toString(1 + i * 37 % 200));
+		}
+		return inputs;
+	}
+
+	private static void check(String message, List<String> inputs, List<Batch.Result> results) {
+		Assert.assertEquals(message, inputs.size(), results.size());
+		for (int i = 0; i < inputs.size(); i++) {
+			Assert.assertNull(message + " input " + i, results.get(i).error);
+			Assert.assertEquals(message + " input " + i, expected(Integer.parseInt(inputs.get(i))),
+					results.get(i).output);
+		}
+	}
+
+	@Test
+	public void outputsInInputOrder() {
+		parseList();
+		List<String> inputs = inputs(100);
+		for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+			check("On " + engine, inputs, batch(new Interpreter.Builder().engine(engine), 4).run(inputs));
+		}
+	}
+
+	@Test
+	public void reusedInterpreters() {
+		parseList();
+		for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+			Batch batch = batch(new Interpreter.Builder().engine(engine), 2);
+			List<String> inputs = inputs(20);
+			check("First batch on " + engine, inputs, batch.run(inputs));
+			Collections.reverse(inputs);
+			check("Second batch on " + engine, inputs, batch.run(inputs));
+		}
+	}
+
+	@Test
+	public void collectedHeap() {
+		parseList();
+		List<String> inputs = inputs(50);
+		for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+			Interpreter.Builder options = new Interpreter.Builder().engine(engine).collect(true).heapSize(700);
+			check("On " + engine, inputs, batch(options, 3).run(inputs));
+		}
+	}
+
+	@Test
+	public void grownHeap() {
+		parseList();
+		List<String> inputs = inputs(30);
+		for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+			Interpreter.Builder options = new Interpreter.Builder().engine(engine).heapSize(10).grow(true);
+			check("On " + engine, inputs, batch(options, 2).run(inputs));
+		}
+	}
+
+	@Test
+	public void runtimeErrors() {
+		parseList();
+		List<String> inputs = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			inputs.add(i % 3 == 0 ? "0" : "5");
+		}
+		for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+			List<Batch.Result> results = batch(new Interpreter.Builder().engine(engine), 2).run(inputs);
+			for (int i = 0; i < inputs.size(); i++) {
+				if (i % 3 == 0) {
+					Assert.assertEquals("On " + engine, "1 0 0 ok ", results.get(i).output);
+					Assert.assertEquals("On " + engine, "division by zero", results.get(i).error.getMessage());
+				} else {
+					Assert.assertNull("On " + engine, results.get(i).error);
+					Assert.assertEquals("On " + engine, expected(5), results.get(i).output);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void moreThreadsThanInputs() {
+		parseList();
+		List<String> inputs = inputs(3);
+		check("Three inputs", inputs, batch(new Interpreter.Builder(), 8).run(inputs));
+		Assert.assertTrue(batch(new Interpreter.Builder(), 8).run(new ArrayList<>()).isEmpty());
+	}
+
+	private static String run(String... args) {
+		PrintStream out = System.out;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			System.setOut(new PrintStream(bytes, true));
+			Run.main(args);
+			System.out.flush();
+			return bytes.toString();
+		} finally {
+			System.setOut(out);
+		}
+	}
+
+	@Test
+	public void batchMode() throws IOException {
+		parseList();
+		File obj = folder.newFile("sum.obj");
+		try (FileOutputStream os = new FileOutputStream(obj)) {
+			parser.code.write(os);
+		}
+		File dir = folder.newFolder("inputs");
+		String[] inputs = {"3", "0", "20"};
+		for (int i = 0; i < inputs.length; i++) {
+			Files.write(new File(dir, "in" + i).toPath(), inputs[i].getBytes(StandardCharsets.US_ASCII));
+		}
+		String output = run(obj.getPath(), "-batch", dir.getPath(), "-threads", "2", "-engine", "threaded");
+		Assert.assertTrue(output, output.startsWith("in0:" + LF + expected(3) + LF + //
+				"in1:" + LF + "1 0 0 ok " + LF + "-- division by zero" + LF + //
+				"in2:" + LF + expected(20) + LF + LF + "Completion took "));
+		Assert.assertTrue(output, output.endsWith(" ms for 3 inputs on 2 threads"));
+		Assert.assertTrue(run(obj.getPath(), "-batch", dir.getPath(), "-profile").startsWith("Syntax: "));
+	}
+}
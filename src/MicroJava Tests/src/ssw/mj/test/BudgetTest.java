@@ -0,0 +1,240 @@
+package ssw.mj.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ssw.mj.Interpreter;
+import ssw.mj.Scheduler;
+
+/**
+ * Test cases for step budgets, quotas and cancellation of runs, and for
+ * running many interpreters by {@link Scheduler}.
+ */
+public class BudgetTest extends CompilerTestCaseSupport {
+
+	private void parseLoop() {
+		init("program Loop" + LF + //
+				"{" + LF + //
+				"  void main () int i; {" + LF + //
+				"    print('x');" + LF + //
+				"    while (i >= 0) i++;" + LF + //
+				"  }" + LF + //
+				"}");
+		parser.parse();
+		Assert.assertEquals("Errors", "", parser.scanner.errors.dump());
+	}
+
+	@Test
+	public void suspendedRuns() {
+		parseList();
+		for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+			Interpreter.Builder options = new Interpreter.Builder().engine(engine);
+			Interpreter vm = build(options, "300");
+			int slices = 1;
+			while (!vm.runFor(7)) {
+				Assert.assertTrue("Suspended on " + engine, vm.isSuspended());
+				slices++;
+			}
+			Assert.assertFalse(vm.isSuspended());
+			Assert.assertEquals("On " + engine, "1 45150 300 ok 0", io.getOutput());
+			Assert.assertTrue("Slices on " + engine + ": " + slices, slices > 50);
+		}
+	}
+
+	@Test
+	public void stepQuota() {
+		parseLoop();
+		for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+			Interpreter.Builder options = new Interpreter.Builder().engine(engine).stepQuota(100000);
+			Interpreter vm = build(options, "");
+			try {
+				vm.run();
+				Assert.fail("Step quota on " + engine);
+			} catch (IllegalStateException e) {
+				Assert.assertEquals("step quota exceeded", e.getMessage());
+			}
+			Assert.assertEquals("Output flushed on " + engine, "x", io.getOutput());
+		}
+		parseList();
+		Interpreter.Builder options = new Interpreter.Builder().stepQuota(1500);
+		build(options, "400").run();
+		Assert.assertEquals("Enough steps", "1 80200 400 ok 0", io.getOutput());
+	}
+
+	@Test
+	public void conditionalBackEdges() {
+		// main: i++ while i >= 0, the loop closed by a backward jge
+		byte[] code = { //
+				51, 0, 1, // enter 0 1
+				31, 0, 1, // inc 0 1
+				2, // load_0
+				15, // const_0
+				48, -1, -5, // jge -5
+				52, // exit
+				50 // return
+		};
+		Interpreter.Builder[] builders = { //
+				new Interpreter.Builder().quicken(true), //
+				new Interpreter.Builder().superinstructions(true), //
+				new Interpreter.Builder().cacheTop(true) };
+		List<Interpreter.Builder> options = new ArrayList<>(List.of(builders));
+		for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+			options.add(new Interpreter.Builder().engine(engine));
+		}
+		for (Interpreter.Builder b : options) {
+			Interpreter vm = b.stepQuota(100000).build(code, 0, 0);
+			try {
+				vm.run();
+				Assert.fail("Step quota");
+			} catch (IllegalStateException e) {
+				Assert.assertEquals("step quota exceeded", e.getMessage());
+			}
+		}
+	}
+
+	@Test
+	public void heapQuota() {
+		parseList();
+		for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+			Interpreter.Builder options = new Interpreter.Builder().engine(engine).grow(true).heapSize(10)
+					.heapQuota(400);
+			build(options, "100").run();
+			Assert.assertEquals("Within quota on " + engine, "1 5050 100 ok 0", io.getOutput());
+			options = new Interpreter.Builder().engine(engine).grow(true).heapSize(10).heapQuota(400);
+			try {
+				build(options, "300").run();
+				Assert.fail("Heap quota on " + engine);
+			} catch (IllegalStateException e) {
+				Assert.assertEquals("heap quota exceeded", e.getMessage());
+			}
+		}
+	}
+
+	@Test
+	public void compiledMethods() {
+		init("program Sums" + LF + //
+				"{" + LF + //
+				"  int sum (int n) int s; {" + LF + //
+				"    s = 0;" + LF + //
+				"    while (n > 0) { s = s + n; n--; }" + LF + //
+				"    return s;" + LF + //
+				"  }" + LF + //
+				"  void main () int i, t; {" + LF + //
+				"    i = 0; t = 0;" + LF + //
+				"    while (i < 50) { t = t + sum(i) % 7; i++; }" + LF + //
+				"    print(t);" + LF + //
+				"  }" + LF + //
+				"}");
+		parser.parse();
+		Assert.assertEquals("Errors", "", parser.scanner.errors.dump());
+		System.setProperty("microjava.jitThreshold", "0");
+		try {
+			Interpreter vm = build(new Interpreter.Builder().engine(Interpreter.Engine.JIT), "");
+			int slices = 1;
+			while (!vm.runFor(3)) {
+				slices++;
+			}
+			Assert.assertEquals("98", io.getOutput());
+			Assert.assertTrue("Slices: " + slices, slices > 10);
+			try {
+				build(new Interpreter.Builder().engine(Interpreter.Engine.JIT).stepQuota(500), "").run();
+				Assert.fail("Step quota in compiled code");
+			} catch (IllegalStateException e) {
+				Assert.assertEquals("step quota exceeded", e.getMessage());
+			}
+		} finally {
+			System.clearProperty("microjava.jitThreshold");
+		}
+	}
+
+	@Test
+	public void cancelledRun() throws InterruptedException {
+		parseLoop();
+		for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+			Interpreter vm = build(new Interpreter.Builder().engine(engine), "");
+			List<String> errors = new ArrayList<>();
+			Thread t = new Thread(() -> {
+				try {
+					vm.run();
+				} catch (IllegalStateException e) {
+					errors.add(e.getMessage());
+				}
+			});
+			t.start();
+			Thread.sleep(20);
+			vm.cancel();
+			t.join(10000);
+			Assert.assertFalse("Stopped on " + engine, t.isAlive());
+			Assert.assertEquals("On " + engine, List.of("run cancelled"), errors);
+		}
+	}
+
+	@Test
+	public void scheduledRuns() throws InterruptedException {
+		parseList();
+		Interpreter.Engine[] engines = Interpreter.Engine.values();
+		List<Interpreter.BufferIO> ios = new ArrayList<>();
+		List<Scheduler.Task> tasks = new ArrayList<>();
+		try (Scheduler scheduler = new Scheduler(2, 50)) {
+			for (int i = 0; i < 1000; i++) {
+				Interpreter.Builder options = new Interpreter.Builder().engine(engines[i % engines.length]);
+				Interpreter vm = build(options, "" + (1 + i % 200));
+				ios.add(io);
+				tasks.add(scheduler.submit(vm));
+			}
+			for (int i = 0; i < tasks.size(); i++) {
+				tasks.get(i).await();
+				int n = 1 + i % 200;
+				int s = n * (n + 1) / 2;
+				Assert.assertEquals("Run " + i, "1 " + s + " " + n + " ok " + 100 / s, ios.get(i).getOutput());
+			}
+		}
+		Assert.assertTrue("Time sliced", tasks.get(199).slices() > 1);
+	}
+
+	@Test
+	public void scheduledErrors() throws InterruptedException {
+		parseLoop();
+		try (Scheduler scheduler = new Scheduler(1, 1000)) {
+			Scheduler.Task endless = scheduler.submit(build(new Interpreter.Builder(), ""));
+			Scheduler.Task limited = scheduler.submit(build(new Interpreter.Builder().stepQuota(5000), ""));
+			parseList();
+			Scheduler.Task sum = scheduler.submit(build(new Interpreter.Builder(), "50"));
+			sum.await();
+			Assert.assertEquals("Not blocked by the endless run", "1 1275 50 ok 0", io.getOutput());
+			try {
+				limited.await();
+				Assert.fail("Step quota");
+			} catch (IllegalStateException e) {
+				Assert.assertEquals("step quota exceeded", e.getMessage());
+			}
+			Assert.assertFalse(endless.isDone());
+			endless.cancel();
+			try {
+				endless.await();
+				Assert.fail("Cancelled");
+			} catch (IllegalStateException e) {
+				Assert.assertEquals("run cancelled", e.getMessage());
+			}
+		}
+	}
+
+	@Test
+	public void submitAfterClose() throws InterruptedException {
+		parseList();
+		Scheduler scheduler = new Scheduler(1, 1000);
+		scheduler.close();
+		Scheduler.Task late = scheduler.submit(build(new Interpreter.Builder(), "5"));
+		Assert.assertTrue(late.isDone());
+		try {
+			late.await();
+			Assert.fail("Closed");
+		} catch (IllegalStateException e) {
+			Assert.assertEquals("scheduler closed", e.getMessage());
+		}
+		Assert.assertEquals("Not run", "", io.getOutput());
+	}
+}
@@ -0,0 +1,171 @@
+package ssw.mj.test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ssw.mj.Interpreter;
+
+/**
+ * Test cases for checkpoints. A run is suspended and saved, and the saved run
+ * is continued by another interpreter.
+ */
+public class CheckpointTest extends CompilerTestCaseSupport {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Runs the program for the given number of steps, saves the suspended run
+	 * to file and returns the output so far.
+	 */
+	private String checkpoint(Interpreter.Builder options, String input, long steps, Path file)
+			throws IOException {
+		Interpreter vm = build(options, input);
+		Assert.assertFalse("Suspended", vm.runFor(steps));
+		vm.saveCheckpoint(file);
+		return io.getOutput();
+	}
+
+	/**
+	 * Continues the run saved in file by a new interpreter and returns its
+	 * output.
+	 */
+	private String restore(Interpreter.Builder options, Path file) throws IOException {
+		Interpreter vm = build(options, "");
+		vm.loadCheckpoint(file);
+		vm.run();
+		return io.getOutput();
+	}
+
+	@Test
+	public void restoredRuns() throws IOException {
+		parseList();
+		for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+			Path file = folder.newFile().toPath();
+			Assert.assertEquals("Before the checkpoint on " + engine, "",
+					checkpoint(new Interpreter.Builder().engine(engine), "20", 10, file));
+			Assert.assertEquals("On " + engine, "1 210 20 ok 0",
+					restore(new Interpreter.Builder().engine(engine), file));
+			Assert.assertEquals("Again on " + engine, "1 210 20 ok 0",
+					restore(new Interpreter.Builder().engine(engine), file));
+		}
+	}
+
+	@Test
+	public void smallerRegions() throws IOException {
+		parseList();
+		for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+			Path file = folder.newFile().toPath();
+			checkpoint(new Interpreter.Builder().engine(engine).grow(true).heapSize(10).methodStackSize(10), "200",
+					150, file);
+			Assert.assertEquals("On " + engine, "1 20100 200 ok 0", restore(new Interpreter.Builder().engine(engine)
+					.grow(true).heapSize(10).methodStackSize(10).expressionStackSize(5), file));
+		}
+	}
+
+	@Test
+	public void collectedHeap() throws IOException {
+		parseList();
+		for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+			Path file = folder.newFile().toPath();
+			checkpoint(new Interpreter.Builder().engine(engine).collect(true).heapSize(30), "8", 5, file);
+			Assert.assertEquals("On " + engine, "1 36 8 ok 2",
+					restore(new Interpreter.Builder().engine(engine).collect(true).heapSize(30), file));
+			try {
+				restore(new Interpreter.Builder().engine(engine), file);
+				Assert.fail("Uncollected heap on " + engine);
+			} catch (IOException e) {
+				Assert.assertEquals("checkpoint of a collected heap", e.getMessage());
+			}
+		}
+	}
+
+	@Test
+	public void heapQuota() throws IOException {
+		parseList();
+		for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+			Path file = folder.newFile().toPath();
+			checkpoint(new Interpreter.Builder().engine(engine), "40", 38, file); // 37 nodes of 2 words
+			Interpreter vm = build(new Interpreter.Builder().engine(engine).heapQuota(50), "");
+			try {
+				vm.loadCheckpoint(file);
+				Assert.fail("Heap quota on " + engine);
+			} catch (IllegalStateException e) {
+				Assert.assertEquals("heap quota exceeded", e.getMessage());
+			}
+		}
+	}
+
+	@Test
+	public void sizeFollowsUsedStack() throws IOException {
+		parseList();
+		for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+			Path small = folder.newFile().toPath();
+			Path large = folder.newFile().toPath();
+			checkpoint(new Interpreter.Builder().engine(engine).expressionStackSize(100), "20", 10, small);
+			checkpoint(new Interpreter.Builder().engine(engine).expressionStackSize(100000), "20", 10, large);
+			Assert.assertEquals("Size on " + engine, Files.size(small), Files.size(large));
+			Assert.assertEquals("On " + engine, "1 210 20 ok 0",
+					restore(new Interpreter.Builder().engine(engine).expressionStackSize(100), large));
+		}
+	}
+
+	@Test
+	public void otherEngines() throws IOException {
+		parseList();
+		Path file = folder.newFile().toPath();
+		checkpoint(new Interpreter.Builder().engine(Interpreter.Engine.THREADED), "20", 10, file);
+		for (Interpreter.Builder options : new Interpreter.Builder[] {
+				new Interpreter.Builder().engine(Interpreter.Engine.REGISTER),
+				new Interpreter.Builder().engine(Interpreter.Engine.JIT),
+				new Interpreter.Builder().engine(Interpreter.Engine.THREADED).superinstructions(true) }) {
+			try {
+				restore(options, file);
+				Assert.fail("Other engine");
+			} catch (IOException e) {
+				Assert.assertEquals("checkpoint of another engine", e.getMessage());
+			}
+		}
+		Assert.assertEquals("Top of stack cached", "1 210 20 ok 0",
+				restore(new Interpreter.Builder().engine(Interpreter.Engine.THREADED).cacheTop(true), file));
+	}
+
+	@Test
+	public void otherProgram() throws IOException {
+		parseList();
+		Path file = folder.newFile().toPath();
+		checkpoint(new Interpreter.Builder(), "20", 10, file);
+		init("program Other" + LF + //
+				"{" + LF + //
+				"  void main () {" + LF + //
+				"    print('x');" + LF + //
+				"  }" + LF + //
+				"}");
+		parser.parse();
+		try {
+			restore(new Interpreter.Builder(), file);
+			Assert.fail("Other program");
+		} catch (IOException e) {
+			Assert.assertEquals("checkpoint of another program", e.getMessage());
+		}
+	}
+
+	@Test
+	public void finishedRun() throws IOException {
+		parseList();
+		Interpreter vm = build(new Interpreter.Builder(), "3");
+		vm.run();
+		try {
+			vm.saveCheckpoint(folder.newFile().toPath());
+			Assert.fail("Nothing to save");
+		} catch (IllegalStateException e) {
+			Assert.assertEquals("no suspended run", e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package ssw.mj.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ssw.mj.Interpreter;
+import ssw.mj.Run;
+
+/**
+ * Test cases for the cache of pre-decoded programs used by {@link Run}.
+ */
+public class CodeCacheTest extends CompilerTestCaseSupport {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Compiles a program that prints n and returns its object file.
+	 */
+	private File compile(int n) throws IOException {
+		init("program P" + n + LF + //
+				"  int g;" + LF + //
+				"{" + LF + //
+				"  int twice (int x) { return 2 * x; }" + LF + //
+				"  void main () int i; {" + LF + //
+				"    i = 0;" + LF + //
+				"    while (i < 10) { g = g + twice(i); i++; }" + LF + //
+				"    if (g == 90) g = 0;" + LF + //
+				"    if (g == 0) g = g + " + n + ";" + LF + //
+				"    print(g);" + LF + //
+				"  }" + LF + //
+				"}");
+		parser.parse();
+		Assert.assertEquals("Errors", "", parser.scanner.errors.dump());
+		File file = folder.newFile("p" + n + ".obj");
+		try (FileOutputStream os = new FileOutputStream(file)) {
+			parser.code.write(os);
+		}
+		return file;
+	}
+
+	/**
+	 * Output of Run, without the completion time.
+	 */
+	private static String run(String... args) {
+		PrintStream out = System.out;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			System.setOut(new PrintStream(bytes, true));
+			Run.main(args);
+			System.out.flush();
+			String output = bytes.toString();
+			int completion = output.indexOf("\nCompletion took ");
+			return completion >= 0 ? output.substring(0, completion) : output;
+		} finally {
+			System.setOut(out);
+		}
+	}
+
+	private Path cache() {
+		return folder.getRoot().toPath().resolve("cache");
+	}
+
+	private Path[] entries() throws IOException {
+		try (Stream<Path> files = Files.list(cache())) {
+			return files.toArray(Path[]::new);
+		}
+	}
+
+	@Test
+	public void laterRuns() throws IOException {
+		String obj = compile(7).getPath();
+		for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+			String name = engine.name().toLowerCase();
+			Assert.assertEquals("First run on " + engine, "7", run(obj, "-engine", name, "-cache", cache().toString()));
+			Assert.assertEquals("Cached run on " + engine, "7", run(obj, "-engine", name, "-cache", cache().toString()));
+			Assert.assertEquals("With superinstructions on " + engine, "7",
+					run(obj, "-engine", name, "-fuse", "-cache", cache().toString()));
+		}
+		Assert.assertEquals("Entries", 1, entries().length);
+	}
+
+	@Test
+	public void smallExpressionStack() throws IOException {
+		String obj = compile(7).getPath();
+		Assert.assertEquals("7", run(obj, "-cache", cache().toString()));
+		Assert.assertTrue(run(obj, "-estack", "1", "-cache", cache().toString())
+				.contains("words of expression stack, only 1 available"));
+	}
+
+	@Test
+	public void damagedEntry() throws IOException {
+		String obj = compile(7).getPath();
+		run(obj, "-cache", cache().toString());
+		Path entry = entries()[0];
+		byte[] bytes = Files.readAllBytes(entry);
+		byte[] damaged = bytes.clone();
+		damaged[damaged.length / 2] ^= 1;
+		Files.write(entry, damaged);
+		Assert.assertEquals("7", run(obj, "-engine", "threaded", "-cache", cache().toString()));
+		Assert.assertArrayEquals("Entry written again", bytes, Files.readAllBytes(entry));
+		Files.write(entry, Arrays.copyOf(bytes, 10));
+		Assert.assertEquals("7", run(obj, "-engine", "threaded", "-cache", cache().toString()));
+		Assert.assertArrayEquals("Entry written again", bytes, Files.readAllBytes(entry));
+	}
+
+	@Test
+	public void leastRecentlyUsedEvicted() throws IOException, InterruptedException {
+		String a = compile(1).getPath();
+		String b = compile(2).getPath();
+		String c = compile(3).getPath();
+		run(a, "-cache", cache().toString());
+		long size = Files.size(entries()[0]);
+		String kbytes = Long.toString((2 * size + 1023) / 1024); // room for two entries
+		Thread.sleep(20);
+		Assert.assertEquals("2", run(b, "-cache", cache().toString(), "-cachesize", kbytes));
+		Thread.sleep(20);
+		Assert.assertEquals("1", run(a, "-cache", cache().toString(), "-cachesize", kbytes));
+		Path[] used = entries();
+		Assert.assertEquals(2, used.length);
+		Path older = Files.getLastModifiedTime(used[0]).compareTo(Files.getLastModifiedTime(used[1])) < 0 ? used[0]
+				: used[1];
+		Path newer = older == used[0] ? used[1] : used[0];
+		Thread.sleep(20);
+		Assert.assertEquals("3", run(c, "-cache", cache().toString(), "-cachesize", kbytes));
+		Assert.assertFalse("Entry of b evicted", Files.exists(older));
+		Assert.assertTrue("Entry of a kept", Files.exists(newer));
+		Assert.assertEquals("Entries", 2, entries().length);
+	}
+}
@@ -3,6 +3,7 @@ package ssw.mj.test;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -14,6 +15,7 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.rules.Timeout;
 
+import ssw.mj.Batch;
 import ssw.mj.Errors;
 import ssw.mj.Interpreter;
 import ssw.mj.Token;
@@ -40,6 +42,11 @@ public abstract class CompilerTestCaseSupport {
 	private List<String> runInputs = new ArrayList<String>();
 	private List<String> expectedOutputs = new ArrayList<String>();
 
+	/**
+	 * Output of the last interpreter created by {@link #build}.
+	 */
+	protected Interpreter.BufferIO io;
+
 	@Rule
 	public Timeout globalTimeout = Timeout.millis(Configuration.DEFAULT_TIMEOUT);
 
@@ -65,6 +72,48 @@ public abstract class CompilerTestCaseSupport {
 		parser = new ParserImpl(scanner);
 	}
 
+	/**
+	 * Parses a program that prepends the numbers from its input down to 1 to
+	 * a global list, one recursive call per node, and counts its runs. It
+	 * prints the number of runs, the sum and the length of the list, a char
+	 * array allocated in every run and 100 divided by the sum, which fails
+	 * while the list is empty. Output for input 3 in the first run:
+	 * <code>1 6 3 ok 16</code>.
+	 */
+	protected void parseList() {
+		init("program List" + LF + //
+				"  class Node { int val; Node next; }" + LF + //
+				"  Node list; int runs; char[] name;" + LF + //
+				"{" + LF + //
+				"  Node build (int n, Node tail) Node p; {" + LF + //
+				"    if (n == 0) return tail;" + LF + //
+				"    p = new Node; p.val = n; p.next = tail;" + LF + //
+				"    return build(n - 1, p);" + LF + //
+				"  }" + LF + //
+				"  void main () int n, s, c; Node p; {" + LF + //
+				"    read(n);" + LF + //
+				"    name = new char[2]; name[0] = 'o'; name[1] = 'k';" + LF + //
+				"    list = build(n, list);" + LF + //
+				"    runs++;" + LF + //
+				"    s = 0; c = 0; p = list;" + LF + //
+				"    while (p != null) { s = s + p.val; c++; p = p.next; }" + LF + //
+				"    print(runs); print(' '); print(s); print(' '); print(c); print(' ');" + LF + //
+				"    print(name[0]); print(name[1]); print(' '); print(100 / s);" + LF + //
+				"  }" + LF + //
+				"}");
+		parser.parse();
+		Assert.assertEquals("Errors", "", parser.scanner.errors.dump());
+	}
+
+	/**
+	 * Interpreter for the parsed program reading input; its output is kept
+	 * in {@link #io}.
+	 */
+	protected Interpreter build(Interpreter.Builder options, String input) {
+		io = new Interpreter.BufferIO(input);
+		return options.io(io).build(parser.code.buf, parser.code.mainpc, parser.code.dataSize);
+	}
+
 	protected void initScannerFile(String s) {
 		try {
 			scanner = new ScannerImpl(new FileReader(new File("tests", s)));
@@ -158,14 +207,42 @@ public abstract class CompilerTestCaseSupport {
 			System.out.println("-------------------------------");
 		}
 
-		for (int i = 0; i < runInputs.size(); i++) {
-			Interpreter.BufferIO io = new Interpreter.BufferIO(runInputs.get(i));
-			Interpreter inter = new Interpreter(parser.code.buf, parser.code.mainpc, parser.code.dataSize, io,
-					Configuration.PRINT_INTERPRETER_DEBUG_OUTPUT);
-			inter.run();
-			String output = io.getOutput();
-			Assert.assertEquals("Unexpected result when input is \"" + runInputs.get(i) + "\": ",
-					expectedOutputs.get(i), output);
+		if (expectedErrors.isEmpty()) {
+			verify();
+		}
+
+		for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+			Interpreter.Builder options = new Interpreter.Builder().engine(engine)
+					.debug(Configuration.PRINT_INTERPRETER_DEBUG_OUTPUT);
+			// one thread keeps the debug output of the runs apart
+			Batch batch = Configuration.PRINT_INTERPRETER_DEBUG_OUTPUT
+					? new Batch(parser.code.buf, parser.code.mainpc, parser.code.dataSize, options, 1)
+					: new Batch(parser.code.buf, parser.code.mainpc, parser.code.dataSize, options);
+			List<Batch.Result> results = batch.run(runInputs);
+			for (int i = 0; i < runInputs.size(); i++) {
+				if (results.get(i).error != null) {
+					throw results.get(i).error;
+				}
+				Assert.assertEquals("Unexpected result (" + engine + ") when input is \"" + runInputs.get(i) + "\": ",
+						expectedOutputs.get(i), results.get(i).output);
+			}
+			// engines that cannot translate the code fall back to THREADED
+			if (!runInputs.isEmpty() && !Configuration.PRINT_INTERPRETER_DEBUG_OUTPUT) {
+				Assert.assertEquals("Engine", engine, options.build(parser.code.buf, parser.code.mainpc,
+						parser.code.dataSize).getEngine());
+			}
+		}
+	}
+
+	/**
+	 * Checks that the code of the parsed program passes the verification
+	 * that Run applies to object files.
+	 */
+	private void verify() {
+		try {
+			new Interpreter.Builder().verify(parser.code.buf, parser.code.mainpc, parser.code.dataSize);
+		} catch (IOException e) {
+			Assert.fail("Compiled code is not verifiable: " + e.getMessage());
 		}
 	}
 
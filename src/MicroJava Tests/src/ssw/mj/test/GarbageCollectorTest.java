@@ -0,0 +1,189 @@
+package ssw.mj.test;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import ssw.mj.GarbageCollector;
+import ssw.mj.Interpreter;
+
+/**
+ * Test cases for the garbage collector. Every program is run on all engines
+ * with a collected heap.
+ */
+public class GarbageCollectorTest extends CompilerTestCaseSupport {
+
+	@Before
+	public void compileEagerly() {
+		System.setProperty("microjava.jitThreshold", "0");
+	}
+
+	@After
+	public void resetThreshold() {
+		System.clearProperty("microjava.jitThreshold");
+	}
+
+	/**
+	 * Output of the program, followed by the message of the runtime error if
+	 * there is one.
+	 */
+	private String run(Interpreter inter, Interpreter.BufferIO io) {
+		try {
+			inter.run();
+			return io.getOutput();
+		} catch (IllegalStateException e) {
+			return io.getOutput() + "|" + e.getMessage();
+		}
+	}
+
+	/**
+	 * Runs the program with the given input on all engines and checks the
+	 * output. Returns the collector of the last run.
+	 */
+	private GarbageCollector verify(String input, String output) {
+		return verify(input, output, new Interpreter.Builder());
+	}
+
+	private GarbageCollector verify(String input, String output, Interpreter.Builder builder) {
+		GarbageCollector gc = null;
+		for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+			Interpreter.BufferIO io = new Interpreter.BufferIO(input);
+			Interpreter inter = builder.io(io).engine(engine).collect(true)
+					.build(parser.code.buf, parser.code.mainpc, parser.code.dataSize);
+			Assert.assertEquals("Result of " + engine + " when input is \"" + input + "\"", output, run(inter, io));
+			gc = inter.getGarbageCollector();
+		}
+		return gc;
+	}
+
+	private String runWithoutCollection(String input) {
+		Interpreter.BufferIO io = new Interpreter.BufferIO(input);
+		return run(new Interpreter(parser.code.buf, parser.code.mainpc, parser.code.dataSize, io, false), io);
+	}
+
+	private void parse() {
+		parser.parse();
+		Assert.assertEquals("Errors", "", parser.scanner.errors.dump());
+	}
+
+	@Test
+	public void garbageIsReclaimed() {
+		init("program Garbage" + LF + //
+				"{" + LF + //
+				"  void main () int n; int[] a; {" + LF + //
+				"    read(n);" + LF + //
+				"    while (n > 0) { a = new int[10000]; a[9999] = n; n--; }" + LF + //
+				"    print(a[9999]);" + LF + //
+				"  }" + LF + //
+				"}");
+		parse();
+		Assert.assertEquals("|heap overflow", runWithoutCollection("100"));
+		GarbageCollector gc = verify("100", "1");
+		Assert.assertTrue("Collections expected", gc.collections() > 0);
+		Assert.assertTrue("Reclaimed bytes expected", gc.reclaimedBytes() > 0);
+		Assert.assertTrue("Pause time expected", gc.pauseNanos() > 0);
+		Assert.assertEquals(100 * 10002 * 4, gc.allocatedBytes());
+	}
+
+	@Test
+	public void reachableObjectsSurvive() {
+		init("program Reachable" + LF + //
+				"  class Node { int val; Node next; char[] name; }" + LF + //
+				"  Node list; int[] junk;" + LF + //
+				"{" + LF + //
+				"  void main () int i; Node p; {" + LF + //
+				"    read(i);" + LF + //
+				"    while (i > 0) {" + LF + //
+				"      p = new Node; p.val = i; p.next = list; list = p;" + LF + //
+				"      p.name = new char[3]; p.name[1] = chr(97 + i % 26);" + LF + //
+				"      junk = new int[300]; junk[0] = i;" + LF + //
+				"      i--;" + LF + //
+				"    }" + LF + //
+				"    i = 0; p = list;" + LF + //
+				"    while (p != null) { i = i + p.val; if (p.val % 200 == 0) print(p.name[1]); p = p.next; }" + LF + //
+				"    print(i, 9);" + LF + //
+				"  }" + LF + //
+				"}");
+		parse();
+		Assert.assertEquals("|heap overflow", runWithoutCollection("2000"));
+		Assert.assertEquals("     5050", runWithoutCollection("100"));
+		verify("100", "     5050");
+		GarbageCollector gc = verify("2000", "skcumewogy  2001000");
+		Assert.assertTrue("Collections expected", gc.collections() > 0);
+	}
+
+	@Test
+	public void localsInCalledMethodsAreRoots() {
+		init("program Locals" + LF + //
+				"  class Node { int val; }" + LF + //
+				"  int[] junk;" + LF + //
+				"{" + LF + //
+				"  int sum (int n) Node x; {" + LF + //
+				"    if (n == 0) return 0;" + LF + //
+				"    x = new Node; x.val = n;" + LF + //
+				"    junk = new int[500];" + LF + //
+				"    return sum(n - 1) + x.val;" + LF + //
+				"  }" + LF + //
+				"  void main () int n; {" + LF + //
+				"    read(n);" + LF + //
+				"    while (n > 0) { print(sum(100), 6); n--; }" + LF + //
+				"  }" + LF + //
+				"}");
+		parse();
+		GarbageCollector gc = verify("4", "  5050  5050  5050  5050");
+		Assert.assertTrue("Collections expected", gc.collections() > 0);
+	}
+
+	@Test
+	public void heapOverflow() {
+		init("program Overflow" + LF + //
+				"  class Node { int[] data; Node next; }" + LF + //
+				"  Node list;" + LF + //
+				"{" + LF + //
+				"  void main () int n; Node p; {" + LF + //
+				"    read(n);" + LF + //
+				"    while (n > 0) { p = new Node; p.data = new int[1000]; p.next = list; list = p; n--; }" + LF + //
+				"    print(1);" + LF + //
+				"  }" + LF + //
+				"}");
+		parse();
+		verify("90", "1");
+		verify("200", "|heap overflow");
+	}
+
+	@Test
+	public void emptyArrayAtEndOfHeapSurvives() {
+		init("program Empty" + LF + //
+				"  int[] a; int[] z; int[] b; int[] c;" + LF + //
+				"{" + LF + //
+				"  void main () {" + LF + //
+				"    a = new int[500]; z = new int[0]; a = null;" + LF + //
+				"    b = new int[496];" + LF + //
+				"    c = new int[400]; c[3] = 77;" + LF + //
+				"    print(len(z));" + LF + //
+				"  }" + LF + //
+				"}");
+		parse();
+		GarbageCollector gc = verify("", "0", new Interpreter.Builder().heapSize(1000));
+		Assert.assertEquals(1, gc.collections());
+	}
+
+	@Test
+	public void emptyObjectAtEndOfHeapSurvives() {
+		init("program Empty" + LF + //
+				"  class Empty { }" + LF + //
+				"  int[] a; Empty e; int[] b; int[] x; Empty f;" + LF + //
+				"{" + LF + //
+				"  void main () {" + LF + //
+				"    a = new int[500]; e = new Empty; a = null;" + LF + //
+				"    b = new int[496];" + LF + //
+				"    x = new int[2]; f = new Empty;" + LF + //
+				"    if (e == f) print(0); else print(1);" + LF + //
+				"  }" + LF + //
+				"}");
+		parse();
+		GarbageCollector gc = verify("", "1", new Interpreter.Builder().heapSize(1000));
+		Assert.assertEquals(1, gc.collections());
+	}
+}
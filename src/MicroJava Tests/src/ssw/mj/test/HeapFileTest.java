@@ -0,0 +1,149 @@
+package ssw.mj.test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ssw.mj.Interpreter;
+
+/**
+ * Test cases for heap files. A program extends a list on the heap in every
+ * run; the heap saved by one run is loaded by the next one.
+ */
+public class HeapFileTest extends CompilerTestCaseSupport {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Before
+	public void compileEagerly() {
+		System.setProperty("microjava.jitThreshold", "0");
+	}
+
+	@After
+	public void resetThreshold() {
+		System.clearProperty("microjava.jitThreshold");
+	}
+
+	/**
+	 * Runs the program, after loading the heap from file if load is set, and
+	 * saves the heap to file. Returns the output, followed by the message of
+	 * the runtime error if there is one.
+	 */
+	private String run(Interpreter.Builder options, String input, Path file, boolean load) throws IOException {
+		Interpreter inter = build(options, input);
+		try {
+			if (load) {
+				inter.loadHeap(file);
+			}
+			inter.run();
+		} catch (IllegalStateException e) {
+			return io.getOutput() + "|" + e.getMessage();
+		}
+		inter.saveHeap(file);
+		return io.getOutput();
+	}
+
+	private static Interpreter.Builder defaults(Interpreter.Engine engine) {
+		return new Interpreter.Builder().engine(engine);
+	}
+
+	@Test
+	public void laterRuns() throws IOException {
+		parseList();
+		for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+			Path file = folder.newFile().toPath();
+			Assert.assertEquals("First run on " + engine, "1 6 3 ok 16", run(defaults(engine), "3", file, false));
+			Assert.assertEquals("Second run on " + engine, "2 9 5 ok 11", run(defaults(engine), "2", file, true));
+			Assert.assertEquals("Third run on " + engine, "3 10 6 ok 10", run(defaults(engine), "1", file, true));
+		}
+	}
+
+	@Test
+	public void otherEngines() throws IOException {
+		parseList();
+		Path file = folder.newFile().toPath();
+		int sum = 0, count = 0;
+		for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+			int n = engine.ordinal() + 1;
+			sum += n * (n + 1) / 2;
+			count += n;
+			Assert.assertEquals("Run on " + engine, String.format("%d %d %d ok %d", n, sum, count, 100 / sum),
+					run(defaults(engine), "" + n, file, n > 1));
+		}
+	}
+
+	@Test
+	public void collectedHeap() throws IOException {
+		parseList();
+		for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+			Path file = folder.newFile().toPath();
+			// the third run collects the char array of the second run
+			Assert.assertEquals("First run on " + engine, "1 6 3 ok 16",
+					run(defaults(engine).collect(true).heapSize(25), "3", file, false));
+			Assert.assertEquals("Second run on " + engine, "2 9 5 ok 11",
+					run(defaults(engine).collect(true).heapSize(25), "2", file, true));
+			Assert.assertEquals("Third run on " + engine, "3 10 6 ok 10",
+					run(defaults(engine).collect(true).heapSize(25), "1", file, true));
+		}
+	}
+
+	@Test
+	public void smallerHeap() throws IOException {
+		parseList();
+		Path file = folder.newFile().toPath();
+		run(defaults(Interpreter.Engine.SWITCH), "20", file, false);
+		Assert.assertEquals("2 211 21 ok 0", run(defaults(Interpreter.Engine.SWITCH).heapSize(10).grow(true), "1", file,
+				true));
+		Assert.assertEquals("|heap overflow", run(defaults(Interpreter.Engine.SWITCH).heapSize(10), "1", file, true));
+		expectTooLarge(defaults(Interpreter.Engine.SWITCH).grow(true).heapQuota(20), file, "heap quota exceeded");
+		expectTooLarge(defaults(Interpreter.Engine.SWITCH).heapSize(10).grow(true).maxHeapSize(20), file,
+				"heap overflow");
+	}
+
+	/**
+	 * Expects that the heap saved in file does not fit into the heap of an
+	 * interpreter built with the options.
+	 */
+	private void expectTooLarge(Interpreter.Builder options, Path file, String message) throws IOException {
+		Interpreter inter = options.build(parser.code.buf, parser.code.mainpc, parser.code.dataSize);
+		try {
+			inter.loadHeap(file);
+			Assert.fail("Heap file should not fit: " + message);
+		} catch (IllegalStateException e) {
+			Assert.assertEquals(message, e.getMessage());
+		}
+	}
+
+	private void expectLoadError(Interpreter.Builder options, Path file, String message) {
+		Interpreter inter = options.build(parser.code.buf, parser.code.mainpc, parser.code.dataSize);
+		try {
+			inter.loadHeap(file);
+			Assert.fail("Heap file should be rejected: " + message);
+		} catch (IOException e) {
+			Assert.assertEquals(message, e.getMessage());
+		}
+	}
+
+	@Test
+	public void rejectedFiles() throws IOException {
+		parseList();
+		Path file = folder.newFile().toPath();
+		expectLoadError(defaults(Interpreter.Engine.SWITCH), file, "wrong size of heap file");
+		run(defaults(Interpreter.Engine.SWITCH), "3", file, false);
+		expectLoadError(defaults(Interpreter.Engine.SWITCH).collect(true), file, "heap file of an uncollected heap");
+		init("program Other" + LF + //
+				"  int a, b, c;" + LF + //
+				"{" + LF + //
+				"  void main () { a = 1; }" + LF + //
+				"}");
+		parser.parse();
+		expectLoadError(defaults(Interpreter.Engine.SWITCH), file, "heap file of another program");
+	}
+}
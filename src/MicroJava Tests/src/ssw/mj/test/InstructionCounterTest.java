@@ -0,0 +1,90 @@
+package ssw.mj.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import ssw.mj.InstructionCounter;
+import ssw.mj.Interpreter;
+import ssw.mj.codegen.Code.OpCode;
+
+/**
+ * Test cases for the opcode and instruction counts of the interpreter.
+ */
+public class InstructionCounterTest extends CompilerTestCaseSupport {
+
+	private InstructionCounter counter;
+
+	@Before
+	public void run() {
+		init("program Loop" + LF + //
+				"{" + LF + //
+				"  void main () int i; {" + LF + //
+				"    i = 0;" + LF + //
+				"    while (i < 10) i++;" + LF + //
+				"    print(i);" + LF + //
+				"  }" + LF + //
+				"}");
+		parser.parse();
+		Assert.assertEquals("Errors", "", parser.scanner.errors.dump());
+		Interpreter.BufferIO io = new Interpreter.BufferIO("");
+		Interpreter inter = new Interpreter.Builder().io(io).engine(Interpreter.Engine.THREADED).count(true)
+				.build(parser.code.buf, parser.code.mainpc, parser.code.dataSize);
+		inter.run();
+		Assert.assertEquals("10", io.getOutput());
+		counter = inter.getInstructionCounter();
+	}
+
+	private static String write(boolean json, InstructionCounter counter) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(bytes, true);
+		if (json) {
+			counter.writeJson(out);
+		} else {
+			counter.writeListing(out);
+		}
+		return bytes.toString().replace(System.lineSeparator(), "\n");
+	}
+
+	@Test
+	public void counts() {
+		// enter const_0 store_0, 11 * (load_0 const 10 jge), 10 * (inc jmp),
+		// load_0 const_0 print exit return
+		Assert.assertEquals(3 + 11 * 3 + 10 * 2 + 5, counter.instructions());
+		Assert.assertEquals(10, counter.count(OpCode.inc));
+		Assert.assertEquals(11, counter.count(OpCode.jge));
+		Assert.assertEquals(12, counter.count(OpCode.load_0));
+		Assert.assertEquals(0, counter.count(OpCode.call));
+		Assert.assertEquals(1, counter.count(0));
+		Assert.assertEquals(0, counter.count(1)); // operand of enter
+	}
+
+	@Test
+	public void json() {
+		String json = write(true, counter);
+		Assert.assertTrue(json, json.startsWith("{\n  \"instructions\": 61,\n  \"opcodes\": {\n    \"load_0\": 12,\n"));
+		Assert.assertTrue(json, json.contains("\"inc\": 10"));
+		Assert.assertTrue(json, json.contains("\"op\": \"jge\", \"count\": 11}"));
+		Assert.assertFalse(json, json.contains("\"call\""));
+		Assert.assertTrue(json, json.endsWith("\n  ]\n}\n"));
+	}
+
+	@Test
+	public void listing() {
+		String[] lines = write(false, counter).split("\n");
+		Assert.assertEquals("             1  0: enter 0, 1", lines[0]);
+		int hot = 0;
+		for (String line : lines) {
+			if (line.contains(": inc ")) {
+				Assert.assertTrue(line, line.matches("\\* +10  \\d+: inc 0, 1"));
+			}
+			if (line.startsWith("*")) {
+				hot++;
+			}
+		}
+		Assert.assertEquals(5, hot); // the loop
+	}
+}
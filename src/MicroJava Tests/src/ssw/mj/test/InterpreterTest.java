@@ -0,0 +1,388 @@
+package ssw.mj.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import ssw.mj.Interpreter;
+
+/**
+ * Test cases for the execution engines of the virtual machine. Every program
+ * is run on all engines, which must agree on output and runtime errors.
+ */
+public class InterpreterTest extends CompilerTestCaseSupport {
+
+	private static final String JIT_THRESHOLD = "microjava.jitThreshold";
+
+	/**
+	 * Let the JIT engine compile every method on its first call.
+	 */
+	@Before
+	public void compileEagerly() {
+		System.setProperty(JIT_THRESHOLD, "0");
+	}
+
+	@After
+	public void resetThreshold() {
+		System.clearProperty(JIT_THRESHOLD);
+	}
+
+	private void expectRuntimeError(String input, String message) {
+		for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+			Interpreter inter = new Interpreter(parser.code.buf, parser.code.mainpc, parser.code.dataSize,
+					new Interpreter.BufferIO(input), false, engine);
+			try {
+				inter.run();
+				Assert.fail("Runtime error expected (" + engine + ") when input is \"" + input + "\"");
+			} catch (IllegalStateException e) {
+				Assert.assertEquals("Runtime error (" + engine + ")", message, e.getMessage());
+			}
+		}
+	}
+
+	@Test
+	public void sieve() {
+		init("program Prims" + LF + //
+				"{" + LF + //
+				"  void main ()" + LF + //
+				"    int[] numbers; int i, j, n;" + LF + //
+				"  {" + LF + //
+				"    read(n);" + LF + //
+				"    numbers = new int[n];" + LF + //
+				"    i = 2;" + LF + //
+				"    while (i < n) {" + LF + //
+				"      if (numbers[i] == 0) {" + LF + //
+				"        print(i, 3);" + LF + //
+				"        j = i;" + LF + //
+				"        while (j < n) { numbers[j]++; j = j + i; }" + LF + //
+				"      }" + LF + //
+				"      i++;" + LF + //
+				"    }" + LF + //
+				"  }" + LF + //
+				"}");
+		addExpectedRun("2", "");
+		addExpectedRun("20", "  2  3  5  7 11 13 17 19");
+		parseAndVerify();
+	}
+
+	@Test
+	public void charArrays() {
+		init("program A" + LF + //
+				"{" + LF + //
+				"  void main ()" + LF + //
+				"    char[] buf; char c; int i, n;" + LF + //
+				"  {" + LF + //
+				"    read(n);" + LF + //
+				"    buf = new char[n];" + LF + //
+				"    i = 0;" + LF + //
+				"    while (i < n) { read(c); buf[i] = c; i++; }" + LF + //
+				"    while (i > 0) { i--; print(buf[i]); }" + LF + //
+				"    print(len(buf), 3);" + LF + //
+				"  }" + LF + //
+				"}");
+		addExpectedRun("5 abcde", "edcba  5");
+		addExpectedRun("6 -a_?xz", "zx?_a-  6");
+		parseAndVerify();
+	}
+
+	@Test
+	public void divisionByZero() {
+		init("program A" + LF + //
+				"{" + LF + //
+				"  void main () int i; {" + LF + //
+				"    read(i);" + LF + //
+				"    print(12 / i);" + LF + //
+				"    print(12 % i);" + LF + //
+				"  }" + LF + //
+				"}");
+		addExpectedRun("5", "22");
+		parseAndVerify();
+		expectRuntimeError("0", "division by zero");
+	}
+
+	@Test
+	public void nullReference() {
+		init("program A" + LF + //
+				"  class B { int x; }" + LF + //
+				"{" + LF + //
+				"  void main () B b; int i; {" + LF + //
+				"    read(i);" + LF + //
+				"    if (i > 0) b = new B;" + LF + //
+				"    b.x = i;" + LF + //
+				"    print(b.x);" + LF + //
+				"  }" + LF + //
+				"}");
+		addExpectedRun("7", "7");
+		parseAndVerify();
+		expectRuntimeError("0", "null reference used");
+	}
+
+	@Test
+	public void indexOutOfBounds() {
+		init("program A" + LF + //
+				"{" + LF + //
+				"  void main () int[] a; int i; {" + LF + //
+				"    a = new int[3];" + LF + //
+				"    read(i);" + LF + //
+				"    a[i] = 5;" + LF + //
+				"    print(a[i]);" + LF + //
+				"  }" + LF + //
+				"}");
+		addExpectedRun("2", "5");
+		parseAndVerify();
+		expectRuntimeError("3", "index out of bounds");
+		expectRuntimeError("-1", "index out of bounds");
+	}
+
+	@Test
+	public void missingReturn() {
+		init("program A" + LF + //
+				"{" + LF + //
+				"  int f (int i) { if (i > 0) return i; }" + LF + //
+				"  void main () int i; {" + LF + //
+				"    read(i);" + LF + //
+				"    print(f(i));" + LF + //
+				"  }" + LF + //
+				"}");
+		addExpectedRun("4", "4");
+		parseAndVerify();
+		expectRuntimeError("0", "trap(1)");
+	}
+
+	@Test
+	public void deepRecursion() {
+		init("program A" + LF + //
+				"  int depth;" + LF + //
+				"{" + LF + //
+				"  void down (int n) { depth++; if (n > 0) down(n - 1); }" + LF + //
+				"  void main () int n; {" + LF + //
+				"    read(n);" + LF + //
+				"    down(n);" + LF + //
+				"    print(depth);" + LF + //
+				"  }" + LF + //
+				"}");
+		addExpectedRun("999", "1000");
+		parseAndVerify();
+		expectRuntimeError("100000", "method stack overflow");
+	}
+
+	@Test
+	public void deepExpression() {
+		init("program A" + LF + //
+				"{" + LF + //
+				"  int sum (int n) { if (n == 0) return 0; return n + sum(n - 1); }" + LF + //
+				"  void main () int n; {" + LF + //
+				"    read(n);" + LF + //
+				"    print(sum(n));" + LF + //
+				"  }" + LF + //
+				"}");
+		addExpectedRun("10", "55");
+		parseAndVerify();
+		expectRuntimeError("100", "expression stack overflow");
+	}
+
+	@Test
+	public void errorsInCalledMethods() {
+		init("program A" + LF + //
+				"  class B { int x; }" + LF + //
+				"  B b; int[] a; char[] c;" + LF + //
+				"{" + LF + //
+				"  int field (B b) { return b.x; }" + LF + //
+				"  int elem (int[] a, int i) { return a[i]; }" + LF + //
+				"  char letter (char[] a, int i) { return a[i]; }" + LF + //
+				"  int quot (int a, int b) { return a / b; }" + LF + //
+				"  void main () int i, j, k; {" + LF + //
+				"    b = new B; b.x = 7; a = new int[2]; a[1] = 8; c = new char[3]; c[2] = 'z';" + LF + //
+				"    read(i);" + LF + //
+				"    if (i == 1) b = null;" + LF + //
+				"    print(field(b));" + LF + //
+				"    j = 1; if (i == 2) j = 5;" + LF + //
+				"    print(elem(a, j)); print(letter(c, j + 1));" + LF + //
+				"    k = 2; if (i == 3) k = 0;" + LF + //
+				"    print(quot(9, k));" + LF + //
+				"  }" + LF + //
+				"}");
+		addExpectedRun("0", "78z4");
+		parseAndVerify();
+		expectRuntimeError("1", "null reference used");
+		expectRuntimeError("2", "index out of bounds");
+		expectRuntimeError("3", "division by zero");
+	}
+
+	/**
+	 * The default int formatting of {@link Interpreter.IO}, the buffer and the
+	 * buffered console agree with {@link Integer#toString(int)}.
+	 */
+	@Test
+	public void intFormatting() {
+		int[] values = { 0, 7, -7, 10, -10, 123456, 999999999, 1000000000, Integer.MAX_VALUE, Integer.MIN_VALUE };
+		StringBuilder expected = new StringBuilder();
+		final StringBuilder plain = new StringBuilder();
+		Interpreter.IO io = new Interpreter.IO() {
+			@Override
+			public char read() {
+				return 0;
+			}
+
+			@Override
+			public void write(char c) {
+				plain.append(c);
+			}
+		};
+		Interpreter.BufferIO buffer = new Interpreter.BufferIO("");
+		Interpreter.BufferedConsoleIO console = new Interpreter.BufferedConsoleIO();
+		PrintStream out = System.out;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(bytes, true));
+		try {
+			for (int val : values) {
+				for (int width = 0; width < 13; width += 4) {
+					String s = Integer.toString(val);
+					for (int i = s.length(); i < width; i++) {
+						expected.append(' ');
+					}
+					expected.append(s);
+					io.writeInt(val, width);
+					buffer.writeInt(val, width);
+					console.writeInt(val, width);
+				}
+			}
+			console.flush();
+		} finally {
+			System.setOut(out);
+		}
+		Assert.assertEquals(expected.toString(), plain.toString());
+		Assert.assertEquals(expected.toString(), buffer.getOutput());
+		Assert.assertEquals(expected.toString(), bytes.toString());
+	}
+
+	/**
+	 * The buffered console reads numbers and characters like
+	 * {@link Interpreter.BufferIO}, also across the end of its buffer.
+	 */
+	@Test
+	public void bufferedInput() {
+		StringBuilder input = new StringBuilder("  -12x7 --3 a-0 99-5");
+		for (int i = 0; i < 5000; i++) {
+			input.append(i % 3 == 0 ? " -" : " ").append(i * 7919);
+		}
+		Interpreter.BufferIO buffer = new Interpreter.BufferIO(input.toString());
+		Interpreter.BufferedConsoleIO console = new Interpreter.BufferedConsoleIO();
+		InputStream in = System.in;
+		System.setIn(new ByteArrayInputStream(input.toString().getBytes()));
+		try {
+			for (int i = 0; i < 5005; i++) {
+				if (i % 7 == 3) {
+					Assert.assertEquals("Char " + i, buffer.read(), console.read());
+				} else {
+					Assert.assertEquals("Number " + i, buffer.readInt(), console.readInt());
+				}
+			}
+			char c;
+			do {
+				c = buffer.read();
+				Assert.assertEquals(c, console.read());
+			} while (c != 0);
+		} finally {
+			System.setIn(in);
+		}
+	}
+
+	/**
+	 * Interpreters built without an explicit IO write to consoles of their
+	 * own, so interpreters on different threads lose no output.
+	 */
+	/**
+	 * print_prims, as in Prims.mj, is called once, so it is compiled while it
+	 * loops and its activation continues in the compiled code.
+	 */
+	@Test
+	public void loopsAreCompiled() {
+		System.clearProperty(JIT_THRESHOLD);
+		init("program Prims" + LF + //
+				"{" + LF + //
+				"  void print_prims (int n) int[] numbers; int i, j; {" + LF + //
+				"    numbers = new int[n];" + LF + //
+				"    i = 0;" + LF + //
+				"    while (i < n) {" + LF + //
+				"      if (1 < i && numbers[i] == 0) {" + LF + //
+				"        print(i); print('\\n');" + LF + //
+				"        j = i;" + LF + //
+				"        while (j < n) { numbers[j]++; j += i; }" + LF + //
+				"      }" + LF + //
+				"      i++;" + LF + //
+				"    }" + LF + //
+				"  }" + LF + //
+				"  void main () { print_prims(1000); }" + LF + //
+				"}");
+		parser.parse();
+		Assert.assertEquals("Errors", "", parser.scanner.errors.dump());
+		Interpreter.Builder options = new Interpreter.Builder().engine(Interpreter.Engine.JIT);
+		Interpreter inter = build(options, "");
+		inter.run();
+		Assert.assertEquals("Compiled methods", 1, inter.getCompiledMethods());
+		String output = io.getOutput();
+		build(new Interpreter.Builder().engine(Interpreter.Engine.SWITCH), "").run();
+		Assert.assertEquals(io.getOutput(), output);
+		Assert.assertTrue(output, output.startsWith("2\n3\n5\n") && output.endsWith("997\n"));
+
+		init("program Div" + LF + //
+				"{" + LF + //
+				"  int div (int n) int i, s; {" + LF + //
+				"    i = 0; s = 0;" + LF + //
+				"    while (i < 5000) { s += n / (4000 - i); i++; }" + LF + //
+				"    return s;" + LF + //
+				"  }" + LF + //
+				"  void main () { print(div(1)); }" + LF + //
+				"}");
+		parser.parse();
+		Assert.assertEquals("Errors", "", parser.scanner.errors.dump());
+		inter = build(options, "");
+		try {
+			inter.run();
+			Assert.fail("Division by zero in compiled loop");
+		} catch (IllegalStateException e) {
+			Assert.assertEquals("division by zero", e.getMessage());
+		}
+		Assert.assertEquals("Compiled methods", 1, inter.getCompiledMethods());
+	}
+
+	@Test
+	public void consolesAreNotShared() throws InterruptedException {
+		init("program Many" + LF + //
+				"{" + LF + //
+				"  void main () int i; {" + LF + //
+				"    i = 0;" + LF + //
+				"    while (i < 50000) { print('x'); i++; }" + LF + //
+				"  }" + LF + //
+				"}");
+		parser.parse();
+		Assert.assertEquals("Errors", "", parser.scanner.errors.dump());
+		Interpreter.Builder options = new Interpreter.Builder().engine(Interpreter.Engine.THREADED);
+		PrintStream out = System.out;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(bytes, true));
+		Thread[] threads = new Thread[4];
+		try {
+			for (int t = 0; t < threads.length; t++) {
+				Interpreter inter = options.build(parser.code.buf, parser.code.mainpc, parser.code.dataSize);
+				threads[t] = new Thread(inter::run);
+			}
+			for (Thread t : threads) {
+				t.start();
+			}
+			for (Thread t : threads) {
+				t.join();
+			}
+		} finally {
+			System.setOut(out);
+		}
+		Assert.assertEquals(threads.length * 50000, bytes.toString().chars().filter(c -> c == 'x').count());
+	}
+}
@@ -0,0 +1,175 @@
+package ssw.mj.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ssw.mj.Interpreter;
+import ssw.mj.JvmBackEnd;
+
+/**
+ * Test cases for the JVM back end. Every program is run as a generated class
+ * and in the interpreter, which must agree on output and runtime errors.
+ */
+public class JvmBackEndTest extends CompilerTestCaseSupport {
+
+	private static final String COMPLETION = "\nCompletion took ";
+
+	private static final class ClassFileLoader extends ClassLoader {
+		Class<?> define(String name, byte[] b) {
+			return defineClass(name, b, 0, b.length);
+		}
+	}
+
+	/**
+	 * Output of the interpreter, followed by the message of the runtime error
+	 * if there is one.
+	 */
+	private String interpret(String input) {
+		Interpreter.BufferIO io = new Interpreter.BufferIO(input);
+		try {
+			new Interpreter(parser.code.buf, parser.code.mainpc, parser.code.dataSize, io, false).run();
+			return io.getOutput();
+		} catch (IllegalStateException e) {
+			return io.getOutput() + "|" + e.getMessage();
+		}
+	}
+
+	/**
+	 * Output of the generated class, in the same form as
+	 * {@link #interpret(String)}.
+	 */
+	private String execute(byte[] classFile, String className, String input) throws Exception {
+		InputStream in = System.in;
+		PrintStream out = System.out;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		System.setIn(new ByteArrayInputStream(input.getBytes()));
+		System.setOut(new PrintStream(bytes, true));
+		String error = null;
+		try {
+			Class<?> c = new ClassFileLoader().define(className, classFile);
+			c.getMethod("main", String[].class).invoke(null, (Object) new String[0]);
+		} catch (InvocationTargetException e) {
+			Assert.assertTrue("Runtime error expected instead of " + e.getCause(),
+					e.getCause() instanceof IllegalStateException);
+			error = e.getCause().getMessage();
+		} finally {
+			System.setIn(in);
+			System.setOut(out);
+		}
+		String output = bytes.toString();
+		if (error != null) {
+			return output + "|" + error;
+		}
+		int completion = output.lastIndexOf(COMPLETION);
+		Assert.assertTrue("Completion time expected", completion >= 0);
+		return output.substring(0, completion);
+	}
+
+	private void verify(String... inputs) throws Exception {
+		parser.parse();
+		Assert.assertEquals("Errors", "", parser.scanner.errors.dump());
+		JvmBackEnd backEnd = new JvmBackEnd(parser);
+		byte[] classFile = backEnd.generate();
+		for (String input : inputs) {
+			Assert.assertEquals("Result when input is \"" + input + "\"", interpret(input),
+					execute(classFile, backEnd.className(), input));
+		}
+	}
+
+	@Test
+	public void globalsAndMethods() throws Exception {
+		init("program Globals" + LF + //
+				"  int count; char c;" + LF + //
+				"{" + LF + //
+				"  int twice (int x) { count++; return 2 * x; }" + LF + //
+				"  void show (int x) { print(x, 4); print(c, 2); }" + LF + //
+				"  void main () int i; {" + LF + //
+				"    read(i); c = 'x';" + LF + //
+				"    show(twice(i) - twice(-3 % 2));" + LF + //
+				"    print(count);" + LF + //
+				"  }" + LF + //
+				"}");
+		verify("21", "-5");
+	}
+
+	@Test
+	public void arraysAndObjects() throws Exception {
+		init("program Arrays" + LF + //
+				"  class Node { int val; Node next; }" + LF + //
+				"  Node list; char[] text; int[] nums;" + LF + //
+				"{" + LF + //
+				"  void main () int i, n; {" + LF + //
+				"    read(n);" + LF + //
+				"    text = new char[n]; nums = new int[n];" + LF + //
+				"    i = 0;" + LF + //
+				"    while (i < n) {" + LF + //
+				"      nums[i] = i * i; text[i] = chr(97 + i);" + LF + //
+				"      list = new Node; list.val = i;" + LF + //
+				"      i++;" + LF + //
+				"    }" + LF + //
+				"    while (i > 0) { i--; print(text[i]); print(nums[i], 3); }" + LF + //
+				"    print(list.val); print(len(text));" + LF + //
+				"    print(nums[n]);" + LF + //
+				"  }" + LF + //
+				"}");
+		verify("6", "0");
+	}
+
+	@Test
+	public void runtimeErrors() throws Exception {
+		init("program Errors" + LF + //
+				"  class B { int x; }" + LF + //
+				"  B b;" + LF + //
+				"{" + LF + //
+				"  int f (int i) { if (i > 0) return 12 / (i - 1); }" + LF + //
+				"  void main () int i; {" + LF + //
+				"    read(i);" + LF + //
+				"    if (i == 5) b.x = 1;" + LF + //
+				"    print(f(i));" + LF + //
+				"  }" + LF + //
+				"}");
+		verify("3", "0", "1", "5");
+	}
+
+	@Test
+	public void stackLimits() throws Exception {
+		init("program Limits" + LF + //
+				"{" + LF + //
+				"  void down (int n) { if (n > 0) down(n - 1); }" + LF + //
+				"  int sum (int n) { if (n == 0) return 0; return n + sum(n - 1); }" + LF + //
+				"  void main () int n; int[] a; {" + LF + //
+				"    read(n);" + LF + //
+				"    print(sum(n % 1000)); down(n);" + LF + //
+				"    while (n > 0) { a = new int[10000]; n--; }" + LF + //
+				"  }" + LF + //
+				"}");
+		verify("9", "12", "28", "1000", "2000");
+	}
+
+	@Test
+	public void compoundAssignments() throws Exception {
+		init("program Compound" + LF + //
+				"  class Acc { int sum; }" + LF + //
+				"  int total;" + LF + //
+				"{" + LF + //
+				"  void main () int i, n, s, t, u; int[] a; Acc acc; {" + LF + //
+				"    read(n); acc = new Acc; a = new int[2];" + LF + //
+				"    i = 0; s = 0; u = 1;" + LF + //
+				"    while (i < n) {" + LF + //
+				"      s += i; total += 2 * i; acc.sum -= i; a[i % 2] += i; u *= 2;" + LF + //
+				"      read(t); s += t;" + LF + //
+				"      i++;" + LF + //
+				"    }" + LF + //
+				"    print(s, 4); print(total, 4); print(acc.sum, 4); print(a[0], 4); print(a[1], 4); print(u, 5);" + LF + //
+				"  }" + LF + //
+				"}");
+		verify("10 1 2 3 4 5 6 7 8 9 10", "0");
+		Assert.assertEquals(" 100  90 -45  20  25 1024", interpret("10 1 2 3 4 5 6 7 8 9 10"));
+	}
+}
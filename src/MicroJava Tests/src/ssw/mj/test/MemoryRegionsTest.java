@@ -0,0 +1,122 @@
+package ssw.mj.test;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import ssw.mj.Interpreter;
+
+/**
+ * Test cases for configured and growing sizes of the heap, the method stack
+ * and the expression stack. Every program is run on all engines.
+ */
+public class MemoryRegionsTest extends CompilerTestCaseSupport {
+
+	@Before
+	public void compileEagerly() {
+		System.setProperty("microjava.jitThreshold", "0");
+	}
+
+	@After
+	public void resetThreshold() {
+		System.clearProperty("microjava.jitThreshold");
+	}
+
+	/**
+	 * Runs the program with the given input on all engines and checks the
+	 * output, followed by the message of the runtime error if there is one.
+	 */
+	private void verify(Interpreter.Builder options, String input, String output) {
+		for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+			Interpreter.BufferIO io = new Interpreter.BufferIO(input);
+			Interpreter inter = options.io(io).engine(engine).build(parser.code.buf, parser.code.mainpc,
+					parser.code.dataSize);
+			String result;
+			try {
+				inter.run();
+				result = io.getOutput();
+			} catch (IllegalStateException e) {
+				result = io.getOutput() + "|" + e.getMessage();
+			}
+			Assert.assertEquals("Result of " + engine + " when input is \"" + input + "\"", output, result);
+		}
+	}
+
+	private void parse() {
+		parser.parse();
+		Assert.assertEquals("Errors", "", parser.scanner.errors.dump());
+	}
+
+	private static Interpreter.Builder defaults() {
+		return new Interpreter.Builder();
+	}
+
+	@Test
+	public void methodStack() {
+		init("program Recursion" + LF + //
+				"{" + LF + //
+				"  int sum (int n) { if (n == 0) return 0; return sum(n - 1) + n; }" + LF + //
+				"  void main () int n; {" + LF + //
+				"    read(n); print(sum(n));" + LF + //
+				"  }" + LF + //
+				"}");
+		parse();
+		verify(defaults(), "1000", "500500");
+		verify(defaults(), "5000", "|method stack overflow");
+		verify(defaults().methodStackSize(20000), "5000", "12502500");
+		verify(defaults().grow(true), "5000", "12502500");
+		verify(defaults().methodStackSize(100).grow(true), "5000", "12502500");
+		verify(defaults().grow(true).maxMethodStackSize(8000), "5000", "|method stack overflow");
+	}
+
+	@Test
+	public void heap() {
+		init("program Arrays" + LF + //
+				"{" + LF + //
+				"  void main () int n; int[] a; {" + LF + //
+				"    read(n);" + LF + //
+				"    a = new int[n]; a[n - 1] = 7; a = null;" + LF + //
+				"    a = new int[n]; print(a[n - 1] + len(a));" + LF + //
+				"  }" + LF + //
+				"}");
+		parse();
+		verify(defaults(), "40000", "40000");
+		verify(defaults(), "60000", "|heap overflow");
+		verify(defaults().heapSize(200000), "60000", "60000");
+		verify(defaults().grow(true), "60000", "60000");
+		verify(defaults().heapSize(10).grow(true), "60000", "60000");
+		verify(defaults().grow(true).maxHeapSize(110000), "60000", "|heap overflow");
+		verify(defaults().grow(true).collect(true), "60000", "60000");
+		verify(defaults().collect(true), "60000", "60000");
+		verify(defaults().collect(true), "99990", "99990");
+		verify(defaults().collect(true), "99999", "|heap overflow");
+		verify(defaults().heapSize(1000).grow(true).collect(true), "99999", "99999");
+	}
+
+	@Test
+	public void expressionStack() {
+		StringBuilder expr = new StringBuilder("n");
+		for (int i = 0; i < 40; i++) {
+			expr.insert(0, "1 + (").append(")");
+		}
+		init("program Nesting" + LF + //
+				"{" + LF + //
+				"  int f (int n) { return " + expr + "; }" + LF + //
+				"  void main () int n; {" + LF + //
+				"    read(n); print(f(n)); print(f(n + 1), 3);" + LF + //
+				"  }" + LF + //
+				"}");
+		parse();
+		verify(defaults(), "2", "|expression stack overflow");
+		verify(defaults().expressionStackSize(100), "2", "42 43");
+		verify(defaults().grow(true), "2", "42 43");
+		verify(defaults().expressionStackSize(1).grow(true), "2", "42 43");
+		verify(defaults().grow(true).maxExpressionStackSize(35), "2", "|expression stack overflow");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void nonPositiveSize() {
+		defaults().heapSize(0);
+	}
+}
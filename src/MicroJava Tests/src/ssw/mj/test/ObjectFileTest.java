@@ -0,0 +1,201 @@
+package ssw.mj.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ssw.mj.Compiler;
+import ssw.mj.Run;
+
+/**
+ * Test cases for loading object files by {@link Run}. Correct and damaged
+ * object files of a small program are written in both versions of the format
+ * and run.
+ */
+public class ObjectFileTest extends CompilerTestCaseSupport {
+
+	private static final int HEADER = 14; // marker, code size, data size, start pc of version 1
+	private static final int HEADER_2 = 22 + 3 * 24; // marker, 0, version, data size, start pc, sections, directory
+
+	private static final String SOURCE = "program Load" + LF + //
+			"  int g;" + LF + //
+			"{" + LF + //
+			"  int twice (int x) { return 2 * x; }" + LF + //
+			"  void main () {" + LF + //
+			"    g = twice(3);" + LF + //
+			"    print(g);" + LF + //
+			"  }" + LF + //
+			"}";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private byte[] obj;
+
+	@Before
+	public void compile() throws IOException {
+		init(SOURCE);
+		parser.parse();
+		Assert.assertEquals("Errors", "", parser.scanner.errors.dump());
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		parser.code.write(bytes);
+		obj = bytes.toByteArray();
+	}
+
+	/**
+	 * Output of Run for the given object file, without the completion time.
+	 */
+	private static String run(byte[] obj) throws IOException {
+		File file = File.createTempFile("load", ".obj");
+		try (FileOutputStream os = new FileOutputStream(file)) {
+			os.write(obj);
+		}
+		try {
+			return run(file.getPath());
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Compiles the program by {@link Compiler} with the given options and
+	 * returns the object file.
+	 */
+	private byte[] objectFile(String... options) throws IOException {
+		File source = folder.newFile("Load.mj");
+		Files.write(source.toPath(), SOURCE.getBytes(StandardCharsets.UTF_8));
+		String[] args = Arrays.copyOf(options, options.length + 1);
+		args[options.length] = source.getPath();
+		PrintStream out = System.out;
+		try {
+			System.setOut(new PrintStream(new ByteArrayOutputStream()));
+			Compiler.main(args);
+		} finally {
+			System.setOut(out);
+		}
+		source.delete();
+		return Files.readAllBytes(folder.getRoot().toPath().resolve("Load.obj"));
+	}
+
+	private static String run(String... args) {
+		PrintStream out = System.out;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			System.setOut(new PrintStream(bytes, true));
+			Run.main(args);
+			System.out.flush();
+			String output = bytes.toString();
+			int completion = output.indexOf("\nCompletion took ");
+			return completion >= 0 ? output.substring(0, completion) : output;
+		} finally {
+			System.setOut(out);
+		}
+	}
+
+	private static void expectRejected(byte[] obj, String message) throws IOException {
+		String output = run(obj).trim();
+		Assert.assertTrue("Rejection expected instead of \"" + output + "\"",
+				output.startsWith("-- corrupted object file "));
+		Assert.assertTrue("\"" + message + "\" expected in \"" + output + "\"", output.endsWith(message));
+	}
+
+	@Test
+	public void correctFile() throws IOException {
+		Assert.assertEquals("6", run(obj));
+	}
+
+	@Test
+	public void trailingBytes() throws IOException {
+		Assert.assertEquals("6", run(Arrays.copyOf(obj, obj.length + 3)));
+	}
+
+	@Test
+	public void truncatedCode() throws IOException {
+		int codeSize = obj.length - HEADER;
+		expectRejected(Arrays.copyOf(obj, obj.length - 1),
+				"code ends after " + (codeSize - 1) + " of " + codeSize + " bytes");
+	}
+
+	@Test
+	public void truncatedHeader() throws IOException {
+		expectRejected(Arrays.copyOf(obj, HEADER - 1), "wrong marker");
+		expectRejected(new byte[0], "wrong marker");
+	}
+
+	@Test
+	public void wrongMarker() throws IOException {
+		obj[1] = 'X';
+		expectRejected(obj, "wrong marker");
+	}
+
+	@Test
+	public void version2() throws IOException {
+		byte[] v2 = objectFile();
+		Assert.assertEquals("MJ", new String(v2, 0, 2, StandardCharsets.US_ASCII));
+		Assert.assertArrayEquals("Code", Arrays.copyOfRange(obj, HEADER, obj.length),
+				Arrays.copyOfRange(v2, HEADER_2, HEADER_2 + obj.length - HEADER));
+		Assert.assertEquals("6", run(v2));
+		Assert.assertEquals("Version 1", obj.length, objectFile("--format=v1").length);
+		Assert.assertEquals("6", run(objectFile("--format=v1")));
+	}
+
+	@Test
+	public void compressed() throws IOException {
+		byte[] v2 = objectFile("--compress");
+		Assert.assertEquals("6", run(v2));
+		v2[HEADER_2] ^= 1;
+		expectRejected(v2, "wrong checksum of section 0");
+	}
+
+	@Test
+	public void damagedVersion2() throws IOException {
+		byte[] v2 = objectFile();
+		v2[HEADER_2] ^= 1;
+		expectRejected(v2, "wrong checksum of section 0");
+		expectRejected(Arrays.copyOf(v2, 30), "wrong number of sections");
+		expectRejected(Arrays.copyOf(v2, v2.length - 1), "section 2 not in file");
+		v2 = objectFile();
+		v2[9] = 3;
+		expectRejected(v2, "unknown version 3");
+	}
+
+	/**
+	 * The damaged line table is not used unless the code is listed.
+	 */
+	@Test
+	public void tablesDecodedOnDemand() throws IOException {
+		byte[] v2 = objectFile();
+		v2[v2.length - 1] ^= 1;
+		Assert.assertEquals("6", run(v2));
+	}
+
+	@Test
+	public void listing() throws IOException {
+		objectFile();
+		String obj = folder.getRoot().toPath().resolve("Load.obj").toString();
+		Assert.assertEquals("6", run(obj, "-count").trim().split("\n")[0].trim());
+		String listing = new String(Files.readAllBytes(folder.getRoot().toPath().resolve("Load.lst")),
+				StandardCharsets.UTF_8);
+		Assert.assertTrue(listing, listing.startsWith("twice:" + LF + "; line 4" + LF));
+		Assert.assertTrue(listing, listing.contains("main:" + LF + "; line 5" + LF));
+		Assert.assertTrue(listing, listing.contains("; line 6" + LF));
+		Assert.assertTrue(listing, listing.contains("; line 7" + LF));
+		Assert.assertTrue(listing, listing.contains("; line 8" + LF));
+	}
+
+	@Test
+	public void missingFile() {
+		Assert.assertEquals("-- file nowhere.obj not found", run("nowhere.obj").trim());
+	}
+}
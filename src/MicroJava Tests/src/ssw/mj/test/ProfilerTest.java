@@ -0,0 +1,112 @@
+package ssw.mj.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ssw.mj.Interpreter;
+import ssw.mj.Profiler;
+
+/**
+ * Test cases for the method-level profile of the interpreter.
+ */
+public class ProfilerTest extends CompilerTestCaseSupport {
+
+	private Interpreter.BufferIO io;
+
+	private void parse() {
+		parser.parse();
+		Assert.assertEquals("Errors", "", parser.scanner.errors.dump());
+	}
+
+	/**
+	 * Runs the parsed program with profiling on the given engine, which is
+	 * replaced by the switch engine.
+	 */
+	private Profiler profile(Interpreter.Engine engine) {
+		io = new Interpreter.BufferIO("");
+		Interpreter inter = new Interpreter.Builder().io(io).engine(engine).profile(true).build(parser.code.buf,
+				parser.code.mainpc, parser.code.dataSize);
+		try {
+			inter.run();
+		} catch (IllegalStateException e) {
+			// profile up to the error
+		}
+		return inter.getProfiler();
+	}
+
+	private static String collapsed(Profiler profiler) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		profiler.writeCollapsedStacks(new PrintStream(bytes, true));
+		return bytes.toString().replace(System.lineSeparator(), "\n");
+	}
+
+	private static String flat(Profiler profiler) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		profiler.writeFlatProfile(new PrintStream(bytes, true));
+		return bytes.toString();
+	}
+
+	@Test
+	public void callsAndInstructions() {
+		init("program Calls" + LF + //
+				"  int g;" + LF + //
+				"{" + LF + //
+				"  int twice (int x) { return 2 * x; }" + LF + //
+				"  int quad (int x) { return twice(twice(x)); }" + LF + //
+				"  void main () {" + LF + //
+				"    g = twice(1) + quad(2);" + LF + //
+				"    print(g);" + LF + //
+				"  }" + LF + //
+				"}");
+		parse();
+		// twice (at 0, 10 bytes): enter load_0 const_2 mul exit return = 6 instructions per call
+		// quad: enter load_0 call call exit return = 6 instructions
+		// main: enter const_1 call const_2 call add putstatic getstatic const_0 print exit return = 12
+		for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+			Profiler profiler = profile(engine);
+			Assert.assertEquals("10", io.getOutput());
+			Assert.assertEquals(12 + 6 + 3 * 6, profiler.instructions());
+			Assert.assertEquals("main 12\n" + //
+					"main;method@0 6\n" + //
+					"main;method@10 6\n" + //
+					"main;method@10;method@0 12\n", collapsed(profiler));
+			String flat = flat(profiler);
+			Assert.assertTrue(flat, flat.matches("(?s).*\nmethod@0 +3 +18 +50\\.00% +18 +50\\.00% .*"));
+			Assert.assertTrue(flat, flat.matches("(?s).*\nmain +1 +12 +33\\.33% +36 +100\\.00% .*"));
+		}
+	}
+
+	@Test
+	public void recursion() {
+		init("program Recursion" + LF + //
+				"  int n;" + LF + //
+				"{" + LF + //
+				"  void down () { if (n > 0) { n--; down(); } }" + LF + //
+				"  void main () { n = 3; down(); }" + LF + //
+				"}");
+		parse();
+		Profiler profiler = profile(Interpreter.Engine.SWITCH);
+		String flat = flat(profiler);
+		long total = profiler.instructions();
+		// recursive activations are counted once in the total
+		Assert.assertTrue(flat, flat.matches("(?s).*\nmethod@0 +4 +\\d+ +[0-9.]+% +" + (total - 6) + " .*"));
+		Assert.assertEquals(5, collapsed(profiler).split("\n").length);
+	}
+
+	@Test
+	public void runtimeError() {
+		init("program Error" + LF + //
+				"{" + LF + //
+				"  void fail () int[] a; { a[0] = 1; }" + LF + //
+				"  void main () { print(1); fail(); print(2); }" + LF + //
+				"}");
+		parse();
+		Profiler profiler = profile(Interpreter.Engine.SWITCH);
+		Assert.assertEquals("1", io.getOutput());
+		String collapsed = collapsed(profiler);
+		Assert.assertTrue(collapsed, collapsed.contains("\nmain;method@0 "));
+	}
+}
@@ -0,0 +1,119 @@
+package ssw.mj.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ssw.mj.Interpreter;
+
+/**
+ * Test cases for quickening of the switch engine. Every program is run with
+ * and without quick instructions, which must produce the same output and the
+ * same runtime errors.
+ */
+public class QuickeningTest extends CompilerTestCaseSupport {
+
+	private static String run(Interpreter.Builder options, String input, byte[] code, int startPC, int dataSize) {
+		Interpreter.BufferIO io = new Interpreter.BufferIO(input);
+		Interpreter inter = options.io(io).build(code, startPC, dataSize);
+		try {
+			inter.run();
+			return io.getOutput();
+		} catch (IllegalStateException e) {
+			return io.getOutput() + "|" + e.getMessage();
+		}
+	}
+
+	/**
+	 * Runs the program with and without quickening and checks the
+	 * output, followed by the message of the runtime error if there is one.
+	 */
+	private void verify(Interpreter.Builder options, String input, String output) {
+		byte[] code = parser.code.buf;
+		int startPC = parser.code.mainpc;
+		int dataSize = parser.code.dataSize;
+		Assert.assertEquals("Result without quickening", output,
+				run(options.quicken(false), input, code, startPC, dataSize));
+		Assert.assertEquals("Result with quickening", output, run(options.quicken(true), input, code, startPC, dataSize));
+	}
+
+	private void parse() {
+		parser.parse();
+		Assert.assertEquals("Errors", "", parser.scanner.errors.dump());
+	}
+
+	private static Interpreter.Builder defaults() {
+		return new Interpreter.Builder();
+	}
+
+	@Test
+	public void loops() {
+		init("program Loops" + LF + //
+				"{" + LF + //
+				"  void main () int n, i, s; {" + LF + //
+				"    read(n);" + LF + //
+				"    i = 0; s = 0;" + LF + //
+				"    while (i < n) { s = s + i; i++; }" + LF + //
+				"    print(s);" + LF + //
+				"    while (s >= i) { s = s - 1 + 0; i = i + 1; }" + LF + //
+				"    print(i, 4); print(s, 4);" + LF + //
+				"    if (i == s) print(1); if (i != s) print(2); if (i <= n) print(3); if (i > n) print(4);" + LF + //
+				"  }" + LF + //
+				"}");
+		parse();
+		verify(defaults(), "10", "45  28  2724");
+		verify(defaults(), "0", "0   1  -124");
+	}
+
+	@Test
+	public void arrays() {
+		init("program Arrays" + LF + //
+				"{" + LF + //
+				"  void main () int n, i; int[] a; {" + LF + //
+				"    read(n); a = new int[3];" + LF + //
+				"    i = 0;" + LF + //
+				"    while (i < n) { a[i % 3]++; a[i % 3]++; i++; }" + LF + //
+				"    print(a[0]); print(a[1], 2); print(a[2], 2);" + LF + //
+				"    if (n < 0) a = null;" + LF + //
+				"    a[n]++;" + LF + //
+				"  }" + LF + //
+				"}");
+		parse();
+		verify(defaults(), "2", "2 2 0");
+		verify(defaults(), "7", "6 4 4|index out of bounds");
+		verify(defaults(), "-1", "0 0 0|null reference used");
+	}
+
+	@Test
+	public void calls() {
+		init("program Calls" + LF + //
+				"  class Pair { int a, b; }" + LF + //
+				"  Pair p;" + LF + //
+				"{" + LF + //
+				"  int twice (int x) { return x * 2; }" + LF + //
+				"  void main () int i; {" + LF + //
+				"    p = new Pair; read(i);" + LF + //
+				"    while (i > 0) { p.a = p.a + twice(i); p.b = p.b - 1; i--; }" + LF + //
+				"    print(p.a); print(p.b, 3);" + LF + //
+				"    p = null; print(p.a);" + LF + //
+				"  }" + LF + //
+				"}");
+		parse();
+		verify(defaults(), "3", "12 -3|null reference used");
+		verify(defaults().methodStackSize(4), "3", "|method stack overflow");
+	}
+
+	@Test
+	public void smallExpressionStack() {
+		init("program Stack" + LF + //
+				"{" + LF + //
+				"  void main () int i, j; {" + LF + //
+				"    read(i); j = 5;" + LF + //
+				"    i = i + j;" + LF + //
+				"    print(i);" + LF + //
+				"  }" + LF + //
+				"}");
+		parse();
+		verify(defaults().expressionStackSize(1), "2", "|expression stack overflow");
+		verify(defaults().expressionStackSize(1).grow(true), "2", "7");
+	}
+}
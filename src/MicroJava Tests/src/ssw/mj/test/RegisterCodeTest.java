@@ -0,0 +1,147 @@
+package ssw.mj.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ssw.mj.Interpreter;
+import ssw.mj.codegen.Code.OpCode;
+
+/**
+ * Test cases for the register engine. Every program is run on the register
+ * engine and on the switch engine, which must produce the same output and the
+ * same runtime errors.
+ */
+public class RegisterCodeTest extends CompilerTestCaseSupport {
+
+	private static String run(Interpreter.Builder options, Interpreter.Engine engine, String input, byte[] code,
+			int startPC, int dataSize) {
+		Interpreter.BufferIO io = new Interpreter.BufferIO(input);
+		Interpreter inter = options.engine(engine).io(io).build(code, startPC, dataSize);
+		Assert.assertEquals("Engine", engine, inter.getEngine());
+		try {
+			inter.run();
+			return io.getOutput();
+		} catch (IllegalStateException e) {
+			return io.getOutput() + "|" + e.getMessage();
+		}
+	}
+
+	/**
+	 * Runs the program on both engines and checks the output, followed by the
+	 * message of the runtime error if there is one.
+	 */
+	private void verify(Interpreter.Builder options, String input, String output) {
+		byte[] code = parser.code.buf;
+		int startPC = parser.code.mainpc;
+		int dataSize = parser.code.dataSize;
+		Assert.assertEquals("Result of the switch engine", output,
+				run(options, Interpreter.Engine.SWITCH, input, code, startPC, dataSize));
+		Assert.assertEquals("Result of the register engine", output,
+				run(options, Interpreter.Engine.REGISTER, input, code, startPC, dataSize));
+	}
+
+	private void parse() {
+		parser.parse();
+		Assert.assertEquals("Errors", "", parser.scanner.errors.dump());
+	}
+
+	private static Interpreter.Builder defaults() {
+		return new Interpreter.Builder();
+	}
+
+	@Test
+	public void expressions() {
+		init("program Expr" + LF + //
+				"  int g;" + LF + //
+				"{" + LF + //
+				"  void main () int a, b; {" + LF + //
+				"    read(a); read(b);" + LF + //
+				"    g = 3 * a + b;" + LF + //
+				"    a = a - 1; b = 2 + b;" + LF + //
+				"    print(g); print(a, 3); print(b, 2);" + LF + //
+				"    if (5 < a) print(1); if (a == b) print(2); if (g >= 10) print(3);" + LF + //
+				"    print(g / a, 3); print(g % b, 3);" + LF + //
+				"  }" + LF + //
+				"}");
+		parse();
+		verify(defaults(), "4 2", "14  3 43  4  2");
+		verify(defaults(), "6 4", "22  5 63  4  4");
+		verify(defaults(), "1 -1", "2  0 1|division by zero");
+	}
+
+	@Test
+	public void calls() {
+		init("program Calls" + LF + //
+				"{" + LF + //
+				"  int sum (int n) {" + LF + //
+				"    if (n == 0) return 0;" + LF + //
+				"    return sum(n - 1) + n;" + LF + //
+				"  }" + LF + //
+				"  void main () int n; {" + LF + //
+				"    read(n);" + LF + //
+				"    print(sum(n) + sum(2));" + LF + //
+				"  }" + LF + //
+				"}");
+		parse();
+		verify(defaults(), "10", "58");
+		verify(defaults().methodStackSize(20), "10", "|method stack overflow");
+		verify(defaults().methodStackSize(20).grow(true), "10", "58");
+	}
+
+	@Test
+	public void objects() {
+		init("program Objects" + LF + //
+				"  class Node { int val; Node next; }" + LF + //
+				"  Node list; char[] s;" + LF + //
+				"{" + LF + //
+				"  void main () int i, n; Node p; {" + LF + //
+				"    read(n); i = 0;" + LF + //
+				"    while (i < n) { p = new Node; p.val = i; p.next = list; list = p; i++; }" + LF + //
+				"    s = new char[2]; s[0] = 'o'; s[1] = 'k'; print(s[0]); print(s[1]);" + LF + //
+				"    print(list.val, 2); print(list.next.next.val, 2);" + LF + //
+				"  }" + LF + //
+				"}");
+		parse();
+		verify(defaults(), "5", "ok 4 2");
+		verify(defaults(), "1", "ok 0|null reference used");
+		verify(defaults().heapSize(50), "100", "|heap overflow");
+		verify(defaults().heapSize(50).collect(true), "100", "|heap overflow");
+	}
+
+	@Test
+	public void smallExpressionStack() {
+		init("program Stack" + LF + //
+				"{" + LF + //
+				"  void main () int a, b, c; {" + LF + //
+				"    read(a); b = 2; c = 3;" + LF + //
+				"    a = a + (b * (c + a));" + LF + //
+				"    print(a);" + LF + //
+				"  }" + LF + //
+				"}");
+		parse();
+		verify(defaults().expressionStackSize(3), "1", "|expression stack overflow");
+		verify(defaults().expressionStackSize(3).grow(true), "1", "9");
+		verify(defaults(), "1", "9");
+	}
+
+	@Test
+	public void untranslatableCode() {
+		// both paths to print have different stack depths, so the analysis fails
+		byte[] code = { //
+				(byte) OpCode.enter.code(), 0, 1, //
+				(byte) OpCode.const_1.code(), //
+				(byte) OpCode.load_0.code(), //
+				(byte) OpCode.const_0.code(), //
+				(byte) OpCode.jne.code(), 0, 4, //
+				(byte) OpCode.const_2.code(), //
+				(byte) OpCode.const_1.code(), //
+				(byte) OpCode.print.code(), //
+				(byte) OpCode.exit.code(), //
+				(byte) OpCode.return_.code() };
+		Interpreter.BufferIO io = new Interpreter.BufferIO("");
+		Interpreter inter = defaults().engine(Interpreter.Engine.REGISTER).io(io).build(code, 0, 0);
+		Assert.assertEquals("Engine", Interpreter.Engine.THREADED, inter.getEngine());
+		inter.run();
+		Assert.assertEquals("2", io.getOutput());
+	}
+}
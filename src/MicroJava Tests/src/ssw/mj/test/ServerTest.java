@@ -0,0 +1,263 @@
+package ssw.mj.test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ssw.mj.Interpreter;
+import ssw.mj.Server;
+
+/**
+ * Test cases for {@link Server}. A program that sums the numbers up to its
+ * input is served, and requests are sent by clients on other threads.
+ */
+public class ServerTest extends CompilerTestCaseSupport {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Server server;
+	private Thread serving;
+
+	@After
+	public void stop() throws IOException, InterruptedException {
+		if (server != null) {
+			server.close();
+			serving.join();
+		}
+	}
+
+	/**
+	 * Compiles the program and returns its object file.
+	 */
+	private File compile(String name, String main) throws IOException {
+		init("program " + name + LF + //
+				"  int runs;" + LF + //
+				"{" + LF + //
+				"  void main () int n, s; {" + LF + //
+				main + LF + //
+				"  }" + LF + //
+				"}");
+		parser.parse();
+		Assert.assertEquals("Errors", "", parser.scanner.errors.dump());
+		File file = folder.newFile(name + ".obj");
+		try (FileOutputStream os = new FileOutputStream(file)) {
+			parser.code.write(os);
+		}
+		return file;
+	}
+
+	private File sum() throws IOException {
+		return compile("Sum", //
+				"    read(n); runs++; s = 0;" + LF + //
+				"    while (n > 0) { s = s + n; n--; }" + LF + //
+				"    print(runs); print(' '); print(100 / s);");
+	}
+
+	private void start(int poolSize, Interpreter.Engine engine, File... programs) throws IOException {
+		start(new Server(poolSize), engine, programs);
+	}
+
+	private void start(Server server, Interpreter.Engine engine, File... programs) throws IOException {
+		this.server = server;
+		for (File f : programs) {
+			server.load(f.getName().replace(".obj", ""), f.toPath(), new Interpreter.Builder().engine(engine));
+		}
+	}
+
+	private void serve() {
+		serving = new Thread(() -> {
+			try {
+				server.serve();
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		serving.start();
+	}
+
+	/**
+	 * Connection of a client.
+	 */
+	private static final class Client implements AutoCloseable {
+		private final SocketChannel ch;
+		private final InputStream in;
+		private final OutputStream out;
+		int chunks; // of the last response
+
+		Client(SocketChannel ch) {
+			this.ch = ch;
+			in = new BufferedInputStream(Channels.newInputStream(ch));
+			out = Channels.newOutputStream(ch);
+		}
+
+		/**
+		 * Sends the request and returns the output followed by the status
+		 * line.
+		 */
+		String request(String line, String input) throws IOException {
+			out.write((line + "\n" + input).getBytes(StandardCharsets.ISO_8859_1));
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			chunks = 0;
+			for (String status = readLine(); ; status = readLine()) {
+				if (!status.startsWith("D ")) {
+					return output.toString(StandardCharsets.ISO_8859_1) + "|" + status;
+				}
+				output.write(in.readNBytes(Integer.parseInt(status.substring(2))));
+				chunks++;
+			}
+		}
+
+		String run(String program, String input) throws IOException {
+			return request("RUN " + program + " " + input.length(), input);
+		}
+
+		private String readLine() throws IOException {
+			StringBuilder sb = new StringBuilder();
+			for (int b = in.read(); b != '\n'; b = in.read()) {
+				if (b < 0) {
+					throw new IOException("connection closed");
+				}
+				sb.append((char) b);
+			}
+			return sb.toString();
+		}
+
+		@Override
+		public void close() throws IOException {
+			ch.close();
+		}
+	}
+
+	@Test
+	public void requests() throws IOException {
+		start(1, Interpreter.Engine.THREADED, sum());
+		SocketAddress address = server.bind(0);
+		serve();
+		try (Client c = new Client(SocketChannel.open(address))) {
+			Assert.assertEquals("1 10|OK", c.run("Sum", "4"));
+			Assert.assertEquals("Reset between requests", "1 1|OK", c.run("Sum", "13"));
+			Assert.assertEquals("1 |ERROR division by zero", c.run("Sum", "0"));
+			Assert.assertEquals("1 6|OK", c.run("Sum", "x 5"));
+			String stats = c.request("STATS", "");
+			Assert.assertTrue(stats, stats.startsWith("Sum: 4 requests, 1 errors, latency p50 "));
+			Assert.assertTrue(stats, stats.contains("; pool of 1, 0 busy, peak 1, "));
+			Assert.assertTrue(stats, stats.endsWith("% used\n|OK"));
+		}
+	}
+
+	@Test
+	public void malformedRequests() throws IOException {
+		start(1, Interpreter.Engine.SWITCH, sum());
+		SocketAddress address = server.bind(0);
+		serve();
+		try (Client c = new Client(SocketChannel.open(address))) {
+			Assert.assertEquals("|ERROR unknown program Product", c.run("Product", "4"));
+			Assert.assertEquals("|ERROR unknown request", c.request("HELLO", ""));
+			Assert.assertEquals("|ERROR wrong input length", c.request("RUN Sum -1", ""));
+			Assert.assertEquals("|ERROR wrong input length", c.request("RUN Sum x", ""));
+			Assert.assertEquals("1 10|OK", c.run("Sum", "4"));
+		}
+	}
+
+	@Test
+	public void inputTooLong() throws IOException {
+		start(new Server(1, 8), Interpreter.Engine.SWITCH, sum());
+		SocketAddress address = server.bind(0);
+		serve();
+		try (Client c = new Client(SocketChannel.open(address))) {
+			Assert.assertEquals("|ERROR input too long", c.run("Sum", "         4"));
+			Assert.assertEquals("Input skipped", "1 10|OK", c.run("Sum", "       4"));
+		}
+	}
+
+	@Test
+	public void concurrentRequests() throws IOException, InterruptedException {
+		File product = compile("Product", //
+				"    read(n); runs++; s = 1;" + LF + //
+				"    while (n > 0) { s = s * n; n--; }" + LF + //
+				"    print(runs); print(' '); print(s);");
+		start(2, Interpreter.Engine.JIT, sum(), product);
+		SocketAddress address = server.bind(0);
+		serve();
+		List<String> failures = Collections.synchronizedList(new ArrayList<>());
+		Thread[] clients = new Thread[6];
+		for (int t = 0; t < clients.length; t++) {
+			int k = t;
+			clients[t] = new Thread(() -> {
+				try (Client c = new Client(SocketChannel.open(address))) {
+					for (int i = 1; i <= 30; i++) {
+						String expected = k % 2 == 0 ? "1 " + 100 / (i * (i + 1) / 2) + "|OK" : "1 " + fac(i % 12) + "|OK";
+						String actual = k % 2 == 0 ? c.run("Sum", "" + i) : c.run("Product", "" + i % 12);
+						if (!expected.equals(actual)) {
+							failures.add(expected + " expected instead of " + actual);
+						}
+					}
+				} catch (IOException e) {
+					failures.add(e.toString());
+				}
+			});
+			clients[t].start();
+		}
+		for (Thread t : clients) {
+			t.join();
+		}
+		Assert.assertEquals(Collections.emptyList(), failures);
+		String stats = server.stats();
+		Assert.assertTrue(stats, stats.startsWith("Sum: 90 requests, 0 errors, "));
+		Assert.assertTrue(stats, stats.contains("\nProduct: 90 requests, 0 errors, "));
+		Assert.assertTrue(stats, stats.contains("; pool of 2, 0 busy, peak "));
+	}
+
+	private static int fac(int n) {
+		return n <= 1 ? 1 : n * fac(n - 1);
+	}
+
+	@Test
+	public void streamedOutput() throws IOException {
+		File text = compile("Text", //
+				"    read(n);" + LF + //
+				"    while (n > 0) { print('x'); n--; }");
+		start(1, Interpreter.Engine.CLOSURE, text);
+		SocketAddress address = server.bind(0);
+		serve();
+		try (Client c = new Client(SocketChannel.open(address))) {
+			String output = c.run("Text", "20000");
+			Assert.assertEquals(20000 + "|OK".length(), output.length());
+			Assert.assertTrue(output.endsWith("xx|OK"));
+			Assert.assertEquals("Chunks", 3, c.chunks);
+		}
+	}
+
+	@Test
+	public void unixDomainSocket() throws IOException {
+		start(1, Interpreter.Engine.REGISTER, sum());
+		File socket = new File(folder.getRoot(), "mj.socket");
+		SocketAddress address = server.bind(socket.toPath());
+		serve();
+		try (Client c = new Client(SocketChannel.open(StandardProtocolFamily.UNIX))) {
+			c.ch.connect(address);
+			Assert.assertEquals("1 10|OK", c.run("Sum", "4"));
+		}
+		server.close();
+		Assert.assertFalse("Socket file deleted", socket.exists());
+	}
+}
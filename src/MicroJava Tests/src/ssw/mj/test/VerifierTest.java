@@ -0,0 +1,194 @@
+package ssw.mj.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import ssw.mj.Interpreter;
+import ssw.mj.Run;
+import ssw.mj.codegen.Code.OpCode;
+
+/**
+ * Test cases for the verification of object files when they are loaded by
+ * {@link Run}. The code of a correct program is modified in place.
+ */
+public class VerifierTest extends CompilerTestCaseSupport {
+
+	private static final int HEADER = 14; // marker, code size, data size, start pc
+
+	private byte[] obj;
+
+	@Before
+	public void compile() throws IOException {
+		init("program Verify" + LF + //
+				"  int g;" + LF + //
+				"{" + LF + //
+				"  int twice (int x) { return 2 * x; }" + LF + //
+				"  void main () int i; {" + LF + //
+				"    i = 0;" + LF + //
+				"    while (i < 3) { g = g + twice(i); i++; }" + LF + //
+				"    print(g);" + LF + //
+				"  }" + LF + //
+				"}");
+		parser.parse();
+		Assert.assertEquals("Errors", "", parser.scanner.errors.dump());
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		parser.code.write(bytes);
+		obj = bytes.toByteArray();
+	}
+
+	/**
+	 * Position of the first instruction with the given opcode in the code.
+	 */
+	private int find(OpCode op) {
+		for (int pc = 0; pc < parser.code.pc; pc++) {
+			if (obj[HEADER + pc] == op.code()) {
+				return pc;
+			}
+		}
+		throw new AssertionError(op + " not found");
+	}
+
+	private void patch(int pc, int... bytes) {
+		for (int i = 0; i < bytes.length; i++) {
+			obj[HEADER + pc + i] = (byte) bytes[i];
+		}
+	}
+
+	/**
+	 * Output of Run for the object file, without the completion time.
+	 */
+	private String run(String... options) throws IOException {
+		File file = File.createTempFile("verify", ".obj");
+		try (FileOutputStream os = new FileOutputStream(file)) {
+			os.write(obj);
+		}
+		PrintStream out = System.out;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			System.setOut(new PrintStream(bytes, true));
+			String[] args = new String[options.length + 1];
+			args[0] = file.getPath();
+			System.arraycopy(options, 0, args, 1, options.length);
+			Run.main(args);
+			System.out.flush();
+			String output = bytes.toString();
+			int completion = output.indexOf("\nCompletion took ");
+			return completion >= 0 ? output.substring(0, completion) : output;
+		} finally {
+			System.setOut(out);
+			file.delete();
+		}
+	}
+
+	private void expectRejected(String message, String... options) throws IOException {
+		String output = run(options);
+		Assert.assertTrue("Rejection expected instead of \"" + output + "\"",
+				output.startsWith("-- corrupted object file "));
+		Assert.assertTrue("\"" + message + "\" expected in \"" + output + "\"", output.contains(message));
+	}
+
+	@Test
+	public void correctCode() throws IOException {
+		Assert.assertEquals("6", run());
+		Assert.assertEquals("6", run("-engine", "threaded"));
+		Assert.assertEquals("6", run("-noverify"));
+	}
+
+	@Test
+	public void globalOutOfRange() throws IOException {
+		int pc = find(OpCode.getstatic);
+		patch(pc + 1, 1, 0);
+		expectRejected("global variable 256 out of data area at " + pc);
+	}
+
+	@Test
+	public void localOutOfRange() throws IOException {
+		int pc = find(OpCode.store_0);
+		patch(pc, OpCode.store_1.code());
+		expectRejected("local variable index out of range at " + pc);
+	}
+
+	@Test
+	public void jumpIntoInstruction() throws IOException {
+		int pc = find(OpCode.jmp);
+		patch(pc + 1, 0, 4); // second byte of the next instruction
+		expectRejected("at " + (pc + 4));
+	}
+
+	@Test
+	public void stackUnderflow() throws IOException {
+		int pc = find(OpCode.getstatic);
+		patch(pc, OpCode.pop.code(), OpCode.nop.code(), OpCode.nop.code());
+		expectRejected("expression stack underflow at " + pc);
+	}
+
+	@Test
+	public void inconsistentDepth() throws IOException {
+		// i++ becomes a constant that is left on the stack in every iteration
+		patch(find(OpCode.inc), OpCode.const_1.code(), OpCode.nop.code(), OpCode.nop.code());
+		expectRejected("inconsistent stack depth at ");
+	}
+
+	@Test
+	public void frameTooSmall() throws IOException {
+		int pc = find(OpCode.enter); // of twice
+		patch(pc + 1, 1, 0); // one parameter, no locals
+		expectRejected("invalid frame size at " + pc);
+		for (String engine : new String[] { "switch", "threaded" }) {
+			try {
+				run("-noverify", "-engine", engine);
+				Assert.fail("Runtime error expected on " + engine);
+			} catch (IllegalStateException e) {
+				Assert.assertEquals("invalid frame size", e.getMessage());
+			}
+		}
+	}
+
+	@Test
+	public void expressionStackTooSmall() throws IOException {
+		Assert.assertEquals("6", run("-estack", "3"));
+		expectRejected("needs 2 words of expression stack, only 1 available", "-estack", "1");
+		Assert.assertEquals("6", run("-estack", "1", "-grow"));
+	}
+
+	@Test
+	public void stackOfUncheckedCode() throws IOException {
+		// twice needs 2 words above g and its argument
+		Assert.assertEquals("6", run("-engine", "threaded", "-estack", "2", "-grow"));
+		try {
+			run("-engine", "threaded", "-estack", "2");
+			Assert.fail("Overflow expected");
+		} catch (IllegalStateException e) {
+			Assert.assertEquals("expression stack overflow", e.getMessage());
+		}
+	}
+
+	@Test
+	public void startOutOfRange() {
+		byte[] code = Arrays.copyOf(parser.code.buf, parser.code.pc);
+		for (int startPC : new int[] { -1, code.length }) {
+			try {
+				new Interpreter.Builder().verify(code, startPC, parser.code.dataSize);
+				Assert.fail("Rejection expected for start " + startPC);
+			} catch (IOException e) {
+				Assert.assertEquals("method at " + startPC + " not in code area", e.getMessage());
+			}
+			for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+				try {
+					new Interpreter.Builder().engine(engine).build(code, startPC, parser.code.dataSize);
+					Assert.fail("Rejection expected for start " + startPC + " on " + engine);
+				} catch (IllegalArgumentException e) {
+					Assert.assertEquals("startPC not in code area: " + startPC, e.getMessage());
+				}
+			}
+		}
+	}
+}